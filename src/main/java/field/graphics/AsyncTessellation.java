@@ -0,0 +1,215 @@
+package field.graphics;
+
+import field.app.RunLoop;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Fills FLines into triangle MeshBuilders without flattening and tessellating them on the main loop.
+ * <p>
+ * When a line's modCount changes we take a snapshot of it (a duplicate, with its aux properties already evaluated), and flatten and tessellate that snapshot
+ * on a fork-join pool into a private staging mesh. The result is copied out into plain arrays, and the next time the line is drawn those arrays are spliced
+ * into the real MeshBuilder inside the usual Bookmark skipTo, so unchanged lines still cost nothing. Until a newer build is ready we keep splicing the previous
+ * one, so the line never disappears while it's being rebuilt (it just lags behind by however long the build takes).
+ * <p>
+ * Turn this on for a line with `line.asyncTessellation = true` (see StandardFLineDrawing).
+ */
+public class AsyncTessellation {
+
+    static public final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * called (on the main loop) with the layer name of a line whose new geometry is ready to be spliced in. Drawing uses this to ask for a repaint
+     */
+    static public Consumer<String> onReady = null;
+
+    // statistics
+    static public final AtomicLong builds = new AtomicLong();
+    static public final AtomicLong superseded = new AtomicLong();
+    static public volatile long lastBuildNanos = 0;
+    static public long lastLatencyNanos = 0;
+    static public long maxLatencyNanos = 0;
+
+    static private final WeakHashMap<FLine, WeakHashMap<MeshBuilder, Slot>> slots = new WeakHashMap<>();
+
+    static private class Slot {
+        final MeshBuilder.Bookmark start;
+        final MeshBuilder.Bookmark end;
+
+        long requested = -1;
+        long requestedAt = 0;
+        CompletableFuture<Staged> building;
+        Staged shown;
+
+        Slot(MeshBuilder m) {
+            start = m.bookmark();
+            end = m.bookmark();
+        }
+    }
+
+    /**
+     * the flattened, tessellated geometry for one snapshot of a line
+     */
+    static private class Staged {
+        int vertexCount;
+        float[] vertices;
+        int[] channels;
+        int[] dimensions;
+        float[][] aux;
+        int[] triangles;
+    }
+
+    /**
+     * the asynchronous equivalent of fline.renderToMesh(m, fixedSizeForCubic). Returns true if this was skipped entirely
+     */
+    static public boolean renderToMesh(FLine fline, MeshBuilder m, int fixedSizeForCubic, String layerName) {
+        Slot s = slots.computeIfAbsent(fline, k -> new WeakHashMap<>()).computeIfAbsent(m, Slot::new);
+
+        long mod = fline.getModCount();
+        if (mod != s.requested) {
+            if (s.building != null && s.building.cancel(false)) superseded.incrementAndGet();
+
+            FLine snapshot = snapshot(fline);
+            Map<Integer, float[]> sticky = new HashMap<>(m.aux);
+
+            s.requested = mod;
+            s.requestedAt = System.nanoTime();
+            CompletableFuture<Staged> b = CompletableFuture.supplyAsync(() -> stage(snapshot, sticky, fixedSizeForCubic), pool);
+            s.building = b;
+            b.thenRun(() -> RunLoop.main.once(() -> {
+                Consumer<String> r = onReady;
+                if (r != null) r.accept(layerName);
+            }));
+        }
+
+        if (s.building != null && s.building.isDone()) {
+            if (!s.building.isCompletedExceptionally()) {
+                s.shown = s.building.join();
+                lastLatencyNanos = System.nanoTime() - s.requestedAt;
+                maxLatencyNanos = Math.max(maxLatencyNanos, lastLatencyNanos);
+            } else {
+                s.building.exceptionally(e -> {
+                    if (!(e instanceof java.util.concurrent.CancellationException)) e.printStackTrace();
+                    return null;
+                });
+            }
+            s.building = null;
+        }
+
+        Staged shown = s.shown;
+        return m.skipTo(s.start, s.end, shown, () -> splice(shown, m));
+    }
+
+    /**
+     * are there builds for this line that haven't been spliced in yet?
+     */
+    static public boolean isPending(FLine fline) {
+        WeakHashMap<MeshBuilder, Slot> q = slots.get(fline);
+        if (q == null) return false;
+        for (Slot s : q.values())
+            if (s.building != null) return true;
+        return false;
+    }
+
+    // evaluated on the main loop, so that aux property functions (which may well be script closures) never run on the pool
+    static private FLine snapshot(FLine fline) {
+        FLine snapshot = fline.duplicate();
+        snapshot.flattenAuxProperties();
+        snapshot.setAuxPropertiesFunctions(new LinkedHashMap<>());
+        return snapshot;
+    }
+
+    static private Staged stage(FLine snapshot, Map<Integer, float[]> sticky, int fixedSizeForCubic) {
+        long t0 = System.nanoTime();
+
+        BaseMesh mesh = BaseMesh.triangleList(16, 16);
+        MeshBuilder b = new MeshBuilder(mesh);
+        sticky.forEach(b::aux);
+        snapshot.renderToMesh(b, fixedSizeForCubic);
+
+        Staged s = new Staged();
+        s.vertexCount = b.getVertexCursor();
+        s.vertices = new float[s.vertexCount * 3];
+        if (s.vertexCount > 0) {
+            FloatBuffer v = mesh.vertex(false);
+            v.clear();
+            v.get(s.vertices);
+        }
+
+        List<Integer> channels = new ArrayList<>();
+        for (Integer k : mesh.buffers().keySet())
+            if (k != 0) channels.add(k);
+        s.channels = new int[channels.size()];
+        s.dimensions = new int[channels.size()];
+        s.aux = new float[channels.size()][];
+        for (int i = 0; i < s.channels.length; i++) {
+            ArrayBuffer a = mesh.buffers().get(channels.get(i));
+            s.channels[i] = channels.get(i);
+            s.dimensions[i] = a.getDimension();
+            s.aux[i] = new float[s.vertexCount * s.dimensions[i]];
+            FloatBuffer f = a.floats();
+            f.clear();
+            f.get(s.aux[i]);
+        }
+
+        s.triangles = new int[b.getElementCursor() * 3];
+        IntBuffer e = mesh.elements.ints();
+        e.clear();
+        e.get(s.triangles);
+
+        builds.incrementAndGet();
+        lastBuildNanos = System.nanoTime() - t0;
+        return s;
+    }
+
+    static private void splice(Staged s, MeshBuilder m) {
+        if (s == null) return;
+
+        m.open();
+        try {
+            int base = m.getVertexCursor();
+            int n = s.vertexCount;
+
+            m.ensureSize(0, 3, base + n).put(s.vertices);
+
+            for (int i = 0; i < s.channels.length; i++)
+                m.ensureSize(s.channels[i], s.dimensions[i], base + n).put(s.aux[i]);
+
+            // aux buffers that the target has, but this line doesn't, get the builder's current value, just as MeshBuilder.v would have given them
+            for (Map.Entry<Integer, ArrayBuffer> b : new ArrayList<>(m.getTarget().buffers().entrySet())) {
+                int channel = b.getKey();
+                if (channel == 0 || contains(s.channels, channel)) continue;
+                int d = b.getValue().getDimension();
+                float[] value = m.aux.get(channel);
+                if (value == null || value.length != d) value = new float[d];
+                FloatBuffer f = m.ensureSize(channel, d, base + n);
+                for (int v = 0; v < n; v++) f.put(value);
+            }
+
+            int element = m.getElementCursor();
+            IntBuffer e = m.ensureElementSize(3, element + s.triangles.length / 3);
+            for (int t : s.triangles) e.put(t + base);
+
+            m.setVertexColor(base + n);
+            m.setElementCursor(element + s.triangles.length / 3);
+        } finally {
+            m.close();
+        }
+    }
+
+    static private boolean contains(int[] a, int v) {
+        for (int x : a) if (x == v) return true;
+        return false;
+    }
+
+    static public String stats() {
+        return "async tessellation: " + builds.get() + " builds (" + superseded.get() + " superseded), last build " + (lastBuildNanos / 1000) + "us, last latency " + (lastLatencyNanos / 1000) + "us, max latency " + (maxLatencyNanos / 1000) + "us";
+    }
+
+}
@@ -107,6 +107,114 @@ public class BaseMesh extends Scene implements Scene.Perform {
 
 	Supplier<Integer> instances = () -> 0;
 
+	// set by standard(...), so that MeshBatch can tell which meshes can be drawn together
+	int primitiveType = -1;
+	int primitiveSize = 0;
+
+	/**
+	 * draw calls and vertex array binds issued by meshes (and MeshBatches). `drawCalls` and `stateChanges` run continuously, the `LastFrame` versions are
+	 * updated by endFrame()
+	 */
+	static public long drawCalls = 0;
+	static public long stateChanges = 0;
+	static public long drawCallsLastFrame = 0;
+	static public long stateChangesLastFrame = 0;
+	static private long drawCallsAtFrame = 0;
+	static private long stateChangesAtFrame = 0;
+
+	/**
+	 * called by Window at the end of each frame
+	 */
+	static public void endFrame() {
+		drawCallsLastFrame = drawCalls - drawCallsAtFrame;
+		stateChangesLastFrame = stateChanges - stateChangesAtFrame;
+		drawCallsAtFrame = drawCalls;
+		stateChangesAtFrame = stateChanges;
+	}
+
+	// bounding box of attribute 0, {minX, minY, minZ, maxX, maxY, maxZ}, valid while the vertex buffer is still at boundsMod and the limit at boundsLimit
+	final float[] bounds = new float[6];
+	int boundsMod = -1;
+	int boundsLimit = -1;
+	boolean explicitBounds = false;
+
+	/**
+	 * sets the bounding box of this mesh explicitly, rather than having it computed from the vertices. Use this when a shader moves the vertices
+	 * around.
+	 */
+	public BaseMesh setBounds(Vec3 min, Vec3 max) {
+		bounds[0] = (float) min.x;
+		bounds[1] = (float) min.y;
+		bounds[2] = (float) min.z;
+		bounds[3] = (float) max.x;
+		bounds[4] = (float) max.y;
+		bounds[5] = (float) max.z;
+		explicitBounds = true;
+		return this;
+	}
+
+	/**
+	 * goes back to computing the bounding box of this mesh from its vertices
+	 */
+	public BaseMesh clearBounds() {
+		explicitBounds = false;
+		boundsMod = -1;
+		return this;
+	}
+
+	/**
+	 * called by MeshBuilder.close() with the bounds of what it has just written
+	 */
+	void publishBounds(float[] b) {
+		ArrayBuffer v = buffers[0];
+		if (explicitBounds || !(v instanceof SimpleArrayBuffer)) return;
+		System.arraycopy(b, 0, bounds, 0, 6);
+		boundsMod = ((SimpleArrayBuffer) v).mod;
+		boundsLimit = limitVertex;
+	}
+
+	/**
+	 * writes the bounding box of this mesh {minX, minY, minZ, maxX, maxY, maxZ} into `into`, returning false if this mesh has no vertices. These are
+	 * kept up to date by MeshBuilder as it writes vertices, otherwise they are recomputed if the vertex buffer has been written to since they were last
+	 * computed.
+	 */
+	public boolean getBounds(float[] into) {
+		if (explicitBounds) {
+			System.arraycopy(bounds, 0, into, 0, 6);
+			return true;
+		}
+
+		ArrayBuffer v = buffers[0];
+		trimVertexLimit();
+		if (v == null || limitVertex == 0) return false;
+
+		int mod = v instanceof SimpleArrayBuffer ? ((SimpleArrayBuffer) v).mod : -2;
+		if (mod != boundsMod || boundsLimit != limitVertex) {
+			FloatBuffer f = v.floats(true);
+			float x0 = Float.POSITIVE_INFINITY, y0 = x0, z0 = x0;
+			float x1 = Float.NEGATIVE_INFINITY, y1 = x1, z1 = x1;
+			for (int i = 0; i < limitVertex; i++) {
+				float x = f.get(3 * i), y = f.get(3 * i + 1), z = f.get(3 * i + 2);
+				x0 = Math.min(x0, x);
+				y0 = Math.min(y0, y);
+				z0 = Math.min(z0, z);
+				x1 = Math.max(x1, x);
+				y1 = Math.max(y1, y);
+				z1 = Math.max(z1, z);
+			}
+			bounds[0] = x0;
+			bounds[1] = y0;
+			bounds[2] = z0;
+			bounds[3] = x1;
+			bounds[4] = y1;
+			bounds[5] = z1;
+			boundsMod = mod == -2 ? -1 : mod;
+			boundsLimit = limitVertex;
+		}
+		System.arraycopy(bounds, 0, into, 0, 6);
+		return true;
+	}
+
 	public BaseMesh setInstances(int num) {
 		this.instances = () -> num;
 		return this;
@@ -260,6 +368,7 @@ public class BaseMesh extends Scene implements Scene.Perform {
 			final Integer finalVa = va;
 			Log.log("graphics.trace", () -> " va name is " + finalVa);
 			glBindVertexArray(va);
+			stateChanges++;
 
 			boolean work = false;
 
@@ -313,6 +422,7 @@ public class BaseMesh extends Scene implements Scene.Perform {
 				GraphicsContext.checkError(() -> "on entry " + this);
 
 				int ii = instances.get();
+				drawCalls++;
 
 				if (ii == 0) {
 					if (primitiveSize == 0) {
@@ -342,6 +452,8 @@ public class BaseMesh extends Scene implements Scene.Perform {
 				return true;
 			}
 		};
+		m.primitiveType = primitiveType;
+		m.primitiveSize = primitiveSize;
 		m.setVertexMax(numVertex);
 		if (primitiveSize > 0) {
 			m.setElements(new SimpleArrayBuffer(numElements, GL_ELEMENT_ARRAY_BUFFER, -1, primitiveSize, 0));
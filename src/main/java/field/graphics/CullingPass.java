@@ -0,0 +1,489 @@
+package field.graphics;
+
+import field.linalg.FrustumCuller;
+import field.linalg.Mat4;
+import field.linalg.Vec4;
+import field.utility.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL33.GL_ANY_SAMPLES_PASSED;
+
+/**
+ * Draws only those meshes that can be seen.
+ * <p>
+ * Attach one of these to a Shader instead of attaching the meshes themselves, and add(...) meshes to it. Each frame the bounding boxes of the meshes
+ * (see BaseMesh.getBounds, kept up to date by MeshBuilder, or set explicitly with BaseMesh.setBounds) are tested against the frustum of `transform`,
+ * which should be the matrix that takes the meshes' vertices to clip space --- the same matrix that you'd give a FrustumCuller. The boxes are kept in a
+ * bounding volume hierarchy so that whole groups of meshes are culled at once, and children that are entirely inside planes that their parents are
+ * inside of don't test them again.
+ * <p>
+ * With occlusionQueries set, meshes that pass the frustum test are drawn inside occlusion queries, and meshes that drew nothing are skipped next frame
+ * (their bounding box is drawn, invisibly, to find out when they come back). Results are read a frame late so that we never wait on the GPU, which means
+ * that a mesh that comes out from behind something appears a frame late. Meshes whose boxes reach the near plane (or hold the eye) are always drawn, without a
+ * query: a box seen from inside doesn't rasterize reliably, so it would say they were hidden.
+ * <p>
+ * Culled meshes aren't performed at all, so neither is anything attached to them.
+ */
+public class CullingPass implements Scene.Perform {
+
+	public final Supplier<Mat4> transform;
+
+	/**
+	 * skip meshes that drew nothing last time
+	 */
+	public boolean occlusionQueries = false;
+
+	/**
+	 * what happened last frame
+	 */
+	public int drawnLastFrame = 0;
+	public int frustumCulledLastFrame = 0;
+	public int occludedLastFrame = 0;
+
+	private final FrustumCuller culler = new FrustumCuller();
+	private final List<Entry> entries = new ArrayList<>();
+	private final Map<BaseMesh, Entry> lookup = new IdentityHashMap<>();
+	private final float[] box = new float[6];
+	private final Vec4 corner = new Vec4();
+	private boolean structureChanged = true;
+
+	// the hierarchy, in preorder: node n's first child is n+1, its second nodeRight[n] (-1 for leaves, whose entries are order[nodeStart[n]...])
+	private float[] nodeBox = new float[0];
+	private int[] nodeRight = new int[0];
+	private int[] nodeStart = new int[0];
+	private int[] nodeCount = new int[0];
+	private int[] nodePlane = new int[0];
+	private int nodes = 0;
+	private Entry[] order = new Entry[0];
+
+	static private final int leafSize = 4;
+
+	static class Entry {
+		final BaseMesh mesh;
+		final float[] box = new float[6];
+		boolean bounded = false;
+		boolean visible = false;
+		int lastPlane = -1;
+
+		Entry(BaseMesh mesh) {
+			this.mesh = mesh;
+		}
+	}
+
+	static class Query {
+		int name;
+		boolean pending = false;
+		boolean visible = true;
+	}
+
+	static class OcclusionState {
+		Map<Entry, Query> queries = new IdentityHashMap<>();
+		int program;
+		int vao;
+		int vbo;
+		int transformAt, minAt, maxAt;
+	}
+
+	public CullingPass(Supplier<Mat4> transform) {
+		this.transform = transform;
+	}
+
+	public CullingPass add(BaseMesh m) {
+		if (lookup.containsKey(m)) return this;
+		Entry e = new Entry(m);
+		lookup.put(m, e);
+		entries.add(e);
+		structureChanged = true;
+		return this;
+	}
+
+	public CullingPass remove(BaseMesh m) {
+		Entry e = lookup.remove(m);
+		if (e != null) {
+			entries.remove(e);
+			structureChanged = true;
+		}
+		return this;
+	}
+
+	public boolean contains(BaseMesh m) {
+		return lookup.containsKey(m);
+	}
+
+	@Override
+	public boolean perform(int pass) {
+		if (pass != 0) return true;
+
+		Mat4 t = transform.get();
+		culler.set(t);
+
+		int changed = 0;
+		for (Entry e : entries) {
+			boolean b = e.mesh.getBounds(box);
+			if (b != e.bounded) structureChanged = true;
+			e.bounded = b;
+			if (b && !Arrays.equals(box, e.box)) {
+				System.arraycopy(box, 0, e.box, 0, 6);
+				changed++;
+			}
+		}
+
+		// a few things moving just stretches the hierarchy a little, a lot of things moving makes it worth building again
+		if (structureChanged || changed > Math.max(4, entries.size() / 4)) build();
+		else if (changed > 0) refit();
+		structureChanged = false;
+
+		for (Entry e : entries)
+			e.visible = !e.bounded;
+		if (nodes > 0) visit(0, FrustumCuller.PLANE_MASK_NX | FrustumCuller.PLANE_MASK_PX | FrustumCuller.PLANE_MASK_NY | FrustumCuller.PLANE_MASK_PY | FrustumCuller.PLANE_MASK_NZ | FrustumCuller.PLANE_MASK_PZ);
+
+		int drawn = 0, culled = 0, occluded = 0;
+
+		OcclusionState s = occlusionQueries ? GraphicsContext.get(this, this::setupOcclusion) : null;
+		List<Entry> proxies = null;
+
+		for (Entry e : entries) {
+			if (!e.visible) {
+				culled++;
+				if (s != null) {
+					// assume that it's visible when it comes back into view, rather than having it pop in late
+					Query q = s.queries.get(e);
+					if (q != null && !q.pending) q.visible = true;
+				}
+				continue;
+			}
+
+			if (s == null || !e.bounded) {
+				e.mesh.perform(0);
+				drawn++;
+				continue;
+			}
+
+			Query q = s.queries.computeIfAbsent(e, (k) -> {
+				Query n = new Query();
+				n.name = glGenQueries();
+				return n;
+			});
+
+			if (q.pending && glGetQueryObjecti(q.name, GL_QUERY_RESULT_AVAILABLE) != 0) {
+				q.visible = glGetQueryObjecti(q.name, GL_QUERY_RESULT) != 0;
+				q.pending = false;
+			}
+
+			if (reachesNearPlane(t, e.box)) {
+				// neither the proxy nor the mesh itself can be trusted to draw anything from in here
+				q.visible = true;
+				e.mesh.perform(0);
+				drawn++;
+			} else if (q.visible) {
+				if (q.pending) e.mesh.perform(0);
+				else {
+					glBeginQuery(GL_ANY_SAMPLES_PASSED, q.name);
+					e.mesh.perform(0);
+					glEndQuery(GL_ANY_SAMPLES_PASSED);
+					q.pending = true;
+				}
+				drawn++;
+			} else {
+				occluded++;
+				if (!q.pending) {
+					if (proxies == null) proxies = new ArrayList<>();
+					proxies.add(e);
+				}
+			}
+		}
+
+		if (proxies != null) drawProxies(s, proxies);
+
+		if (s != null && s.queries.size() > entries.size()) {
+			Iterator<Map.Entry<Entry, Query>> i = s.queries.entrySet()
+								       .iterator();
+			while (i.hasNext()) {
+				Map.Entry<Entry, Query> q = i.next();
+				if (lookup.get(q.getKey().mesh) != q.getKey()) {
+					glDeleteQueries(q.getValue().name);
+					i.remove();
+				}
+			}
+		}
+
+		drawnLastFrame = drawn;
+		frustumCulledLastFrame = culled;
+		occludedLastFrame = occluded;
+
+		Log.log("graphics.trace", () -> " culling pass " + this);
+
+		return true;
+	}
+
+	/**
+	 * does the box `b` cross the near plane of `t` (or go behind the eye)? That's true of any box that contains the eye
+	 */
+	private boolean reachesNearPlane(Mat4 t, float[] b) {
+		for (int i = 0; i < 8; i++) {
+			corner.set(b[(i & 1) == 0 ? 0 : 3], b[(i & 2) == 0 ? 1 : 4], b[(i & 4) == 0 ? 2 : 5], 1).mul(t);
+			if (corner.w <= 0 || corner.z < -corner.w) return true;
+		}
+		return false;
+	}
+
+	private void visit(int n, int mask) {
+		int c = 0;
+		if (mask != 0) {
+			c = culler.classifyAabMasked(nodeBox[6 * n], nodeBox[6 * n + 1], nodeBox[6 * n + 2], nodeBox[6 * n + 3], nodeBox[6 * n + 4], nodeBox[6 * n + 5], mask, nodePlane[n]);
+			if (c < 0) {
+				nodePlane[n] = -1 - c;
+				return;
+			}
+		}
+
+		if (nodeRight[n] == -1) {
+			for (int i = nodeStart[n]; i < nodeStart[n] + nodeCount[n]; i++) {
+				Entry e = order[i];
+				if (c == 0) {
+					e.visible = true;
+					continue;
+				}
+				float[] b = e.box;
+				int r = culler.classifyAabMasked(b[0], b[1], b[2], b[3], b[4], b[5], c, e.lastPlane);
+				if (r < 0) e.lastPlane = -1 - r;
+				else e.visible = true;
+			}
+		} else {
+			visit(n + 1, c);
+			visit(nodeRight[n], c);
+		}
+	}
+
+	private void build() {
+		int n = 0;
+		for (Entry e : entries)
+			if (e.bounded) n++;
+
+		if (order.length < n) order = new Entry[n];
+		int k = 0;
+		for (Entry e : entries)
+			if (e.bounded) order[k++] = e;
+
+		int maxNodes = Math.max(1, 2 * n);
+		if (nodeRight.length < maxNodes) {
+			nodeBox = new float[6 * maxNodes];
+			nodeRight = new int[maxNodes];
+			nodeStart = new int[maxNodes];
+			nodeCount = new int[maxNodes];
+			nodePlane = new int[maxNodes];
+		}
+		Arrays.fill(nodePlane, -1);
+
+		nodes = 0;
+		if (n > 0) build(0, n);
+	}
+
+	private int build(int start, int count) {
+		int n = nodes++;
+		nodeStart[n] = start;
+		nodeCount[n] = count;
+		union(n, start, count);
+
+		if (count <= leafSize) {
+			nodeRight[n] = -1;
+			return n;
+		}
+
+		// split at the median of the centers along the longest axis
+		int axis = 0;
+		float extent = -1;
+		for (int a = 0; a < 3; a++) {
+			float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+			for (int i = start; i < start + count; i++) {
+				float c = order[i].box[a] + order[i].box[a + 3];
+				lo = Math.min(lo, c);
+				hi = Math.max(hi, c);
+			}
+			if (hi - lo > extent) {
+				extent = hi - lo;
+				axis = a;
+			}
+		}
+		int half = count / 2;
+		select(start, start + count - 1, start + half, axis);
+
+		build(start, half);
+		nodeRight[n] = build(start + half, count - half);
+		return n;
+	}
+
+	/**
+	 * partially sorts order[lo...hi] so that order[k] has the k'th smallest center along `axis`
+	 */
+	private void select(int lo, int hi, int k, int axis) {
+		while (hi > lo) {
+			float pivot = center(order[(lo + hi) >>> 1], axis);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (center(order[i], axis) < pivot) i++;
+				while (center(order[j], axis) > pivot) j--;
+				if (i <= j) {
+					Entry t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	static private float center(Entry e, int axis) {
+		return e.box[axis] + e.box[axis + 3];
+	}
+
+	/**
+	 * recomputes the boxes of the hierarchy without changing its shape. Children come after their parents, so we can go backwards
+	 */
+	private void refit() {
+		for (int n = nodes - 1; n >= 0; n--) {
+			if (nodeRight[n] == -1) union(n, nodeStart[n], nodeCount[n]);
+			else {
+				int l = n + 1, r = nodeRight[n];
+				for (int a = 0; a < 3; a++) {
+					nodeBox[6 * n + a] = Math.min(nodeBox[6 * l + a], nodeBox[6 * r + a]);
+					nodeBox[6 * n + a + 3] = Math.max(nodeBox[6 * l + a + 3], nodeBox[6 * r + a + 3]);
+				}
+			}
+		}
+	}
+
+	private void union(int n, int start, int count) {
+		for (int a = 0; a < 3; a++) {
+			nodeBox[6 * n + a] = Float.POSITIVE_INFINITY;
+			nodeBox[6 * n + a + 3] = Float.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < start + count; i++)
+			for (int a = 0; a < 3; a++) {
+				nodeBox[6 * n + a] = Math.min(nodeBox[6 * n + a], order[i].box[a]);
+				nodeBox[6 * n + a + 3] = Math.max(nodeBox[6 * n + a + 3], order[i].box[a + 3]);
+			}
+	}
+
+	/**
+	 * draws the bounding boxes of meshes that were hidden last time, without writing color or depth, to see if they've come back
+	 */
+	private void drawProxies(OcclusionState s, List<Entry> proxies) {
+		boolean depthMask = glGetBoolean(GL_DEPTH_WRITEMASK);
+		glDepthMask(false);
+		glColorMask(false, false, false, false);
+
+		glUseProgram(s.program);
+		FloatBuffer m = ByteBuffer.allocateDirect(4 * 16)
+					  .order(ByteOrder.nativeOrder())
+					  .asFloatBuffer();
+		transform.get()
+			 .get(m);
+		glUniformMatrix4fv(s.transformAt, false, m);
+		glBindVertexArray(s.vao);
+
+		for (Entry e : proxies) {
+			Query q = s.queries.get(e);
+			glUniform3f(s.minAt, e.box[0], e.box[1], e.box[2]);
+			glUniform3f(s.maxAt, e.box[3], e.box[4], e.box[5]);
+			glBeginQuery(GL_ANY_SAMPLES_PASSED, q.name);
+			glDrawArrays(GL_TRIANGLES, 0, 36);
+			glEndQuery(GL_ANY_SAMPLES_PASSED);
+			q.pending = true;
+		}
+
+		glBindVertexArray(0);
+		Integer was = GraphicsContext.getContext().stateTracker.shader.get();
+		glUseProgram(was == null ? 0 : was);
+		glColorMask(true, true, true, true);
+		glDepthMask(depthMask);
+		GraphicsContext.checkError(() -> "after drawing occlusion proxies");
+	}
+
+	private OcclusionState setupOcclusion() {
+		OcclusionState s = new OcclusionState();
+
+		int vs = glCreateShader(GL_VERTEX_SHADER);
+		glShaderSource(vs, "#version 410\n" +
+			    "layout(location=0) in vec3 position;\n" +
+			    "uniform mat4 transform;\n" +
+			    "uniform vec3 boundsMin;\n" +
+			    "uniform vec3 boundsMax;\n" +
+			    "void main()\n" +
+			    "{\n" +
+			    "	gl_Position = transform * vec4(mix(boundsMin, boundsMax, position), 1.0);\n" +
+			    "}");
+		glCompileShader(vs);
+		int fs = glCreateShader(GL_FRAGMENT_SHADER);
+		glShaderSource(fs, "#version 410\n" +
+			    "layout(location=0) out vec4 _output;\n" +
+			    "void main()\n" +
+			    "{\n" +
+			    "	_output = vec4(1.0);\n" +
+			    "}");
+		glCompileShader(fs);
+		s.program = glCreateProgram();
+		glAttachShader(s.program, vs);
+		glAttachShader(s.program, fs);
+		glLinkProgram(s.program);
+		glDeleteShader(vs);
+		glDeleteShader(fs);
+		if (glGetProgrami(s.program, GL_LINK_STATUS) == 0)
+			System.err.println(" occlusion proxy shader didn't link: " + glGetProgramInfoLog(s.program, 10000));
+		s.transformAt = glGetUniformLocation(s.program, "transform");
+		s.minAt = glGetUniformLocation(s.program, "boundsMin");
+		s.maxAt = glGetUniformLocation(s.program, "boundsMax");
+
+		// a unit cube, as 12 triangles
+		float[] cube = new float[36 * 3];
+		int[][] faces = {{0, 1, 3, 2}, {4, 6, 7, 5}, {0, 4, 5, 1}, {2, 3, 7, 6}, {0, 2, 6, 4}, {1, 5, 7, 3}};
+		int c = 0;
+		for (int[] f : faces)
+			for (int v : new int[]{f[0], f[1], f[2], f[0], f[2], f[3]}) {
+				cube[c++] = v & 1;
+				cube[c++] = (v >> 1) & 1;
+				cube[c++] = (v >> 2) & 1;
+			}
+		FloatBuffer b = ByteBuffer.allocateDirect(4 * cube.length)
+					  .order(ByteOrder.nativeOrder())
+					  .asFloatBuffer();
+		b.put(cube);
+		b.flip();
+
+		s.vao = glGenVertexArrays();
+		glBindVertexArray(s.vao);
+		s.vbo = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, s.vbo);
+		glBufferData(GL_ARRAY_BUFFER, b, GL_STATIC_DRAW);
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+		glBindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		return s;
+	}
+
+	@Override
+	public int[] getPasses() {
+		return new int[]{0};
+	}
+
+	@Override
+	public String toString() {
+		return "CullingPass(" + entries.size() + " meshes, drew " + drawnLastFrame + ", frustum culled " + frustumCulledLastFrame + (occlusionQueries ? ", occluded " + occludedLastFrame : "") + ")";
+	}
+}
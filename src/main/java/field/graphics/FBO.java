@@ -428,6 +428,17 @@ public class FBO extends BaseScene<FBO.State> implements Scene.Perform, OffersUn
 
     public boolean sbsStereoViewport = false;
 
+    private Rect damage = null;
+
+    /**
+     * restricts the next draw() to this rectangle (in pixels, origin bottom left) by scissoring it --- whatever is outside it is left as it was. Pass
+     * null to draw everything
+     */
+    public FBO setDamage(Rect damage) {
+        this.damage = damage;
+        return this;
+    }
+
     public boolean draw() {
 
         drawCount++;
@@ -443,8 +454,15 @@ public class FBO extends BaseScene<FBO.State> implements Scene.Perform, OffersUn
 
             int[] v = {(int) viewport.x, (int) viewport.y, (int) viewport.w, (int) viewport.h};
 
+            int[] sc = v;
+            if (damage != null) {
+                Rect d = Rect.intersection(damage, viewport);
+                int x0 = (int) Math.floor(d.x), y0 = (int) Math.floor(d.y);
+                sc = new int[]{x0, y0, (int) Math.ceil(d.x + d.w) - x0, (int) Math.ceil(d.y + d.h) - y0};
+            }
+
             GraphicsContext.checkError(() -> "prior to scissor");
-            GraphicsContext.getContext().stateTracker.scissor.set(v);
+            GraphicsContext.getContext().stateTracker.scissor.set(sc);
 
             GraphicsContext.checkError(() -> "prior to viewport");
             GraphicsContext.getContext().stateTracker.viewport.set(v);
@@ -511,6 +529,7 @@ public class FBO extends BaseScene<FBO.State> implements Scene.Perform, OffersUn
                 for (int i = 0; i < s.text.length; i++) {
                     glDrawBuffer(GL_COLOR_ATTACHMENT0 + i);
                     glReadBuffer(GL_COLOR_ATTACHMENT0 + i);
+                    // (the scissor, if there's some damage, means that only that gets resolved)
                     glBlitFramebuffer(0, 0, specification.width, specification.height, 0, 0, specification.width, specification.height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
                 }
                 glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
@@ -549,6 +568,7 @@ public class FBO extends BaseScene<FBO.State> implements Scene.Perform, OffersUn
             throw t;
         } finally {
             currentFBO.set(null);
+            damage = null;
             GraphicsContext.checkError(() -> "on FBO draw exit2");
         }
     }
@@ -9,6 +9,7 @@ import fieldbox.execution.HandlesCompletion;
 import fieldbox.execution.JavaSupport;
 import fieldnashorn.annotations.HiddenInAutocomplete;
 import kotlin.jvm.functions.Function1;
+import org.lwjgl.util.glu.GLU;
 import org.openjdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.openjdk.nashorn.api.scripting.ScriptUtils;
 
@@ -62,6 +63,7 @@ public class FLine implements Supplier<FLine>, fieldlinker.AsMap, HandlesComplet
     long mod = 0;
     WeakHashMap<MeshBuilder, BookmarkCache> cache = new WeakHashMap<>();
     WeakHashMap<MeshBuilder, BookmarkCache> cache_thickening = new WeakHashMap<>();
+    transient SegmentBVH segmentBVH;
     private Map<Integer, Function<Node, Object>> auxProperties;
 
     public FLine() {
@@ -1125,7 +1127,7 @@ public class FLine implements Supplier<FLine>, fieldlinker.AsMap, HandlesComplet
 
         return m.skipTo(c.start, c.end, mod, () -> {
 
-            MeshBuilder_tesselationSupport ts = m.getTessSupport();
+            MeshBuilder_tesselationSupport ts = fillSupport(m);
             flattenAuxProperties();
 
             boolean noContours = attributes.isTrue(StandardFLineDrawing.noContours, false);
@@ -1184,6 +1186,21 @@ public class FLine implements Supplier<FLine>, fieldlinker.AsMap, HandlesComplet
         });
     }
 
+    // the tesselator named by this line's `triangulator` and `fillRule` properties, or whatever `m` uses by default
+    MeshBuilder_tesselationSupport fillSupport(MeshBuilder m) {
+        String t = attributes.get(StandardFLineDrawing.triangulator);
+        String rule = attributes.get(StandardFLineDrawing.fillRule);
+        if (t == null && rule == null) return m.getFillSupport();
+
+        boolean evenOdd = "evenodd".equalsIgnoreCase(rule);
+        if ("earcut".equalsIgnoreCase(t) || "delaunay".equalsIgnoreCase(t))
+            return m.getTriangulatorSupport(evenOdd ? Triangulator.Winding.evenOdd : Triangulator.Winding.nonZero, "delaunay".equalsIgnoreCase(t));
+
+        MeshBuilder_tesselationSupport ts = m.getTessSupport();
+        if (evenOdd) ts.tess.gluTessProperty(GLU.GLU_TESS_WINDING_RULE, GLU.GLU_TESS_WINDING_ODD);
+        return ts;
+    }
+
     /**
      * returns a new line by insetting this shape. This is equivalent to stroking the shape with a line with a certain thickness and then removing that shape from this shape. Setting `amount`
      * to a negative number 'outset's the shape.
@@ -1395,10 +1412,20 @@ public class FLine implements Supplier<FLine>, fieldlinker.AsMap, HandlesComplet
      * returns a cursor that is at the position on this line that is as close to `point` as possible
      */
     public field.graphics.FLinesAndJavaShapes.Cursor cursorFromClosestPoint(Vec3 point) {
-        double t = FLinesAndJavaShapes.closestT(this, point);
+        double t = segments().closestT(point);
         return cursor().setT(t);
     }
 
+    /**
+     * a bounding volume hierarchy over the segments of this line, for closest point and intersection queries. Built on demand and rebuilt whenever this line changes
+     */
+    @HiddenInAutocomplete
+    public SegmentBVH segments() {
+        SegmentBVH s = segmentBVH;
+        if (s == null || !s.isValidFor(this)) segmentBVH = s = new SegmentBVH(this);
+        return s;
+    }
+
     /*
      * Everybody is taught in the textbooks that the way to draw a cubic spline segment is to recursively subdivide it until the sub-segments are flat enough that you can just draw them with
      * straight lines. This is a great, efficient and beautiful idea. However, it suffers from a serious problem in the case where the geometry you are drawing is animated: the number of line
@@ -503,50 +503,42 @@ public class FLinesAndJavaShapes {
 
 	/**
 	 * returns the 't' (in the cursor sense) that's closest to this Vec3
+	 * <p>
+	 * This is answered by the line's SegmentBVH (see FLine.segments()), which is built the first time it's needed and rebuilt when the line changes
 	 */
 	static public double closestT(FLine to, Vec3 point) {
-		double best = Double.POSITIVE_INFINITY;
-		double tt = 0;
-		for (int i = 1; i < to.nodes.size(); i++) {
-			FLine.Node n1 = to.nodes.get(i);
-			FLine.Node n0 = to.nodes.get(i - 1);
-			if (n1 instanceof FLine.MoveTo) continue;
-
-			if (n1 instanceof FLine.LineTo) {
-				Vec3 dir = new Vec3(n1.to).sub(n0.to);
-				if (dir.length() == 0) {
-					double dd = n1.to.distance(point);
-					if (dd <= best) {
-						best = dd;
-
-						tt = (i - 1);
-					}
-				} else {
-
-					double len = dir.length();
-					dir.mul(1 / len);
-					double d = dir.dot(new Vec3(point).sub(n0.to));
-					if (d < 0) d = 0;
-					if (d > len) d = len;
-					Vec3 at = new Vec3(n0.to).fma(dir, d);
-					double dd = at.distance(point);
-					if (dd < best) {
-						best = dd;
-						tt = d / len + (i - 1);
-					}
-				}
-			} else {
-				FLine.CubicTo c = (FLine.CubicTo) n1;
-				double t = new CubicSegment3(n0.to, c.c1, c.c2, c.to).closestToPoint(point);
-				double dd = evaluateCubicFrame(n0.to, c.c1, c.c2, c.to, t, new Vec3()).distance(point);
-				if (dd < best) {
-					best = dd;
-					tt = t + (i - 1);
-				}
-			}
+		return to.segments().closestT(point);
+	}
 
-		}
-		return tt;
+	/**
+	 * distance from `point` to the segment that ends at node `i` of `to`, with the 't' (in the cursor sense) of the closest point written into t[0]. Returns
+	 * infinity if there's no segment ending at `i` (it's a MoveTo).
+	 */
+	static double closestOnSegment(FLine to, int i, Vec3 point, double[] t) {
+		FLine.Node n1 = to.nodes.get(i);
+		FLine.Node n0 = to.nodes.get(i - 1);
+		if (n1 instanceof FLine.LineTo) {
+			Vec3 dir = new Vec3(n1.to).sub(n0.to);
+			if (dir.length() == 0) {
+				t[0] = i - 1;
+				return n1.to.distance(point);
+			}
+
+			double len = dir.length();
+			dir.mul(1 / len);
+			double d = dir.dot(new Vec3(point).sub(n0.to));
+			if (d < 0) d = 0;
+			if (d > len) d = len;
+			Vec3 at = new Vec3(n0.to).fma(dir, d);
+			t[0] = d / len + (i - 1);
+			return at.distance(point);
+		} else if (n1 instanceof FLine.CubicTo) {
+			FLine.CubicTo c = (FLine.CubicTo) n1;
+			double tt = new CubicSegment3(n0.to, c.c1, c.c2, c.to).closestToPoint(point);
+			t[0] = tt + (i - 1);
+			return evaluateCubicFrame(n0.to, c.c1, c.c2, c.to, tt, new Vec3()).distance(point);
+		}
+		return Double.POSITIVE_INFINITY;
 	}
 
 	/**
@@ -1371,40 +1363,48 @@ public class FLinesAndJavaShapes {
 	}
 
 
+	/**
+	 * all of the places where `a` crosses `b`. Only pairs of segments whose bounding boxes overlap (found by walking both lines' SegmentBVHs together) are
+	 * actually tested
+	 */
 	static public List<Vec3> intersect(FLine a, FLine b) {
-		List<Vec3> ret = new ArrayList<>();
+		return a.segments().intersect(b.segments());
+	}
 
-		for (int i = 0; i < a.nodes.size(); i++) {
-			FLine.Node ni = a.nodes.get(i);
-			if (ni instanceof FLine.CubicTo) {
-				CubicSegment3 ci = new CubicSegment3(a.nodes.get(i - 1).to, ((FLine.CubicTo) ni).c1, ((FLine.CubicTo) ni).c2, ni.to);
-				for (int j = 0; j < b.nodes.size(); j++) {
-					FLine.Node nj = b.nodes.get(j);
-					if (nj instanceof FLine.CubicTo) {
-						CubicSegment3 cj = new CubicSegment3(b.nodes.get(j - 1).to, ((FLine.CubicTo) nj).c1, ((FLine.CubicTo) nj).c2, nj.to);
-						List<Pair<CubicSegment3, CubicSegment3>> intersections = ci.intersection(cj, 1);
-						intersections.forEach(x -> ret.add(new Vec3(x.first.a).add(x.first.d).mul(0.5)));
-					} else if (nj instanceof FLine.LineTo) {
-						List<Pair<CubicSegment3, CubicSegment3>> intersections = ci.intersection(new CubicSegment3(b.nodes.get(j - 1).to, nj.to), 1);
-						intersections.forEach(x -> ret.add(new Vec3(x.first.a).add(x.first.d).mul(0.5)));
-					}
-				}
-			} else if (ni instanceof FLine.LineTo) {
-				for (int j = 0; j < b.nodes.size(); j++) {
-					FLine.Node nj = b.nodes.get(j);
-					if (nj instanceof FLine.CubicTo) {
-						CubicSegment3 cj = new CubicSegment3(b.nodes.get(j - 1).to, ((FLine.CubicTo) nj).c1, ((FLine.CubicTo) nj).c2, nj.to);
-						List<Pair<CubicSegment3, CubicSegment3>> intersections = cj.intersection(new CubicSegment3(a.nodes.get(i - 1).to, ni.to), 1);
-						intersections.forEach(x -> ret.add(new Vec3(x.first.a).add(x.first.d).mul(0.5)));
-					} else if (nj instanceof FLine.LineTo) {
-						Vec3 aa = intersectTwoLineSegments(b.nodes.get(j - 1).to, nj.to, a.nodes.get(i - 1).to, ni.to);
-						if (aa != null)
-							ret.add(aa);
-					}
-				}
+	/**
+	 * all of the places where any line in `lines` crosses any other line in `lines` (but not itself)
+	 */
+	static public List<SegmentBVH.Crossing> intersectAll(List<FLine> lines) {
+		return SegmentBVH.intersectAll(lines);
+	}
+
+	/**
+	 * intersects the segment that ends at node `i` of `a` with the segment that ends at node `j` of `b`, adding any crossings to `ret`
+	 */
+	static void intersectSegments(FLine a, int i, FLine b, int j, List<Vec3> ret) {
+		FLine.Node ni = a.nodes.get(i);
+		FLine.Node nj = b.nodes.get(j);
+		if (ni instanceof FLine.CubicTo) {
+			CubicSegment3 ci = new CubicSegment3(a.nodes.get(i - 1).to, ((FLine.CubicTo) ni).c1, ((FLine.CubicTo) ni).c2, ni.to);
+			if (nj instanceof FLine.CubicTo) {
+				CubicSegment3 cj = new CubicSegment3(b.nodes.get(j - 1).to, ((FLine.CubicTo) nj).c1, ((FLine.CubicTo) nj).c2, nj.to);
+				List<Pair<CubicSegment3, CubicSegment3>> intersections = ci.intersection(cj, 1);
+				intersections.forEach(x -> ret.add(new Vec3(x.first.a).add(x.first.d).mul(0.5)));
+			} else if (nj instanceof FLine.LineTo) {
+				List<Pair<CubicSegment3, CubicSegment3>> intersections = ci.intersection(new CubicSegment3(b.nodes.get(j - 1).to, nj.to), 1);
+				intersections.forEach(x -> ret.add(new Vec3(x.first.a).add(x.first.d).mul(0.5)));
+			}
+		} else if (ni instanceof FLine.LineTo) {
+			if (nj instanceof FLine.CubicTo) {
+				CubicSegment3 cj = new CubicSegment3(b.nodes.get(j - 1).to, ((FLine.CubicTo) nj).c1, ((FLine.CubicTo) nj).c2, nj.to);
+				List<Pair<CubicSegment3, CubicSegment3>> intersections = cj.intersection(new CubicSegment3(a.nodes.get(i - 1).to, ni.to), 1);
+				intersections.forEach(x -> ret.add(new Vec3(x.first.a).add(x.first.d).mul(0.5)));
+			} else if (nj instanceof FLine.LineTo) {
+				Vec3 aa = intersectTwoLineSegments(b.nodes.get(j - 1).to, nj.to, a.nodes.get(i - 1).to, ni.to);
+				if (aa != null)
+					ret.add(aa);
 			}
 		}
-		return ret;
 	}
 
 	static public List<Vec3> intersectX(FLine a, double x) {
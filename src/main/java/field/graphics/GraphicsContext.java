@@ -41,6 +41,7 @@ public class GraphicsContext {
 
     public final StateTracker stateTracker = new StateTracker();
     public final UniformCache uniformCache = new UniformCache();
+    public final UploadScheduler uploadScheduler = new UploadScheduler();
 
     protected WeakHashMap<Object, Object> context = new WeakHashMap<>();
 
@@ -76,6 +77,8 @@ public class GraphicsContext {
 
         for (Runnable r : q)
             r.run();
+
+        c.uploadScheduler.frame();
     }
 
     static public void exitContext(GraphicsContext c) {
@@ -0,0 +1,508 @@
+package field.graphics;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawArraysIndirect;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Draws many small BaseMeshes that share a shader with a handful of draw calls.
+ * <p>
+ * Attach one of these to a Shader instead of attaching the meshes themselves, and add(...) meshes to it. Meshes with the same primitive and the same aux
+ * attributes (and dimensions) are packed into shared vertex and element buffers, each mesh getting its own sub-allocated range, and are drawn with a single
+ * glMultiDrawElementsIndirect (or glMultiDrawArraysIndirect for point lists). Only the ranges of meshes that have changed are re-uploaded.
+ * <p>
+ * Since the meshes are no longer drawn one at a time, anything attached to them (per mesh Uniforms, for example) is not run. Per mesh values go into a shader
+ * storage buffer instead, setPerDraw(mesh, ...), `perDrawFloats` floats per mesh, which a shader can read with:
+ * <p>
+ * layout(std430, binding=5) buffer PerDraw { vec4 perDraw[]; }; ... perDraw[gl_DrawIDARB] (with #extension GL_ARB_shader_draw_parameters : require)
+ * <p>
+ * Meshes that have instanced attributes can't be batched, these are simply drawn as they would be normally.
+ * <p>
+ * Indirect multi-draws and shader storage buffers need GL 4.3 (or ARB_multi_draw_indirect and ARB_shader_storage_buffer_object). Contexts without them (the
+ * 3.2 core context on the mac) get every mesh drawn one at a time instead, with no per-draw data.
+ */
+public class MeshBatch implements Scene.Perform {
+
+	/**
+	 * how many floats of per-draw data each mesh has (the default is a single vec4)
+	 */
+	public final int perDrawFloats;
+
+	/**
+	 * the shader storage buffer binding for the per-draw data
+	 */
+	public int perDrawBinding = 5;
+
+	private final Map<BaseMesh, Entry> entries = new LinkedHashMap<>();
+	private final Map<String, Group> groups = new LinkedHashMap<>();
+	private final List<BaseMesh> unbatched = new ArrayList<>();
+
+	public MeshBatch() {
+		this(4);
+	}
+
+	public MeshBatch(int perDrawFloats) {
+		this.perDrawFloats = perDrawFloats;
+	}
+
+	static class Entry {
+		final BaseMesh mesh;
+		Group group;
+		int vertexStart = -1, vertexCapacity = 0, vertexCount = 0;
+		int elementStart = -1, elementCapacity = 0, elementCount = 0;
+		int instances = 1;
+		float[] perDraw;
+		// bumped whenever this entry's range moves, so that every context re-uploads it
+		int moved = 0;
+
+		Entry(BaseMesh mesh) {
+			this.mesh = mesh;
+		}
+	}
+
+	class Group {
+		final String key;
+		final int primitiveType;
+		final int primitiveSize;
+		final int[] dimensions = new int[16];
+		final RangeAllocator vertices = new RangeAllocator();
+		final RangeAllocator elements = new RangeAllocator();
+		final List<Entry> entries = new ArrayList<>();
+
+		int commandsVersion = 0;
+		int perDrawVersion = 0;
+		IntBuffer commands;
+		FloatBuffer perDraw;
+
+		Group(String key, BaseMesh m) {
+			this.key = key;
+			this.primitiveType = m.primitiveType;
+			this.primitiveSize = m.primitiveSize;
+			for (int i = 0; i < 16; i++)
+				dimensions[i] = m.buffers[i] == null ? 0 : m.buffers[i].getDimension();
+		}
+	}
+
+	static class GroupState {
+		int vao;
+		int[] buffers = new int[16];
+		int elements;
+		int indirect;
+		int perDraw;
+		int vertexCapacity = -1;
+		int elementCapacity = -1;
+		int commandsVersion = -1;
+		int perDrawVersion = -1;
+		// per entry: what we last uploaded of it, {moved, vertex mods..., element mod}
+		Map<Entry, int[]> uploaded = new IdentityHashMap<>();
+
+		void delete() {
+			if (vao != 0) glDeleteVertexArrays(vao);
+			for (int b : buffers)
+				if (b != 0) glDeleteBuffers(b);
+			if (elements != 0) glDeleteBuffers(elements);
+			if (indirect != 0) glDeleteBuffers(indirect);
+			if (perDraw != 0) glDeleteBuffers(perDraw);
+		}
+	}
+
+	public MeshBatch add(BaseMesh m) {
+		if (entries.containsKey(m) || unbatched.contains(m)) return this;
+		if (!batchable(m)) {
+			unbatched.add(m);
+			return this;
+		}
+		Entry e = new Entry(m);
+		entries.put(m, e);
+		place(e);
+		return this;
+	}
+
+	public MeshBatch remove(BaseMesh m) {
+		unbatched.remove(m);
+		Entry e = entries.remove(m);
+		if (e != null) unplace(e);
+		return this;
+	}
+
+	public boolean contains(BaseMesh m) {
+		return entries.containsKey(m) || unbatched.contains(m);
+	}
+
+	/**
+	 * sets the per-draw data for this mesh (up to perDrawFloats floats)
+	 */
+	public MeshBatch setPerDraw(BaseMesh m, float... values) {
+		Entry e = entries.get(m);
+		if (e == null) return this;
+		if (e.perDraw == null || e.perDraw.length != perDrawFloats) e.perDraw = new float[perDrawFloats];
+		boolean changed = false;
+		for (int i = 0; i < Math.min(values.length, perDrawFloats); i++) {
+			changed |= e.perDraw[i] != values[i];
+			e.perDraw[i] = values[i];
+		}
+		if (changed) e.group.perDrawVersion++;
+		return this;
+	}
+
+	private boolean batchable(BaseMesh m) {
+		if (m.primitiveType == -1) return false;
+		for (ArrayBuffer b : m.buffers)
+			if (b instanceof SimpleArrayBuffer && ((SimpleArrayBuffer) b).divisor != 0) return false;
+		return true;
+	}
+
+	static private String keyFor(BaseMesh m) {
+		StringBuilder k = new StringBuilder();
+		k.append(m.primitiveType)
+		 .append('/')
+		 .append(m.primitiveSize);
+		for (int i = 0; i < m.buffers.length; i++)
+			if (m.buffers[i] != null) k.append(' ')
+						   .append(i)
+						   .append(':')
+						   .append(m.buffers[i].getDimension());
+		return k.toString();
+	}
+
+	private void place(Entry e) {
+		String k = keyFor(e.mesh);
+		Group g = groups.computeIfAbsent(k, (x) -> new Group(k, e.mesh));
+		e.group = g;
+		g.entries.add(e);
+		g.commandsVersion++;
+		g.perDrawVersion++;
+	}
+
+	private void unplace(Entry e) {
+		Group g = e.group;
+		if (e.vertexStart != -1) g.vertices.free(e.vertexStart, e.vertexCapacity);
+		if (e.elementStart != -1) g.elements.free(e.elementStart, e.elementCapacity);
+		e.vertexStart = e.elementStart = -1;
+		e.vertexCapacity = e.elementCapacity = 0;
+		g.entries.remove(e);
+		g.commandsVersion++;
+		g.perDrawVersion++;
+		if (g.entries.isEmpty()) {
+			groups.remove(g.key);
+			// and its vao and buffers in every context that drew it
+			for (GraphicsContext c : GraphicsContext.allGraphicsContexts)
+				c.postQueue.add(() -> {
+					GroupState s = GraphicsContext.remove(g);
+					if (s != null) s.delete();
+				});
+		}
+	}
+
+	@Override
+	public boolean perform(int pass) {
+		if (pass != 0) return true;
+
+		if (!canBatch()) {
+			for (BaseMesh m : entries.keySet())
+				m.perform(0);
+			for (BaseMesh m : unbatched)
+				m.perform(0);
+			return true;
+		}
+
+		// meshes that have gained (or lost) attributes move group
+		for (Entry e : new ArrayList<>(entries.values()))
+			if (!keyFor(e.mesh).equals(e.group.key)) {
+				unplace(e);
+				e.moved++;
+				place(e);
+			}
+
+		for (Group g : new ArrayList<>(groups.values())) {
+			layout(g);
+			draw(g);
+		}
+
+		for (BaseMesh m : unbatched)
+			m.perform(0);
+
+		return true;
+	}
+
+	static private boolean canBatch() {
+		GLCapabilities c = GL.getCapabilities();
+		return c.OpenGL43 || (c.GL_ARB_multi_draw_indirect && c.GL_ARB_shader_storage_buffer_object);
+	}
+
+	/**
+	 * makes sure that every mesh has a range big enough for it, and rebuilds the draw commands if anything has moved or changed size
+	 */
+	private void layout(Group g) {
+		for (Entry e : g.entries) {
+			BaseMesh m = e.mesh;
+			m.trimVertexLimit();
+			m.trimElementLimit();
+			int vc = m.getVertexLimit();
+			int ec = g.primitiveSize == 0 ? 0 : m.getElementLimit();
+			int ic = Math.max(1, m.instances.get());
+
+			if (vc > e.vertexCapacity) {
+				if (e.vertexStart != -1) g.vertices.free(e.vertexStart, e.vertexCapacity);
+				e.vertexCapacity = vc + vc / 4 + 16;
+				e.vertexStart = g.vertices.allocate(e.vertexCapacity);
+				e.moved++;
+			}
+			if (ec > e.elementCapacity) {
+				if (e.elementStart != -1) g.elements.free(e.elementStart, e.elementCapacity);
+				e.elementCapacity = ec + ec / 4 + 16;
+				e.elementStart = g.elements.allocate(e.elementCapacity);
+				e.moved++;
+			}
+
+			if (vc != e.vertexCount || ec != e.elementCount || ic != e.instances) {
+				e.vertexCount = vc;
+				e.elementCount = ec;
+				e.instances = ic;
+				g.commandsVersion++;
+			}
+		}
+	}
+
+	private void draw(Group g) {
+		GroupState s = GraphicsContext.get(g, () -> new GroupState());
+
+		if (s.vao == 0) s.vao = glGenVertexArrays();
+		if (s.indirect == 0) s.indirect = glGenBuffers();
+		if (s.perDraw == 0) s.perDraw = glGenBuffers();
+
+		// grow the shared buffers, which means that everything needs uploading again
+		if (s.vertexCapacity < g.vertices.capacity || (g.primitiveSize > 0 && s.elementCapacity < g.elements.capacity)) {
+			glBindVertexArray(s.vao);
+			for (int a = 0; a < 16; a++) {
+				if (g.dimensions[a] == 0) continue;
+				if (s.buffers[a] != 0) glDeleteBuffers(s.buffers[a]);
+				s.buffers[a] = glGenBuffers();
+				glBindBuffer(GL_ARRAY_BUFFER, s.buffers[a]);
+				glBufferData(GL_ARRAY_BUFFER, 4L * g.dimensions[a] * Math.max(1, g.vertices.capacity), GL_DYNAMIC_DRAW);
+				glEnableVertexAttribArray(a);
+				glVertexAttribPointer(a, g.dimensions[a], GL_FLOAT, false, 0, 0);
+			}
+			if (g.primitiveSize > 0) {
+				if (s.elements != 0) glDeleteBuffers(s.elements);
+				s.elements = glGenBuffers();
+				glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, s.elements);
+				glBufferData(GL_ELEMENT_ARRAY_BUFFER, 4L * g.primitiveSize * Math.max(1, g.elements.capacity), GL_DYNAMIC_DRAW);
+			}
+			glBindVertexArray(0);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			s.vertexCapacity = g.vertices.capacity;
+			s.elementCapacity = g.elements.capacity;
+			s.uploaded.clear();
+		}
+
+		// upload just the meshes that have changed
+		for (Entry e : g.entries)
+			upload(g, s, e);
+		if (s.uploaded.size() > g.entries.size()) s.uploaded.keySet()
+								.retainAll(new HashSet<>(g.entries));
+
+		if (s.commandsVersion != g.commandsVersion) {
+			buildCommands(g);
+			glBindBuffer(GL_DRAW_INDIRECT_BUFFER, s.indirect);
+			glBufferData(GL_DRAW_INDIRECT_BUFFER, g.commands, GL_DYNAMIC_DRAW);
+			glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+			s.commandsVersion = g.commandsVersion;
+		}
+
+		if (s.perDrawVersion != g.perDrawVersion) {
+			buildPerDraw(g);
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, s.perDraw);
+			glBufferData(GL_SHADER_STORAGE_BUFFER, g.perDraw, GL_DYNAMIC_DRAW);
+			glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+			s.perDrawVersion = g.perDrawVersion;
+		}
+
+		int draws = g.commands == null ? 0 : g.commands.limit() / (g.primitiveSize == 0 ? 4 : 5);
+		if (draws == 0) return;
+
+		Integer shader = GraphicsContext.getContext().stateTracker.shader.get();
+		if (shader == null || shader == 0) {
+			System.err.println("trying to draw a batch of geometry (" + this + ") without a shader attached will draw nothing");
+			return;
+		}
+
+		GraphicsContext.checkError(() -> "before batch draw " + g.key);
+		glBindVertexArray(s.vao);
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, s.indirect);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, perDrawBinding, s.perDraw);
+		if (g.primitiveSize == 0) glMultiDrawArraysIndirect(g.primitiveType, 0, draws, 0);
+		else glMultiDrawElementsIndirect(g.primitiveType, GL_UNSIGNED_INT, 0, draws, 0);
+		glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+		glBindVertexArray(0);
+		GraphicsContext.checkError(() -> "after batch draw " + g.key);
+
+		BaseMesh.drawCalls++;
+		BaseMesh.stateChanges += 3;
+	}
+
+	private void upload(Group g, GroupState s, Entry e) {
+		BaseMesh m = e.mesh;
+		int[] was = s.uploaded.get(e);
+		if (was == null) s.uploaded.put(e, was = new int[19]);
+		boolean moved = was[0] != e.moved + 1;
+		was[0] = e.moved + 1;
+
+		for (int a = 0; a < 16; a++) {
+			ArrayBuffer b = m.buffers[a];
+			if (b == null || e.vertexCount == 0) continue;
+			int mod = b instanceof SimpleArrayBuffer ? ((SimpleArrayBuffer) b).mod : was[a + 1] + 1;
+			if (!moved && was[a + 1] == mod && was[17] == e.vertexCount) continue;
+			ByteBuffer d = b.bytes(true);
+			d.limit(4 * b.getDimension() * e.vertexCount);
+			glBindBuffer(GL_ARRAY_BUFFER, s.buffers[a]);
+			glBufferSubData(GL_ARRAY_BUFFER, 4L * b.getDimension() * e.vertexStart, d);
+			d.clear();
+			was[a + 1] = mod;
+			SimpleArrayBuffer.uploadBytes += 4 * b.getDimension() * e.vertexCount;
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		was[17] = e.vertexCount;
+
+		if (g.primitiveSize > 0 && m.elements != null && e.elementCount > 0) {
+			ArrayBuffer b = m.elements;
+			int mod = b instanceof SimpleArrayBuffer ? ((SimpleArrayBuffer) b).mod : was[18] + 1;
+			if (moved || was[18] != mod) {
+				// element indices stay relative to the mesh, the draw command's baseVertex takes care of where its vertices are
+				ByteBuffer d = b.bytes(true);
+				d.limit(4 * g.primitiveSize * e.elementCount);
+				glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, s.elements);
+				glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, 4L * g.primitiveSize * e.elementStart, d);
+				glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+				d.clear();
+				was[18] = mod;
+				SimpleArrayBuffer.uploadBytes += 4 * g.primitiveSize * e.elementCount;
+			}
+		}
+	}
+
+	private void buildCommands(Group g) {
+		int stride = g.primitiveSize == 0 ? 4 : 5;
+		int n = 0;
+		for (Entry e : g.entries)
+			if (e.vertexCount > 0 && (g.primitiveSize == 0 || e.elementCount > 0)) n++;
+
+		if (g.commands == null || g.commands.capacity() < n * stride) g.commands = ByteBuffer.allocateDirect(4 * Math.max(16, n * stride * 2))
+												.order(ByteOrder.nativeOrder())
+												.asIntBuffer();
+		g.commands.clear();
+
+		int draw = 0;
+		for (Entry e : g.entries) {
+			if (e.vertexCount == 0 || (g.primitiveSize > 0 && e.elementCount == 0)) continue;
+			if (g.primitiveSize == 0) {
+				// count, instanceCount, first, baseInstance
+				g.commands.put(e.vertexCount)
+					  .put(e.instances)
+					  .put(e.vertexStart)
+					  .put(draw);
+			} else {
+				// count, instanceCount, firstIndex, baseVertex, baseInstance
+				g.commands.put(e.elementCount * g.primitiveSize)
+					  .put(e.instances)
+					  .put(e.elementStart * g.primitiveSize)
+					  .put(e.vertexStart)
+					  .put(draw);
+			}
+			draw++;
+		}
+		g.commands.flip();
+
+		// per-draw data is in draw order, which might just have changed
+		g.perDrawVersion++;
+	}
+
+	private void buildPerDraw(Group g) {
+		int n = g.entries.size();
+		if (g.perDraw == null || g.perDraw.capacity() < Math.max(1, n) * perDrawFloats) g.perDraw = ByteBuffer.allocateDirect(4 * Math.max(16, n * perDrawFloats * 2))
+													.order(ByteOrder.nativeOrder())
+													.asFloatBuffer();
+		g.perDraw.clear();
+		float[] zero = new float[perDrawFloats];
+		for (Entry e : g.entries) {
+			if (e.vertexCount == 0 || (g.primitiveSize > 0 && e.elementCount == 0)) continue;
+			g.perDraw.put(e.perDraw == null ? zero : e.perDraw);
+		}
+		if (g.perDraw.position() == 0) g.perDraw.put(zero);
+		g.perDraw.flip();
+	}
+
+	@Override
+	public int[] getPasses() {
+		return new int[]{0};
+	}
+
+	public String stats() {
+		int n = entries.size();
+		return "batch of " + n + " mesh" + (n == 1 ? "" : "es") + " in " + groups.size() + " group" + (groups.size() == 1 ? "" : "s") + (unbatched.isEmpty() ? "" : " (and " + unbatched.size() + " drawn separately)");
+	}
+
+	@Override
+	public String toString() {
+		return stats();
+	}
+
+	/**
+	 * first-fit allocation of ranges of a buffer, growing the buffer when nothing fits
+	 */
+	static public class RangeAllocator {
+		int capacity = 0;
+		// start -> length of free ranges
+		final TreeMap<Integer, Integer> free = new TreeMap<>();
+
+		public int getCapacity() {
+			return capacity;
+		}
+
+		public int allocate(int n) {
+			for (Map.Entry<Integer, Integer> f : free.entrySet()) {
+				if (f.getValue() >= n) {
+					int start = f.getKey();
+					free.remove(start);
+					if (f.getValue() > n) free.put(start + n, f.getValue() - n);
+					return start;
+				}
+			}
+			int grow = Math.max(n, capacity / 2 + 1024);
+			free(capacity, grow);
+			capacity += grow;
+			return allocate(n);
+		}
+
+		public void free(int start, int n) {
+			Map.Entry<Integer, Integer> before = free.floorEntry(start);
+			if (before != null && before.getKey() + before.getValue() == start) {
+				start = before.getKey();
+				n += before.getValue();
+				free.remove(start);
+			}
+			Integer after = free.get(start + n);
+			if (after != null) {
+				free.remove(start + n);
+				n += after;
+			}
+			free.put(start, n);
+		}
+	}
+}
@@ -45,8 +45,15 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
     int elementCursor = 0;
     Map<Integer, float[]> aux = new HashMap<Integer, float[]>();
     MeshBuilder_tesselationSupport tessSupport = null;
+    Triangulator triangulator = null;
+    MeshBuilder_triangulatorSupport triangulatorSupport = null;
     private BaseMesh target;
 
+    // bounds of the vertices written since open(), handed to the target on close() so that it doesn't have to compute them. Anything that writes
+    // vertices other than v(...) stops us tracking them (and the target recomputes them when asked)
+    final float[] bounds = new float[6];
+    boolean boundsTracked = false;
+
     public MeshBuilder(BaseMesh target) {
         this.target = target;
 
@@ -184,11 +191,50 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
         vertexCursor = 0;
         elementCursor = 0;
         buildNumber++;
+        emptyBounds();
     }
 
     private void doOpenAppend() {
         vertexCursor = target.getVertexLimit();
         elementCursor = target.getElementLimit();
+        if (!target.getBounds(bounds)) emptyBounds();
+        else boundsTracked = true;
+    }
+
+    private void emptyBounds() {
+        bounds[0] = bounds[1] = bounds[2] = Float.POSITIVE_INFINITY;
+        bounds[3] = bounds[4] = bounds[5] = Float.NEGATIVE_INFINITY;
+        boundsTracked = true;
+    }
+
+    private void extendBounds(float x, float y, float z) {
+        if (x < bounds[0]) bounds[0] = x;
+        if (y < bounds[1]) bounds[1] = y;
+        if (z < bounds[2]) bounds[2] = z;
+        if (x > bounds[3]) bounds[3] = x;
+        if (y > bounds[4]) bounds[4] = y;
+        if (z > bounds[5]) bounds[5] = z;
+    }
+
+    private void mergeBounds(float[] b) {
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.min(bounds[i], b[i]);
+            bounds[i + 3] = Math.max(bounds[i + 3], b[i + 3]);
+        }
+    }
+
+    // skipping over a range whose bounds we don't know means the target computes them if (and when) it's asked for them
+    private void skipBounds(Bookmark to) {
+        if (to.vertexCursor <= vertexCursor) return;
+        if (to.range != null) mergeBounds(to.range);
+        else boundsTracked = false;
+    }
+
+    private void extendBounds(int from, int to) {
+        if (!boundsTracked || to <= from) return;
+        FloatBuffer f = target.vertex(true);
+        for (int i = from; i < to; i++)
+            extendBounds(f.get(3 * i), f.get(3 * i + 1), f.get(3 * i + 2));
     }
 
     public int getVertexCursor() {
@@ -225,6 +271,14 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
     private void doClose() {
         target.setVertexLimit(vertexCursor);
         target.setElementLimit(elementCursor);
+        if (boundsTracked && vertexCursor > 0) target.publishBounds(bounds);
+    }
+
+    /**
+     * the value that aux(attribute, ...) was last set to, or null
+     */
+    public float[] getAux(int attribute) {
+        return aux.get(attribute);
     }
 
     /**
@@ -362,6 +416,7 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
      */
     public boolean skipTo(Bookmark from, Bookmark to) {
         if (!from.stillValid() || from.getOuter() != this) return false;
+        skipBounds(to);
         vertexCursor = to.vertexCursor;
         elementCursor = to.elementCursor;
         return true;
@@ -377,12 +432,22 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
     public boolean skipTo(Bookmark from, Bookmark to, Object externalHash, Consumer<MeshBuilder> updator) {
 
         if (!from.stillValid(externalHash) || from.getOuter() != this) {
+            // bounds of just what the updator writes, kept on `to` so that skipping this range next time doesn't have to read it back
+            float[] outer = bounds.clone();
+            boolean tracked = boundsTracked;
+            emptyBounds();
+
             from.reset(externalHash);
             updator.accept(this);
             to.reset(externalHash);
 
+            to.range = boundsTracked ? bounds.clone() : null;
+            boundsTracked = tracked && boundsTracked;
+            if (boundsTracked) mergeBounds(outer);
+
             return false;
         }
+        skipBounds(to);
         vertexCursor = to.vertexCursor;
         elementCursor = to.elementCursor;
         return true;
@@ -402,10 +467,11 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
      * Adds a vertex to this MeshBuilder
      */
     public MeshBuilder v(float x, float y, float z) {
-        FloatBuffer dest = ensureSize(0, 3, vertexCursor);
+        FloatBuffer dest = ensureVertexSize(vertexCursor);
         dest.put(x);
         dest.put(y);
         dest.put(z);
+        extendBounds(x, y, z);
 
         writeAux(vertexCursor);
 
@@ -414,8 +480,10 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
     }
 
     public MeshBuilder raw_v(float[] f) {
-        FloatBuffer dest = ensureSize(0, 3, vertexCursor + f.length / 3);
+        FloatBuffer dest = ensureVertexSize(vertexCursor + f.length / 3);
         dest.put(f);
+        for (int i = 0; i + 2 < f.length; i += 3)
+            extendBounds(f[i], f[i + 1], f[i + 2]);
         vertexCursor += f.length / 3;
         return this;
     }
@@ -702,7 +770,7 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
         for (int i = 0; i < toTesselate.size(); i++)
             abs.add(-toTesselate.get(i) + vertexCursor);
 
-        MeshBuilder_tesselationSupport tess = getTessSupport();
+        MeshBuilder_tesselationSupport tess = getFillSupport();
         tess.begin();
         tess.beginContour();
         for (int i = 1; i < toTesselate.size(); i++) {
@@ -744,10 +812,10 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
 
 
     /**
-     * Adds a set of contours described by a list of lists of Vec3. These lists are tesselated into triangles by the GLU_TESS_WINDING_NONZERO tesselation rule
+     * Adds a set of contours described by a list of lists of Vec3. These lists are tesselated into triangles by the GLU_TESS_WINDING_NONZERO tesselation rule (or by the Triangulator, if one has been set with setTriangulator)
      */
     public MeshBuilder contours(List<List<Vec3>> contours) {
-        MeshBuilder_tesselationSupport tess = getTessSupport();
+        MeshBuilder_tesselationSupport tess = getFillSupport();
         tess.begin();
         for (List<Vec3> c : contours) {
             tess.beginContour();
@@ -764,7 +832,7 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
      * Adds a contours described by list of Vec3. This list is tesselated into triangles by the GLU_TESS_WINDING_NONZERO tesselation rule
      */
     public MeshBuilder contour(List<Vec3> contours) {
-        MeshBuilder_tesselationSupport tess = getTessSupport();
+        MeshBuilder_tesselationSupport tess = getFillSupport();
         tess.begin();
         tess.beginContour();
         for (int i = 1; i < contours.size(); i++) {
@@ -869,8 +937,9 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
         FloatBuffer vv = source.target.vertex(true).asReadOnlyBuffer();
         vv.clear();
         vv.limit(sc * 3);
-        FloatBuffer v = ensureSize(0, 3, vertexCursor + sc);
+        FloatBuffer v = ensureVertexSize(vertexCursor + sc);
         v.put(vv);
+        extendBounds(vertexCursor, vertexCursor + sc);
         if (target.elements==null)
         {}
         else {
@@ -929,6 +998,32 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
         //	return tessSupport == null ? (tessSupport = new MeshBuilder_tesselationSupport(this)) : tessSupport;
     }
 
+    /**
+     * returns a utility class, with the same interface as getTessSupport(), that fills contours with the pure Java Triangulator rather than the GLU tesselator. This doesn't add vertices where contours cross, so contours must not intersect. The support (and its Triangulator) belongs to this MeshBuilder and is reused
+     */
+    public MeshBuilder_tesselationSupport getTriangulatorSupport(Triangulator.Winding winding, boolean delaunay) {
+        if (triangulatorSupport == null) triangulatorSupport = new MeshBuilder_triangulatorSupport(this, new Triangulator());
+        triangulatorSupport.triangulator.winding = winding;
+        triangulatorSupport.triangulator.delaunay = delaunay;
+        return triangulatorSupport;
+    }
+
+    /**
+     * sets the Triangulator whose settings (winding and delaunay) e(List), contour(...) and contours(...) use to fill contours. null (the default) means use the GLU tesselator
+     */
+    public MeshBuilder setTriangulator(Triangulator t) {
+        this.triangulator = t;
+        return this;
+    }
+
+    public Triangulator getTriangulator() {
+        return triangulator;
+    }
+
+    protected MeshBuilder_tesselationSupport getFillSupport() {
+        return triangulator == null ? getTessSupport() : getTriangulatorSupport(triangulator.winding, triangulator.delaunay);
+    }
+
     /**
      * vertex numbers are backwards from the current vertex, so vertex 0 is the most recent call to v, 1 is the vertex before that and so on
      * <p>
@@ -982,6 +1077,16 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
     }
 
     public FloatBuffer ensureSize(int attribute, int dimension, int num) {
+        // someone else is writing vertices
+        if (attribute == 0) boundsTracked = false;
+        return ensureSizeNow(attribute, dimension, num);
+    }
+
+    private FloatBuffer ensureVertexSize(int num) {
+        return ensureSizeNow(0, 3, num);
+    }
+
+    private FloatBuffer ensureSizeNow(int attribute, int dimension, int num) {
         ArrayBuffer a = target.buffer(attribute, dimension);
         if (a == null) {
             a = target.arrayBufferFactory.newArrayBuffer((int) (num * GROWTH + 1), GL15.GL_ARRAY_BUFFER, attribute,
@@ -1052,6 +1157,7 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
     }
 
     public MeshBuilder transform(Function<Vec3, Object> transformer) {
+        boundsTracked = false;
         FloatBuffer vv = target.vertex(false);
         for (int i = 0; i < vertexCursor; i++) {
             float x = vv.get(3 * i + 0);
@@ -1079,6 +1185,8 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
         protected int elementCursor = MeshBuilder.this.elementCursor;
         protected long buildNumber = MeshBuilder.this.buildNumber;
         protected Object hash = computeHash();
+        // bounds of the vertices written between the bookmark before this one and this one, if we know them
+        protected float[] range = null;
 
         public Bookmark() {
         }
@@ -1137,6 +1245,9 @@ public class MeshBuilder implements MeshAcceptor, Bracketable, Scene.ContainsPer
         }
 
         public Bookmark reset(Object externalHash) {
+            // a bookmark that ends one range is often the start of the next; resetting it as the start of that one, where it already is, doesn't change
+            // the range that it ends
+            if (vertexCursor != MeshBuilder.this.vertexCursor) range = null;
             vertexCursor = MeshBuilder.this.vertexCursor;
             elementCursor = MeshBuilder.this.elementCursor;
             hash = computeHash();
@@ -0,0 +1,76 @@
+package field.graphics;
+
+import field.linalg.Vec3;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Map;
+
+/**
+ * Package class that gives the pure Java Triangulator the same interface as MeshBuilder_tesselationSupport. Vertices are written to the target as they arrive,
+ * and triangles (which only ever refer to those vertices) are written on end()
+ */
+class MeshBuilder_triangulatorSupport extends MeshBuilder_tesselationSupport {
+
+	protected final Triangulator triangulator;
+
+	public MeshBuilder_triangulatorSupport(MeshBuilder target, Triangulator triangulator) {
+		super(target);
+		this.triangulator = triangulator;
+	}
+
+	@Override
+	public void begin() {
+		auxValues.clear();
+		prevAuxValues.clear();
+		triangulator.begin();
+	}
+
+	@Override
+	public void beginContour() {
+		triangulator.beginContour();
+		contourFirst = true;
+		first = null;
+	}
+
+	@Override
+	public void endContour() {
+		triangulator.endContour();
+	}
+
+	@Override
+	public void end() {
+		int n = triangulator.end();
+		if (n == 0) return;
+
+		int[] t = triangulator.triangles();
+		int at = target.getElementCursor();
+		IntBuffer dest = target.ensureElementSize(3, at + n);
+		dest.put(t, 0, n * 3);
+		target.setElementCursor(at + n);
+	}
+
+	@Override
+	public void line(Vec3 a, Vec3 b, Map<Integer, float[]> pa, Map<Integer, float[]> pb) {
+		if (contourFirst) add(a, pa);
+		add(b, pb);
+		contourFirst = false;
+	}
+
+	@Override
+	public void line(int a, int b, Map<Integer, float[]> pa, Map<Integer, float[]> pb) {
+		// existing vertices are used as they are, there's nothing to interpolate
+		FloatBuffer f = target.getTarget()
+				      .vertex(true);
+		if (contourFirst) triangulator.add(f.get(3 * (a - 1)), f.get(3 * (a - 1) + 1), a - 1);
+		triangulator.add(f.get(3 * (b - 1)), f.get(3 * (b - 1) + 1), b - 1);
+		contourFirst = false;
+	}
+
+	private void add(Vec3 position, Map<Integer, float[]> properties) {
+		decorateVertex(null, properties);
+		target.v(position.x, position.y, position.z);
+		triangulator.add(position.x, position.y, target.getVertexCursor() - 1);
+	}
+
+}
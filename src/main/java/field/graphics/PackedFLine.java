@@ -0,0 +1,553 @@
+package field.graphics;
+
+import field.linalg.Vec2;
+import field.linalg.Vec3;
+import field.utility.Dict;
+import field.utility.Log;
+import fieldnashorn.annotations.HiddenInAutocomplete;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static field.graphics.FLine.evaluateCubicFrame;
+
+/**
+ * A packed, struct-of-arrays, alternative to FLine for geometry with a very large number of nodes.
+ * <p>
+ * FLine keeps an ArrayList of Node objects, each with its own Vec3's and its own Dict --- that's great for editing, but a line with a million points in it is
+ * tens of millions of objects. PackedFLine keeps node types, positions, cubic control points and per-node aux values in primitive arrays instead. It has the same
+ * builder methods as FLine (moveTo, lineTo, cubicTo, breakNext, node()), renderToLine / renderToPoints write straight into MeshBuilder's buffers in bulk, and
+ * toFLine() turns it into an ordinary FLine when you need everything else.
+ * <p>
+ * Put one in a box's `lines` and FLineDrawing draws it through StandardFLineDrawing.dispatchLine(PackedFLine, ...), straight from these arrays, honouring
+ * `stroked`, `filled`, `pointed` and the color and opacity properties in `attributes` (but not thickening, text or subLines, which need real Nodes).
+ * <p>
+ * Aux properties are per node, set with aux(channel, values...) after adding the node; nodes that don't set a channel carry the previous node's value (just
+ * as MeshBuilder.aux is sticky). Cubics interpolate them linearly along the curve.
+ */
+public class PackedFLine implements Supplier<FLine> {
+
+    static public final byte MOVE = 0, LINE = 1, CUBIC = 2;
+
+    private int size = 0;
+    private byte[] type = new byte[16];
+    private float[] to = new float[16 * 3];
+    // c1, c2, only allocated once there's a cubic in here
+    private float[] controls = null;
+
+    private final Map<Integer, float[]> aux = new LinkedHashMap<>();
+    private final Map<Integer, Integer> auxDimension = new LinkedHashMap<>();
+
+    private boolean breakNext = false;
+    private long mod = 0;
+
+    private final WeakHashMap<MeshBuilder, MeshBuilder.Bookmark[]> cache = new WeakHashMap<>();
+
+    private FLine asFLine = null;
+    private long asFLineMod = -1;
+
+    public Dict attributes = new Dict();
+
+    public PackedFLine() {
+    }
+
+    public PackedFLine(int expectedSize) {
+        ensureCapacity(expectedSize);
+    }
+
+    /**
+     * packs an existing FLine. Aux values come from the line's aux properties (see FLine.setAuxProperties)
+     */
+    static public PackedFLine of(FLine f) {
+        PackedFLine p = new PackedFLine(f.nodes.size());
+        f.flattenAuxProperties();
+        for (FLine.Node n : f.nodes) {
+            if (n instanceof FLine.CubicTo) {
+                FLine.CubicTo c = (FLine.CubicTo) n;
+                p.add(CUBIC, c.to.x, c.to.y, c.to.z);
+                p.control(c.c1.x, c.c1.y, c.c1.z, c.c2.x, c.c2.y, c.c2.z);
+            } else p.add(n instanceof FLine.MoveTo ? MOVE : LINE, n.to.x, n.to.y, n.to.z);
+
+            if (n.flatAuxData != null) for (int i = 0; i < n.flatAuxData.length; i++)
+                if (n.flatAuxData[i] != null && n.flatAux[i] > 0) p.aux(n.flatAux[i], n.flatAuxData[i]);
+        }
+        return p;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= type.length) return;
+        int c = Math.max(n, type.length * 2);
+        type = Arrays.copyOf(type, c);
+        to = Arrays.copyOf(to, c * 3);
+        if (controls != null) controls = Arrays.copyOf(controls, c * 6);
+        for (Map.Entry<Integer, float[]> e : aux.entrySet())
+            e.setValue(Arrays.copyOf(e.getValue(), c * auxDimension.get(e.getKey())));
+    }
+
+    private PackedFLine add(byte t, double x, double y, double z) {
+        ensureCapacity(size + 1);
+        type[size] = t;
+        to[size * 3] = (float) x;
+        to[size * 3 + 1] = (float) y;
+        to[size * 3 + 2] = (float) z;
+        // aux values carry forward until they are set
+        if (size > 0) for (Map.Entry<Integer, float[]> e : aux.entrySet()) {
+            int d = auxDimension.get(e.getKey());
+            System.arraycopy(e.getValue(), (size - 1) * d, e.getValue(), size * d, d);
+        }
+        size++;
+        mod++;
+        return this;
+    }
+
+    private void control(double c1x, double c1y, double c1z, double c2x, double c2y, double c2z) {
+        if (controls == null) controls = new float[type.length * 6];
+        int o = (size - 1) * 6;
+        controls[o] = (float) c1x;
+        controls[o + 1] = (float) c1y;
+        controls[o + 2] = (float) c1z;
+        controls[o + 3] = (float) c2x;
+        controls[o + 4] = (float) c2y;
+        controls[o + 5] = (float) c2z;
+    }
+
+    public PackedFLine breakNext() {
+        breakNext = true;
+        return this;
+    }
+
+    /**
+     * moves the draw position to a new place `x, y, z` without drawing anything on the way there.
+     */
+    public PackedFLine moveTo(double x, double y, double z) {
+        breakNext = false;
+        return add(MOVE, x, y, z);
+    }
+
+    public PackedFLine moveTo(double x, double y) {
+        return moveTo(x, y, 0);
+    }
+
+    public PackedFLine moveTo(Vec2 position) {
+        return moveTo(position.x, position.y, 0);
+    }
+
+    public PackedFLine moveTo(Vec3 position) {
+        return moveTo(position.x, position.y, position.z);
+    }
+
+    /**
+     * draws a line from the current position to `x, y, z`
+     */
+    public PackedFLine lineTo(double x, double y, double z) {
+        if (breakNext || size == 0) return moveTo(x, y, z);
+        return add(LINE, x, y, z);
+    }
+
+    public PackedFLine lineTo(double x, double y) {
+        return lineTo(x, y, 0);
+    }
+
+    public PackedFLine lineTo(Vec2 position) {
+        return lineTo(position.x, position.y, 0);
+    }
+
+    public PackedFLine lineTo(Vec3 position) {
+        return lineTo(position.x, position.y, position.z);
+    }
+
+    /**
+     * draws a curve from the current position, towards (but not through) `c1`, then towards (but not through) `c2` ending up at `x, y, z`.
+     */
+    public PackedFLine cubicTo(double c1x, double c1y, double c1z, double c2x, double c2y, double c2z, double x, double y, double z) {
+        if (breakNext || size == 0) return moveTo(x, y, z);
+        add(CUBIC, x, y, z);
+        control(c1x, c1y, c1z, c2x, c2y, c2z);
+        return this;
+    }
+
+    public PackedFLine cubicTo(double c1x, double c1y, double c2x, double c2y, double x, double y) {
+        return cubicTo(c1x, c1y, 0, c2x, c2y, 0, x, y, 0);
+    }
+
+    public PackedFLine cubicTo(Vec3 c1, Vec3 c2, Vec3 to) {
+        return cubicTo(c1.x, c1.y, c1.z, c2.x, c2.y, c2.z, to.x, to.y, to.z);
+    }
+
+    /**
+     * sets the value of aux channel `channel` for the most recently added node
+     */
+    public PackedFLine aux(int channel, float... value) {
+        if (size == 0) throw new IllegalStateException(" no node to set aux values on ");
+        return setAux(size - 1, channel, value);
+    }
+
+    private PackedFLine setAux(int i, int channel, float[] value) {
+        if (channel <= 0) throw new IllegalArgumentException(" aux channels start at 1, not " + channel);
+
+        Integer d = auxDimension.get(channel);
+        if (d == null) {
+            auxDimension.put(channel, d = value.length);
+            aux.put(channel, new float[type.length * d]);
+        } else if (d != value.length)
+            throw new IllegalArgumentException(" aux channel " + channel + " has dimension " + d + " not " + value.length);
+
+        System.arraycopy(value, 0, aux.get(channel), i * d, d);
+        mod++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte type(int i) {
+        return type[i];
+    }
+
+    public Vec3 position(int i, Vec3 into) {
+        return into.set(to[i * 3], to[i * 3 + 1], to[i * 3 + 2]);
+    }
+
+    /**
+     * moves node `i` (but not any control points) to `p`
+     */
+    public PackedFLine setPosition(int i, Vec3 p) {
+        to[i * 3] = (float) p.x;
+        to[i * 3 + 1] = (float) p.y;
+        to[i * 3 + 2] = (float) p.z;
+        mod++;
+        return this;
+    }
+
+    /**
+     * tells Field that you've modified the contents of this line in some way, so it might have to work harder to redraw it
+     */
+    public void modify() {
+        mod++;
+    }
+
+    public long getModCount() {
+        return mod;
+    }
+
+    /**
+     * returns a view of the last node in this line
+     */
+    public Node node() {
+        return size == 0 ? null : node(size - 1);
+    }
+
+    /**
+     * returns a view of node `i` of this line
+     */
+    public Node node(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException(" node " + i + " of " + size);
+        return new Node(i);
+    }
+
+    /**
+     * a node of a PackedFLine. This holds nothing but the index of the node: everything is read from, and written straight back to, the line's arrays
+     */
+    public class Node {
+        public final int index;
+
+        protected Node(int index) {
+            this.index = index;
+        }
+
+        public byte type() {
+            return type[index];
+        }
+
+        public Vec3 position() {
+            return PackedFLine.this.position(index, new Vec3());
+        }
+
+        public Node setPosition(Vec3 p) {
+            PackedFLine.this.setPosition(index, p);
+            return this;
+        }
+
+        /**
+         * the first control point of a cubic, or null if this isn't one
+         */
+        public Vec3 c1() {
+            return type[index] == CUBIC ? new Vec3(controls[index * 6], controls[index * 6 + 1], controls[index * 6 + 2]) : null;
+        }
+
+        /**
+         * the second control point of a cubic, or null if this isn't one
+         */
+        public Vec3 c2() {
+            return type[index] == CUBIC ? new Vec3(controls[index * 6 + 3], controls[index * 6 + 4], controls[index * 6 + 5]) : null;
+        }
+
+        public Node setControls(Vec3 c1, Vec3 c2) {
+            if (type[index] != CUBIC) throw new IllegalStateException(" node " + index + " isn't a cubic");
+            int o = index * 6;
+            controls[o] = (float) c1.x;
+            controls[o + 1] = (float) c1.y;
+            controls[o + 2] = (float) c1.z;
+            controls[o + 3] = (float) c2.x;
+            controls[o + 4] = (float) c2.y;
+            controls[o + 5] = (float) c2.z;
+            mod++;
+            return this;
+        }
+
+        /**
+         * the value of aux channel `channel` at this node (a copy), or null if the channel isn't set anywhere on the line
+         */
+        public float[] aux(int channel) {
+            float[] v = PackedFLine.this.aux.get(channel);
+            if (v == null) return null;
+            int d = auxDimension.get(channel);
+            return Arrays.copyOfRange(v, index * d, index * d + d);
+        }
+
+        /**
+         * sets the value of aux channel `channel` at this node (only; unlike PackedFLine.aux this doesn't carry forward to nodes that are already there)
+         */
+        public Node aux(int channel, float... value) {
+            setAux(index, channel, value);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "PackedFLine.Node(" + index + ", " + (type[index] == MOVE ? "move" : type[index] == LINE ? "line" : "cubic") + " " + position() + ")";
+        }
+    }
+
+    private void appendNode(FLine f, int i) {
+        float[] t = to;
+        int o = i * 3;
+        switch (type[i]) {
+            case MOVE:
+                f.add(f.new MoveTo(t[o], t[o + 1], t[o + 2]));
+                break;
+            case LINE:
+                f.add(f.new LineTo(t[o], t[o + 1], t[o + 2]));
+                break;
+            default:
+                int c = i * 6;
+                f.add(f.new CubicTo(controls[c], controls[c + 1], controls[c + 2], controls[c + 3], controls[c + 4], controls[c + 5], t[o], t[o + 1], t[o + 2]));
+        }
+    }
+
+    /**
+     * makes an ordinary FLine out of this line, with a copy of `attributes`. Aux channels become node attributes called "_aux<channel>", wired up with setAuxProperties
+     */
+    public FLine toFLine() {
+        FLine f = new FLine();
+        f.nodes.ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            appendNode(f, i);
+            for (Map.Entry<Integer, float[]> e : aux.entrySet()) {
+                int d = auxDimension.get(e.getKey());
+                f.nodes.get(i).attributes.put(new Dict.Prop<>("_aux" + e.getKey()), Arrays.copyOfRange(e.getValue(), i * d, i * d + d));
+            }
+        }
+        if (aux.size() > 0) {
+            Map<Integer, String> channels = new LinkedHashMap<>();
+            for (Integer k : aux.keySet()) channels.put(k, "_aux" + k);
+            f.setAuxProperties(channels);
+        }
+        f.attributes = attributes.duplicate();
+        return f;
+    }
+
+    /**
+     * this line as an ordinary FLine (sharing `attributes`), for the things that only understand FLines. It's only made again when this line has changed, and
+     * drawing doesn't call it at all
+     */
+    @Override
+    public FLine get() {
+        if (asFLine == null || asFLineMod != mod) {
+            asFLine = toFLine();
+            asFLine.attributes = attributes;
+            asFLineMod = mod;
+        }
+        return asFLine;
+    }
+
+    // number of vertices that node i turns into
+    private int verticesFor(int i, int fixedSizeForCubic) {
+        return type[i] == CUBIC ? fixedSizeForCubic : 1;
+    }
+
+    // writes all of the vertices (and aux values) for nodes [start, end) into m's buffers, starting at vertex `base`
+    private void writeVertices(MeshBuilder m, int start, int end, int base, int count, int fixedSizeForCubic) {
+        FloatBuffer v = m.ensureSize(0, 3, base + count);
+        v.position(base * 3);
+
+        float[] t = to;
+        Vec3 o = new Vec3();
+        for (int i = start; i < end; i++) {
+            if (type[i] == CUBIC) {
+                int p = (i - 1) * 3, q = i * 3, c = i * 6;
+                for (int s = 0; s < fixedSizeForCubic; s++) {
+                    float alpha = (s + 1f) / fixedSizeForCubic;
+                    evaluateCubicFrame(t[p], t[p + 1], t[p + 2], controls[c], controls[c + 1], controls[c + 2], controls[c + 3], controls[c + 4], controls[c + 5], t[q],
+                            t[q + 1], t[q + 2], alpha, o);
+                    v.put((float) o.x).put((float) o.y).put((float) o.z);
+                }
+            } else v.put(t, i * 3, 3);
+        }
+
+        // every aux buffer on the target needs to be kept in step with the vertices, even the ones we don't have values for: those get the MeshBuilder's
+        // current value (as they would from MeshBuilder.v), or zero
+        for (Map.Entry<Integer, ArrayBuffer> b : m.getTarget().buffers().entrySet()) {
+            int channel = b.getKey();
+            if (channel == 0 || aux.containsKey(channel)) continue;
+            int d = b.getValue().getDimension();
+            float[] current = m.getAux(channel);
+            FloatBuffer a = m.ensureSize(channel, d, base + count);
+            a.position(base * d);
+            if (current == null || current.length != d) for (int i = 0; i < count * d; i++) a.put(0);
+            else for (int i = 0; i < count; i++) a.put(current);
+        }
+
+        for (Map.Entry<Integer, float[]> e : aux.entrySet()) {
+            int d = auxDimension.get(e.getKey());
+            float[] values = e.getValue();
+            FloatBuffer a = m.ensureSize(e.getKey(), d, base + count);
+            a.position(base * d);
+            for (int i = start; i < end; i++) {
+                if (type[i] == CUBIC) {
+                    for (int s = 0; s < fixedSizeForCubic; s++) {
+                        float alpha = (s + 1f) / fixedSizeForCubic;
+                        for (int k = 0; k < d; k++)
+                            a.put(values[(i - 1) * d + k] * (1 - alpha) + values[i * d + k] * alpha);
+                    }
+                } else a.put(values, i * d, d);
+            }
+        }
+    }
+
+    private int countVertices(int fixedSizeForCubic) {
+        int n = 0;
+        for (int i = 0; i < size; i++) n += verticesFor(i, fixedSizeForCubic);
+        return n;
+    }
+
+    /**
+     * writes this line into a line MeshBuilder, in bulk. Like FLine.renderToLine this is cached against the MeshBuilder and skipped entirely if nothing has
+     * changed
+     */
+    @HiddenInAutocomplete
+    public boolean renderToLine(MeshBuilder m, int fixedSizeForCubic) {
+        MeshBuilder.Bookmark[] c = cache.computeIfAbsent(m, (k) -> new MeshBuilder.Bookmark[]{m.bookmark(), m.bookmark()});
+
+        return m.skipTo(c[0], c[1], mod, () -> {
+            m.open();
+            try {
+                int base = m.getVertexCursor();
+                int count = countVertices(fixedSizeForCubic);
+                writeVertices(m, 0, size, base, count, fixedSizeForCubic);
+
+                // one line strip per contour; contours start at each MoveTo
+                int segments = count - 1;
+                int element = m.getElementCursor();
+                IntBuffer e = m.ensureElementSize(2, element + Math.max(segments, 0));
+                int at = base;
+                int written = 0;
+                for (int i = 0; i < size; i++) {
+                    int n = verticesFor(i, fixedSizeForCubic);
+                    if (type[i] != MOVE && at > base)
+                        for (int k = 0; k < n; k++) {
+                            e.put(at + k - 1).put(at + k);
+                            written++;
+                        }
+                    at += n;
+                }
+
+                m.setVertexColor(base + count);
+                m.setElementCursor(element + written);
+
+                Log.log("drawing.trace", () -> "packed renderToLine " + count + " vertices");
+            } finally {
+                m.close();
+            }
+        });
+    }
+
+    /**
+     * writes the vertices of this line into a point MeshBuilder, in bulk
+     */
+    @HiddenInAutocomplete
+    public boolean renderToPoints(MeshBuilder m, int fixedSizeForCubic) {
+        MeshBuilder.Bookmark[] c = cache.computeIfAbsent(m, (k) -> new MeshBuilder.Bookmark[]{m.bookmark(), m.bookmark()});
+
+        return m.skipTo(c[0], c[1], mod, () -> {
+            m.open();
+            try {
+                int base = m.getVertexCursor();
+                int count = countVertices(fixedSizeForCubic);
+                writeVertices(m, 0, size, base, count, fixedSizeForCubic);
+                m.setVertexColor(base + count);
+            } finally {
+                m.close();
+            }
+        });
+    }
+
+    /**
+     * writes this line, filled, into a triangle MeshBuilder. Tessellation goes vertex by vertex, but straight from these arrays without making any Nodes
+     */
+    @HiddenInAutocomplete
+    public boolean renderToMesh(MeshBuilder m, int fixedSizeForCubic) {
+        MeshBuilder.Bookmark[] c = cache.computeIfAbsent(m, (k) -> new MeshBuilder.Bookmark[]{m.bookmark(), m.bookmark()});
+
+        return m.skipTo(c[0], c[1], mod, () -> {
+            MeshBuilder_tesselationSupport ts = m.getFillSupport();
+            m.open();
+            try {
+                ts.begin();
+                boolean inContour = false;
+                Vec3 o = new Vec3();
+                float[] t = to;
+                for (int i = 0; i < size; i++) {
+                    if (type[i] == MOVE) {
+                        if (inContour) ts.endContour();
+                        ts.beginContour();
+                        inContour = true;
+                        auxAt(ts, i, i, 1);
+                        ts.v(t[i * 3], t[i * 3 + 1], t[i * 3 + 2]);
+                    } else if (type[i] == LINE) {
+                        auxAt(ts, i, i, 1);
+                        ts.v(t[i * 3], t[i * 3 + 1], t[i * 3 + 2]);
+                    } else {
+                        int p = (i - 1) * 3, q = i * 3, cc = i * 6;
+                        for (int s = 0; s < fixedSizeForCubic; s++) {
+                            float alpha = (s + 1f) / fixedSizeForCubic;
+                            evaluateCubicFrame(t[p], t[p + 1], t[p + 2], controls[cc], controls[cc + 1], controls[cc + 2], controls[cc + 3], controls[cc + 4],
+                                    controls[cc + 5], t[q], t[q + 1], t[q + 2], alpha, o);
+                            auxAt(ts, i - 1, i, alpha);
+                            ts.v((float) o.x, (float) o.y, (float) o.z);
+                        }
+                    }
+                }
+                if (inContour) ts.endContour();
+                ts.end();
+            } finally {
+                m.close();
+            }
+        });
+    }
+
+    private void auxAt(MeshAcceptor m, int a, int b, float alpha) {
+        for (Map.Entry<Integer, float[]> e : aux.entrySet()) {
+            int d = auxDimension.get(e.getKey());
+            float[] values = e.getValue();
+            float[] r = new float[d];
+            for (int k = 0; k < d; k++)
+                r[k] = values[a * d + k] * (1 - alpha) + values[b * d + k] * alpha;
+            m.aux(e.getKey(), r);
+        }
+    }
+
+}
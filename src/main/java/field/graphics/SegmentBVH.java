@@ -0,0 +1,453 @@
+package field.graphics;
+
+import field.linalg.Vec3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A bounding volume hierarchy over the segments of an FLine (one segment per LineTo or CubicTo, boxed by its end points and control points, which
+ * contain the curve).
+ * <p>
+ * You don't normally build these yourself: FLine.segments() keeps one per line, rebuilt whenever the line's modCount changes, and closestT, FLine.closestPointTo,
+ * FLine.cursorFromClosestPoint and FLinesAndJavaShapes.intersect all go through it. Note that, like the rest of FLine's caching, this relies on the line
+ * being told (via modify()) if you edit a node's position in place.
+ */
+public class SegmentBVH {
+
+	static private final int LEAF = 4;
+
+	public final FLine line;
+	public final long modCount;
+	private final List<FLine.Node> nodes;
+	private final int nodeCount;
+
+	// for each segment, the index of the node that it ends at, and its box (minx, miny, minz, maxx, maxy, maxz)
+	private final int[] segment;
+	private final double[] box;
+	private final int[] order;
+
+	// the tree, 6 doubles of bounds per tree node; children are at child[2k], child[2k+1], or, for leaves, child[2k] = -(first+1) into order[], child[2k+1] = count
+	private final double[] bounds;
+	private final int[] child;
+	private int treeSize = 0;
+
+	public SegmentBVH(FLine line) {
+		this.line = line;
+		this.modCount = line.getModCount();
+		this.nodes = line.nodes;
+		this.nodeCount = line.nodes.size();
+
+		int n = 0;
+		for (int i = 1; i < nodeCount; i++)
+			if (!(nodes.get(i) instanceof FLine.MoveTo)) n++;
+
+		segment = new int[n];
+		box = new double[n * 6];
+		order = new int[n];
+
+		n = 0;
+		for (int i = 1; i < nodeCount; i++) {
+			FLine.Node n1 = nodes.get(i);
+			if (n1 instanceof FLine.MoveTo) continue;
+
+			segment[n] = i;
+			order[n] = n;
+			int o = n * 6;
+			box[o] = box[o + 3] = n1.to.x;
+			box[o + 1] = box[o + 4] = n1.to.y;
+			box[o + 2] = box[o + 5] = n1.to.z;
+			include(box, o, nodes.get(i - 1).to);
+			if (n1 instanceof FLine.CubicTo) {
+				include(box, o, ((FLine.CubicTo) n1).c1);
+				include(box, o, ((FLine.CubicTo) n1).c2);
+			}
+			n++;
+		}
+
+		bounds = new double[Math.max(1, 2 * n) * 6];
+		child = new int[Math.max(1, 2 * n) * 2];
+		if (n > 0) build(0, n);
+	}
+
+	/**
+	 * true if this is still an accurate picture of `f`
+	 */
+	public boolean isValidFor(FLine f) {
+		return f == line && f.getModCount() == modCount && f.nodes == nodes && f.nodes.size() == nodeCount;
+	}
+
+	public int size() {
+		return segment.length;
+	}
+
+	static private void include(double[] b, int o, Vec3 v) {
+		b[o] = Math.min(b[o], v.x);
+		b[o + 1] = Math.min(b[o + 1], v.y);
+		b[o + 2] = Math.min(b[o + 2], v.z);
+		b[o + 3] = Math.max(b[o + 3], v.x);
+		b[o + 4] = Math.max(b[o + 4], v.y);
+		b[o + 5] = Math.max(b[o + 5], v.z);
+	}
+
+	private int build(int start, int end) {
+		int k = treeSize++;
+		int o = k * 6;
+		bounds[o] = bounds[o + 1] = bounds[o + 2] = Double.POSITIVE_INFINITY;
+		bounds[o + 3] = bounds[o + 4] = bounds[o + 5] = Double.NEGATIVE_INFINITY;
+		double[] cmin = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		double[] cmax = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for (int i = start; i < end; i++) {
+			int s = order[i] * 6;
+			for (int a = 0; a < 3; a++) {
+				bounds[o + a] = Math.min(bounds[o + a], box[s + a]);
+				bounds[o + 3 + a] = Math.max(bounds[o + 3 + a], box[s + 3 + a]);
+				double c = box[s + a] + box[s + 3 + a];
+				cmin[a] = Math.min(cmin[a], c);
+				cmax[a] = Math.max(cmax[a], c);
+			}
+		}
+
+		if (end - start <= LEAF) {
+			child[2 * k] = -(start + 1);
+			child[2 * k + 1] = end - start;
+			return k;
+		}
+
+		// split at the median centroid along the longest axis of the centroids
+		int axis = 0;
+		for (int a = 1; a < 3; a++)
+			if (cmax[a] - cmin[a] > cmax[axis] - cmin[axis]) axis = a;
+
+		int mid = (start + end) >>> 1;
+		select(start, end - 1, mid, axis);
+
+		int l = build(start, mid);
+		int r = build(mid, end);
+		child[2 * k] = l;
+		child[2 * k + 1] = r;
+		return k;
+	}
+
+	private double centroid(int i, int axis) {
+		int s = order[i] * 6;
+		return box[s + axis] + box[s + 3 + axis];
+	}
+
+	// quickselect, leaves order[start..end] partitioned around order[n]
+	private void select(int lo, int hi, int n, int axis) {
+		while (hi > lo) {
+			double pivot = centroid((lo + hi) >>> 1, axis);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (centroid(i, axis) < pivot) i++;
+				while (centroid(j, axis) > pivot) j--;
+				if (i <= j) {
+					int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (n <= j) hi = j;
+			else if (n >= i) lo = i;
+			else return;
+		}
+	}
+
+	private double boxDistance(int k, Vec3 p) {
+		int o = k * 6;
+		double dx = Math.max(0, Math.max(bounds[o] - p.x, p.x - bounds[o + 3]));
+		double dy = Math.max(0, Math.max(bounds[o + 1] - p.y, p.y - bounds[o + 4]));
+		double dz = Math.max(0, Math.max(bounds[o + 2] - p.z, p.z - bounds[o + 5]));
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * returns the 't' (in the cursor sense) that's closest to `point`. Ties are broken the way the linear scan that this replaces broke them, see winsTie
+	 */
+	public double closestT(Vec3 point) {
+		if (segment.length == 0) return 0;
+
+		double best = Double.POSITIVE_INFINITY;
+		int bestSegment = Integer.MAX_VALUE;
+		double bestT = 0;
+		double[] t = {0};
+
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int k = stack[--top];
+			if (boxDistance(k, point) > best) continue;
+
+			int c = child[2 * k];
+			if (c < 0) {
+				int first = -c - 1;
+				for (int i = first; i < first + child[2 * k + 1]; i++) {
+					int s = segment[order[i]];
+					double d = FLinesAndJavaShapes.closestOnSegment(line, s, point, t);
+					if (d < best || (d == best && winsTie(s, bestSegment))) {
+						best = d;
+						bestSegment = s;
+						bestT = t[0];
+					}
+				}
+			} else {
+				int r = child[2 * k + 1];
+				if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+				// nearest child last, so that it's visited first
+				if (boxDistance(c, point) < boxDistance(r, point)) {
+					stack[top++] = r;
+					stack[top++] = c;
+				} else {
+					stack[top++] = c;
+					stack[top++] = r;
+				}
+			}
+		}
+		return bestT;
+	}
+
+	/*
+	 * the old scan kept the first of equally close segments, except that a zero length LineTo compared with <= and so took over from anything before it.
+	 * Visiting segments in any order, that's the last zero length one if there is one, otherwise the first
+	 */
+	private boolean winsTie(int s, int than) {
+		boolean ds = degenerate(s), dt = degenerate(than);
+		if (ds != dt) return ds;
+		return ds ? s > than : s < than;
+	}
+
+	private boolean degenerate(int i) {
+		FLine.Node n1 = nodes.get(i);
+		return n1 instanceof FLine.LineTo && new Vec3(n1.to).sub(nodes.get(i - 1).to).length() == 0;
+	}
+
+	static private boolean overlaps(double[] a, int ao, double[] b, int bo) {
+		return a[ao] <= b[bo + 3] && b[bo] <= a[ao + 3] && a[ao + 1] <= b[bo + 4] && b[bo + 1] <= a[ao + 4] && a[ao + 2] <= b[bo + 5] && b[bo + 2] <= a[ao + 5];
+	}
+
+	/**
+	 * the (node index in this line, node index in `other`) pairs of segments whose boxes overlap, packed into longs and sorted
+	 */
+	public long[] candidates(SegmentBVH other) {
+		if (segment.length == 0 || other.segment.length == 0) return new long[0];
+
+		long[] out = new long[16];
+		int count = 0;
+
+		int[] stack = new int[128];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int kb = stack[--top];
+			int ka = stack[--top];
+			if (!overlaps(bounds, ka * 6, other.bounds, kb * 6)) continue;
+
+			int ca = child[2 * ka];
+			int cb = other.child[2 * kb];
+			if (ca < 0 && cb < 0) {
+				int fa = -ca - 1, fb = -cb - 1;
+				for (int i = fa; i < fa + child[2 * ka + 1]; i++)
+					for (int j = fb; j < fb + other.child[2 * kb + 1]; j++) {
+						if (!overlaps(box, order[i] * 6, other.box, other.order[j] * 6)) continue;
+						if (count == out.length) out = Arrays.copyOf(out, count * 2);
+						out[count++] = ((long) segment[order[i]] << 32) | other.segment[other.order[j]];
+					}
+				continue;
+			}
+
+			if (top + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+			// descend into the side that is still an internal node (the larger one, if both are)
+			if (cb < 0 || (ca >= 0 && area(ka) >= other.area(kb))) {
+				stack[top++] = ca;
+				stack[top++] = kb;
+				stack[top++] = child[2 * ka + 1];
+				stack[top++] = kb;
+			} else {
+				stack[top++] = ka;
+				stack[top++] = cb;
+				stack[top++] = ka;
+				stack[top++] = other.child[2 * kb + 1];
+			}
+		}
+
+		out = Arrays.copyOf(out, count);
+		Arrays.sort(out);
+		return out;
+	}
+
+	private double area(int k) {
+		int o = k * 6;
+		double dx = bounds[o + 3] - bounds[o], dy = bounds[o + 4] - bounds[o + 1], dz = bounds[o + 5] - bounds[o + 2];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * all of the places where this line crosses `other`, in the same order as testing every segment of this line against every segment of `other` would give
+	 */
+	public List<Vec3> intersect(SegmentBVH other) {
+		List<Vec3> ret = new ArrayList<>();
+		for (long c : candidates(other))
+			FLinesAndJavaShapes.intersectSegments(line, (int) (c >>> 32), other.line, (int) c, ret);
+		return ret;
+	}
+
+	/**
+	 * a place where two different lines cross
+	 */
+	static public class Crossing {
+		public final FLine a;
+		public final FLine b;
+		public final Vec3 at;
+
+		public Crossing(FLine a, FLine b, Vec3 at) {
+			this.a = a;
+			this.b = b;
+			this.at = at;
+		}
+
+		@Override
+		public String toString() {
+			return "crossing@" + at;
+		}
+	}
+
+	/**
+	 * all of the places where any line in `lines` crosses any other. The lines are swept along x by their overall bounds, and only pairs that overlap are
+	 * intersected (in parallel). Self intersections aren't reported
+	 */
+	static public List<Crossing> intersectAll(List<FLine> lines) {
+		List<SegmentBVH> all = lines.stream().map(FLine::segments).filter(x -> x.size() > 0).collect(Collectors.toList());
+		all.sort((x, y) -> Double.compare(x.bounds[0], y.bounds[0]));
+
+		List<int[]> pairs = new ArrayList<>();
+		for (int i = 0; i < all.size(); i++) {
+			double maxx = all.get(i).bounds[3];
+			for (int j = i + 1; j < all.size() && all.get(j).bounds[0] <= maxx; j++)
+				if (all.get(i).line != all.get(j).line && overlaps(all.get(i).bounds, 0, all.get(j).bounds, 0)) pairs.add(new int[]{i, j});
+		}
+
+		return IntStream.range(0, pairs.size())
+			.parallel()
+			.mapToObj(p -> {
+				SegmentBVH a = all.get(pairs.get(p)[0]);
+				SegmentBVH b = all.get(pairs.get(p)[1]);
+				return a.intersect(b)
+					.stream()
+					.map(v -> new Crossing(a.line, b.line, v))
+					.collect(Collectors.toList());
+			})
+			.flatMap(List::stream)
+			.collect(Collectors.toList());
+	}
+
+	// benchmark: closest point and intersection queries on 10k-segment lines, against the linear scans they replace
+	static public void main(String[] a) {
+		int n = 10000;
+		FLine f1 = walk(n, 1);
+		FLine f2 = walk(n, 2);
+
+		long t0 = System.nanoTime();
+		SegmentBVH b1 = f1.segments();
+		SegmentBVH b2 = f2.segments();
+		long t1 = System.nanoTime();
+		System.out.println(" build, two lines of " + n + " segments : " + (t1 - t0) / 1e6 + "ms");
+
+		java.util.Random r = new java.util.Random(3);
+		int queries = 1000;
+		Vec3[] q = new Vec3[queries];
+		for (int i = 0; i < queries; i++)
+			q[i] = new Vec3(r.nextDouble() * 1000, r.nextDouble() * 1000, 0);
+
+		for (int rep = 0; rep < 3; rep++) {
+			double check = 0;
+			t0 = System.nanoTime();
+			for (Vec3 v : q) check += b1.closestT(v);
+			t1 = System.nanoTime();
+			double linear = 0;
+			for (Vec3 v : q)
+				linear += linearClosestT(f1, v);
+			long t2 = System.nanoTime();
+			System.out.println(" closestT x" + queries + " : bvh " + (t1 - t0) / 1e6 + "ms, linear " + (t2 - t1) / 1e6 + "ms  (" + check + " / " + linear + ")");
+		}
+
+		// ties: lines on a coarse grid with repeated points, queried on the grid, have to agree with the linear scan exactly
+		int mismatches = 0;
+		for (int trial = 0; trial < 200; trial++) {
+			FLine g = new FLine();
+			g.moveTo(r.nextInt(5), r.nextInt(5));
+			for (int i = 0; i < 30; i++) {
+				if (r.nextInt(8) == 0) g.moveTo(r.nextInt(5), r.nextInt(5));
+				else g.lineTo(r.nextInt(5), r.nextInt(5));
+			}
+			for (int i = 0; i < 20; i++) {
+				Vec3 v = new Vec3(r.nextInt(9) / 2.0, r.nextInt(9) / 2.0, 0);
+				if (g.segments().closestT(v) != linearClosestT(g, v)) mismatches++;
+			}
+		}
+		System.out.println(" closestT ties against the linear scan : " + mismatches + " mismatches");
+
+		for (int rep = 0; rep < 3; rep++) {
+			t0 = System.nanoTime();
+			int found = b1.intersect(b2).size();
+			t1 = System.nanoTime();
+			System.out.println(" intersect " + n + " x " + n + " : bvh " + (t1 - t0) / 1e6 + "ms, " + found + " crossings");
+		}
+
+		// the linear scan is quadratic, so only time a slice of it
+		int slice = 200;
+		t0 = System.nanoTime();
+		List<Vec3> ret = new ArrayList<>();
+		for (int i = 1; i < slice; i++)
+			for (int j = 1; j < f2.nodes.size(); j++)
+				FLinesAndJavaShapes.intersectSegments(f1, i, f2, j, ret);
+		t1 = System.nanoTime();
+		System.out.println(" intersect, linear, first " + slice + " segments only : " + (t1 - t0) / 1e6 + "ms (~" + (t1 - t0) / 1e6 * n / slice + "ms for all)");
+
+		List<FLine> many = new ArrayList<>();
+		for (int i = 0; i < 100; i++) many.add(walk(n / 100, 10 + i));
+		t0 = System.nanoTime();
+		int found = intersectAll(many).size();
+		t1 = System.nanoTime();
+		System.out.println(" intersectAll, 100 lines of " + n / 100 + " : " + (t1 - t0) / 1e6 + "ms, " + found + " crossings");
+	}
+
+	// the scan closestT used to do, ties included
+	static private double linearClosestT(FLine f, Vec3 v) {
+		double best = Double.POSITIVE_INFINITY, bt = 0;
+		double[] t = {0};
+		for (int i = 1; i < f.nodes.size(); i++) {
+			if (f.nodes.get(i) instanceof FLine.MoveTo) continue;
+			double d = FLinesAndJavaShapes.closestOnSegment(f, i, v, t);
+			boolean zeroLength = f.nodes.get(i) instanceof FLine.LineTo && new Vec3(f.nodes.get(i).to).sub(f.nodes.get(i - 1).to).length() == 0;
+			if (d < best || (zeroLength && d <= best)) {
+				best = d;
+				bt = t[0];
+			}
+		}
+		return bt;
+	}
+
+	static private FLine walk(int n, long seed) {
+		java.util.Random r = new java.util.Random(seed);
+		FLine f = new FLine();
+		double x = r.nextDouble() * 1000, y = r.nextDouble() * 1000;
+		f.moveTo(x, y);
+		for (int i = 0; i < n; i++) {
+			double nx = Math.max(0, Math.min(1000, x + r.nextGaussian() * 10));
+			double ny = Math.max(0, Math.min(1000, y + r.nextGaussian() * 10));
+			if (i % 4 == 0) f.cubicTo(x + r.nextGaussian() * 5, y + r.nextGaussian() * 5, nx + r.nextGaussian() * 5, ny + r.nextGaussian() * 5, nx, ny);
+			else f.lineTo(nx, ny);
+			x = nx;
+			y = ny;
+		}
+		return f;
+	}
+}
@@ -3,6 +3,7 @@ package field.graphics;
 import field.utility.Conversions;
 import field.utility.Dict;
 import field.utility.Log;
+import field.utility.Options;
 import fieldbox.boxes.Box;
 import fieldbox.execution.HandlesCompletion;
 import fielded.boxbrowser.BoxBrowser;
@@ -50,6 +51,37 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 		int name;
 		boolean work = true;
 		boolean valid = false;
+
+		// a replacement program that's being built, while `name` keeps being used
+		boolean needsBuild = false;
+		boolean cacheTried = false;
+		int building = 0;
+		String key;
+		long buildStartedAt;
+	}
+
+	// build statistics, reported by ShaderIntrospection
+	int cacheHits = 0;
+	int cacheMisses = 0;
+	int builds = 0;
+	boolean lastBuildFromCache = false;
+	long lastBuildNanos = 0;
+	long totalBuildNanos = 0;
+
+	static public final boolean noParallelCompile = Options.dict()
+							      .isTrue(new Dict.Prop("noParallelShaderCompile"), false);
+	static private final Object parallelCompileKey = new Object();
+
+	/**
+	 * can we compile and link in the background (KHR_parallel_shader_compile) in this context?
+	 */
+	static boolean parallelCompile() {
+		Boolean b = GraphicsContext.get(parallelCompileKey, () -> {
+			boolean has = !noParallelCompile && GL.getCapabilities().GL_KHR_parallel_shader_compile;
+			if (has) KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+			return has;
+		});
+		return b;
 	}
 
 	public enum Type {
@@ -105,95 +137,120 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 			String source;
 			int name = -1;
 			boolean good = false;
+			boolean compiling = false;
 			Set<Integer> attachedTo = new LinkedHashSet<>();
 		}
 
-		protected boolean clean() {
-			State s = GraphicsContext.get(this, () -> {
-				State state = new State();
-				state.source = source.get();
-				return state;
-			});
-
-			if (!s.source.equals(this.source.get())) {
+		/**
+		 * notices changes to the source text in this context, throwing away any shader object compiled from the old text. Returns true if the text is new
+		 */
+		protected boolean refresh() {
+			State s = GraphicsContext.get(this);
+			String now = this.source.get();
+			if (s != null && s.source.equals(now)) return false;
 
+			if (s != null && s.name != -1) {
 				System.out.println(" shader ("+type+") needs recompilation in context "+GraphicsContext.getContext()+" detatching from "+s.attachedTo);
 
 				for (Integer ii : s.attachedTo)
 					GL20.glDetachShader(ii, s.name);
 				s.attachedTo.clear();
 				GL20.glDeleteShader(s.name);
-
-				s = new State();
-				s.source = source.get();
-				GraphicsContext.put(this, s);
 			}
 
-			final State finalS = s;
-			Log.log("graphics.trace", () -> " shader name " + finalS.name);
+			s = new State();
+			s.source = now;
+			GraphicsContext.put(this, s);
+			return true;
+		}
+
+		/**
+		 * compiles the current source text in this context, if it hasn't been compiled already. With KHR_parallel_shader_compile this doesn't wait for the
+		 * driver, call it again to find out if it has finished. Returns true once compilation has finished (successfully or not, see isGood())
+		 */
+		protected boolean compile() {
+			State s = GraphicsContext.get(this);
 
 			if (s.name == -1) {
 				try {
-
-//					System.out.println(" recompiling shader in context :"+GraphicsContext.getContext());
-
 					Log.log("graphics.trace", () -> " creating shader");
 					s.name = GL20.glCreateShader(type.gl);
 					GL20.glShaderSource(s.name, s.source);
+					GL20.glCompileShader(s.name);
+				} catch (Throwable t) {
+					t.printStackTrace();
+					s.good = false;
+					return true;
+				}
+				if (parallelCompile()) {
+					s.compiling = true;
+					return false;
+				}
+				finishCompile(s);
+				return true;
+			}
 
-//					System.out.println(" shader source is "+s.source+" for name "+s.name);
+			if (s.compiling) {
+				if (GL20.glGetShaderi(s.name, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11.GL_FALSE) return false;
+				s.compiling = false;
+				finishCompile(s);
+			}
+			return true;
+		}
 
-					GL20.glCompileShader(s.name);
-					status = GL20.glGetShaderi(s.name, GL20.GL_COMPILE_STATUS);
-					Log.log("graphics.trace", () -> " shader compile status" + status);
-
-					if (status == 0) {
-						String ret = GL20.glGetShaderInfoLog(s.name, 10000);
-						Log.log("graphics.error", () -> type + " program failed to compile");
-						Log.log("graphics.error", () -> " log is <" + ret + ">");
-						Log.log("graphics.error", () -> " shader source is <" + source + ">, reporting to <" + onError + ">");
-						if (onError != null) {
-							onError.beginError();
-							String log = ret;
-							String[] lines = log.split("\n");
-							for (String ll : lines) {
-								try {
-									String[] ss = ll.split(":");
-									if (ss.length > 2) {
-										int ii = Integer.parseInt(ss[2])-1;
-										onError.errorOnLine(ii, ll);
-										break;
-									}
-								} catch (NumberFormatException e) {
-									try {
-										Matcher q = Pattern.compile(".*?\\((.*?)\\)")
-												.matcher(ll);
-										q.find();
-										String g = q.group(1);
-										int ii = Integer.parseInt(g)-1;
-										onError.errorOnLine(ii, ll);
-										break;
-									} catch (Exception e2) {
-										e2.printStackTrace();
-									}
-								}
+		protected boolean isGood() {
+			State s = GraphicsContext.get(this);
+			return s != null && s.name != -1 && !s.compiling && s.good;
+		}
+
+		String currentSource() {
+			State s = GraphicsContext.get(this);
+			return s == null ? source.get() : s.source;
+		}
+
+		private void finishCompile(State s) {
+			status = GL20.glGetShaderi(s.name, GL20.GL_COMPILE_STATUS);
+			Log.log("graphics.trace", () -> " shader compile status" + status);
+
+			if (status == 0) {
+				String ret = GL20.glGetShaderInfoLog(s.name, 10000);
+				Log.log("graphics.error", () -> type + " program failed to compile");
+				Log.log("graphics.error", () -> " log is <" + ret + ">");
+				Log.log("graphics.error", () -> " shader source is <" + source + ">, reporting to <" + onError + ">");
+				if (onError != null) {
+					onError.beginError();
+					String log = ret;
+					String[] lines = log.split("\n");
+					for (String ll : lines) {
+						try {
+							String[] ss = ll.split(":");
+							if (ss.length > 2) {
+								int ii = Integer.parseInt(ss[2])-1;
+								onError.errorOnLine(ii, ll);
+								break;
+							}
+						} catch (NumberFormatException e) {
+							try {
+								Matcher q = Pattern.compile(".*?\\((.*?)\\)")
+										.matcher(ll);
+								q.find();
+								String g = q.group(1);
+								int ii = Integer.parseInt(g)-1;
+								onError.errorOnLine(ii, ll);
+								break;
+							} catch (Exception e2) {
+								e2.printStackTrace();
 							}
-							onError.endError();
 						}
-						Log.log("graphics.error", () -> " shader is not good");
-						s.good = false;
-						return false;
-					} else {
-						if (onError != null) onError.noError();
-
-						s.good = true;
-						return true;
 					}
-				} catch (Throwable t) {
-					t.printStackTrace();
+					onError.endError();
 				}
+				Log.log("graphics.error", () -> " shader is not good");
+				s.good = false;
+			} else {
+				if (onError != null) onError.noError();
+				s.good = true;
 			}
-			return false;
 		}
 
 		public void finalize() {
@@ -233,6 +290,7 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 	@Override
 	protected void deallocate(State s) {
 		GL20.glDeleteProgram(s.name);
+		if (s.building != 0) GL20.glDeleteProgram(s.building);
 		// doesn't kill the shaders, because, technically they could be attached elsewhere
 	}
 
@@ -242,74 +300,34 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 	}
 
 	protected boolean perform0() {
-		boolean work = false;
-
 		GraphicsContext.checkError(() -> "on shader entry");
 
 		Log.log("graphics.trace", () -> " checking :" + source.keySet());
 
-
-		for (Map.Entry<Type, Source> s : source.entrySet()) {
-			work |= s.getValue()
-					.clean();
-		}
-
 		State name = GraphicsContext.get(this);
 
-		work |= name.work;
+		boolean changed = name.work;
 		name.work = false;
+		for (Source s : source.values())
+			changed |= s.refresh();
 
-		if (work) {
-//			System.out.println(" -- shader has work to do in stage :"+name+" in context "+GraphicsContext.getContext());
-
-			name.valid = true;
-			for (Map.Entry<Type, Source> s : source.entrySet()) {
-				Source.State state = GraphicsContext.get(s.getValue());
-				if (s.getValue().status != 0 && state.name != -1 && !state.attachedTo.contains(name.name)) {
-					GL20.glAttachShader(name.name, state.name);
-					state.attachedTo.add(name.name);
-				}
-			}
-
-			if (!source.containsKey(Type.compute)) {
-				GL30.glBindFragDataLocation(name.name, 0, "_output");
-				GL30.glBindFragDataLocation(name.name, 0, "_output0");
-				GL30.glBindFragDataLocation(name.name, 1, "_output1");
-				GL30.glBindFragDataLocation(name.name, 2, "_output2");
-				GL30.glBindFragDataLocation(name.name, 3, "_output3");
-
-			for (int i = 1; i < 16; i++)
-				glBindAttribLocation(name.name, i, "attribute" + i);
-			}
-
-			GraphicsContext.checkError(() -> "before link and validate");
-			name.valid = linkAndValidateNow(name.name);
-			GraphicsContext.checkError(() -> "afer link and validate");
-
-			if (name.valid) {
-				if (introspection == null) {
-					introspection = new ShaderIntrospection(this);
-					introspection.reloadedAt = Instant.now();
-				} else {
-					introspection.reloadedAt = Instant.now();
-					introspection.reloadedTimes++;
-					introspection.invocationCountSinceReload = 0;
-				}
-
-				introspection.introspectNow();
-
-				modCount++;
-			}
+		if (changed) {
+			abandonBuild(name);
+			name.needsBuild = true;
+			name.buildStartedAt = System.nanoTime();
 		}
 
+		if (name.needsBuild) build(name);
+
 		if (name.valid) {
 //			System.out.println(" setting shader to be :"+name.name);
 			Log.log("graphics.trace", () -> " using program " + name.name);
 			GraphicsContext.getContext().stateTracker.shader.set(name.name);
 			GraphicsContext.getContext().uniformCache.changeShader(this, name.name);
+			UniformBundle.bindGlobals(this, name.name);
 			if (introspection != null)
 				introspection.errorIsInvalid = null;
-		} else {
+		} else if (!name.needsBuild) {
 			System.err.println("WARNING: shader is invalid, not being used ");
 			Log.log("graphics.trace", () -> "WARNING: program not valid, not being used");
 			if (introspection != null)
@@ -320,7 +338,7 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 		if (source.containsKey(Type.compute))
 		{
 			GraphicsContext.checkError(() -> "before compute dispatch");
-			if (name!=null) {
+			if (name!=null && name.valid) {
 //				GraphicsContext.getContext().stateTracker.shader.set(name.name);
 				glDispatchCompute(num_groups_x, num_groups_y, num_groups_z);
 			}
@@ -337,34 +355,166 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 		return true;
 	}
 
-	protected String lastAccumulatedError;
+	/**
+	 * moves the replacement program along: from the on disk cache if we can, otherwise by compiling every source, then linking. Each step only waits for the
+	 * driver if it can't do the work in the background, so the current program carries on being used until its replacement has linked
+	 */
+	private void build(State name) {
+		if (!name.cacheTried) {
+			name.cacheTried = true;
+			name.key = ShaderProgramCache.key(keyParts());
+			int p = GL20.glCreateProgram();
+			if (ShaderProgramCache.load(p, name.key)) {
+				cacheHits++;
+				// nothing was compiled, so clear anything an earlier failed compile of this shader put up
+				lastAccumulatedError = null;
+				for (Source s : source.values())
+					if (s.onError != null) s.onError.noError();
+				if (onError != null) onError.noError();
+				adopt(name, p, true);
+				return;
+			}
+			cacheMisses++;
+			GL20.glDeleteProgram(p);
+		}
 
-	@HiddenInAutocomplete
-	boolean linkAndValidateNow(int name) {
-		lastAccumulatedError = null;
+		if (name.building == 0) {
+			boolean ready = true;
+			for (Source s : source.values())
+				ready &= s.compile();
+			if (!ready) return;
+
+			for (Source s : source.values())
+				if (!s.isGood()) {
+					// errors have been reported, carry on with the old program
+					name.needsBuild = false;
+					return;
+				}
+
+			int p = GL20.glCreateProgram();
+			for (Source s : source.values()) {
+				Source.State state = GraphicsContext.get(s);
+				GL20.glAttachShader(p, state.name);
+				state.attachedTo.add(p);
+			}
+
+			if (!source.containsKey(Type.compute)) {
+				GL30.glBindFragDataLocation(p, 0, "_output");
+				GL30.glBindFragDataLocation(p, 0, "_output0");
+				GL30.glBindFragDataLocation(p, 1, "_output1");
+				GL30.glBindFragDataLocation(p, 2, "_output2");
+				GL30.glBindFragDataLocation(p, 3, "_output3");
+
+				for (int i = 1; i < 16; i++)
+					glBindAttribLocation(p, i, "attribute" + i);
+			}
+
+			ShaderProgramCache.prepare(p);
+			beforeLink(p);
+			GraphicsContext.checkError(() -> "before link");
+			glLinkProgram(p);
+			GraphicsContext.checkError(() -> "after link");
+			name.building = p;
+		}
+
+		if (parallelCompile() && glGetProgrami(name.building, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11.GL_FALSE) return;
 
+		int p = name.building;
+		name.building = 0;
+		if (afterLink(p)) {
+			ShaderProgramCache.store(p, name.key);
+			adopt(name, p, false);
+		} else {
+			retire(p);
+			name.needsBuild = false;
+		}
+	}
+
+	private void adopt(State name, int p, boolean fromCache) {
+		if (name.name != p) retire(name.name);
+		name.name = p;
+		name.valid = true;
+		name.needsBuild = false;
+
+		builds++;
+		lastBuildFromCache = fromCache;
+		lastBuildNanos = System.nanoTime() - name.buildStartedAt;
+		totalBuildNanos += lastBuildNanos;
+
+		if (introspection == null) {
+			introspection = new ShaderIntrospection(this);
+			introspection.reloadedAt = Instant.now();
+		} else {
+			introspection.reloadedAt = Instant.now();
+			introspection.reloadedTimes++;
+			introspection.invocationCountSinceReload = 0;
+		}
+
+		introspection.introspectNow();
+
+		modCount++;
+	}
+
+	private void retire(int p) {
+		for (Source s : source.values()) {
+			Source.State state = GraphicsContext.get(s);
+			if (state != null) state.attachedTo.remove(p);
+		}
+		GL20.glDeleteProgram(p);
+	}
+
+	private void abandonBuild(State name) {
+		if (name.building != 0) retire(name.building);
+		name.building = 0;
+		name.cacheTried = false;
+		name.key = null;
+	}
+
+	// everything that goes into the linked program
+	private List<String> keyParts() {
+		List<String> r = new ArrayList<>();
+		for (Map.Entry<Type, Source> e : source.entrySet()) {
+			r.add(e.getKey()
+			       .name());
+			r.add(e.getValue()
+			       .currentSource());
+		}
+		forEachTransformFeedback(x -> r.add("tf:" + String.join(",", x.target)));
+		return r;
+	}
+
+	private void forEachTransformFeedback(Consumer<TransformFeedback> f) {
 		TreeMap<Integer, Set<Consumer<Integer>>> c = collectChildrenPasses();
 		if (c != null)
 			c.values().stream().flatMap(x -> x.stream()).forEach(x -> {
-				if (x instanceof TransformFeedback) {
-					glTransformFeedbackVaryings(name, ((TransformFeedback) x).target, GL_INTERLEAVED_ATTRIBS);
-				}
-
+				if (x instanceof TransformFeedback) f.accept((TransformFeedback) x);
 				// warning if there are more than one of these?
 			});
 
 		internalScene.values().stream().flatMap(x -> x.stream()).forEach(x -> {
-			if (x instanceof TransformFeedback) {
-				glTransformFeedbackVaryings(name, ((TransformFeedback) x).target, GL_INTERLEAVED_ATTRIBS);
-			}
-
+			if (x instanceof TransformFeedback) f.accept((TransformFeedback) x);
 			// warning if there are more than one of these?
 		});
+	}
 
+	protected String lastAccumulatedError;
+
+	@HiddenInAutocomplete
+	boolean linkAndValidateNow(int name) {
+		beforeLink(name);
 
 		GraphicsContext.checkError(() -> "before link");
 		glLinkProgram(name);
 		GraphicsContext.checkError(() -> "after link");
+		return afterLink(name);
+	}
+
+	private void beforeLink(int name) {
+		lastAccumulatedError = null;
+		forEachTransformFeedback(x -> glTransformFeedbackVaryings(name, x.target, GL_INTERLEAVED_ATTRIBS));
+	}
+
+	private boolean afterLink(int name) {
 		int linkStatus = glGetProgrami(name, GL20.GL_LINK_STATUS);
 		if (linkStatus == 0) {
 			String ret = GL20.glGetProgramInfoLog(name, 10000);
@@ -426,6 +576,14 @@ public class Shader extends BaseScene<Shader.State> implements Scene.Perform, fi
 		return true;
 	}
 
+	/**
+	 * what we learned about this shader (its uniforms, attributes and uniform blocks) the last time that it linked. null if it has never linked
+	 */
+	@HiddenInAutocomplete
+	public ShaderIntrospection getIntrospection() {
+		return introspection;
+	}
+
 	public Integer getOpenGLName() {
 		State s = GraphicsContext.get(this, () -> null);
 		if (s == null) return null;
@@ -70,6 +70,63 @@ public class ShaderIntrospection {
 		}
 	}
 
+	/**
+	 * a uniform block, with the layout the linker gave it. Members are keyed by their name in the shader, without any block name or "[0]" suffix
+	 */
+	public class Block {
+		public final String name;
+		public final int index;
+		public final int dataSize;
+		public final Map<String, BlockMember> members = new LinkedHashMap<>();
+
+		public Block(String name, int index, int dataSize) {
+			this.name = name;
+			this.index = index;
+			this.dataSize = dataSize;
+		}
+
+		/**
+		 * true if `other` puts every member in the same place, which is what makes it possible to share one buffer between two shaders
+		 */
+		public boolean sameLayout(Block other) {
+			if (other.dataSize != dataSize || other.members.size() != members.size()) return false;
+			for (BlockMember m : members.values()) {
+				BlockMember o = other.members.get(m.name);
+				if (o == null || o.offset != m.offset || o.type != m.type || o.size != m.size || o.arrayStride != m.arrayStride || o.matrixStride != m.matrixStride)
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return name + "(" + dataSize + " bytes)" + members.values();
+		}
+	}
+
+	public class BlockMember {
+		public final String name;
+		public final int type;
+		public final int size;
+		public final int offset;
+		public final int arrayStride;
+		public final int matrixStride;
+
+		public BlockMember(String name, int type, int size, int offset, int arrayStride, int matrixStride) {
+			this.name = name;
+			this.type = type;
+			this.size = size;
+			this.offset = offset;
+			this.arrayStride = arrayStride;
+			this.matrixStride = matrixStride;
+		}
+
+		@Override
+		public String toString() {
+			return name + "(" + uniformTypeConstants_readable.getOrDefault(type, new Pair<>("", "UNKNOWN")).second + (size == 1 ? "" : ("x " + size)) + " @" + offset + ")";
+		}
+	}
+
 	// string taken from the spec
 	static String typeConstants
 		    = "GL_FLOAT, GL_FLOAT_VEC2, GL_FLOAT_VEC3, GL_FLOAT_VEC4, GL_FLOAT_MAT2, GL_FLOAT_MAT3, GL_FLOAT_MAT4, GL_FLOAT_MAT2x3, GL_FLOAT_MAT2x4, GL_FLOAT_MAT3x2, GL_FLOAT_MAT3x4, GL_FLOAT_MAT4x2, GL_FLOAT_MAT4x3, GL_INT, GL_INT_VEC2, GL_INT_VEC3, GL_INT_VEC4, GL_UNSIGNED_INT, GL_UNSIGNED_INT_VEC2, GL_UNSIGNED_INT_VEC3, GL_UNSIGNED_INT_VEC4";
@@ -127,6 +184,7 @@ public class ShaderIntrospection {
 
 	List<Uniform> uniforms = new ArrayList<>();
 	List<Attribute> attrs = new ArrayList<>();
+	Map<String, Block> blocks = new LinkedHashMap<>();
 
 	IntBuffer sz = ByteBuffer.allocateDirect(4)
 				 .order(ByteOrder.nativeOrder())
@@ -141,6 +199,7 @@ public class ShaderIntrospection {
 	public void introspectNow() {
 		uniforms.clear();
 		attrs.clear();
+		blocks.clear();
 
 		GraphicsContext co = GraphicsContext.getContext();
 		if (co == null) throw new IllegalArgumentException(" can't call introspectNow() unless you are inside an OpenGL context");
@@ -159,6 +218,8 @@ public class ShaderIntrospection {
 			this.attrs.add(new Attribute(name, sz.get(0), ty.get(0), location));
 		}
 
+		introspectBlocks(this.s.getOpenGLName());
+
 		int e = GL11.glGetError();
 
 		if (e != 0) {
@@ -167,6 +228,57 @@ public class ShaderIntrospection {
 	}
 
 
+	private void introspectBlocks(int program) {
+		int blocks = GL20.glGetProgrami(program, GL31.GL_ACTIVE_UNIFORM_BLOCKS);
+		for (int b = 0; b < blocks; b++) {
+			String name = GL31.glGetActiveUniformBlockName(program, b);
+			int dataSize = GL31.glGetActiveUniformBlocki(program, b, GL31.GL_UNIFORM_BLOCK_DATA_SIZE);
+			int count = GL31.glGetActiveUniformBlocki(program, b, GL31.GL_UNIFORM_BLOCK_ACTIVE_UNIFORMS);
+
+			Block block = new Block(name, b, dataSize);
+			this.blocks.put(name, block);
+			if (count == 0) continue;
+
+			IntBuffer indices = ints(count);
+			GL31.glGetActiveUniformBlockiv(program, b, GL31.GL_UNIFORM_BLOCK_ACTIVE_UNIFORM_INDICES, indices);
+
+			IntBuffer type = ints(count);
+			IntBuffer size = ints(count);
+			IntBuffer offset = ints(count);
+			IntBuffer arrayStride = ints(count);
+			IntBuffer matrixStride = ints(count);
+			GL31.glGetActiveUniformsiv(program, indices, GL31.GL_UNIFORM_TYPE, type);
+			GL31.glGetActiveUniformsiv(program, indices, GL31.GL_UNIFORM_SIZE, size);
+			GL31.glGetActiveUniformsiv(program, indices, GL31.GL_UNIFORM_OFFSET, offset);
+			GL31.glGetActiveUniformsiv(program, indices, GL31.GL_UNIFORM_ARRAY_STRIDE, arrayStride);
+			GL31.glGetActiveUniformsiv(program, indices, GL31.GL_UNIFORM_MATRIX_STRIDE, matrixStride);
+
+			for (int i = 0; i < count; i++) {
+				String member = GL31.glGetActiveUniformName(program, indices.get(i));
+				if (member.startsWith(name + ".")) member = member.substring(name.length() + 1);
+				if (member.endsWith("[0]")) member = member.substring(0, member.length() - 3);
+				block.members.put(member, new BlockMember(member, type.get(i), size.get(i), offset.get(i), arrayStride.get(i), matrixStride.get(i)));
+			}
+		}
+	}
+
+	static private IntBuffer ints(int n) {
+		return ByteBuffer.allocateDirect(4 * n)
+				 .order(ByteOrder.nativeOrder())
+				 .asIntBuffer();
+	}
+
+	/**
+	 * the uniform block called `name` in this shader, as of the last time that it was linked, or null if there isn't one
+	 */
+	public Block getBlock(String name) {
+		return blocks.get(name);
+	}
+
+	public Collection<Block> getBlocks() {
+		return blocks.values();
+	}
+
 	List<BaseMesh> okMeshes = null;
 	HashMap<BaseMesh, String> problemMeshes = null;
 
@@ -235,6 +347,8 @@ public class ShaderIntrospection {
 		}
 
 
+		e0 += buildStatistics();
+
 		String e1 = null;
 
 		if (okMeshes.size() == 0 && problemMeshes.size() == 0) {
@@ -264,6 +378,15 @@ public class ShaderIntrospection {
 		return e0+"<br>"+e1.replace("\n", "<br>");
 	}
 
+	/**
+	 * how long this shader took to build (compile and link, or load from the ShaderProgramCache) and how often the cache has helped
+	 */
+	public String buildStatistics() {
+		if (s.builds == 0) return "";
+		return "Built <b>" + s.builds + "</b> time" + (s.builds == 1 ? "" : "s") + ", most recently in <b>" + String.format("%.1f", s.lastBuildNanos / 1e6) + "ms</b>" + (s.lastBuildFromCache ? " (from the program cache)" : "") + "; <b>" + String.format(
+			    "%.1f", s.totalBuildNanos / 1e6) + "ms</b> in total. Program cache: <b>" + s.cacheHits + "</b> hit" + (s.cacheHits == 1 ? "" : "s") + ", <b>" + s.cacheMisses + "</b> miss" + (s.cacheMisses == 1 ? "" : "es") + " for this shader (" + ShaderProgramCache.stats() + ").<br>";
+	}
+
 	private String timeString(Duration d0) {
 		String q = d0.toString()
 			     .toLowerCase();
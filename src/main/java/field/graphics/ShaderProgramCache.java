@@ -0,0 +1,164 @@
+package field.graphics;
+
+import field.utility.Dict;
+import field.utility.Log;
+import field.utility.Options;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on disk cache of linked shader programs (glGetProgramBinary / glProgramBinary), so that a sheet full of shaders that haven't changed since last time
+ * doesn't have to compile and link any of them.
+ * <p>
+ * Programs are keyed by a hash of their (preprocessed) source, anything else that goes into linking them, and the driver's vendor / renderer / version strings
+ * --- a driver update just makes everything miss. Entries live in ~/.field/shaderCache/ (the option `shaderCache`); set the option `noShaderCache` to turn this
+ * off. Binaries are written on a background thread.
+ */
+public class ShaderProgramCache {
+
+	static public final boolean enabled = !Options.dict()
+						    .isTrue(new Dict.Prop("noShaderCache"), false);
+
+	static public final String dir = Options.getDirectory("shaderCache", () -> System.getProperty("user.home") + "/.field/shaderCache/");
+
+	static public final AtomicLong hits = new AtomicLong();
+	static public final AtomicLong misses = new AtomicLong();
+	static public final AtomicLong stores = new AtomicLong();
+
+	static private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "shader cache writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static private String driver = null;
+
+	/**
+	 * the cache key for a program made from `parts` (sources, transform feedback varyings and so on), in the current context
+	 */
+	static public String key(Iterable<String> parts) {
+		if (driver == null)
+			driver = GL11.glGetString(GL11.GL_VENDOR) + "|" + GL11.glGetString(GL11.GL_RENDERER) + "|" + GL11.glGetString(GL11.GL_VERSION);
+
+		try {
+			MessageDigest d = MessageDigest.getInstance("SHA-1");
+			d.update(driver.getBytes("UTF-8"));
+			for (String p : parts) {
+				d.update((byte) 0);
+				d.update(p.getBytes("UTF-8"));
+			}
+			StringBuilder s = new StringBuilder();
+			for (byte b : d.digest())
+				s.append(String.format("%02x", b));
+			return s.toString();
+		} catch (NoSuchAlgorithmException | IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * tries to fill `program` from the cache. Returns true if it's now linked and ready to go
+	 */
+	static public boolean load(int program, String key) {
+		if (!enabled) return false;
+
+		File f = new File(dir, key + ".bin");
+		if (!f.exists()) {
+			misses.incrementAndGet();
+			return false;
+		}
+
+		try {
+			byte[] b = Files.readAllBytes(f.toPath());
+			ByteBuffer all = ByteBuffer.wrap(b)
+						   .order(ByteOrder.LITTLE_ENDIAN);
+			int format = all.getInt();
+			ByteBuffer binary = ByteBuffer.allocateDirect(b.length - 4)
+						      .order(ByteOrder.nativeOrder());
+			binary.put(b, 4, b.length - 4);
+			binary.flip();
+
+			GL41.glProgramBinary(program, format, binary);
+			if (GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) != 0) {
+				hits.incrementAndGet();
+				return true;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// the driver didn't like it, so it's stale
+		GL11.glGetError();
+		f.delete();
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * call before linking a program that you are going to store(...)
+	 */
+	static public void prepare(int program) {
+		if (enabled) GL41.glProgramParameteri(program, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+	}
+
+	/**
+	 * stores the (linked) `program` under `key`
+	 */
+	static public void store(int program, String key) {
+		if (!enabled) return;
+
+		int length = GL20.glGetProgrami(program, GL41.GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0) return;
+
+		IntBuffer len = ByteBuffer.allocateDirect(4)
+					  .order(ByteOrder.nativeOrder())
+					  .asIntBuffer();
+		IntBuffer format = ByteBuffer.allocateDirect(4)
+					     .order(ByteOrder.nativeOrder())
+					     .asIntBuffer();
+		ByteBuffer binary = ByteBuffer.allocateDirect(length)
+					      .order(ByteOrder.nativeOrder());
+		GL41.glGetProgramBinary(program, len, format, binary);
+		if (GL11.glGetError() != 0) return;
+
+		int n = len.get(0);
+		int f = format.get(0);
+		byte[] b = new byte[n + 4];
+		ByteBuffer.wrap(b)
+			  .order(ByteOrder.LITTLE_ENDIAN)
+			  .putInt(f);
+		binary.get(b, 4, n);
+
+		writer.submit(() -> {
+			try {
+				File d = new File(dir);
+				d.mkdirs();
+				File tmp = File.createTempFile(key, ".tmp", d);
+				Files.write(tmp.toPath(), b);
+				Files.move(tmp.toPath(), new File(d, key + ".bin").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				stores.incrementAndGet();
+			} catch (IOException e) {
+				Log.log("graphics.warning", () -> " couldn't write shader binary " + key + " : " + e);
+			}
+		});
+	}
+
+	static public String stats() {
+		long h = hits.get(), m = misses.get();
+		return "shader cache: " + h + " hit" + (h == 1 ? "" : "s") + ", " + m + " miss" + (m == 1 ? "" : "es") + (h + m > 0 ? " (" + (100 * h / (h + m)) + "%)" : "") + ", " + stores.get() + " stored";
+	}
+}
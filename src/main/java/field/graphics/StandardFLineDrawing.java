@@ -45,6 +45,15 @@ public class StandardFLineDrawing {
     static public final Dict.Prop<Boolean> filled = new Dict.Prop<>("filled").type()
             .toCanon()
             .doc("should the line be filled and tessellated? defaults to false").set(Dict.domain, "fline");
+    static public final Dict.Prop<Boolean> asyncTessellation = new Dict.Prop<>("asyncTessellation").type()
+            .toCanon()
+            .doc("if the line is `filled`, flatten and tessellate it in the background rather than on the main loop; until that's done the previous version of the line is drawn. Defaults to false").set(Dict.domain, "fline");
+    static public final Dict.Prop<String> triangulator = new Dict.Prop<>("triangulator").type()
+            .toCanon()
+            .doc("how a `filled` line is tessellated: `\"glu\"` (the default, copes with lines that cross themselves), `\"earcut\"` (much faster for large lines and lines with many holes, but contours must not cross) or `\"delaunay\"` (earcut, then flipped into better shaped triangles)").set(Dict.domain, "fline");
+    static public final Dict.Prop<String> fillRule = new Dict.Prop<>("fillRule").type()
+            .toCanon()
+            .doc("which parts of a `filled` line are inside: `\"nonzero\"` (the default) or `\"evenodd\"`").set(Dict.domain, "fline");
     static public final Dict.Prop<Boolean> pointed = new Dict.Prop<>("pointed").type()
             .toCanon()
             .doc("should the points on the line be drawn? defaults to false").set(Dict.domain, "fline");
@@ -132,6 +141,39 @@ public class StandardFLineDrawing {
             .doc("increases the resolution of cubic spline rendering by a factor.").set(Dict.domain, "fline");
 
 
+    /**
+     * the PackedFLine equivalent of dispatchLine: strokes, fills and points it straight from its arrays (see PackedFLine.renderToLine etc.). Only `stroked`,
+     * `filled`, `pointed`, `pointSize`, `curveScale` and the color and opacity properties are looked at; per-node colors come from the line's aux channel 1
+     */
+    static public void dispatchLine(PackedFLine p, MeshBuilder mesh, MeshBuilder line, MeshBuilder points, float opacityMultiply) {
+        Dict a = p.attributes;
+
+        Vec4 sc = new Vec4(a.getOr(strokeColor, () -> a.getOr(color, () -> new Vec4(0, 0, 0, 1))).get());
+        Vec4 fc = new Vec4(a.getOr(fillColor, () -> a.getOr(color, () -> new Vec4(0, 0, 0, 1))).get());
+        Vec4 pc = new Vec4(a.getOr(pointColor, () -> a.getOr(color, () -> new Vec4(0, 0, 0, 1))).get());
+
+        float op = a.getOr(opacity, () -> 1f) * opacityMultiply;
+        sc.w *= op * a.getOr(strokeOpacity, () -> 1f) * opacityMultiply;
+        fc.w *= op * a.getOr(fillOpacity, () -> 1f) * opacityMultiply;
+        pc.w *= op;
+
+        int fixedSizeForCubic = (int) Math.max(2, 40 * a.getOr(curveScale, () -> 1f).floatValue());
+
+        if (a.isTrue(stroked, true) && line != null) {
+            line.aux(1, sc);
+            p.renderToLine(line, fixedSizeForCubic);
+        }
+        if (a.isTrue(filled, false) && mesh != null) {
+            mesh.aux(1, fc);
+            p.renderToMesh(mesh, fixedSizeForCubic);
+        }
+        if (a.isTrue(pointed, false) && points != null) {
+            points.aux(1, pc);
+            points.aux(2, a.getFloat(pointSize, 0f));
+            p.renderToPoints(points, fixedSizeForCubic);
+        }
+    }
+
     static public void dispatchLine(FLine fline, MeshBuilder mesh, MeshBuilder line, MeshBuilder points, Optional<TextDrawing> ot, String layerName) {
         dispatchLine(fline, mesh, line, points, ot, layerName, 1f);
     }
@@ -193,7 +235,10 @@ public class StandardFLineDrawing {
                     return new Vec4(v.x, v.y, v.z, v.w * opacityMultiply);
                 });
             mesh.aux(1, fc);
-            fline.renderToMesh(mesh, (int) Math.max(2, 40 * fline.attributes.getOr(curveScale, () -> 1f).floatValue()));
+            if (fline.attributes.isTrue(asyncTessellation, false))
+                AsyncTessellation.renderToMesh(fline, mesh, (int) Math.max(2, 40 * fline.attributes.getOr(curveScale, () -> 1f).floatValue()), layerName);
+            else
+                fline.renderToMesh(mesh, (int) Math.max(2, 40 * fline.attributes.getOr(curveScale, () -> 1f).floatValue()));
             mesh.aux(1, fc);
         }
         if (fline.attributes.isTrue(pointed, false) && points != null) {
@@ -0,0 +1,301 @@
+package field.graphics;
+
+import field.utility.Dict;
+import field.utility.Log;
+import field.utility.Options;
+import org.lwjgl.opengl.ARBTextureStorage;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * A Texture for streaming video frames straight from decoder threads into OpenGL.
+ * <p>
+ * This keeps a small ring of textures, each with its own persistently mapped pixel-unpack buffer. Decode workers write directly into the mapped memory of a
+ * free slot, the next perform() issues the (asynchronous) transfer from that PBO into the slot's texture and fences it, and the slot's PBO isn't handed out
+ * again until that fence has signalled. Whichever slot holds the frame most recently asked for with show() is the one that's bound, so a late frame just means
+ * the previous frame stays on screen.
+ * <p>
+ * If the specification is compressed (for example TextureSpecification.bptc) the decoder is expected to write pre-transcoded blocks and the upload is a
+ * glCompressedTexSubImage2D.
+ * <p>
+ * Persistent mapping needs glBufferStorage (GL 4.4). Without it (the 3.2 core context on the mac, for example) decoders write into plain direct buffers
+ * instead and transfer() copies them into an ordinary PBO with glBufferSubData first, which costs a copy but otherwise works the same way.
+ * <p>
+ * This only ever streams into the first GraphicsContext that draws it.
+ */
+public class StreamingTexture extends Texture {
+
+    static public final int FREE = 0;
+    static public final int WRITING = 1;
+    static public final int WRITTEN = 2;
+    static public final int UPLOADING = 3;
+    static public final int RESIDENT = 4;
+
+    static private ExecutorService pool;
+
+    static synchronized private ExecutorService pool() {
+        if (pool == null) {
+            int threads = Options.dict().getOr(new Dict.Prop<Number>("decompressThreads"), () -> 12).intValue();
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "streaming texture decode");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    public final int ringSize;
+    public final int bytesPerFrame;
+
+    private final AtomicIntegerArray slotState;
+    private final AtomicIntegerArray slotFrame;
+
+    private volatile StreamState ring;
+    private volatile int displayed = -1;
+
+    public int stalls = 0;
+    public int framesStreamed = 0;
+
+    public StreamingTexture(TextureSpecification specification, int ringSize) {
+        super(specification);
+        this.ringSize = ringSize;
+        this.bytesPerFrame = bytesFor(specification);
+        this.slotState = new AtomicIntegerArray(ringSize);
+        this.slotFrame = new AtomicIntegerArray(ringSize);
+        for (int i = 0; i < ringSize; i++) slotFrame.set(i, Integer.MIN_VALUE);
+        setIsDoubleBuffered(false);
+    }
+
+    static public int bytesFor(TextureSpecification specification) {
+        if (specification.compressed) {
+            // BPTC (and the other block formats we care about) are 16 bytes per 4x4 block
+            return ((specification.width + 3) / 4) * ((specification.height + 3) / 4) * 16;
+        }
+        return specification.elementSize * specification.width * specification.height;
+    }
+
+    private int slotFor(int frame) {
+        for (int i = 0; i < ringSize; i++) {
+            if (slotFrame.get(i) == frame && slotState.get(i) != FREE) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * makes sure that `frame` is decoded into the ring (without changing what's being displayed). Returns false if there's no slot free for it right now
+     */
+    public boolean request(int frame, BiConsumer<Integer, ByteBuffer> decoder) {
+        StreamState r = ring;
+        if (r == null) return false;
+        if (slotFor(frame) != -1) return true;
+
+        for (int i = 0; i < ringSize; i++) {
+            if (i == displayed) continue;
+            int st = slotState.get(i);
+            // RESIDENT slots have had their upload fence signal, so their PBO is safe to write into again
+            if ((st == FREE || st == RESIDENT) && slotState.compareAndSet(i, st, WRITING)) {
+                int slot = i;
+                slotFrame.set(slot, frame);
+                pool().execute(() -> {
+                    ByteBuffer into = r.mapped[slot].duplicate();
+                    into.clear();
+                    try {
+                        decoder.accept(frame, into);
+                        slotState.set(slot, WRITTEN);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        slotFrame.set(slot, Integer.MIN_VALUE);
+                        slotState.set(slot, FREE);
+                    }
+                });
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * asks for `frame` to be displayed. Returns true if it's now the frame that this texture binds, otherwise it's on its way and the previous frame continues
+     * to be shown
+     */
+    public boolean show(int frame, BiConsumer<Integer, ByteBuffer> decoder) {
+        int s = slotFor(frame);
+        if (s != -1 && slotState.get(s) == RESIDENT) {
+            displayed = s;
+            return true;
+        }
+        // only count frames that are actually on their way; with no slot free to decode into, the caller just asks again next time
+        if (s == -1 && !request(frame, decoder)) return false;
+        stalls++;
+        return false;
+    }
+
+    public int getDisplayedFrame() {
+        int d = displayed;
+        return d == -1 ? Integer.MIN_VALUE : slotFrame.get(d);
+    }
+
+    @Override
+    protected State setup() {
+        StreamState s = new StreamState();
+
+        s.names = new int[ringSize];
+        s.pbos = new int[ringSize];
+        s.fences = new long[ringSize];
+        s.mapped = new ByteBuffer[ringSize];
+
+        GLCapabilities caps = GL.getCapabilities();
+        s.persistent = caps.OpenGL44;
+        int flags = GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+
+        for (int i = 0; i < ringSize; i++) {
+            s.names[i] = glGenTextures();
+            glActiveTexture(GL_TEXTURE0 + specification.unit);
+            glBindTexture(specification.target, s.names[i]);
+            glTexParameteri(specification.target, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            glTexParameteri(specification.target, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            glTexParameteri(specification.target, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+            glTexParameteri(specification.target, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+            if (caps.OpenGL42 || caps.GL_ARB_texture_storage)
+                ARBTextureStorage.glTexStorage2D(specification.target, 1, specification.internalFormat, specification.width, specification.height);
+            else if (specification.compressed)
+                glCompressedTexImage2D(specification.target, 0, specification.internalFormat, specification.width, specification.height, 0, bytesPerFrame, 0L);
+            else
+                glTexImage2D(specification.target, 0, specification.internalFormat, specification.width, specification.height, 0, specification.format,
+                        specification.type, 0L);
+
+            s.pbos[i] = glGenBuffers();
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, s.pbos[i]);
+            if (s.persistent) {
+                GL44.glBufferStorage(GL_PIXEL_UNPACK_BUFFER, bytesPerFrame, flags);
+                s.mapped[i] = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytesPerFrame, flags);
+            } else {
+                glBufferData(GL_PIXEL_UNPACK_BUFFER, bytesPerFrame, GL_STREAM_DRAW);
+                s.mapped[i] = ByteBuffer.allocateDirect(bytesPerFrame);
+            }
+            GraphicsContext.checkError(() -> "setting up streaming texture slot " + specification);
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        glBindTexture(specification.target, 0);
+
+        s.name = s.names[0];
+        s.pbo = s.pbos[0];
+
+        if (ring == null) ring = s;
+
+        return s;
+    }
+
+    @Override
+    protected int upload(State s) {
+        return mod;
+    }
+
+    @Override
+    protected boolean perform0() {
+        StreamState s = GraphicsContext.get(this);
+
+        if (s == ring) {
+            for (int i = 0; i < ringSize; i++) {
+                int st = slotState.get(i);
+                if (st == WRITTEN) {
+                    transfer(s, i);
+                    slotState.set(i, UPLOADING);
+                } else if (st == UPLOADING) {
+                    int w = glClientWaitSync(s.fences[i], 0, 0);
+                    if (w == GL_ALREADY_SIGNALED || w == GL_CONDITION_SATISFIED) {
+                        glDeleteSync(s.fences[i]);
+                        s.fences[i] = 0;
+                        slotState.set(i, RESIDENT);
+                    }
+                }
+            }
+        }
+
+        int d = displayed;
+        if (d != -1) s.name = s.names[d];
+
+        Log.log("graphics.trace", () -> "activating streaming texture :" + specification.unit + " = " + s.name);
+
+        glActiveTexture(GL_TEXTURE0 + specification.unit);
+        glBindTexture(specification.target, s.name);
+
+        Runnable m = postDrawQueue.getAndSet(null);
+        if (m != null) m.run();
+
+        boundCount++;
+        return true;
+    }
+
+    private void transfer(StreamState s, int i) {
+        glActiveTexture(GL_TEXTURE0 + specification.unit);
+        glBindTexture(specification.target, s.names[i]);
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, s.pbos[i]);
+        if (!s.persistent) {
+            // the fence on this PBO has signalled (or it's never been used), so this copy doesn't have to wait on anything
+            ByteBuffer from = s.mapped[i].duplicate();
+            from.clear();
+            glBufferSubData(GL_PIXEL_UNPACK_BUFFER, 0, from);
+        }
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, specification.width);
+
+        if (specification.compressed)
+            glCompressedTexSubImage2D(specification.target, 0, 0, 0, specification.width, specification.height, specification.internalFormat, bytesPerFrame, 0L);
+        else
+            glTexSubImage2D(specification.target, 0, 0, 0, specification.width, specification.height, specification.format, specification.type, 0L);
+
+        s.fences[i] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        GraphicsContext.checkError(() -> "streaming texture transfer " + specification);
+
+        bytesUploaded += bytesPerFrame;
+        framesStreamed++;
+        uploadCount++;
+    }
+
+    @Override
+    protected void deallocate(State s) {
+        StreamState ss = (StreamState) s;
+        for (int i = 0; i < ringSize; i++) {
+            if (ss.fences[i] != 0) glDeleteSync(ss.fences[i]);
+            if (ss.persistent) {
+                glBindBuffer(GL_PIXEL_UNPACK_BUFFER, ss.pbos[i]);
+                glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+            }
+            glDeleteBuffers(ss.pbos[i]);
+            glDeleteTextures(ss.names[i]);
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        if (ring == ss) ring = null;
+    }
+
+    @Override
+    public int forceUploadNow(ByteBuffer from) {
+        throw new IllegalArgumentException(" streaming textures are only written to through show() / request()");
+    }
+
+    public class StreamState extends State {
+        int[] names;
+        int[] pbos;
+        long[] fences;
+        ByteBuffer[] mapped;
+        boolean persistent;
+    }
+}
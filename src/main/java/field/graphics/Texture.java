@@ -318,6 +318,31 @@ public class Texture extends BaseScene<Texture.State> implements Scene.Perform,
         }, -2)/*.setOnceOnly()*/.setAllContextsFor(this));
     }
 
+    /**
+     * schedules an upload of the rectangle (x0, y0)-(x1, y1) of `upload` (which is laid out like the whole texture) through each GraphicsContext's
+     * UploadScheduler. Large uploads are tiled across as many frames as it takes to stay inside the scheduler's per-frame byte budget; the future completes
+     * when the last tile has been sent.
+     */
+    public CompletableFuture<Texture> uploadTiled(ByteBuffer upload, int x0, int y0, int x1, int y1) {
+        CompletableFuture<?>[] all = GraphicsContext.allGraphicsContexts.stream()
+                .map(c -> c.uploadScheduler.schedule(this, upload, x0, y0, x1, y1))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(all).thenApply(x -> this);
+    }
+
+    /**
+     * decodes a .jpg or .png on a background thread and then uploads it, tiled, via uploadTiled. Nothing here blocks the caller.
+     */
+    static public CompletableFuture<Texture> loadAsync(int unit, String filename, boolean mips) {
+        return CompletableFuture.supplyAsync(() -> filename.toLowerCase().endsWith(".png") ? TextureSpecification.fromPNG4(unit, filename, mips) : TextureSpecification.fromJpeg(unit, filename, mips),
+                UploadScheduler.decodePool).thenCompose(decoded -> {
+            // storage is allocated empty, the pixels arrive over the next few frames
+            TextureSpecification empty = new TextureSpecification(unit, decoded.target, decoded.internalFormat, decoded.width, decoded.height, decoded.format, decoded.type,
+                    decoded.elementSize, null, decoded.highQuality);
+            return new Texture(empty).uploadTiled(decoded.pixels, 0, 0, decoded.width, decoded.height);
+        });
+    }
+
     public void uploadLayer(ByteBuffer upload, boolean stream, int z) {
         pendingUploads.incrementAndGet();
         String uid = UUID.randomUUID().toString();
@@ -489,7 +514,14 @@ public class Texture extends BaseScene<Texture.State> implements Scene.Perform,
                     glTexSubImage2D(specification.target, 0, 0, 0, specification.width, specification.height,
                             specification.format, specification.type, specification.pixels);
                 }
-                if (specification.highQuality) {
+                if (specification.highQuality && specification.levels != null && specification.target == GL_TEXTURE_2D) {
+                    int w = specification.width, h = specification.height;
+                    for (int i = 0; i < specification.levels.length; i++) {
+                        w = Math.max(1, w / 2);
+                        h = Math.max(1, h / 2);
+                        glTexSubImage2D(specification.target, i + 1, 0, 0, w, h, specification.format, specification.type, specification.levels[i]);
+                    }
+                } else if (specification.highQuality) {
                     glGenerateMipmap(specification.target);
                 }
             }
@@ -771,6 +803,7 @@ public class Texture extends BaseScene<Texture.State> implements Scene.Perform,
         public final boolean compressed;
         public int depth;
         public String source; // optional
+        public ByteBuffer[] levels; // optional, precomputed mip-levels 1 .. n, used instead of glGenerateMipmap
 
         public TextureSpecification(int unit, int target, int internalFormat, int width, int height, int format, int type, int elementSize, ByteBuffer pixels, boolean highQuality) {
             this.unit = unit;
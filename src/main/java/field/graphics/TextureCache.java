@@ -0,0 +1,445 @@
+package field.graphics;
+
+import field.utility.Dict;
+import field.utility.Options;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A content addressed cache of Textures loaded from image files, keyed by (absolute path, modification time, format).
+ * <p>
+ * Textures are reference counted --- acquire() one, release() it when you are done --- and the cache keeps unreferenced textures around until the total
+ * (estimated) VRAM they take goes over `budget`, at which point the least recently used unreferenced ones are deleted.
+ * <p>
+ * Optionally (set `diskCache` to a directory, or pass -textureCache on the command line) decoded pixels, together with all of their mip-levels, are written to
+ * disk in a simple binary format so that next time they can be mapped and uploaded directly, without decoding.
+ */
+public class TextureCache {
+
+    static public final TextureCache shared = new TextureCache();
+
+    public long budget = Options.dict().getOr(new Dict.Prop<Number>("textureBudget"), () -> 1024L * 1024L * 1024L).longValue();
+    public File diskCache = diskCacheFromOptions();
+
+    static private final int MAGIC = 0x46544331; // FTC1
+
+    public enum Format {
+        rgb8, rgba8
+    }
+
+    static public class Key {
+        public final String path;
+        public final long modified;
+        public final Format format;
+        public final boolean mips;
+
+        public Key(String path, long modified, Format format, boolean mips) {
+            this.path = path;
+            this.modified = modified;
+            this.format = format;
+            this.mips = mips;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return modified == key.modified && mips == key.mips && path.equals(key.path) && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, modified, format, mips);
+        }
+
+        @Override
+        public String toString() {
+            return path + "@" + modified + ":" + format + (mips ? ":mips" : "");
+        }
+    }
+
+    static class Entry {
+        final Key key;
+        final Texture texture;
+        final long bytes;
+        final CompletableFuture<Texture> ready;
+        int references = 0;
+
+        Entry(Key key, Texture texture, long bytes, CompletableFuture<Texture> ready) {
+            this.key = key;
+            this.texture = texture;
+            this.bytes = bytes;
+            this.ready = ready;
+        }
+    }
+
+    // access ordered, so iteration goes from least to most recently used
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final IdentityHashMap<Texture, Entry> byTexture = new IdentityHashMap<>();
+    private long total = 0;
+
+    public int hits = 0;
+    public int misses = 0;
+    public int diskHits = 0;
+    public int evictions = 0;
+
+    static private File diskCacheFromOptions() {
+        String d = Options.dict().get(new Dict.Prop<String>("textureCache"));
+        return d == null ? null : new File(d);
+    }
+
+    static public Key keyFor(String filename, boolean mips) {
+        File f = new File(filename).getAbsoluteFile();
+        Format format = isPNG(f.getName()) && pngHasAlpha(f) ? Format.rgba8 : Format.rgb8;
+        return new Key(f.getAbsolutePath(), f.lastModified(), format, mips);
+    }
+
+    static private boolean isPNG(String path) {
+        return path.toLowerCase().endsWith(".png");
+    }
+
+    /*
+     * reads just the PNG chunk headers up to the first IDAT: colour types 4 (grey + alpha) and 6 (rgba) have alpha, and so does anything with a tRNS chunk.
+     * Files we can't make sense of are assumed to have alpha, which is what they used to be loaded as
+     */
+    static private boolean pngHasAlpha(File f) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            in.skipBytes(8);
+            while (true) {
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type == 0x49484452) { // IHDR
+                    in.skipBytes(9);
+                    int colourType = in.readUnsignedByte();
+                    if (colourType == 4 || colourType == 6) return true;
+                    in.skipBytes(length - 10 + 4);
+                } else if (type == 0x74524e53) { // tRNS
+                    return true;
+                } else if (type == 0x49444154 || type == 0x49454e44) { // IDAT, IEND
+                    return false;
+                } else {
+                    in.skipBytes(length + 4);
+                }
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * returns a Texture for this file, on texture unit 0, with a reference taken out on it. If it's not already cached the Texture is returned straight away,
+     * but its pixels arrive later (see whenReady()). Use Texture.viewWithDifferentUnit if you need it somewhere else
+     */
+    public synchronized Texture acquire(String filename, boolean mips) {
+        Key k = keyFor(filename, mips);
+        Entry e = entries.get(k);
+        if (e != null) {
+            hits++;
+        } else {
+            misses++;
+            e = load(k);
+            entries.put(k, e);
+            byTexture.put(e.texture, e);
+            total += e.bytes;
+            // entries can't be evicted while they are still loading, so look again once this one has finished
+            if (!e.ready.isDone()) e.ready.whenComplete((t, x) -> {
+                synchronized (this) {
+                    evict();
+                }
+            });
+        }
+        e.references++;
+        evict();
+        return e.texture;
+    }
+
+    /**
+     * gives back a reference to a texture that came from acquire(). Unreferenced textures stay cached until they're evicted.
+     */
+    public synchronized void release(Texture t) {
+        Entry e = byTexture.get(t);
+        if (e == null) return;
+        e.references = Math.max(0, e.references - 1);
+        if (e.references == 0 && isDetached(e)) drop(e);
+        evict();
+    }
+
+    /**
+     * like acquire(), but always reads the file again rather than reusing pixels that are already cached (in memory or on disk) for it. Anybody still holding
+     * the previous texture for this file keeps it until they release() it
+     */
+    public synchronized Texture acquireFresh(String filename, boolean mips) {
+        Key k = keyFor(filename, mips);
+        Entry e = entries.remove(k);
+        if (e != null && e.references == 0) drop(e);
+
+        File cached = cacheFileFor(k);
+        if (cached != null) cached.delete();
+
+        return acquire(filename, mips);
+    }
+
+    /**
+     * takes ownership of a texture that didn't come from a file (a blank placeholder, say) with one reference on it, so that release() deletes it just like
+     * any other texture from here. Adopted textures are never handed out by acquire()
+     */
+    public synchronized Texture adopt(Texture t) {
+        Texture.TextureSpecification spec = t.specification;
+        Entry e = new Entry(null, t, vramFor(spec.width, spec.height, spec.elementSize, spec.highQuality), CompletableFuture.completedFuture(t));
+        e.references = 1;
+        byTexture.put(t, e);
+        total += e.bytes;
+        return t;
+    }
+
+    /**
+     * completes when this (cached) texture has its pixels
+     */
+    public synchronized CompletableFuture<Texture> whenReady(Texture t) {
+        Entry e = byTexture.get(t);
+        if (e == null) return CompletableFuture.completedFuture(t);
+        return e.ready;
+    }
+
+    public synchronized long getTotalBytes() {
+        return total;
+    }
+
+    public synchronized String stats() {
+        return "texture cache: " + entries.size() + " textures, " + (total / (1024 * 1024)) + "MB of " + (budget / (1024 * 1024)) + "MB, " + hits + " hits / " + misses + " misses (" + diskHits + " from disk), " + evictions + " evictions";
+    }
+
+    private void evict() {
+        Iterator<Entry> i = entries.values().iterator();
+        while (total > budget && i.hasNext()) {
+            Entry e = i.next();
+            if (e.references > 0) continue;
+            // destroying a texture whose pixels are still on their way would just have the upload set it up again (and leak it)
+            if (!e.ready.isDone()) continue;
+            i.remove();
+            byTexture.remove(e.texture);
+            total -= e.bytes;
+            evictions++;
+            for (GraphicsContext c : GraphicsContext.allGraphicsContexts)
+                c.postQueue.add(e.texture::destroy);
+        }
+    }
+
+    // adopted, or no longer the cached texture for its file, so nothing will ever evict it
+    private boolean isDetached(Entry e) {
+        return e.key == null || entries.get(e.key) != e;
+    }
+
+    private void drop(Entry e) {
+        if (!e.ready.isDone()) {
+            // as in evict(), wait until the pixels have landed
+            e.ready.whenComplete((t, x) -> {
+                synchronized (this) {
+                    if (e.references == 0 && byTexture.get(e.texture) == e) drop(e);
+                }
+            });
+            return;
+        }
+        byTexture.remove(e.texture);
+        total -= e.bytes;
+        for (GraphicsContext c : GraphicsContext.allGraphicsContexts)
+            c.postQueue.add(e.texture::destroy);
+    }
+
+    static private long vramFor(int w, int h, int elementSize, boolean mips) {
+        long b = (long) w * h * elementSize;
+        // a full mip chain adds about a third
+        return mips ? b * 4 / 3 : b;
+    }
+
+    private Entry load(Key k) {
+        File cached = cacheFileFor(k);
+        if (cached != null && cached.exists()) {
+            try {
+                Texture.TextureSpecification spec = readCached(cached, k);
+                diskHits++;
+                Texture t = new Texture(spec);
+                t.setIsDoubleBuffered(false);
+                return new Entry(k, t, vramFor(spec.width, spec.height, spec.elementSize, k.mips), CompletableFuture.completedFuture(t));
+            } catch (IOException e) {
+                System.err.println(" texture cache entry <" + cached + "> is unreadable, decoding again");
+                cached.delete();
+            }
+        }
+
+        int[] wh = dimensions(k);
+        int elementSize = k.format == Format.rgba8 ? 4 : 3;
+
+        // allocated empty, the pixels are uploaded over the next few frames once they are decoded
+        Texture.TextureSpecification empty = k.format == Format.rgba8 ? Texture.TextureSpecification.byte4(0, wh[0], wh[1], null, k.mips) : Texture.TextureSpecification.byte3(0,
+                wh[0], wh[1], null, k.mips);
+        Texture t = new Texture(empty);
+        t.setIsDoubleBuffered(false);
+
+        CompletableFuture<Texture> ready = CompletableFuture.supplyAsync(() -> {
+            Texture.TextureSpecification decoded;
+            if (!isPNG(k.path)) decoded = Texture.TextureSpecification.fromJpeg(0, k.path, k.mips);
+            else if (k.format == Format.rgba8) decoded = Texture.TextureSpecification.fromPNG4(0, k.path, k.mips);
+            else decoded = dropAlpha(Texture.TextureSpecification.fromPNG4(0, k.path, k.mips), k.mips);
+            if (cached != null) {
+                try {
+                    writeCached(cached, decoded, k.mips);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return decoded;
+        }, UploadScheduler.decodePool).thenCompose(decoded -> t.uploadTiled(decoded.pixels, 0, 0, decoded.width, decoded.height));
+
+        return new Entry(k, t, vramFor(wh[0], wh[1], elementSize, k.mips), ready);
+    }
+
+    /*
+     * fromPNG4 always gives us four channels, opaque PNGs are stored (and budgeted) as three
+     */
+    static private Texture.TextureSpecification dropAlpha(Texture.TextureSpecification rgba, boolean mips) {
+        int n = rgba.width * rgba.height;
+        ByteBuffer rgb = ByteBuffer.allocateDirect(n * 3);
+        for (int i = 0; i < n; i++) {
+            rgb.put(i * 3, rgba.pixels.get(i * 4));
+            rgb.put(i * 3 + 1, rgba.pixels.get(i * 4 + 1));
+            rgb.put(i * 3 + 2, rgba.pixels.get(i * 4 + 2));
+        }
+        return Texture.TextureSpecification.byte3(0, rgba.width, rgba.height, rgb, mips);
+    }
+
+    static private int[] dimensions(Key k) {
+        if (!isPNG(k.path)) return FastJPEG.j.dimensions(k.path);
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(k.path))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IllegalArgumentException(" can't read image <" + k.path + ">");
+            ImageReader r = readers.next();
+            try {
+                r.setInput(in);
+                return new int[]{r.getWidth(0), r.getHeight(0)};
+            } finally {
+                r.dispose();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(" can't read image <" + k.path + ">", e);
+        }
+    }
+
+    private File cacheFileFor(Key k) {
+        if (diskCache == null) return null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] d = md.digest(k.toString().getBytes("UTF-8"));
+            StringBuilder s = new StringBuilder();
+            for (byte b : d) s.append(String.format("%02x", b));
+            return new File(diskCache, s + ".ftc");
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * the on-disk format is a header of ints (magic, width, height, elementSize, levels) followed by the pixels for each mip level, tightly packed, level 0
+     * first
+     */
+    static private void writeCached(File to, Texture.TextureSpecification spec, boolean mips) throws IOException {
+        to.getParentFile().mkdirs();
+
+        List<ByteBuffer> levels = new ArrayList<>();
+        levels.add(spec.pixels.duplicate());
+        if (mips) {
+            int w = spec.width, h = spec.height;
+            ByteBuffer at = spec.pixels;
+            while (w > 1 || h > 1) {
+                int nw = Math.max(1, w / 2), nh = Math.max(1, h / 2);
+                at = downsample(at, w, h, nw, nh, spec.elementSize);
+                levels.add(at);
+                w = nw;
+                h = nh;
+            }
+        }
+
+        long size = 4 * 5;
+        for (ByteBuffer b : levels) size += b.capacity();
+
+        File tmp = new File(to.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel c = raf.getChannel()) {
+            MappedByteBuffer m = c.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            m.putInt(MAGIC).putInt(spec.width).putInt(spec.height).putInt(spec.elementSize).putInt(levels.size());
+            for (ByteBuffer b : levels) {
+                ByteBuffer d = b.duplicate();
+                d.clear();
+                m.put(d);
+            }
+            m.force();
+        }
+        Files.move(tmp.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static private Texture.TextureSpecification readCached(File from, Key k) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(from, "r"); FileChannel c = raf.getChannel()) {
+            MappedByteBuffer m = c.map(FileChannel.MapMode.READ_ONLY, 0, c.size());
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            if (m.getInt() != MAGIC) throw new IOException(" bad magic number in " + from);
+            int w = m.getInt(), h = m.getInt(), elementSize = m.getInt(), levels = m.getInt();
+
+            ByteBuffer[] all = new ByteBuffer[levels];
+            int lw = w, lh = h;
+            for (int i = 0; i < levels; i++) {
+                int len = lw * lh * elementSize;
+                if (m.remaining() < len) throw new IOException(" truncated texture cache file " + from);
+                ByteBuffer l = m.slice();
+                l.limit(len);
+                all[i] = l;
+                m.position(m.position() + len);
+                lw = Math.max(1, lw / 2);
+                lh = Math.max(1, lh / 2);
+            }
+
+            Texture.TextureSpecification spec = elementSize == 4 ? Texture.TextureSpecification.byte4(0, w, h, all[0], k.mips) : Texture.TextureSpecification.byte3(0, w, h,
+                    all[0], k.mips);
+            if (levels > 1) spec.levels = Arrays.copyOfRange(all, 1, levels);
+            return spec;
+        }
+    }
+
+    /**
+     * box filter, good enough for mip-maps
+     */
+    static private ByteBuffer downsample(ByteBuffer from, int w, int h, int nw, int nh, int elementSize) {
+        ByteBuffer to = ByteBuffer.allocateDirect(nw * nh * elementSize);
+        for (int y = 0; y < nh; y++) {
+            int y0 = Math.min(h - 1, y * 2), y1 = Math.min(h - 1, y * 2 + 1);
+            for (int x = 0; x < nw; x++) {
+                int x0 = Math.min(w - 1, x * 2), x1 = Math.min(w - 1, x * 2 + 1);
+                for (int c = 0; c < elementSize; c++) {
+                    int s = (from.get((y0 * w + x0) * elementSize + c) & 0xff) + (from.get((y0 * w + x1) * elementSize + c) & 0xff) + (from.get(
+                            (y1 * w + x0) * elementSize + c) & 0xff) + (from.get((y1 * w + x1) * elementSize + c) & 0xff);
+                    to.put((y * nw + x) * elementSize + c, (byte) ((s + 2) / 4));
+                }
+            }
+        }
+        return to;
+    }
+}
@@ -0,0 +1,941 @@
+package field.graphics;
+
+import java.util.Arrays;
+
+/**
+ * A pure Java polygon triangulator: ear clipping (with holes bridged into their outer contour, and a z-order curve index for large polygons) over primitive
+ * arrays, with an optional constrained Delaunay pass.
+ * <p>
+ * This is the alternative to the GLU tessellator (MeshBuilder_tesselationSupport). It never makes new vertices --- every triangle refers to vertices that you
+ * added --- so aux channels don't need interpolating, and it allocates nothing per vertex. It is a lot faster for large polygons and polygons with many holes.
+ * What it doesn't do is resolve contours that cross each other or themselves: contours are classified as outlines or holes (by the nonZero or evenOdd rule)
+ * by how they nest, and are expected not to intersect. Contours are triangulated in their xy projection.
+ * <p>
+ * Use it by calling begin(), then beginContour(), add(x, y, vertex)..., endContour() for each contour, then end(), which returns the number of triangles
+ * (available from triangles(), as triples of the `vertex` numbers you passed to add). Instances can be reused, and keep their storage between polygons.
+ */
+public class Triangulator {
+
+    public enum Winding {
+        nonZero, evenOdd
+    }
+
+    public Winding winding = Winding.nonZero;
+
+    /**
+     * if set, the result is made (constrained) Delaunay by flipping edges that aren't on the contours. This gives better shaped triangles, at some cost
+     */
+    public boolean delaunay = false;
+
+    // input points, contour by contour
+    private int count = 0;
+    private double[] px = new double[64];
+    private double[] py = new double[64];
+    private int[] vertex = new int[64];
+    private int contours = 0;
+    private int[] contourStart = new int[8];
+
+    // output
+    private int triangleCount = 0;
+    private int[] out = new int[192];
+
+    // linked list nodes for ear clipping; -1 is null
+    private int nodes = 0;
+    private int[] ni = new int[64];
+    private double[] nx = new double[64];
+    private double[] ny = new double[64];
+    private int[] prev = new int[64];
+    private int[] next = new int[64];
+    private int[] nz = new int[64];
+    private int[] prevZ = new int[64];
+    private int[] nextZ = new int[64];
+    private boolean[] steiner = new boolean[64];
+
+    public Triangulator() {
+    }
+
+    public Triangulator(Winding winding, boolean delaunay) {
+        this.winding = winding;
+        this.delaunay = delaunay;
+    }
+
+    public Triangulator begin() {
+        count = 0;
+        contours = 0;
+        triangleCount = 0;
+        return this;
+    }
+
+    public Triangulator beginContour() {
+        if (contours + 2 > contourStart.length) contourStart = Arrays.copyOf(contourStart, contourStart.length * 2);
+        contourStart[contours] = count;
+        contours++;
+        contourStart[contours] = count;
+        return this;
+    }
+
+    /**
+     * adds a point to the current contour. `vertex` is what the triangles that use this point will refer to it by
+     */
+    public Triangulator add(double x, double y, int vertex) {
+        if (count == px.length) {
+            px = Arrays.copyOf(px, count * 2);
+            py = Arrays.copyOf(py, count * 2);
+            this.vertex = Arrays.copyOf(this.vertex, count * 2);
+        }
+        px[count] = x;
+        py[count] = y;
+        this.vertex[count] = vertex;
+        count++;
+        contourStart[contours] = count;
+        return this;
+    }
+
+    public Triangulator endContour() {
+        return this;
+    }
+
+    /**
+     * triangulates everything added since begin(), returning the number of triangles
+     */
+    public int end() {
+        triangleCount = 0;
+
+        // drop contours that close by repeating their first point, and anything too small to have an inside
+        int[] start = new int[contours];
+        int[] end = new int[contours];
+        double[] area = new double[contours];
+        int live = 0;
+        for (int c = 0; c < contours; c++) {
+            int s = contourStart[c], e = contourStart[c + 1];
+            while (e - s > 1 && px[e - 1] == px[s] && py[e - 1] == py[s]) e--;
+            if (e - s < 3) continue;
+            double a = signedArea(s, e);
+            if (a == 0) continue;
+            start[live] = s;
+            end[live] = e;
+            area[live] = a;
+            live++;
+        }
+
+        // classify each contour as an outline, a hole or neither, by looking at the winding just inside and just outside it
+        int[] role = new int[live]; // 1 outline, -1 hole, 0 neither
+        int[] parent = new int[live];
+        double[] bounds = new double[live * 4];
+        for (int c = 0; c < live; c++) contourBounds(start[c], end[c], bounds, c * 4);
+
+        for (int c = 0; c < live; c++) {
+            int outside = 0;
+            int containing = 0;
+            for (int d = 0; d < live; d++) {
+                if (d == c || !contains(bounds, d * 4, px[start[c]], py[start[c]])) continue;
+                if (pointInContour(start[d], end[d], px[start[c]], py[start[c]])) {
+                    outside += area[d] > 0 ? 1 : -1;
+                    containing++;
+                }
+            }
+            boolean filledOutside, filledInside;
+            if (winding == Winding.nonZero) {
+                filledOutside = outside != 0;
+                filledInside = outside + (area[c] > 0 ? 1 : -1) != 0;
+            } else {
+                filledOutside = (containing & 1) == 1;
+                filledInside = !filledOutside;
+            }
+            role[c] = filledInside && !filledOutside ? 1 : (!filledInside && filledOutside ? -1 : 0);
+        }
+
+        // each hole belongs to the smallest outline that contains it
+        for (int c = 0; c < live; c++) {
+            parent[c] = -1;
+            if (role[c] != -1) continue;
+            double best = Double.POSITIVE_INFINITY;
+            for (int d = 0; d < live; d++) {
+                if (role[d] != 1 || Math.abs(area[d]) >= best || !contains(bounds, d * 4, px[start[c]], py[start[c]])) continue;
+                if (pointInContour(start[d], end[d], px[start[c]], py[start[c]])) {
+                    best = Math.abs(area[d]);
+                    parent[c] = d;
+                }
+            }
+        }
+
+        for (int c = 0; c < live; c++) {
+            if (role[c] != 1) continue;
+            nodes = 0;
+            int outer = linkedList(start[c], end[c], true);
+            if (outer == -1 || next[outer] == prev[outer]) continue;
+
+            int holes = 0;
+            for (int h = 0; h < live; h++) if (parent[h] == c) holes++;
+            if (holes > 0) {
+                int[] queue = new int[holes];
+                int q = 0;
+                for (int h = 0; h < live; h++) {
+                    if (parent[h] != c) continue;
+                    int list = linkedList(start[h], end[h], false);
+                    if (list == -1) continue;
+                    if (list == next[list]) steiner[list] = true;
+                    queue[q++] = leftmost(list);
+                }
+                queue = sortByX(queue, q);
+                for (int i = 0; i < queue.length; i++)
+                    outer = eliminateHole(queue[i], outer);
+            }
+
+            double minX = 0, minY = 0, invSize = 0;
+            if (end[c] - start[c] > 80) {
+                double x0 = bounds[c * 4], y0 = bounds[c * 4 + 1], x1 = bounds[c * 4 + 2], y1 = bounds[c * 4 + 3];
+                minX = x0;
+                minY = y0;
+                invSize = Math.max(x1 - x0, y1 - y0);
+                invSize = invSize != 0 ? 32767 / invSize : 0;
+            }
+
+            earcutLinked(outer, minX, minY, invSize, 0);
+        }
+
+        if (delaunay) makeDelaunay();
+
+        // translate point indices into vertex numbers
+        for (int i = 0; i < triangleCount * 3; i++) out[i] = vertex[out[i]];
+
+        return triangleCount;
+    }
+
+    /**
+     * the result of end(), three vertex numbers per triangle. Only the first 3 * end() entries are meaningful
+     */
+    public int[] triangles() {
+        return out;
+    }
+
+    public int triangleCount() {
+        return triangleCount;
+    }
+
+    /**
+     * convenience: triangulates contours given as interleaved xy coordinates, with contour `i` starting at point contourStarts[i]. Returns point indices, three
+     * per triangle
+     */
+    static public int[] triangulate(double[] xy, int[] contourStarts, Winding winding) {
+        Triangulator t = new Triangulator(winding, false);
+        t.begin();
+        int n = xy.length / 2;
+        for (int c = 0; c < contourStarts.length; c++) {
+            t.beginContour();
+            int e = c + 1 < contourStarts.length ? contourStarts[c + 1] : n;
+            for (int i = contourStarts[c]; i < e; i++) t.add(xy[i * 2], xy[i * 2 + 1], i);
+            t.endContour();
+        }
+        return Arrays.copyOf(t.triangles(), t.end() * 3);
+    }
+
+    // ---- contours
+
+    private double signedArea(int s, int e) {
+        double sum = 0;
+        for (int i = s, j = e - 1; i < e; j = i++)
+            sum += (px[j] - px[i]) * (py[i] + py[j]);
+        return sum;
+    }
+
+    private void contourBounds(int s, int e, double[] b, int o) {
+        b[o] = b[o + 2] = px[s];
+        b[o + 1] = b[o + 3] = py[s];
+        for (int i = s + 1; i < e; i++) {
+            b[o] = Math.min(b[o], px[i]);
+            b[o + 1] = Math.min(b[o + 1], py[i]);
+            b[o + 2] = Math.max(b[o + 2], px[i]);
+            b[o + 3] = Math.max(b[o + 3], py[i]);
+        }
+    }
+
+    static private boolean contains(double[] b, int o, double x, double y) {
+        return x >= b[o] && x <= b[o + 2] && y >= b[o + 1] && y <= b[o + 3];
+    }
+
+    private boolean pointInContour(int s, int e, double x, double y) {
+        boolean inside = false;
+        for (int i = s, j = e - 1; i < e; j = i++) {
+            if ((py[i] > y) != (py[j] > y) && x < (px[j] - px[i]) * (y - py[i]) / (py[j] - py[i]) + px[i]) inside = !inside;
+        }
+        return inside;
+    }
+
+    // ---- ear clipping, after Mapbox's earcut
+
+    private int newNode(int i, double x, double y) {
+        if (nodes == ni.length) {
+            int c = nodes * 2;
+            ni = Arrays.copyOf(ni, c);
+            nx = Arrays.copyOf(nx, c);
+            ny = Arrays.copyOf(ny, c);
+            prev = Arrays.copyOf(prev, c);
+            next = Arrays.copyOf(next, c);
+            nz = Arrays.copyOf(nz, c);
+            prevZ = Arrays.copyOf(prevZ, c);
+            nextZ = Arrays.copyOf(nextZ, c);
+            steiner = Arrays.copyOf(steiner, c);
+        }
+        int p = nodes++;
+        ni[p] = i;
+        nx[p] = x;
+        ny[p] = y;
+        prev[p] = next[p] = -1;
+        nz[p] = 0;
+        prevZ[p] = nextZ[p] = -1;
+        steiner[p] = false;
+        return p;
+    }
+
+    private int insertNode(int i, int last) {
+        int p = newNode(i, px[i], py[i]);
+        if (last == -1) {
+            prev[p] = p;
+            next[p] = p;
+        } else {
+            next[p] = next[last];
+            prev[p] = last;
+            prev[next[last]] = p;
+            next[last] = p;
+        }
+        return p;
+    }
+
+    private void removeNode(int p) {
+        prev[next[p]] = prev[p];
+        next[prev[p]] = next[p];
+        if (prevZ[p] != -1) nextZ[prevZ[p]] = nextZ[p];
+        if (nextZ[p] != -1) prevZ[nextZ[p]] = prevZ[p];
+    }
+
+    private int linkedList(int s, int e, boolean clockwise) {
+        int last = -1;
+        if (clockwise == (signedArea(s, e) > 0)) {
+            for (int i = s; i < e; i++) last = insertNode(i, last);
+        } else {
+            for (int i = e - 1; i >= s; i--) last = insertNode(i, last);
+        }
+        if (last != -1 && equals(last, next[last])) {
+            removeNode(last);
+            last = next[last];
+        }
+        return last;
+    }
+
+    private boolean equals(int a, int b) {
+        return nx[a] == nx[b] && ny[a] == ny[b];
+    }
+
+    private double area(int p, int q, int r) {
+        return (ny[q] - ny[p]) * (nx[r] - nx[q]) - (nx[q] - nx[p]) * (ny[r] - ny[q]);
+    }
+
+    private int filterPoints(int start, int end) {
+        if (start == -1) return start;
+        if (end == -1) end = start;
+
+        int p = start;
+        boolean again;
+        do {
+            again = false;
+            if (!steiner[p] && (equals(p, next[p]) || area(prev[p], p, next[p]) == 0)) {
+                removeNode(p);
+                p = end = prev[p];
+                if (p == next[p]) break;
+                again = true;
+            } else {
+                p = next[p];
+            }
+        } while (again || p != end);
+        return end;
+    }
+
+    private void emit(int a, int b, int c) {
+        if (triangleCount * 3 + 3 > out.length) out = Arrays.copyOf(out, out.length * 2);
+        out[triangleCount * 3] = ni[a];
+        out[triangleCount * 3 + 1] = ni[b];
+        out[triangleCount * 3 + 2] = ni[c];
+        triangleCount++;
+    }
+
+    private void earcutLinked(int ear, double minX, double minY, double invSize, int pass) {
+        if (ear == -1) return;
+        if (pass == 0 && invSize != 0) indexCurve(ear, minX, minY, invSize);
+
+        int stop = ear;
+        while (prev[ear] != next[ear]) {
+            int p = prev[ear], n = next[ear];
+            if (invSize != 0 ? isEarHashed(ear, minX, minY, invSize) : isEar(ear)) {
+                emit(p, ear, n);
+                removeNode(ear);
+                ear = next[n];
+                stop = next[n];
+                continue;
+            }
+            ear = n;
+            if (ear == stop) {
+                if (pass == 0) {
+                    earcutLinked(filterPoints(ear, -1), minX, minY, invSize, 1);
+                } else if (pass == 1) {
+                    ear = cureLocalIntersections(filterPoints(ear, -1));
+                    earcutLinked(ear, minX, minY, invSize, 2);
+                } else if (pass == 2) {
+                    splitEarcut(ear, minX, minY, invSize);
+                }
+                break;
+            }
+        }
+    }
+
+    private boolean isEar(int ear) {
+        int a = prev[ear], b = ear, c = next[ear];
+        if (area(a, b, c) >= 0) return false;
+
+        double ax = nx[a], bx = nx[b], cx = nx[c], ay = ny[a], by = ny[b], cy = ny[c];
+        double x0 = Math.min(ax, Math.min(bx, cx)), y0 = Math.min(ay, Math.min(by, cy));
+        double x1 = Math.max(ax, Math.max(bx, cx)), y1 = Math.max(ay, Math.max(by, cy));
+
+        int p = next[c];
+        while (p != a) {
+            if (nx[p] >= x0 && nx[p] <= x1 && ny[p] >= y0 && ny[p] <= y1 && pointInTriangle(ax, ay, bx, by, cx, cy, nx[p], ny[p]) && area(prev[p], p, next[p]) >= 0)
+                return false;
+            p = next[p];
+        }
+        return true;
+    }
+
+    private boolean isEarHashed(int ear, double minX, double minY, double invSize) {
+        int a = prev[ear], b = ear, c = next[ear];
+        if (area(a, b, c) >= 0) return false;
+
+        double ax = nx[a], bx = nx[b], cx = nx[c], ay = ny[a], by = ny[b], cy = ny[c];
+        double x0 = Math.min(ax, Math.min(bx, cx)), y0 = Math.min(ay, Math.min(by, cy));
+        double x1 = Math.max(ax, Math.max(bx, cx)), y1 = Math.max(ay, Math.max(by, cy));
+
+        int minZ = zOrder(x0, y0, minX, minY, invSize);
+        int maxZ = zOrder(x1, y1, minX, minY, invSize);
+
+        int p = prevZ[ear], n = nextZ[ear];
+        while (p != -1 && nz[p] >= minZ && n != -1 && nz[n] <= maxZ) {
+            if (blocks(p, a, c, ax, ay, bx, by, cx, cy, x0, y0, x1, y1)) return false;
+            p = prevZ[p];
+            if (blocks(n, a, c, ax, ay, bx, by, cx, cy, x0, y0, x1, y1)) return false;
+            n = nextZ[n];
+        }
+        while (p != -1 && nz[p] >= minZ) {
+            if (blocks(p, a, c, ax, ay, bx, by, cx, cy, x0, y0, x1, y1)) return false;
+            p = prevZ[p];
+        }
+        while (n != -1 && nz[n] <= maxZ) {
+            if (blocks(n, a, c, ax, ay, bx, by, cx, cy, x0, y0, x1, y1)) return false;
+            n = nextZ[n];
+        }
+        return true;
+    }
+
+    private boolean blocks(int p, int a, int c, double ax, double ay, double bx, double by, double cx, double cy, double x0, double y0, double x1, double y1) {
+        return nx[p] >= x0 && nx[p] <= x1 && ny[p] >= y0 && ny[p] <= y1 && p != a && p != c && pointInTriangle(ax, ay, bx, by, cx, cy, nx[p], ny[p]) && area(prev[p], p,
+                                                                                                                                                           next[p]) >= 0;
+    }
+
+    private int cureLocalIntersections(int start) {
+        int p = start;
+        do {
+            int a = prev[p], b = next[next[p]];
+            if (!equals(a, b) && intersects(a, p, next[p], b) && locallyInside(a, b) && locallyInside(b, a)) {
+                emit(a, p, b);
+                removeNode(p);
+                removeNode(next[p]);
+                p = start = b;
+            }
+            p = next[p];
+        } while (p != start);
+        return filterPoints(p, -1);
+    }
+
+    private void splitEarcut(int start, double minX, double minY, double invSize) {
+        int a = start;
+        do {
+            int b = next[next[a]];
+            while (b != prev[a]) {
+                if (ni[a] != ni[b] && isValidDiagonal(a, b)) {
+                    int c = splitPolygon(a, b);
+                    a = filterPoints(a, next[a]);
+                    c = filterPoints(c, next[c]);
+                    earcutLinked(a, minX, minY, invSize, 0);
+                    earcutLinked(c, minX, minY, invSize, 0);
+                    return;
+                }
+                b = next[b];
+            }
+            a = next[a];
+        } while (a != start);
+    }
+
+    private int[] sortByX(int[] queue, int n) {
+        Integer[] boxed = new Integer[n];
+        for (int i = 0; i < n; i++) boxed[i] = queue[i];
+        Arrays.sort(boxed, (x, y) -> Double.compare(nx[x], nx[y]));
+        int[] r = new int[n];
+        for (int i = 0; i < n; i++) r[i] = boxed[i];
+        return r;
+    }
+
+    private int eliminateHole(int hole, int outer) {
+        int bridge = findHoleBridge(hole, outer);
+        if (bridge == -1) return outer;
+
+        int bridgeReverse = splitPolygon(bridge, hole);
+        filterPoints(bridgeReverse, next[bridgeReverse]);
+        return filterPoints(bridge, next[bridge]);
+    }
+
+    private int findHoleBridge(int hole, int outer) {
+        int p = outer;
+        double hx = nx[hole], hy = ny[hole];
+        double qx = Double.NEGATIVE_INFINITY;
+        int m = -1;
+
+        do {
+            int n = next[p];
+            if (hy <= ny[p] && hy >= ny[n] && ny[n] != ny[p]) {
+                double x = nx[p] + (hy - ny[p]) * (nx[n] - nx[p]) / (ny[n] - ny[p]);
+                if (x <= hx && x > qx) {
+                    qx = x;
+                    m = nx[p] < nx[n] ? p : n;
+                    if (x == hx) return m;
+                }
+            }
+            p = n;
+        } while (p != outer);
+
+        if (m == -1) return -1;
+
+        int stop = m;
+        double mx = nx[m], my = ny[m];
+        double tanMin = Double.POSITIVE_INFINITY;
+
+        p = m;
+        do {
+            if (hx >= nx[p] && nx[p] >= mx && hx != nx[p] && pointInTriangle(hy < my ? hx : qx, hy, mx, my, hy < my ? qx : hx, hy, nx[p], ny[p])) {
+                double tan = Math.abs(hy - ny[p]) / (hx - nx[p]);
+                if (locallyInside(p, hole) && (tan < tanMin || (tan == tanMin && (nx[p] > nx[m] || (nx[p] == nx[m] && sectorContainsSector(m, p)))))) {
+                    m = p;
+                    tanMin = tan;
+                }
+            }
+            p = next[p];
+        } while (p != stop);
+
+        return m;
+    }
+
+    private boolean sectorContainsSector(int m, int p) {
+        return area(prev[m], m, prev[p]) < 0 && area(next[p], m, next[m]) < 0;
+    }
+
+    private void indexCurve(int start, double minX, double minY, double invSize) {
+        int p = start;
+        do {
+            if (nz[p] == 0) nz[p] = zOrder(nx[p], ny[p], minX, minY, invSize);
+            prevZ[p] = prev[p];
+            nextZ[p] = next[p];
+            p = next[p];
+        } while (p != start);
+
+        nextZ[prevZ[p]] = -1;
+        prevZ[p] = -1;
+
+        sortLinked(p);
+    }
+
+    // merge sort of the z-order list
+    private int sortLinked(int list) {
+        int inSize = 1;
+        int numMerges;
+        do {
+            int p = list;
+            list = -1;
+            int tail = -1;
+            numMerges = 0;
+
+            while (p != -1) {
+                numMerges++;
+                int q = p;
+                int pSize = 0;
+                for (int i = 0; i < inSize; i++) {
+                    pSize++;
+                    q = nextZ[q];
+                    if (q == -1) break;
+                }
+                int qSize = inSize;
+
+                while (pSize > 0 || (qSize > 0 && q != -1)) {
+                    int e;
+                    if (pSize != 0 && (qSize == 0 || q == -1 || nz[p] <= nz[q])) {
+                        e = p;
+                        p = nextZ[p];
+                        pSize--;
+                    } else {
+                        e = q;
+                        q = nextZ[q];
+                        qSize--;
+                    }
+                    if (tail != -1) nextZ[tail] = e;
+                    else list = e;
+                    prevZ[e] = tail;
+                    tail = e;
+                }
+                p = q;
+            }
+            nextZ[tail] = -1;
+            inSize *= 2;
+        } while (numMerges > 1);
+        return list;
+    }
+
+    static private int zOrder(double fx, double fy, double minX, double minY, double invSize) {
+        int x = (int) ((fx - minX) * invSize);
+        int y = (int) ((fy - minY) * invSize);
+
+        x = (x | (x << 8)) & 0x00FF00FF;
+        x = (x | (x << 4)) & 0x0F0F0F0F;
+        x = (x | (x << 2)) & 0x33333333;
+        x = (x | (x << 1)) & 0x55555555;
+
+        y = (y | (y << 8)) & 0x00FF00FF;
+        y = (y | (y << 4)) & 0x0F0F0F0F;
+        y = (y | (y << 2)) & 0x33333333;
+        y = (y | (y << 1)) & 0x55555555;
+
+        return x | (y << 1);
+    }
+
+    private int leftmost(int start) {
+        int p = start, l = start;
+        do {
+            if (nx[p] < nx[l] || (nx[p] == nx[l] && ny[p] < ny[l])) l = p;
+            p = next[p];
+        } while (p != start);
+        return l;
+    }
+
+    static private boolean pointInTriangle(double ax, double ay, double bx, double by, double cx, double cy, double px, double py) {
+        return (cx - px) * (ay - py) >= (ax - px) * (cy - py) && (ax - px) * (by - py) >= (bx - px) * (ay - py) && (bx - px) * (cy - py) >= (cx - px) * (by - py);
+    }
+
+    private boolean isValidDiagonal(int a, int b) {
+        return ni[next[a]] != ni[b] && ni[prev[a]] != ni[b] && !intersectsPolygon(a, b) && (locallyInside(a, b) && locallyInside(b, a) && middleInside(a, b) && (area(prev[a], a,
+                                                                                                                                                                      prev[b]) != 0 || area(
+                a, prev[b], b) != 0) || equals(a, b) && area(prev[a], a, next[a]) > 0 && area(prev[b], b, next[b]) > 0);
+    }
+
+    private boolean intersects(int p1, int q1, int p2, int q2) {
+        double o1 = Math.signum(area(p1, q1, p2));
+        double o2 = Math.signum(area(p1, q1, q2));
+        double o3 = Math.signum(area(p2, q2, p1));
+        double o4 = Math.signum(area(p2, q2, q1));
+
+        if (o1 != o2 && o3 != o4) return true;
+        if (o1 == 0 && onSegment(p1, p2, q1)) return true;
+        if (o2 == 0 && onSegment(p1, q2, q1)) return true;
+        if (o3 == 0 && onSegment(p2, p1, q2)) return true;
+        if (o4 == 0 && onSegment(p2, q1, q2)) return true;
+        return false;
+    }
+
+    private boolean onSegment(int p, int q, int r) {
+        return nx[q] <= Math.max(nx[p], nx[r]) && nx[q] >= Math.min(nx[p], nx[r]) && ny[q] <= Math.max(ny[p], ny[r]) && ny[q] >= Math.min(ny[p], ny[r]);
+    }
+
+    private boolean intersectsPolygon(int a, int b) {
+        int p = a;
+        do {
+            if (ni[p] != ni[a] && ni[next[p]] != ni[a] && ni[p] != ni[b] && ni[next[p]] != ni[b] && intersects(p, next[p], a, b)) return true;
+            p = next[p];
+        } while (p != a);
+        return false;
+    }
+
+    private boolean locallyInside(int a, int b) {
+        return area(prev[a], a, next[a]) < 0 ? area(a, b, next[a]) >= 0 && area(a, prev[a], b) >= 0 : area(a, b, prev[a]) < 0 || area(a, next[a], b) < 0;
+    }
+
+    private boolean middleInside(int a, int b) {
+        int p = a;
+        boolean inside = false;
+        double mx = (nx[a] + nx[b]) / 2, my = (ny[a] + ny[b]) / 2;
+        do {
+            int n = next[p];
+            if (((ny[p] > my) != (ny[n] > my)) && ny[n] != ny[p] && (mx < (nx[n] - nx[p]) * (my - ny[p]) / (ny[n] - ny[p]) + nx[p])) inside = !inside;
+            p = n;
+        } while (p != a);
+        return inside;
+    }
+
+    private int splitPolygon(int a, int b) {
+        int a2 = newNode(ni[a], nx[a], ny[a]);
+        int b2 = newNode(ni[b], nx[b], ny[b]);
+        int an = next[a];
+        int bp = prev[b];
+
+        next[a] = b;
+        prev[b] = a;
+
+        next[a2] = an;
+        prev[an] = a2;
+
+        next[b2] = a2;
+        prev[a2] = b2;
+
+        next[bp] = b2;
+        prev[b2] = bp;
+
+        return b2;
+    }
+
+    // ---- constrained Delaunay, by flipping
+
+    private void makeDelaunay() {
+        int n = triangleCount;
+        if (n < 2) return;
+
+        // triangle t has directed edges (t0, t1), (t1, t2), (t2, t0)
+        LongIntMap edges = new LongIntMap(n * 3);
+        for (int t = 0; t < n; t++)
+            for (int k = 0; k < 3; k++)
+                edges.put(key(out[t * 3 + k], out[t * 3 + (k + 1) % 3]), t);
+
+        // contour edges are constraints
+        LongIntMap constraints = new LongIntMap(count);
+        for (int c = 0; c < contours; c++) {
+            int s = contourStart[c], e = contourStart[c + 1];
+            for (int i = s; i < e; i++) {
+                int j = i + 1 < e ? i + 1 : s;
+                constraints.put(undirected(i, j), 1);
+            }
+        }
+
+        double sign = 0;
+        for (int t = 0; t < n && sign == 0; t++) sign = Math.signum(orient(out[t * 3], out[t * 3 + 1], out[t * 3 + 2]));
+        if (sign == 0) return;
+
+        int[] stack = new int[n * 6];
+        int top = 0;
+        for (int t = 0; t < n; t++)
+            for (int k = 0; k < 3; k++) {
+                int u = out[t * 3 + k], v = out[t * 3 + (k + 1) % 3];
+                if (u < v) {
+                    if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[top++] = u;
+                    stack[top++] = v;
+                }
+            }
+
+        int flips = 0;
+        int maxFlips = n * 16;
+        while (top > 0 && flips < maxFlips) {
+            int v = stack[--top];
+            int u = stack[--top];
+            if (constraints.get(undirected(u, v)) == 1) continue;
+
+            int t1 = edges.get(key(u, v));
+            int t2 = edges.get(key(v, u));
+            if (t1 == -1 || t2 == -1) continue;
+
+            int c = third(t1, u, v);
+            int d = third(t2, v, u);
+            if (c == d) continue;
+
+            if (inCircle(u, v, c, d) * sign <= 0) continue;
+            if (orient(c, u, d) * sign <= 0 || orient(d, v, c) * sign <= 0) continue;
+
+            // (u, v, c) + (v, u, d) -> (c, u, d) + (d, v, c)
+            set(t1, c, u, d);
+            set(t2, d, v, c);
+            edges.remove(key(u, v));
+            edges.remove(key(v, u));
+            edges.put(key(c, u), t1);
+            edges.put(key(u, d), t1);
+            edges.put(key(d, c), t1);
+            edges.put(key(d, v), t2);
+            edges.put(key(v, c), t2);
+            edges.put(key(c, d), t2);
+            flips++;
+
+            if (top + 8 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2 + 8);
+            stack[top++] = Math.min(c, u);
+            stack[top++] = Math.max(c, u);
+            stack[top++] = Math.min(u, d);
+            stack[top++] = Math.max(u, d);
+            stack[top++] = Math.min(d, v);
+            stack[top++] = Math.max(d, v);
+            stack[top++] = Math.min(v, c);
+            stack[top++] = Math.max(v, c);
+        }
+    }
+
+    private int third(int t, int a, int b) {
+        for (int k = 0; k < 3; k++) {
+            int x = out[t * 3 + k];
+            if (x != a && x != b) return x;
+        }
+        return a;
+    }
+
+    private void set(int t, int a, int b, int c) {
+        out[t * 3] = a;
+        out[t * 3 + 1] = b;
+        out[t * 3 + 2] = c;
+    }
+
+    private double orient(int a, int b, int c) {
+        return (px[b] - px[a]) * (py[c] - py[a]) - (py[b] - py[a]) * (px[c] - px[a]);
+    }
+
+    // positive if d is inside the circumcircle of a, b, c (when a, b, c are counter-clockwise)
+    private double inCircle(int a, int b, int c, int d) {
+        double adx = px[a] - px[d], ady = py[a] - py[d];
+        double bdx = px[b] - px[d], bdy = py[b] - py[d];
+        double cdx = px[c] - px[d], cdy = py[c] - py[d];
+        double ad = adx * adx + ady * ady, bd = bdx * bdx + bdy * bdy, cd = cdx * cdx + cdy * cdy;
+        return adx * (bdy * cd - bd * cdy) - ady * (bdx * cd - bd * cdx) + ad * (bdx * cdy - bdy * cdx);
+    }
+
+    static private long key(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    static private long undirected(int a, int b) {
+        return a < b ? key(a, b) : key(b, a);
+    }
+
+    /**
+     * open addressing long -> int map (-1 for absent), so that the Delaunay pass doesn't box every edge
+     */
+    static private class LongIntMap {
+        long[] keys;
+        int[] values;
+        int size = 0;
+
+        LongIntMap(int expected) {
+            int c = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+            keys = new long[c];
+            values = new int[c];
+            Arrays.fill(values, Integer.MIN_VALUE);
+        }
+
+        private int slot(long k) {
+            long h = k * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & (keys.length - 1);
+        }
+
+        void put(long k, int v) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int i = slot(k);
+            while (values[i] != Integer.MIN_VALUE && keys[i] != k) i = (i + 1) & (keys.length - 1);
+            if (values[i] == Integer.MIN_VALUE) size++;
+            keys[i] = k;
+            values[i] = v;
+        }
+
+        int get(long k) {
+            int i = slot(k);
+            while (values[i] != Integer.MIN_VALUE) {
+                if (keys[i] == k) return values[i];
+                i = (i + 1) & (keys.length - 1);
+            }
+            return -1;
+        }
+
+        // marks the entry as absent (-1) rather than emptying the slot, which keeps probe chains intact
+        void remove(long k) {
+            int i = slot(k);
+            while (values[i] != Integer.MIN_VALUE) {
+                if (keys[i] == k) {
+                    values[i] = -1;
+                    return;
+                }
+                i = (i + 1) & (keys.length - 1);
+            }
+        }
+
+        private void grow() {
+            long[] k = keys;
+            int[] v = values;
+            keys = new long[k.length * 2];
+            values = new int[k.length * 2];
+            Arrays.fill(values, Integer.MIN_VALUE);
+            size = 0;
+            for (int i = 0; i < k.length; i++)
+                if (v[i] != Integer.MIN_VALUE) put(k[i], v[i]);
+        }
+    }
+
+    // benchmark: glyph outlines and a 100k vertex polygon with holes, against the GLU tessellator
+    static public void main(String[] a) {
+        java.awt.Font font = new java.awt.Font("Serif", java.awt.Font.PLAIN, 72);
+        java.awt.font.GlyphVector g = font.createGlyphVector(new java.awt.font.FontRenderContext(null, true, true),
+                                                              "The quick brown fox jumps over the lazy dog & 0123456789 @%$#");
+        java.util.List<java.util.List<field.linalg.Vec3>> glyphs = new java.util.ArrayList<>();
+        java.awt.geom.PathIterator pi = g.getOutline().getPathIterator(null, 0.1);
+        double[] c = new double[6];
+        java.util.List<field.linalg.Vec3> current = null;
+        while (!pi.isDone()) {
+            int t = pi.currentSegment(c);
+            if (t == java.awt.geom.PathIterator.SEG_MOVETO) glyphs.add(current = new java.util.ArrayList<>());
+            if (t != java.awt.geom.PathIterator.SEG_CLOSE) current.add(new field.linalg.Vec3(c[0], c[1], 0));
+            pi.next();
+        }
+
+        java.util.Random r = new java.util.Random(1);
+        java.util.List<java.util.List<field.linalg.Vec3>> big = new java.util.ArrayList<>();
+        java.util.List<field.linalg.Vec3> outline = new java.util.ArrayList<>();
+        int n = 100000;
+        for (int i = 0; i < n; i++) {
+            double theta = Math.PI * 2 * i / n;
+            double rad = 1000 + r.nextDouble() * 50;
+            outline.add(new field.linalg.Vec3(Math.cos(theta) * rad, Math.sin(theta) * rad, 0));
+        }
+        big.add(outline);
+        for (int h = 0; h < 20; h++) {
+            java.util.List<field.linalg.Vec3> hole = new java.util.ArrayList<>();
+            double hx = Math.cos(h * Math.PI / 10) * 500, hy = Math.sin(h * Math.PI / 10) * 500;
+            for (int i = 0; i < 200; i++) {
+                double theta = -Math.PI * 2 * i / 200;
+                hole.add(new field.linalg.Vec3(hx + Math.cos(theta) * 60, hy + Math.sin(theta) * 60, 0));
+            }
+            big.add(hole);
+        }
+
+        for (int rep = 0; rep < 5; rep++) {
+            bench("glyphs", glyphs, 20);
+            bench("100k", big, 1);
+        }
+    }
+
+    static private void bench(String name, java.util.List<java.util.List<field.linalg.Vec3>> contours, int times) {
+        int vertices = contours.stream().mapToInt(java.util.List::size).sum() * times;
+
+        long[] t = new long[3];
+        int[] triangles = new int[3];
+        for (int mode = 0; mode < 3; mode++) {
+            MeshBuilder m = new MeshBuilder(BaseMesh.triangleList(vertices + 16, vertices * 2 + 16));
+            if (mode == 1) m.setTriangulator(new Triangulator(Winding.nonZero, false));
+            if (mode == 2) m.setTriangulator(new Triangulator(Winding.nonZero, true));
+            long t0 = System.nanoTime();
+            m.open();
+            try {
+                for (int i = 0; i < times; i++) m.contours(contours);
+            } finally {
+                m.close();
+            }
+            t[mode] = System.nanoTime() - t0;
+            triangles[mode] = m.getElementCursor();
+        }
+        System.out.println(" " + name + " (" + vertices + " vertices) : glu " + t[0] / 1e6 + "ms (" + triangles[0] + " triangles), earcut " + t[1] / 1e6 + "ms (" + triangles[1] + "), " +
+                                   "earcut+delaunay " + t[2] / 1e6 + "ms (" + triangles[2] + ")");
+    }
+
+}
@@ -36,6 +36,34 @@ public class Uniform<T> extends Scene implements Scene.Perform {
 	private T mostRecentValue;
 	private Class lastType;
 
+	/**
+	 * counts of calls into OpenGL to set uniforms (glUniform*, and uploading and binding uniform blocks) and the number of bytes that they sent. `calls` and
+	 * `bytes` run continuously, the `LastFrame` versions are updated by endFrame()
+	 */
+	static public long calls = 0;
+	static public long bytes = 0;
+	static public long callsLastFrame = 0;
+	static public long bytesLastFrame = 0;
+	static public long frame = 0;
+	static private long callsAtFrame = 0;
+	static private long bytesAtFrame = 0;
+
+	static void count(int b) {
+		calls++;
+		bytes += b;
+	}
+
+	/**
+	 * called by Window at the end of each frame
+	 */
+	static public void endFrame() {
+		callsLastFrame = calls - callsAtFrame;
+		bytesLastFrame = bytes - bytesAtFrame;
+		callsAtFrame = calls;
+		bytesAtFrame = bytes;
+		frame++;
+	}
+
 	public Uniform(String name, Supplier<T> value) {
 		this.name = name;
 		this.value = value;
@@ -153,6 +181,14 @@ public class Uniform<T> extends Scene implements Scene.Perform {
 		return setUniformNow(true);
 	}
 
+	// for UniformBundles that keep their values in uniform blocks, the value to pack right now
+	Object evaluateNow() {
+		T t = value.get();
+		if (t instanceof OffersUniform) t = (T) ((OffersUniform) t).getUniform();
+		if (t != null) mostRecentValue = t;
+		return t;
+	}
+
 
 	//todo: array names
 	private boolean setUniformNow(boolean push) {
@@ -228,6 +264,7 @@ public class Uniform<T> extends Scene implements Scene.Perform {
 						lastType = Vec4.class;
 					} else
 						throw new IllegalArgumentException(" bad dimension after conversion to float array " + t + " -> " + tf.length);
+					count(4 * tf.length);
 					GraphicsContext.checkError(() -> "while setting (4):" + name + " / " + this.name);
 				} else {
 
@@ -238,6 +275,7 @@ public class Uniform<T> extends Scene implements Scene.Perform {
 
 //						NVBindlessTexture.glUniformHandleui64NV(location, (Long)t);
 						glUniform1ui64ARB(location, (Long)t);
+						count(8);
 						GraphicsContext.checkError(() -> "while setting (long, texturehandle):" + name + " / " + this.name);
 					}
 					else {
@@ -259,6 +297,7 @@ public class Uniform<T> extends Scene implements Scene.Perform {
 								lastType = int[].class;
 							} else
 								throw new IllegalArgumentException(" bad dimension after conversion to int array " + t + " -> " + ti.length);
+							count(4 * ti.length);
 							GraphicsContext.checkError(() -> "while setting (5 (int array)):" + name + " / " + this.name+" = "+ti.length+" "+tfinal);
 						} else {
 							float[][] tm = rewriteToFloatMatrix(t);
@@ -292,6 +331,7 @@ public class Uniform<T> extends Scene implements Scene.Perform {
 									GL20.glUniformMatrix2fv(location, transpose, matrix4);
 								} else
 									throw new IllegalArgumentException(" bad dimension after conversion to float matrix " + t + " -> " + tm.length);
+								count(4 * tm.length * tm.length);
 							}
 							GraphicsContext.checkError(() -> "while setting (7):" + name + " / " + this.name);
 
@@ -0,0 +1,254 @@
+package field.graphics;
+
+import field.linalg.Vec2;
+import field.linalg.Vec3;
+import field.linalg.Vec4;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A uniform buffer object holding the values of a GLSL uniform block, packed with the layout that the linker reports through ShaderIntrospection.
+ * <p>
+ * Declare the block `layout(std140)`; then every shader that declares it gets the same layout and can share one buffer. Values are packed into a CPU side copy
+ * only when they actually change, the copy is uploaded only when something has changed, and using the block costs one glBindBufferBase per shader rather
+ * than one glUniform call per uniform. UniformBundle.setBlock(...) is the usual way of making one of these.
+ */
+public class UniformBlockBuffer {
+
+	public final String blockName;
+	public final int binding;
+
+	private ShaderIntrospection.Block layout;
+	private Shader layoutFrom;
+	private ByteBuffer data;
+	private int version = 0;
+	int layoutChanges = 0;
+
+	private final Set<Shader> mismatched = Collections.newSetFromMap(new WeakHashMap<>());
+
+	static class State {
+		int buffer;
+		int size = -1;
+		int version = -1;
+		// modCount of each shader whose block index we've bound to `binding`
+		WeakHashMap<Shader, Integer> bound = new WeakHashMap<>();
+	}
+
+	public UniformBlockBuffer(String blockName, int binding) {
+		this.blockName = blockName;
+		this.binding = binding;
+	}
+
+	/**
+	 * makes sure that we have a layout for this block that `shader` agrees with. Returns false if the shader doesn't declare this block, or declares it with a
+	 * different layout (in which case the uniforms should be set one at a time)
+	 */
+	public boolean prepare(Shader shader) {
+		ShaderIntrospection i = shader.getIntrospection();
+		if (i == null) return false;
+		ShaderIntrospection.Block b = i.getBlock(blockName);
+		if (b == null) return false;
+
+		if (layout == b) return true;
+
+		if (layout == null || (shader == layoutFrom && !layout.sameLayout(b))) {
+			// first sight of this block, or the shader that we took the layout from has been edited
+			layout = b;
+			layoutFrom = shader;
+			data = ByteBuffer.allocateDirect(Math.max(16, b.dataSize))
+					 .order(ByteOrder.nativeOrder());
+			mismatched.clear();
+			version++;
+			layoutChanges++;
+			return true;
+		}
+
+		if (layout.sameLayout(b)) return true;
+
+		if (mismatched.add(shader))
+			System.err.println(" warning: uniform block '" + blockName + "' has a different layout in " + shader + " than in " + layoutFrom + ", declare it layout(std140) to share it; setting its uniforms one at a time instead");
+		return false;
+	}
+
+	/**
+	 * is `name` a member of this block (as of the last prepare)?
+	 */
+	public boolean has(String name) {
+		return layout != null && layout.members.containsKey(name);
+	}
+
+	/**
+	 * packs `value` into member `name`, returning true if that changed anything
+	 */
+	public boolean set(String name, Object value, boolean transpose) {
+		if (layout == null) return false;
+		ShaderIntrospection.BlockMember m = layout.members.get(name);
+		if (m == null || value == null) return false;
+
+		boolean changed = pack(m, value, transpose);
+		if (changed) version++;
+		return changed;
+	}
+
+	/**
+	 * binds this block to `shader` (once per link), uploads the buffer if anything has changed since it was last uploaded, and binds the buffer to our binding
+	 * point. Call prepare first
+	 */
+	public void bind(Shader shader, int program) {
+		if (layout == null) return;
+
+		ShaderIntrospection.Block b = shader.getIntrospection()
+						    .getBlock(blockName);
+		State s = GraphicsContext.get(this, this::setup);
+
+		Integer was = s.bound.get(shader);
+		if (was == null || was != shader.getModCount()) {
+			GL31.glUniformBlockBinding(program, b.index, binding);
+			s.bound.put(shader, shader.getModCount());
+		}
+
+		if (s.version != version) {
+			GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, s.buffer);
+			data.clear();
+			if (s.size != data.capacity()) {
+				GL15.glBufferData(GL31.GL_UNIFORM_BUFFER, data, GL15.GL_DYNAMIC_DRAW);
+				s.size = data.capacity();
+			} else GL15.glBufferSubData(GL31.GL_UNIFORM_BUFFER, 0, data);
+			GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+			s.version = version;
+			Uniform.count(data.capacity());
+		}
+
+		GL30.glBindBufferBase(GL31.GL_UNIFORM_BUFFER, binding, s.buffer);
+		Uniform.count(0);
+		GraphicsContext.checkError(() -> "while binding uniform block " + blockName);
+	}
+
+	private State setup() {
+		State s = new State();
+		s.buffer = GL15.glGenBuffers();
+		return s;
+	}
+
+	private boolean pack(ShaderIntrospection.BlockMember m, Object t, boolean transpose) {
+		if (t instanceof OffersUniform) t = ((OffersUniform) t).getUniform();
+		if (t == null) return false;
+
+		int o = m.offset;
+
+		if (t instanceof Long) return putLong(o, (Long) t);
+
+		if (isInt(m.type)) {
+			int[] ti = t instanceof Boolean ? new int[]{((Boolean) t) ? 1 : 0} : Uniform.rewriteToIntArray(t);
+			if (ti == null) return false;
+			int w = components(m.type);
+			boolean c = false;
+			for (int i = 0; i < ti.length; i++)
+				c |= putInt(m.size > 1 ? o + (i / w) * m.arrayStride + 4 * (i % w) : o + 4 * i, ti[i]);
+			return c;
+		}
+
+		// the common cases, without allocating
+		if (t instanceof Number) return putFloat(o, ((Number) t).floatValue());
+		if (t instanceof Boolean) return putFloat(o, ((Boolean) t) ? 1 : 0);
+		if (t instanceof Vec2) return putFloat(o, (float) ((Vec2) t).x) | putFloat(o + 4, (float) ((Vec2) t).y);
+		if (t instanceof Vec3) return putFloat(o, (float) ((Vec3) t).x) | putFloat(o + 4, (float) ((Vec3) t).y) | putFloat(o + 8, (float) ((Vec3) t).z);
+		if (t instanceof Vec4)
+			return putFloat(o, (float) ((Vec4) t).x) | putFloat(o + 4, (float) ((Vec4) t).y) | putFloat(o + 8, (float) ((Vec4) t).z) | putFloat(o + 12, (float) ((Vec4) t).w);
+
+		float[][] tm = Uniform.rewriteToFloatMatrix(t);
+		if (tm != null) {
+			// each row of tm is what glUniformMatrix would take as a column, and columns are matrixStride apart
+			boolean c = false;
+			for (int k = 0; k < tm.length; k++)
+				for (int j = 0; j < tm[k].length; j++)
+					c |= putFloat(transpose ? o + j * m.matrixStride + 4 * k : o + k * m.matrixStride + 4 * j, tm[k][j]);
+			return c;
+		}
+
+		float[] tf = Uniform.rewriteToFloatArray(t);
+		if (tf != null) {
+			int w = components(m.type);
+			boolean c = false;
+			for (int i = 0; i < tf.length; i++)
+				c |= putFloat(m.size > 1 ? o + (i / w) * m.arrayStride + 4 * (i % w) : o + 4 * i, tf[i]);
+			return c;
+		}
+
+		return false;
+	}
+
+	private boolean putFloat(int at, float v) {
+		if (at + 4 > data.capacity() || Float.floatToRawIntBits(data.getFloat(at)) == Float.floatToRawIntBits(v)) return false;
+		data.putFloat(at, v);
+		return true;
+	}
+
+	private boolean putInt(int at, int v) {
+		if (at + 4 > data.capacity() || data.getInt(at) == v) return false;
+		data.putInt(at, v);
+		return true;
+	}
+
+	private boolean putLong(int at, long v) {
+		if (at + 8 > data.capacity() || data.getLong(at) == v) return false;
+		data.putLong(at, v);
+		return true;
+	}
+
+	static private boolean isInt(int type) {
+		switch (type) {
+			case GL11.GL_INT:
+			case GL20.GL_INT_VEC2:
+			case GL20.GL_INT_VEC3:
+			case GL20.GL_INT_VEC4:
+			case GL11.GL_UNSIGNED_INT:
+			case GL30.GL_UNSIGNED_INT_VEC2:
+			case GL30.GL_UNSIGNED_INT_VEC3:
+			case GL30.GL_UNSIGNED_INT_VEC4:
+			case GL20.GL_BOOL:
+			case GL20.GL_BOOL_VEC2:
+			case GL20.GL_BOOL_VEC3:
+			case GL20.GL_BOOL_VEC4:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	static private int components(int type) {
+		switch (type) {
+			case GL20.GL_FLOAT_VEC2:
+			case GL20.GL_INT_VEC2:
+			case GL30.GL_UNSIGNED_INT_VEC2:
+			case GL20.GL_BOOL_VEC2:
+				return 2;
+			case GL20.GL_FLOAT_VEC3:
+			case GL20.GL_INT_VEC3:
+			case GL30.GL_UNSIGNED_INT_VEC3:
+			case GL20.GL_BOOL_VEC3:
+				return 3;
+			case GL20.GL_FLOAT_VEC4:
+			case GL20.GL_INT_VEC4:
+			case GL30.GL_UNSIGNED_INT_VEC4:
+			case GL20.GL_BOOL_VEC4:
+				return 4;
+			default:
+				return 1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "block " + blockName + " @" + binding + (layout == null ? " (no layout yet)" : " " + layout);
+	}
+}
@@ -11,18 +11,97 @@ import java.util.function.Supplier;
  * Maintains a group of Uniforms as a Map<Dict.Prop<T>, Uniform<T>>, without the overhead of maintaining them as separate Scene.Perform objects.
  *
  * The star method here is the static UniformBundle setUniform(Scene at) which will lazily initialize a UniformBundle child of any internalScene ready to accept uniforms.
+ *
+ * A bundle can also keep its uniforms in a uniform buffer object (see setBlock(...)), for uniforms that are declared inside a `layout(std140) uniform Name { ... };` block in GLSL. Then values are only packed when they change and the whole block costs a single bind per shader. Bundles made with global(...) are bound to every shader that declares their block, which is the way to share things like the camera or the time across everything.
  */
 public class UniformBundle implements Scene.Perform {
 
 	Map<Dict.Prop<?>, Uniform> uniforms = new HashMap<>();
+	private Uniform[] ordered = null;
+
+	UniformBlockBuffer block = null;
+	private long packedFrame = -1;
+	private int packedLayout = -1;
 
+	// blocks are bound at bindings from here up, globals first
+	static public int firstBinding = 16;
+	static private final Map<String, UniformBundle> globals = new LinkedHashMap<>();
 
 	@Override
 	public boolean perform(int pass) {
-		uniforms.entrySet().forEach(e -> e.getValue().perform(pass));
+		Uniform[] u = ordered();
+
+		if (block != null && pass == -1 && !globals.containsValue(this)) {
+			GraphicsContext c = GraphicsContext.getContext();
+			Shader shader = c.uniformCache.getCurrentShader();
+			Integer program = c.stateTracker.shader.get();
+			if (shader != null && program != null && program != 0 && block.prepare(shader)) {
+				for (Uniform x : u) {
+					if (block.has(x.getName())) block.set(x.getName(), x.evaluateNow(), x.transpose);
+					else x.perform(pass);
+				}
+				block.bind(shader, program);
+				return true;
+			}
+		}
+
+		for (Uniform x : u)
+			x.perform(pass);
 		return true;
 	}
 
+	private Uniform[] ordered() {
+		if (ordered == null) ordered = uniforms.values()
+						       .toArray(new Uniform[uniforms.size()]);
+		return ordered;
+	}
+
+	/**
+	 * keep the uniforms of this bundle that are members of the GLSL uniform block called `blockName` in a uniform buffer object bound at `binding`. The block should be declared `layout(std140)`. Uniforms that aren't in the block are still set one at a time.
+	 * <p>
+	 * Note that, unlike ordinary uniforms, values in a block aren't restored when we leave the part of the scene that this bundle is attached to, so don't rely on one bundle overriding the values of another bundle's block further up the scene
+	 */
+	public UniformBundle setBlock(String blockName, int binding) {
+		block = new UniformBlockBuffer(blockName, binding);
+		return this;
+	}
+
+	public UniformBundle setBlock(String blockName) {
+		return setBlock(blockName, firstBinding + 8);
+	}
+
+	public UniformBlockBuffer getBlock() {
+		return block;
+	}
+
+	/**
+	 * a bundle for the uniform block called `blockName` that is shared by every shader: every Shader that declares this block gets it bound automatically, and its values are evaluated at most once a frame. For example `UniformBundle.global("Camera").set("projection", () -> camera.projectionMatrix())`
+	 */
+	static public UniformBundle global(String blockName) {
+		return globals.computeIfAbsent(blockName, (k) -> {
+			if (globals.size() >= 8) throw new IllegalArgumentException(" too many global uniform blocks, can't make '" + blockName + "'");
+			return new UniformBundle().setBlock(blockName, firstBinding + globals.size());
+		});
+	}
+
+	/**
+	 * called by Shader whenever it starts using program `program`
+	 */
+	static public void bindGlobals(Shader shader, int program) {
+		if (globals.isEmpty()) return;
+		for (UniformBundle g : globals.values()) {
+			UniformBlockBuffer b = g.block;
+			if (!b.prepare(shader)) continue;
+			if (g.packedFrame != Uniform.frame || g.packedLayout != b.layoutChanges) {
+				for (Uniform x : g.ordered())
+					if (b.has(x.getName())) b.set(x.getName(), x.evaluateNow(), x.transpose);
+				g.packedFrame = Uniform.frame;
+				g.packedLayout = b.layoutChanges;
+			}
+			b.bind(shader, program);
+		}
+	}
+
 	public <T> Uniform<T> get(Dict.Prop<T> d) {
 		return uniforms.get(d);
 	}
@@ -32,12 +111,12 @@ public class UniformBundle implements Scene.Perform {
 	}
 
 	public <T> Uniform<T> set(Dict.Prop<T> d, Supplier<T> s) {
-		checkName(d.getName()); return uniforms.computeIfAbsent(d, (k) -> new Uniform<T>(d.getName(), s)).setValue(s);
+		checkName(d.getName()); ordered = null; return uniforms.computeIfAbsent(d, (k) -> new Uniform<T>(d.getName(), s)).setValue(s);
 	}
 
 
 	public <T> Uniform<T> set(String d, Supplier s) {
-		checkName(d); return uniforms.computeIfAbsent(new Dict.Prop(d), (k) -> new Uniform<T>(d, s)).setValue(s);
+		checkName(d); ordered = null; return uniforms.computeIfAbsent(new Dict.Prop(d), (k) -> new Uniform<T>(d, s)).setValue(s);
 	}
 
 	private void checkName(String d) {
@@ -53,6 +132,7 @@ public class UniformBundle implements Scene.Perform {
 
 	public <T> void remove(Dict.Prop<T> d) {
 		uniforms.remove(d);
+		ordered = null;
 	}
 
 	@Override
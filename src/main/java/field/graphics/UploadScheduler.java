@@ -0,0 +1,248 @@
+package field.graphics;
+
+import field.utility.Dict;
+import field.utility.Options;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_3D;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_BINDING_3D;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_TEXTURE_BINDING_RECTANGLE;
+import static org.lwjgl.opengl.GL31.GL_TEXTURE_RECTANGLE;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * GraphicsContext global scheduler for texture uploads that are too large to do in one go.
+ * <p>
+ * Uploads are cut into bands of rows and sent through a small ring of pixel-unpack buffers, no more than `budget` bytes per frame. Each PBO is fenced after
+ * use and isn't written into again until that fence has signalled; if the ring is still busy we stop for this frame rather than wait. The scheduler runs
+ * every time its context is entered (see GraphicsContext.enterContext), which can be many times a frame, so the budget is shared between those and only
+ * refilled by endFrame, which the Window calls once per swap. Since that can be in the middle of drawing a scene, whatever texture bindings and active
+ * unit we touch are put back the way we found them.
+ * <p>
+ * Also owns the worker pool that Texture.loadAsync decodes images on.
+ */
+public class UploadScheduler {
+
+    static public final ExecutorService decodePool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+        Thread t = new Thread(r, "texture decode");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public int budget = Options.dict().getOr(new Dict.Prop<Number>("uploadBudget"), () -> 16 * 1024 * 1024).intValue();
+    public int pboSize = 4 * 1024 * 1024;
+    public final int ringSize = 4;
+
+    private final int[] pbos = new int[ringSize];
+    private final int[] pboCapacity = new int[ringSize];
+    private final long[] fences = new long[ringSize];
+    private int next = 0;
+
+    private final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<>();
+
+    // statistics
+    public final AtomicLong queuedBytes = new AtomicLong();
+    public long bytesLastFrame = 0;
+    public long nanosLastFrame = 0;
+    public long stalledFrames = 0;
+    public long totalBytes = 0;
+
+    private long sentThisFrame = 0;
+    private long nanosThisFrame = 0;
+
+    static public class Job {
+        final Texture texture;
+        final ByteBuffer source;
+        final int x0, x1, y1;
+        int y;
+        final CompletableFuture<Texture> done = new CompletableFuture<>();
+
+        Job(Texture texture, ByteBuffer source, int x0, int y0, int x1, int y1) {
+            this.texture = texture;
+            this.source = source;
+            this.x0 = x0;
+            this.x1 = x1;
+            this.y = y0;
+            this.y1 = y1;
+        }
+
+        int rowBytes() {
+            return (x1 - x0) * texture.specification.elementSize;
+        }
+
+        long remaining() {
+            return (long) rowBytes() * (y1 - y);
+        }
+    }
+
+    /**
+     * queues the rectangle (x0, y0) - (x1, y1) of `source` (which is laid out like the whole texture) for upload into `texture`. The future completes once the
+     * last band of it has been sent
+     */
+    public CompletableFuture<Texture> schedule(Texture texture, ByteBuffer source, int x0, int y0, int x1, int y1) {
+        if (texture.specification.compressed)
+            throw new IllegalArgumentException(" can't tile uploads into compressed textures ");
+
+        Job j = new Job(texture, source, x0, y0, x1, y1);
+        queuedBytes.addAndGet(j.remaining());
+        queue.add(j);
+        return j.done;
+    }
+
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * called whenever this context is entered, sends as much as is left of this frame's budget
+     */
+    public void frame() {
+        if (queue.isEmpty() || sentThisFrame >= budget) return;
+
+        long t0 = System.nanoTime();
+        long sent = sentThisFrame;
+        int activeWas = glGetInteger(GL_ACTIVE_TEXTURE);
+
+        try {
+            while (sent < budget) {
+                Job j = queue.peek();
+                if (j == null) break;
+
+                int slot = next;
+                if (!ready(slot)) {
+                    stalledFrames++;
+                    break;
+                }
+
+                int rowBytes = j.rowBytes();
+                int rows = (int) Math.max(1, Math.min(j.y1 - j.y, Math.min(pboSize, budget - sent) / rowBytes));
+
+                send(j, slot, rows);
+                next = (next + 1) % ringSize;
+
+                sent += (long) rows * rowBytes;
+                queuedBytes.addAndGet(-(long) rows * rowBytes);
+                j.y += rows;
+
+                if (j.y >= j.y1) {
+                    queue.poll();
+                    if (j.texture.specification.highQuality) {
+                        int target = j.texture.specification.target;
+                        int was = glGetInteger(bindingFor(target));
+                        glBindTexture(target, textureName(j.texture));
+                        glGenerateMipmap(target);
+                        glBindTexture(target, was);
+                    }
+                    j.texture.uploadCount++;
+                    j.done.complete(j.texture);
+                }
+            }
+        } finally {
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+            glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+            glActiveTexture(activeWas);
+        }
+
+        totalBytes += sent - sentThisFrame;
+        Texture.bytesUploaded += sent - sentThisFrame;
+        sentThisFrame = sent;
+        nanosThisFrame += System.nanoTime() - t0;
+    }
+
+    /**
+     * called once per swap, refills the budget
+     */
+    public void endFrame() {
+        bytesLastFrame = sentThisFrame;
+        nanosLastFrame = nanosThisFrame;
+        sentThisFrame = 0;
+        nanosThisFrame = 0;
+    }
+
+    private boolean ready(int slot) {
+        if (fences[slot] == 0) return true;
+        int w = glClientWaitSync(fences[slot], 0, 0);
+        if (w == GL_ALREADY_SIGNALED || w == GL_CONDITION_SATISFIED) {
+            glDeleteSync(fences[slot]);
+            fences[slot] = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private int textureName(Texture t) {
+        Texture.State s = GraphicsContext.get(t, () -> t.setup());
+        return s.name;
+    }
+
+    private void send(Job j, int slot, int rows) {
+        Texture.TextureSpecification spec = j.texture.specification;
+        int rowBytes = j.rowBytes();
+        int length = rows * rowBytes;
+
+        if (pbos[slot] == 0) pbos[slot] = glGenBuffers();
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbos[slot]);
+
+        // a single row can be larger than pboSize, in which case this slot grows to fit it
+        if (pboCapacity[slot] < length) {
+            pboCapacity[slot] = Math.max(pboSize, length);
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, pboCapacity[slot], GL_STREAM_DRAW);
+        }
+
+        // the fence has signalled, so there's no need for the driver to synchronize this for us
+        ByteBuffer m = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, Math.max(length, 1), GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+        ByteBuffer from = j.source.duplicate();
+        for (int r = 0; r < rows; r++) {
+            int start = spec.elementSize * (spec.width * (j.y + r) + j.x0);
+            from.limit(start + rowBytes);
+            from.position(start);
+            m.put(from);
+        }
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+
+        glActiveTexture(GL_TEXTURE0 + spec.unit);
+        int was = glGetInteger(bindingFor(spec.target));
+        glBindTexture(spec.target, textureName(j.texture));
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, j.x1 - j.x0);
+        glTexSubImage2D(spec.target, 0, j.x0, j.y, j.x1 - j.x0, rows, spec.format, spec.type, 0L);
+        glBindTexture(spec.target, was);
+
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+        GraphicsContext.checkError(() -> "tiled upload into " + spec);
+    }
+
+    static private int bindingFor(int target) {
+        switch (target) {
+            case GL_TEXTURE_1D:
+                return GL_TEXTURE_BINDING_1D;
+            case GL_TEXTURE_3D:
+                return GL_TEXTURE_BINDING_3D;
+            case GL_TEXTURE_2D_ARRAY:
+                return GL_TEXTURE_BINDING_2D_ARRAY;
+            case GL_TEXTURE_RECTANGLE:
+                return GL_TEXTURE_BINDING_RECTANGLE;
+            case GL_TEXTURE_CUBE_MAP:
+                return GL_TEXTURE_BINDING_CUBE_MAP;
+            default:
+                return GL_TEXTURE_BINDING_2D;
+        }
+    }
+
+    public String stats() {
+        return "upload scheduler: " + bytesLastFrame + " bytes last frame in " + (nanosLastFrame / 1000) + "us, " + queuedBytes.get() + " bytes queued in " + queue.size() + " uploads, " + stalledFrames + " stalled frames";
+    }
+
+}
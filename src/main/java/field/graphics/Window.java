@@ -5,6 +5,7 @@ import field.CanonicalModifierKeys;
 import field.app.RunLoop;
 import field.app.ThreadSync;
 import field.app.ThreadSync2;
+import field.graphics.gdxtext.TextLayoutCache;
 import field.graphics.util.KeyEventMapping;
 import field.graphics.util.Saver;
 import field.linalg.Vec2;
@@ -460,6 +461,10 @@ public class Window implements ProvidesGraphicsContext, BoxBrowser.HasMarkdownIn
                 }
 
                 updateScene();
+                graphicsContext.uploadScheduler.endFrame();
+                Uniform.endFrame();
+                BaseMesh.endFrame();
+                TextLayoutCache.endFrame();
 
                 frame++;
                 if (!dontSwap) {
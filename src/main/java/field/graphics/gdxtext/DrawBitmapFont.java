@@ -19,17 +19,40 @@ public class DrawBitmapFont {
 	private final BitmapFontData data;
 	private final MeshBuilder target;
 	private final int cacheSize;
+	private final String fontName;
+	private GlyphBatch batch;
 
 	public DrawBitmapFont(String fontName, MeshBuilder target, int unit, int cacheSize) {
 		this.data = new BitmapFontData(fontName, fontName + ".jpg", unit);
 		this.target = target;
 		this.cacheSize = cacheSize;
+		this.fontName = fontName;
 	}
 
 	public Texture getTexture() {
 		return data.texture;
 	}
 
+	/**
+	 * draw text into `batch` (one instance per glyph) rather than as quads into our MeshBuilder. The color is still taken from aux(1) of the
+	 * MeshBuilder. Pass null to go back to quads
+	 */
+	public DrawBitmapFont setBatch(GlyphBatch batch) {
+		this.batch = batch;
+		return this;
+	}
+
+	public GlyphBatch getBatch() {
+		return batch;
+	}
+
+	/**
+	 * the (cached) layout of a single line of text
+	 */
+	public TextLayoutCache.Run layout(String text, float scale) {
+		return TextLayoutCache.layout(data, fontName, text, scale);
+	}
+
 	Map<List, Pair<MeshBuilder.Bookmark, MeshBuilder.Bookmark>> cache = new LinkedHashMap<List, Pair<MeshBuilder.Bookmark, MeshBuilder.Bookmark>>() {
 		@Override
 		protected boolean removeEldestEntry(Map.Entry<List, Pair<MeshBuilder.Bookmark, MeshBuilder.Bookmark>> eldest) {
@@ -68,21 +91,8 @@ public class DrawBitmapFont {
 			return o;
 		}
 
-		char[] ca = text.toCharArray();
-		Vec2 v = new Vec2();
-		for (int i = 0; i < ca.length; i++) {
-			BitmapFontData.Glyph g = data.getGlyph(ca[i]);
-			if (g == null) continue;
-
-			if (i < ca.length - 1) {
-				v.x += (g.xadvance - 32 + g.getKerning(ca[i + 1])) * scale;
-			} else {
-				v.x += g.xadvance * scale;
-			}
-//			v.y = Math.max(v.y, /*g.yoffset*scale +*/ g.height*scale);
-			v.y = Math.max(v.y, /*g.yoffset*scale +*/g.height * scale);
-		}
-		return v;
+		TextLayoutCache.Run r = layout(text, scale);
+		return new Vec2(r.width, r.height);
 	}
 
 	public void draw(String text, Vec2 origin, float scale) {
@@ -112,51 +122,45 @@ public class DrawBitmapFont {
 			return ;
 		}
 
-		List<Object> hash = Arrays.asList(text, new Vec2(origin.toVec2()), scale, h);
-		Pair<MeshBuilder.Bookmark, MeshBuilder.Bookmark> m = cache.computeIfAbsent(hash, (k) -> new Pair<>(target.bookmark().invalidate(), target.bookmark()));
-
 		float smoothing = Math.min(4, Math.max(0.02f, scale));
 
 		float Z = (float) origin.z;
+		float shim = 5f;
 
-		target.skipTo(m.first, m.second, hash, () -> {
-
-			Vec2 at = new Vec2(origin.toVec2());
-			char[] ca = text.toCharArray();
-
-			float mx = data.getGlyph('M').yoffset;
-
+		if (batch != null) {
+			batch.label(layout(text, scale), (float) origin.x, (float) origin.y, Z, target.getAux(1), smoothing, (float) shaderOrigin.x, (float) shaderOrigin.y - shim);
+			return;
+		}
 
-			at.y += mx * scale;
-			for (int i = 0; i < ca.length; i++) {
-				BitmapFontData.Glyph g = data.getGlyph(ca[i]);
-				if (g==null) continue;
+		List<Object> hash = Arrays.asList(text, new Vec2(origin.toVec2()), scale, h);
+		Pair<MeshBuilder.Bookmark, MeshBuilder.Bookmark> m = cache.computeIfAbsent(hash, (k) -> new Pair<>(target.bookmark().invalidate(), target.bookmark()));
 
+		target.skipTo(m.first, m.second, hash, () -> {
 
-				if (i == 0) {
-					at.x -= g.xoffset * scale;
-				}
+			TextLayoutCache.Run r = layout(text, scale);
+			float[] q = r.quads;
+			float ox = (float) origin.x;
+			float oy = (float) origin.y;
 
-				float shim = 5f;
+			for (int i = 0; i < r.glyphs; i++) {
+				float x0 = ox + q[8 * i], y0 = oy + q[8 * i + 1], x1 = ox + q[8 * i + 2], y1 = oy + q[8 * i + 3];
+				float u0 = q[8 * i + 4], v0 = q[8 * i + 5], u1 = q[8 * i + 6], v1 = q[8 * i + 7];
 
-				target.aux(3, g.srcX, g.srcY + g.height, smoothing);
+				target.aux(3, u0, v0, smoothing);
 				target.aux(4, (float)shaderOrigin.x, (float)shaderOrigin.y-shim);
-				target.v(at.x + g.xoffset * scale, at.y - g.yoffset * scale, Z);
-				target.aux(3, g.srcX + g.width, g.srcY + g.height, smoothing);
+				target.v(x0, y0, Z);
+				target.aux(3, u1, v0, smoothing);
 				target.aux(4, (float)shaderOrigin.x, (float)shaderOrigin.y-shim);
-				target.v(at.x + g.width * scale + g.xoffset * scale, at.y - g.yoffset * scale, Z);
-				target.aux(3, g.srcX + g.width, g.srcY, smoothing);
+				target.v(x1, y0, Z);
+				target.aux(3, u1, v1, smoothing);
 				target.aux(4, (float)shaderOrigin.x, (float)shaderOrigin.y-shim);
-				target.v(at.x + g.width * scale + g.xoffset * scale, at.y - g.height * scale - g.yoffset * scale, Z);
-				target.aux(3, g.srcX, g.srcY, smoothing);
+				target.v(x1, y1, Z);
+				target.aux(3, u0, v1, smoothing);
 				target.aux(4, (float)shaderOrigin.x, (float)shaderOrigin.y-shim);
-				target.v(at.x + g.xoffset * scale, at.y - g.height * scale - g.yoffset * scale, Z);
+				target.v(x0, y1, Z);
 				target.e_quad(0, 1, 2, 3);
-
-				if (i < ca.length - 1) {
-					at.x += (g.xadvance - 32 + g.getKerning(ca[i + 1])) * scale;
-				}
 			}
+			TextLayoutCache.glyphsWritten += r.glyphs;
 		});
 	}
 
@@ -0,0 +1,256 @@
+package field.graphics.gdxtext;
+
+import field.graphics.BaseMesh;
+import field.graphics.Bracketable;
+import field.graphics.GraphicsContext;
+import field.graphics.MeshBatch;
+import field.graphics.Scene;
+import field.graphics.SimpleArrayBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_TRIANGLE_STRIP;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+
+/**
+ * Draws every glyph of a font on a layer with one instanced draw call, from the font's atlas.
+ * <p>
+ * Each glyph is a single instance (its quad, its corners in the atlas, its color, and the z, smoothing and shader origin that TextDrawing's shader
+ * wants) and the quad itself is made in the vertex shader from gl_VertexID. Labels are retained between open() and close(): a label that is drawn again,
+ * unchanged, just stays where it is in the instance buffer; labels that aren't drawn again are removed on close(); and only the parts of the buffer that
+ * have changed are uploaded. Instance attributes are color at location 1, quad at 2, atlas corners at 3 and (z, smoothing, origin.xy) at 4.
+ */
+public class GlyphBatch extends Scene implements Scene.Perform, Bracketable {
+
+	static private final int stride = 16;
+
+	private final MeshBatch.RangeAllocator allocator = new MeshBatch.RangeAllocator();
+	private final Map<LabelKey, Label> labels = new HashMap<>();
+
+	private float[] instances = new float[0];
+	private int top = 0;
+	private int openCount = 0;
+	private int frame = 0;
+
+	// what has changed since close(), and what changed to make the current version (in instances)
+	private int dirtyFrom = Integer.MAX_VALUE;
+	private int dirtyTo = 0;
+	private int version = 0;
+	private int versionFrom = 0;
+	private int versionTo = 0;
+
+	static class Label {
+		int start;
+		int count;
+		int seen;
+	}
+
+	static class State {
+		int vao;
+		int buffer;
+		int capacity = -1;
+		int version = -1;
+	}
+
+	static class LabelKey {
+		final TextLayoutCache.Run run;
+		final float[] v;
+		final int hash;
+
+		LabelKey(TextLayoutCache.Run run, float[] v) {
+			this.run = run;
+			this.v = v;
+			this.hash = 31 * run.key.hashCode() + Arrays.hashCode(v);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof LabelKey)) return false;
+			LabelKey k = (LabelKey) o;
+			return hash == k.hash && run.key.equals(k.run.key) && Arrays.equals(v, k.v);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	@Override
+	public GlyphBatch open() {
+		if (openCount++ == 0) frame++;
+		return this;
+	}
+
+	@Override
+	public void close() {
+		if (--openCount > 0) return;
+		openCount = 0;
+
+		// labels that weren't drawn this time around
+		Iterator<Label> i = labels.values()
+					  .iterator();
+		boolean removed = false;
+		while (i.hasNext()) {
+			Label l = i.next();
+			if (l.seen == frame) continue;
+			Arrays.fill(instances, stride * l.start, stride * (l.start + l.count), 0);
+			dirty(l.start, l.count);
+			allocator.free(l.start, l.count);
+			i.remove();
+			removed = true;
+		}
+
+		if (removed) {
+			top = 0;
+			for (Label l : labels.values())
+				top = Math.max(top, l.start + l.count);
+		}
+
+		if (dirtyTo > dirtyFrom) {
+			version++;
+			versionFrom = dirtyFrom;
+			versionTo = dirtyTo;
+			dirtyFrom = Integer.MAX_VALUE;
+			dirtyTo = 0;
+		}
+	}
+
+	/**
+	 * adds (or keeps) a label: `run` placed at `origin`, in `color`
+	 */
+	public void label(TextLayoutCache.Run run, float x, float y, float z, float[] color, float smoothing, float originX, float originY) {
+		if (run.glyphs == 0) return;
+
+		float[] v = {x, y, z, color == null ? 1 : color[0], color == null ? 1 : color[1], color == null ? 1 : color[2], color == null ? 1 : color.length < 4 ? 1 : color[3], smoothing, originX, originY};
+		LabelKey k = new LabelKey(run, v);
+		Label l = labels.get(k);
+		if (l == null) {
+			l = new Label();
+			l.count = run.glyphs;
+			l.start = allocator.allocate(run.glyphs);
+			if (instances.length < stride * allocator.getCapacity()) instances = Arrays.copyOf(instances, stride * allocator.getCapacity());
+			write(l, run, v);
+			labels.put(k, l);
+			top = Math.max(top, l.start + l.count);
+			TextLayoutCache.glyphsWritten += run.glyphs;
+		}
+		l.seen = frame;
+	}
+
+	private void write(Label l, TextLayoutCache.Run run, float[] v) {
+		float[] q = run.quads;
+		for (int g = 0; g < run.glyphs; g++) {
+			int o = stride * (l.start + g);
+			instances[o] = v[0] + q[8 * g];
+			instances[o + 1] = v[1] + q[8 * g + 1];
+			instances[o + 2] = v[0] + q[8 * g + 2];
+			instances[o + 3] = v[1] + q[8 * g + 3];
+			System.arraycopy(q, 8 * g + 4, instances, o + 4, 4);
+			System.arraycopy(v, 3, instances, o + 8, 4);
+			instances[o + 12] = v[2];
+			instances[o + 13] = v[7];
+			instances[o + 14] = v[8];
+			instances[o + 15] = v[9];
+		}
+		dirty(l.start, l.count);
+	}
+
+	private void dirty(int start, int count) {
+		dirtyFrom = Math.min(dirtyFrom, start);
+		dirtyTo = Math.max(dirtyTo, start + count);
+	}
+
+	public int size() {
+		return top;
+	}
+
+	@Override
+	public boolean perform(int pass) {
+		if (pass != 0 || top == 0) return true;
+
+		State s = GraphicsContext.get(this, this::setup);
+
+		if (s.capacity < allocator.getCapacity()) {
+			glBindBuffer(GL_ARRAY_BUFFER, s.buffer);
+			glBufferData(GL_ARRAY_BUFFER, 4L * stride * allocator.getCapacity(), GL_DYNAMIC_DRAW);
+			upload(0, allocator.getCapacity());
+			s.capacity = allocator.getCapacity();
+			s.version = version;
+		} else if (s.version != version) {
+			glBindBuffer(GL_ARRAY_BUFFER, s.buffer);
+			// a context that has missed more than one version gets everything
+			if (s.version == version - 1) upload(versionFrom, Math.min(versionTo, allocator.getCapacity()));
+			else upload(0, allocator.getCapacity());
+			s.version = version;
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		update(0, () -> {
+			Integer shader = GraphicsContext.getContext().stateTracker.shader.get();
+			if (shader == null || shader == 0) {
+				System.err.println("trying to draw glyphs (" + this + ") without a shader attached will draw nothing");
+				return true;
+			}
+			glBindVertexArray(s.vao);
+			glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, top);
+			glBindVertexArray(0);
+			BaseMesh.drawCalls++;
+			BaseMesh.stateChanges++;
+			TextLayoutCache.glyphsDrawn += top;
+			return true;
+		});
+
+		return true;
+	}
+
+	private void upload(int from, int to) {
+		if (to <= from) return;
+		FloatBuffer f = ByteBuffer.allocateDirect(4 * stride * (to - from))
+					  .order(ByteOrder.nativeOrder())
+					  .asFloatBuffer();
+		f.put(instances, stride * from, stride * (to - from));
+		f.flip();
+		glBufferSubData(GL_ARRAY_BUFFER, 4L * stride * from, f);
+		SimpleArrayBuffer.uploadBytes += 4 * stride * (to - from);
+	}
+
+	private State setup() {
+		State s = new State();
+		s.vao = glGenVertexArrays();
+		s.buffer = glGenBuffers();
+		glBindVertexArray(s.vao);
+		glBindBuffer(GL_ARRAY_BUFFER, s.buffer);
+		// color, quad, atlas corners, (z, smoothing, origin)
+		int[] locations = {1, 2, 3, 4};
+		int[] offsets = {8, 0, 4, 12};
+		for (int i = 0; i < 4; i++) {
+			glEnableVertexAttribArray(locations[i]);
+			glVertexAttribPointer(locations[i], 4, GL_FLOAT, false, 4 * stride, 4L * offsets[i]);
+			glVertexAttribDivisor(locations[i], 1);
+		}
+		glBindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		return s;
+	}
+
+	@Override
+	public int[] getPasses() {
+		return new int[]{0};
+	}
+
+	@Override
+	public String toString() {
+		return "GlyphBatch(" + labels.size() + " labels, " + top + " glyphs)";
+	}
+}
@@ -0,0 +1,144 @@
+package field.graphics.gdxtext;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the layout of single lines of text: for each (font, string, scale) the positioned glyph quads, relative to the origin of the text, and its
+ * dimensions. Both the MeshBuilder path in DrawBitmapFont and the instanced path in GlyphBatch lay text out through here, so panning, zooming or
+ * rebuilding a sheet full of labels is a lookup per label rather than a walk through the font per glyph.
+ */
+public class TextLayoutCache {
+
+	static public int maxEntries = 20000;
+
+	/**
+	 * lookups that found / didn't find a layout, and glyphs written (into a MeshBuilder or a GlyphBatch) and drawn (by GlyphBatches). These run
+	 * continuously; the `LastFrame` versions are updated by endFrame()
+	 */
+	static public long hits = 0;
+	static public long misses = 0;
+	static public long glyphsWritten = 0;
+	static public long glyphsDrawn = 0;
+
+	static public long hitsLastFrame = 0;
+	static public long missesLastFrame = 0;
+	static public long glyphsWrittenLastFrame = 0;
+	static public long glyphsDrawnLastFrame = 0;
+
+	static private long hitsAtFrame, missesAtFrame, glyphsWrittenAtFrame, glyphsDrawnAtFrame;
+
+	/**
+	 * a laid out line of text. For each glyph, 8 floats: the corners of its quad (x0, y0, x1, y1) relative to the origin of the text, and the matching
+	 * corners in the font's atlas, in pixels (u0, v0, u1, v1)
+	 */
+	static public class Run {
+		public final List<Object> key;
+		public final int glyphs;
+		public final float[] quads;
+		public final float width;
+		public final float height;
+
+		Run(List<Object> key, int glyphs, float[] quads, float width, float height) {
+			this.key = key;
+			this.glyphs = glyphs;
+			this.quads = quads;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public String toString() {
+			return "Run(" + key + ", " + glyphs + " glyphs, " + width + "x" + height + ")";
+		}
+	}
+
+	static private final Map<List<Object>, Run> cache = new LinkedHashMap<List<Object>, Run>(1024, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<Object>, Run> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	/**
+	 * the layout of `text` (which shouldn't contain newlines) in `data` at `scale`
+	 */
+	static public synchronized Run layout(BitmapFontData data, String fontName, String text, float scale) {
+		List<Object> key = Arrays.asList(fontName, text, scale);
+		Run r = cache.get(key);
+		if (r != null) {
+			hits++;
+			return r;
+		}
+		misses++;
+		r = compute(key, data, text, scale);
+		cache.put(key, r);
+		return r;
+	}
+
+	static private Run compute(List<Object> key, BitmapFontData data, String text, float scale) {
+		char[] ca = text.toCharArray();
+		float[] q = new float[8 * ca.length];
+		int n = 0;
+
+		float atx = 0;
+		float aty = data.getGlyph('M').yoffset * scale;
+
+		float width = 0, height = 0;
+
+		for (int i = 0; i < ca.length; i++) {
+			BitmapFontData.Glyph g = data.getGlyph(ca[i]);
+			if (g == null) continue;
+
+			if (i == 0) {
+				atx -= g.xoffset * scale;
+			}
+
+			q[8 * n] = atx + g.xoffset * scale;
+			q[8 * n + 1] = aty - g.yoffset * scale;
+			q[8 * n + 2] = atx + g.width * scale + g.xoffset * scale;
+			q[8 * n + 3] = aty - g.height * scale - g.yoffset * scale;
+			q[8 * n + 4] = g.srcX;
+			q[8 * n + 5] = g.srcY + g.height;
+			q[8 * n + 6] = g.srcX + g.width;
+			q[8 * n + 7] = g.srcY;
+			n++;
+
+			// dimensions are measured from the start of the text, not from where the first glyph was nudged to
+			if (i < ca.length - 1) {
+				atx += (g.xadvance - 32 + g.getKerning(ca[i + 1])) * scale;
+				width += (g.xadvance - 32 + g.getKerning(ca[i + 1])) * scale;
+			} else {
+				width += g.xadvance * scale;
+			}
+			height = Math.max(height, g.height * scale);
+		}
+
+		return new Run(key, n, n == ca.length ? q : Arrays.copyOf(q, 8 * n), width, height);
+	}
+
+	static public synchronized void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * called by Window at the end of each frame
+	 */
+	static public void endFrame() {
+		hitsLastFrame = hits - hitsAtFrame;
+		missesLastFrame = misses - missesAtFrame;
+		glyphsWrittenLastFrame = glyphsWritten - glyphsWrittenAtFrame;
+		glyphsDrawnLastFrame = glyphsDrawn - glyphsDrawnAtFrame;
+		hitsAtFrame = hits;
+		missesAtFrame = misses;
+		glyphsWrittenAtFrame = glyphsWritten;
+		glyphsDrawnAtFrame = glyphsDrawn;
+	}
+
+	static public String stats() {
+		long h = hitsLastFrame, m = missesLastFrame;
+		return "text layout: " + h + " hit" + (h == 1 ? "" : "s") + ", " + m + " miss" + (m == 1 ? "" : "es") + (h + m > 0 ? " (" + (100 * h / (h + m)) + "%)" : "") + ", " + glyphsWrittenLastFrame + " glyphs written, " + glyphsDrawnLastFrame + " drawn instanced, " + cache.size() + " cached";
+	}
+}
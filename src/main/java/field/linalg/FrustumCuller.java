@@ -362,4 +362,91 @@ public class FrustumCuller {
 		return plane;
 	}
 
+	/**
+	 * Classifies the given axis-aligned box against the planes in <code>mask</code>, for hierarchical culling with plane masking and plane coherency.
+	 * <p>
+	 * Unlike {@link #isAabInsideFrustumMasked(double, double, double, double, double, double, int) isAabInsideFrustumMasked()} this distinguishes between
+	 * planes that the box straddles and planes that it is completely inside of. The returned mask contains just the planes that the box straddles; pass
+	 * that to the children of this box, since they are inside the rest. <code>first</code> is tested before the others --- pass the plane that culled
+	 * this box last time (or -1), since it is likely to cull it again.
+	 * <p>
+	 * Reference: <a href="http://www.cescg.org/CESCG-2002/DSykoraJJelinek/">Efficient View Frustum Culling</a>, sections 2.5 and 2.6
+	 *
+	 * @param minX  the x-coordinate of the minimum corner
+	 * @param minY  the y-coordinate of the minimum corner
+	 * @param minZ  the z-coordinate of the minimum corner
+	 * @param maxX  the x-coordinate of the maximum corner
+	 * @param maxY  the y-coordinate of the maximum corner
+	 * @param maxZ  the z-coordinate of the maximum corner
+	 * @param mask  the planes to test, as for {@link #isAabInsideFrustumMasked(double, double, double, double, double, double, int) isAabInsideFrustumMasked()}
+	 * @param first the index of the plane to test first, or <tt>-1</tt>
+	 * @return the planes (from <code>mask</code>) that the box straddles, <tt>0</tt> if the box is completely inside the frustum; or, if the box is outside
+	 * the frustum, <tt>-1 - plane</tt> where plane is the index of the plane that culled it
+	 */
+	public int classifyAabMasked(double minX, double minY, double minZ, double maxX, double maxY, double maxZ, int mask, int first) {
+		int straddles = 0;
+		if (first >= 0 && (mask & (1 << first)) != 0) {
+			int c = classify(first, minX, minY, minZ, maxX, maxY, maxZ);
+			if (c < 0) return -1 - first;
+			if (c == 0) straddles |= 1 << first;
+			mask &= ~(1 << first);
+		}
+		for (int plane = PLANE_NX; plane <= PLANE_PZ; plane++) {
+			if ((mask & (1 << plane)) == 0) continue;
+			int c = classify(plane, minX, minY, minZ, maxX, maxY, maxZ);
+			if (c < 0) return -1 - plane;
+			if (c == 0) straddles |= 1 << plane;
+		}
+		return straddles;
+	}
+
+	/**
+	 * -1 if the box is outside `plane`, 0 if it straddles it, 1 if it is inside it
+	 */
+	private int classify(int plane, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		double a, b, c, d;
+		switch (plane) {
+			case PLANE_NX:
+				a = nxX;
+				b = nxY;
+				c = nxZ;
+				d = nxW;
+				break;
+			case PLANE_PX:
+				a = pxX;
+				b = pxY;
+				c = pxZ;
+				d = pxW;
+				break;
+			case PLANE_NY:
+				a = nyX;
+				b = nyY;
+				c = nyZ;
+				d = nyW;
+				break;
+			case PLANE_PY:
+				a = pyX;
+				b = pyY;
+				c = pyZ;
+				d = pyW;
+				break;
+			case PLANE_NZ:
+				a = nzX;
+				b = nzY;
+				c = nzZ;
+				d = nzW;
+				break;
+			default:
+				a = pzX;
+				b = pzY;
+				c = pzZ;
+				d = pzW;
+				break;
+		}
+		// the 'p' vertex, furthest along the plane normal, and the 'n' vertex, furthest against it
+		if (a * (a < 0 ? minX : maxX) + b * (b < 0 ? minY : maxY) + c * (c < 0 ? minZ : maxZ) < -d) return -1;
+		if (a * (a < 0 ? maxX : minX) + b * (b < 0 ? maxY : minY) + c * (c < 0 ? maxZ : minZ) < -d) return 0;
+		return 1;
+	}
+
 }
@@ -1,16 +1,30 @@
 package field.linalg;
 
+import field.graphics.MeshBuilder;
+
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.*;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Utility class for Mapping arrays of Floats
+ * <p>
+ * The floats can be spread over several files (shards), and each file can be larger than 2GB --- they are mapped in chunks and addressed with a `long` index
+ * that runs across all of them. Use records(...) to look at the data as a sequence of fixed size records (x,y,z,r,g,b...), copy(...) to move ranges of it into
+ * FloatBuffers or MeshBuilders without allocating, and bounds(...) / histogram(...) for reductions that run in parallel across ranges.
  */
 public class MappedFloatArray {
 
+	// mapped chunks are kept to a whole number of floats below 2GB
+	static private final long CHUNK_BYTES = 1L << 30;
 
 	private final RandomAccessFile raf;
 	private final FloatBuffer fbuffer;
@@ -19,15 +33,45 @@ public class MappedFloatArray {
 	private final IntBuffer ibuffer;
 	int preferredDimension = 3;
 
+	private final FloatBuffer[] chunks;
+	// chunkStart[i] is the (float) index of the first float in chunks[i], with one extra entry at the end holding the total length
+	private final long[] chunkStart;
+
 	public MappedFloatArray(String filename) throws IOException {
-		raf = new RandomAccessFile(filename, "r");
+		this(new String[]{filename});
+	}
+
+	/**
+	 * maps several files, end to end, as one array
+	 */
+	public MappedFloatArray(String... filenames) throws IOException {
+		List<FloatBuffer> c = new ArrayList<>();
+		RandomAccessFile first = null;
+		ByteBuffer firstBuffer = null;
+		for (String filename : filenames) {
+			RandomAccessFile r = new RandomAccessFile(filename, "r");
+			if (first == null) first = r;
+			long length = r.length() & ~3L;
+			for (long at = 0; at < length; at += CHUNK_BYTES) {
+				ByteBuffer b = r.getChannel()
+					    .map(FileChannel.MapMode.READ_ONLY, at, Math.min(CHUNK_BYTES, length - at))
+					    .order(ByteOrder.nativeOrder());
+				if (firstBuffer == null) firstBuffer = b;
+				c.add(b.asFloatBuffer());
+			}
+		}
+		if (firstBuffer == null) firstBuffer = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
 
-		buffer = raf.getChannel()
-			    .map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
-			    .order(ByteOrder.nativeOrder());
+		raf = first;
+		buffer = firstBuffer;
 		fbuffer = buffer.asFloatBuffer();
 		dbuffer = buffer.asDoubleBuffer();
 		ibuffer = buffer.asIntBuffer();
+
+		chunks = c.toArray(new FloatBuffer[c.size()]);
+		chunkStart = new long[chunks.length + 1];
+		for (int i = 0; i < chunks.length; i++)
+			chunkStart[i + 1] = chunkStart[i] + chunks[i].limit();
 	}
 
 	public MappedFloatArray setPreferredDimension(int p) {
@@ -35,28 +79,62 @@ public class MappedFloatArray {
 		return this;
 	}
 
+	private int chunkFor(long index) {
+		if (chunks.length == 1) return 0;
+		int i = Arrays.binarySearch(chunkStart, index);
+		return i >= 0 ? Math.min(i, chunks.length - 1) : -i - 2;
+	}
+
+	/**
+	 * the float at `index`, counting across all files
+	 */
+	public float get(long index) {
+		int c = chunkFor(index);
+		return chunks[c].get((int) (index - chunkStart[c]));
+	}
+
+	/**
+	 * total number of floats, across all files
+	 */
+	public long size() {
+		return chunkStart[chunks.length];
+	}
+
 	public Vec3 get3f(int index) {
-		return new Vec3(fbuffer.get(index), fbuffer.get(index + 1), fbuffer.get(index + 2));
+		return get3f(index, new Vec3());
+	}
+
+	public Vec3 get3f(long index, Vec3 into) {
+		into.x = get(index);
+		into.y = get(index + 1);
+		into.z = get(index + 2);
+		return into;
 	}
 
 	public int length3f() {
-		return fbuffer.limit() / 3;
+		return (int) Math.min(Integer.MAX_VALUE, size() / 3);
 	}
 
 	public Vec2 get2f(int index) {
-		return new Vec2(fbuffer.get(index), fbuffer.get(index + 1));
+		return get2f(index, new Vec2());
+	}
+
+	public Vec2 get2f(long index, Vec2 into) {
+		into.x = get(index);
+		into.y = get(index + 1);
+		return into;
 	}
 
 	public int length2f() {
-		return fbuffer.limit() / 2;
+		return (int) Math.min(Integer.MAX_VALUE, size() / 2);
 	}
 
 	public float get1f(int index) {
-		return fbuffer.get(index);
+		return get(index);
 	}
 
 	public int length1f() {
-		return fbuffer.limit();
+		return (int) Math.min(Integer.MAX_VALUE, size());
 	}
 
 	public int length() {
@@ -73,13 +151,20 @@ public class MappedFloatArray {
 	}
 
 	public Vec3 toVec3(int index) {
+		return toVec3(index, new Vec3());
+	}
+
+	/**
+	 * the `index`th element (of preferredDimension floats) as a Vec3, written into `into`
+	 */
+	public Vec3 toVec3(long index, Vec3 into) {
 		switch (preferredDimension) {
 			case 1:
-				new Vec3(get1f(index), 0, 0);
+				return into.set(get(index), 0, 0);
 			case 2:
-				get2f(index).toVec3();
+				return into.set(get(index * 2), get(index * 2 + 1), 0);
 			case 3:
-				get3f(index);
+				return get3f(index * 3, into);
 			default:
 				throw new IllegalArgumentException();
 		}
@@ -106,4 +191,197 @@ public class MappedFloatArray {
 		};
 	}
 
+	/**
+	 * copies `count` floats starting at `from` into `into` (at its current position) with bulk puts, a chunk at a time
+	 */
+	public FloatBuffer copy(long from, int count, FloatBuffer into) {
+		while (count > 0) {
+			int c = chunkFor(from);
+			FloatBuffer s = chunks[c].duplicate();
+			int start = (int) (from - chunkStart[c]);
+			int n = Math.min(count, s.limit() - start);
+			s.position(start);
+			s.limit(start + n);
+			into.put(s);
+			from += n;
+			count -= n;
+		}
+		return into;
+	}
+
+	public float[] copy(long from, int count, float[] into, int offset) {
+		while (count > 0) {
+			int c = chunkFor(from);
+			FloatBuffer s = chunks[c].duplicate();
+			int start = (int) (from - chunkStart[c]);
+			int n = Math.min(count, s.limit() - start);
+			s.position(start);
+			s.get(into, offset, n);
+			from += n;
+			offset += n;
+			count -= n;
+		}
+		return into;
+	}
+
+	/**
+	 * a view of this array as records of `stride` floats, starting at float `offset`
+	 */
+	public Records records(int stride, long offset) {
+		return new Records(stride, offset);
+	}
+
+	public Records records(int stride) {
+		return new Records(stride, 0);
+	}
+
+	/**
+	 * this array viewed as fixed size records (for example x,y,z,r,g,b has stride 6). Fields are numbered from 0 within each record
+	 */
+	public class Records {
+		public final int stride;
+		public final long offset;
+
+		protected Records(int stride, long offset) {
+			this.stride = stride;
+			this.offset = offset;
+		}
+
+		public long length() {
+			return (size() - offset) / stride;
+		}
+
+		public float get(long record, int field) {
+			return MappedFloatArray.this.get(offset + record * stride + field);
+		}
+
+		public Vec3 get3f(long record, int field, Vec3 into) {
+			return MappedFloatArray.this.get3f(offset + record * stride + field, into);
+		}
+
+		/**
+		 * copies `width` consecutive fields starting at `field` from `count` records into `into`, tightly packed
+		 */
+		public FloatBuffer copy(long fromRecord, int count, int field, int width, FloatBuffer into) {
+			if (width == stride && field == 0) return MappedFloatArray.this.copy(offset + fromRecord * stride, count * stride, into);
+
+			float[] row = new float[stride];
+			for (int i = 0; i < count; i++) {
+				MappedFloatArray.this.copy(offset + (fromRecord + i) * stride, stride, row, 0);
+				into.put(row, field, width);
+			}
+			return into;
+		}
+
+		/**
+		 * appends `count` records to `target` as vertices, with the position taken from the three fields starting at `positionField` and each aux
+		 * attribute (keyed by attribute number) taken from `aux`, which maps to {field, width}. The MeshBuilder must be open.
+		 */
+		public MeshBuilder appendTo(MeshBuilder target, long fromRecord, int count, int positionField, Map<Integer, int[]> aux) {
+			int cursor = target.getVertexCursor();
+			copy(fromRecord, count, positionField, 3, target.ensureSize(0, 3, cursor + count));
+			if (aux != null) for (Map.Entry<Integer, int[]> e : aux.entrySet())
+				copy(fromRecord, count, e.getValue()[0], e.getValue()[1], target.ensureSize(e.getKey(), e.getValue()[1], cursor + count));
+			target.setVertexColor(cursor + count);
+			return target;
+		}
+
+		/**
+		 * min and max of each of the first `width` fields from `field` onwards, computed in parallel. Returns {min0, min1 ... max0, max1 ...}
+		 */
+		public float[] bounds(int field, int width) {
+			return ForkJoinPool.commonPool().invoke(new RangeTask<float[]>(0, length()) {
+				@Override
+				protected float[] leaf(long from, long to) {
+					float[] r = new float[width * 2];
+					Arrays.fill(r, 0, width, Float.POSITIVE_INFINITY);
+					Arrays.fill(r, width, width * 2, Float.NEGATIVE_INFINITY);
+					float[] row = new float[stride];
+					for (long i = from; i < to; i++) {
+						MappedFloatArray.this.copy(offset + i * stride, stride, row, 0);
+						for (int w = 0; w < width; w++) {
+							float v = row[field + w];
+							if (v < r[w]) r[w] = v;
+							if (v > r[w + width]) r[w + width] = v;
+						}
+					}
+					return r;
+				}
+
+				@Override
+				protected float[] combine(float[] a, float[] b) {
+					for (int w = 0; w < width; w++) {
+						a[w] = Math.min(a[w], b[w]);
+						a[w + width] = Math.max(a[w + width], b[w + width]);
+					}
+					return a;
+				}
+			});
+		}
+
+		/**
+		 * a histogram of `field` into `bins` buckets between `min` and `max` (values outside are clamped into the end buckets), computed in parallel
+		 */
+		public long[] histogram(int field, float min, float max, int bins) {
+			return ForkJoinPool.commonPool().invoke(new RangeTask<long[]>(0, length()) {
+				@Override
+				protected long[] leaf(long from, long to) {
+					long[] h = new long[bins];
+					float scale = bins / (max - min);
+					for (long i = from; i < to; i++) {
+						int b = (int) ((get(i, field) - min) * scale);
+						h[b < 0 ? 0 : (b >= bins ? bins - 1 : b)]++;
+					}
+					return h;
+				}
+
+				@Override
+				protected long[] combine(long[] a, long[] b) {
+					for (int i = 0; i < bins; i++) a[i] += b[i];
+					return a;
+				}
+			});
+		}
+	}
+
+	static private abstract class RangeTask<T> extends RecursiveTask<T> {
+		static final long GRAIN = 1 << 16;
+		final long from, to;
+
+		RangeTask(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected T compute() {
+			if (to - from <= GRAIN) return leaf(from, to);
+			long mid = (from + to) >>> 1;
+			RangeTask<T> left = split(from, mid);
+			RangeTask<T> right = split(mid, to);
+			left.fork();
+			T r = right.compute();
+			return combine(left.join(), r);
+		}
+
+		private RangeTask<T> split(long a, long b) {
+			RangeTask<T> outer = this;
+			return new RangeTask<T>(a, b) {
+				@Override
+				protected T leaf(long from, long to) {
+					return outer.leaf(from, to);
+				}
+
+				@Override
+				protected T combine(T x, T y) {
+					return outer.combine(x, y);
+				}
+			};
+		}
+
+		protected abstract T leaf(long from, long to);
+
+		protected abstract T combine(T a, T b);
+	}
+
 }
@@ -0,0 +1,631 @@
+package field.utility
+
+import java.util.*
+
+/**
+ * Line based diff and three way merge for large texts, alongside the character based (and much slower for big documents) MergeThreeWays.
+ *
+ * Texts are split into lines, and each line is hashed to an id by an Interner shared by everything that's going to be compared, so that diffing
+ * works on IntArrays. Unique lines common to both sides are matched first (patience), and the gaps between them are diffed with Myers' linear
+ * space algorithm. A diff is a list of hunks, each replacing lines [aStart, aEnd) of `a` with [bStart, bEnd) of `b`.
+ *
+ * `Incremental` keeps a diff up to date as one side is edited, re-diffing only around the edit; `merge` writes the three way merge of two diffs
+ * from a common base out to an Appendable as it goes.
+ */
+class LineDiff {
+
+    /**
+     * maps lines (ranges of some text) to ints, equal lines getting equal ints
+     */
+    class Interner {
+        private var table = IntArray(1 shl 10) { -1 }
+        private var hashes = IntArray(1 shl 10)
+
+        private var texts = arrayOfNulls<String>(256)
+        private var starts = IntArray(256)
+        private var ends = IntArray(256)
+
+        var size = 0
+            private set
+
+        fun intern(text: String, start: Int, end: Int): Int {
+            var h = 0
+            for (i in start until end) h = 31 * h + text[i].code
+            h = h xor (h ushr 16)
+
+            val mask = table.size - 1
+            var slot = h and mask
+            while (true) {
+                val id = table[slot]
+                if (id == -1) break
+                if (hashes[slot] == h && ends[id] - starts[id] == end - start && texts[id]!!.regionMatches(starts[id], text, start, end - start)) return id
+                slot = (slot + 1) and mask
+            }
+
+            if (size == texts.size) {
+                texts = Arrays.copyOf(texts, size * 2)
+                starts = Arrays.copyOf(starts, size * 2)
+                ends = Arrays.copyOf(ends, size * 2)
+            }
+            texts[size] = text
+            starts[size] = start
+            ends[size] = end
+            table[slot] = size
+            hashes[slot] = h
+            size++
+
+            if (size * 2 > table.size) rehash()
+            return size - 1
+        }
+
+        private fun rehash() {
+            val t = IntArray(table.size * 2) { -1 }
+            val hs = IntArray(table.size * 2)
+            val mask = t.size - 1
+            for (i in table.indices) {
+                if (table[i] == -1) continue
+                var slot = hashes[i] and mask
+                while (t[slot] != -1) slot = (slot + 1) and mask
+                t[slot] = table[i]
+                hs[slot] = hashes[i]
+            }
+            table = t
+            hashes = hs
+        }
+    }
+
+    /**
+     * a text split into lines (each keeping its line ending), as ids from an Interner
+     */
+    class Lines(val text: String, interner: Interner) {
+        val ids: IntArray
+        val starts: IntArray
+
+        init {
+            var n = 0
+            for (i in text.indices) if (text[i] == '\n') n++
+            if (text.isNotEmpty() && text[text.length - 1] != '\n') n++
+
+            ids = IntArray(n)
+            starts = IntArray(n + 1)
+            var at = 0
+            for (i in 0 until n) {
+                var e = text.indexOf('\n', at)
+                e = if (e == -1) text.length else e + 1
+                starts[i] = at
+                ids[i] = interner.intern(text, at, e)
+                at = e
+            }
+            starts[n] = text.length
+        }
+
+        val size: Int
+            get() = ids.size
+
+        fun write(from: Int, to: Int, out: Appendable) {
+            if (to > from) out.append(text, starts[from], starts[to])
+        }
+    }
+
+    /**
+     * hunks, four ints (aStart, aEnd, bStart, bEnd) each, in order
+     */
+    class Hunks(var data: IntArray = IntArray(64), var size: Int = 0) {
+        fun aStart(i: Int) = data[4 * i]
+        fun aEnd(i: Int) = data[4 * i + 1]
+        fun bStart(i: Int) = data[4 * i + 2]
+        fun bEnd(i: Int) = data[4 * i + 3]
+
+        fun add(aStart: Int, aEnd: Int, bStart: Int, bEnd: Int) {
+            if (aStart == aEnd && bStart == bEnd) return
+            // adjacent hunks are one hunk
+            if (size > 0 && aEnd(size - 1) == aStart && bEnd(size - 1) == bStart) {
+                data[4 * size - 3] = aEnd
+                data[4 * size - 1] = bEnd
+                return
+            }
+            if (4 * size + 4 > data.size) data = Arrays.copyOf(data, data.size * 2)
+            data[4 * size] = aStart
+            data[4 * size + 1] = aEnd
+            data[4 * size + 2] = bStart
+            data[4 * size + 3] = bEnd
+            size++
+        }
+
+        /**
+         * the line in `b` that line `a` of `a` corresponds to, for an `a` that isn't inside a hunk
+         */
+        fun aToB(a: Int): Int {
+            var lo = 0
+            var hi = size
+            while (lo < hi) {
+                val m = (lo + hi) ushr 1
+                if (aEnd(m) <= a) lo = m + 1 else hi = m
+            }
+            return if (lo == 0) a else a - aEnd(lo - 1) + bEnd(lo - 1)
+        }
+
+        fun bToA(b: Int): Int {
+            var lo = 0
+            var hi = size
+            while (lo < hi) {
+                val m = (lo + hi) ushr 1
+                if (bEnd(m) <= b) lo = m + 1 else hi = m
+            }
+            return if (lo == 0) b else b - bEnd(lo - 1) + aEnd(lo - 1)
+        }
+
+        override fun toString(): String {
+            val s = StringBuilder("Hunks(")
+            for (i in 0 until size) s.append(if (i > 0) ", " else "").append("[${aStart(i)},${aEnd(i)})->[${bStart(i)},${bEnd(i)})")
+            return s.append(")").toString()
+        }
+    }
+
+    /**
+     * the largest number of edits Myers will look for between two lines matched by patience before giving up and replacing one range with the other
+     */
+    var maxCost = 1 shl 16
+
+    private var v1 = IntArray(0)
+    private var v2 = IntArray(0)
+
+    fun diff(a: Lines, b: Lines) = diff(a.ids, 0, a.size, b.ids, 0, b.size, Hunks())
+
+    /**
+     * appends the hunks between a[aLo, aHi) and b[bLo, bHi) to `into`
+     */
+    fun diff(a: IntArray, aLo: Int, aHi: Int, b: IntArray, bLo: Int, bHi: Int, into: Hunks): Hunks {
+        var al = aLo
+        var bl = bLo
+        var ah = aHi
+        var bh = bHi
+        while (al < ah && bl < bh && a[al] == b[bl]) {
+            al++
+            bl++
+        }
+        while (al < ah && bl < bh && a[ah - 1] == b[bh - 1]) {
+            ah--
+            bh--
+        }
+
+        val anchors = patience(a, al, ah, b, bl, bh)
+        var pa = al
+        var pb = bl
+        for (i in 0 until anchors.size / 2) {
+            myers(a, pa, anchors[2 * i], b, pb, anchors[2 * i + 1], into)
+            pa = anchors[2 * i] + 1
+            pb = anchors[2 * i + 1] + 1
+        }
+        myers(a, pa, ah, b, pb, bh, into)
+        return into
+    }
+
+    /**
+     * pairs (in a, in b) of lines that occur exactly once in each range, the longest run of them that is in order in both
+     */
+    private fun patience(a: IntArray, aLo: Int, aHi: Int, b: IntArray, bLo: Int, bHi: Int): IntArray {
+        if (aHi - aLo < 64 || bHi - bLo < 64) return IntArray(0)
+
+        // id -> (count in a, position in a, count in b, position in b)
+        val seen = HashMap<Int, IntArray>()
+        for (i in aLo until aHi) {
+            val s = seen.getOrPut(a[i]) { IntArray(4) }
+            s[0]++
+            s[1] = i
+        }
+        for (i in bLo until bHi) {
+            val s = seen[b[i]] ?: continue
+            s[2]++
+            s[3] = i
+        }
+
+        // unique in both, in the order they appear in a
+        val pa = IntArray(Math.min(aHi - aLo, bHi - bLo))
+        val pb = IntArray(pa.size)
+        var n = 0
+        for (i in aLo until aHi) {
+            val s = seen[a[i]]!!
+            if (s[0] == 1 && s[2] == 1) {
+                pa[n] = i
+                pb[n] = s[3]
+                n++
+            }
+        }
+        if (n == 0) return IntArray(0)
+
+        // longest increasing subsequence of pb
+        val tails = IntArray(n)
+        val previous = IntArray(n)
+        var length = 0
+        for (i in 0 until n) {
+            var lo = 0
+            var hi = length
+            while (lo < hi) {
+                val m = (lo + hi) ushr 1
+                if (pb[tails[m]] < pb[i]) lo = m + 1 else hi = m
+            }
+            previous[i] = if (lo > 0) tails[lo - 1] else -1
+            tails[lo] = i
+            if (lo == length) length++
+        }
+
+        val r = IntArray(2 * length)
+        var k = tails[length - 1]
+        for (i in length - 1 downTo 0) {
+            r[2 * i] = pa[k]
+            r[2 * i + 1] = pb[k]
+            k = previous[k]
+        }
+        return r
+    }
+
+    private fun myers(a: IntArray, aLo: Int, aHi: Int, b: IntArray, bLo: Int, bHi: Int, into: Hunks) {
+        var al = aLo
+        var bl = bLo
+        var ah = aHi
+        var bh = bHi
+        while (al < ah && bl < bh && a[al] == b[bl]) {
+            al++
+            bl++
+        }
+        while (al < ah && bl < bh && a[ah - 1] == b[bh - 1]) {
+            ah--
+            bh--
+        }
+        if (al == ah || bl == bh) {
+            into.add(al, ah, bl, bh)
+            return
+        }
+
+        val split = bisect(a, al, ah, b, bl, bh)
+        if (split == null) {
+            into.add(al, ah, bl, bh)
+            return
+        }
+        myers(a, al, split.first, b, bl, split.second, into)
+        myers(a, split.first, ah, b, split.second, bh, into)
+    }
+
+    /**
+     * the middle of the shortest edit script from a[aLo, aHi) to b[bLo, bHi), found by running Myers from both ends until they meet (as in
+     * MergeThreeWays.diff_bisect)
+     */
+    private fun bisect(a: IntArray, aLo: Int, aHi: Int, b: IntArray, bLo: Int, bHi: Int): kotlin.Pair<Int, Int>? {
+        val n = aHi - aLo
+        val m = bHi - bLo
+        val maxD = Math.min((n + m + 1) / 2, maxCost)
+        val offset = maxD
+        val length = 2 * maxD + 2
+        if (v1.size < length) {
+            v1 = IntArray(length)
+            v2 = IntArray(length)
+        }
+        Arrays.fill(v1, 0, length, -1)
+        Arrays.fill(v2, 0, length, -1)
+        v1[offset + 1] = 0
+        v2[offset + 1] = 0
+
+        val delta = n - m
+        val front = delta % 2 != 0
+        var k1start = 0
+        var k1end = 0
+        var k2start = 0
+        var k2end = 0
+
+        for (d in 0 until maxD) {
+            var k1 = -d + k1start
+            while (k1 <= d - k1end) {
+                val k1o = offset + k1
+                var x1 = if (k1 == -d || (k1 != d && v1[k1o - 1] < v1[k1o + 1])) v1[k1o + 1] else v1[k1o - 1] + 1
+                var y1 = x1 - k1
+                while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                    x1++
+                    y1++
+                }
+                v1[k1o] = x1
+                if (x1 > n) k1end += 2
+                else if (y1 > m) k1start += 2
+                else if (front) {
+                    val k2o = offset + delta - k1
+                    if (k2o >= 0 && k2o < length && v2[k2o] != -1 && x1 >= n - v2[k2o]) return kotlin.Pair(aLo + x1, bLo + y1)
+                }
+                k1 += 2
+            }
+
+            var k2 = -d + k2start
+            while (k2 <= d - k2end) {
+                val k2o = offset + k2
+                var x2 = if (k2 == -d || (k2 != d && v2[k2o - 1] < v2[k2o + 1])) v2[k2o + 1] else v2[k2o - 1] + 1
+                var y2 = x2 - k2
+                while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                    x2++
+                    y2++
+                }
+                v2[k2o] = x2
+                if (x2 > n) k2end += 2
+                else if (y2 > m) k2start += 2
+                else if (!front) {
+                    val k1o = offset + delta - k2
+                    if (k1o >= 0 && k1o < length && v1[k1o] != -1) {
+                        val x1 = v1[k1o]
+                        val y1 = offset + x1 - k1o
+                        if (x1 >= n - x2) return kotlin.Pair(aLo + x1, bLo + y1)
+                    }
+                }
+                k2 += 2
+            }
+        }
+        return null
+    }
+
+    /**
+     * a diff from `a` to `b` that is kept up to date as `b` is edited, by finding the region of `b` that has changed and re-diffing just that
+     * (widened to take in any hunks that it touches) against the corresponding region of `a`
+     */
+    inner class Incremental(val a: Lines, b: Lines) {
+        var b = b
+            private set
+        var hunks = diff(a, b)
+            private set
+
+        fun update(next: Lines): Hunks {
+            val old = b.ids
+            val now = next.ids
+            var p = 0
+            while (p < old.size && p < now.size && old[p] == now[p]) p++
+            var s = 0
+            while (s < old.size - p && s < now.size - p && old[old.size - 1 - s] == now[now.size - 1 - s]) s++
+
+            b = next
+            if (p == old.size && p == now.size) return hunks
+
+            var bLo = p
+            var bHi = old.size - s
+
+            // hunks that the edit touches get re-diffed with it
+            var first = hunks.size
+            var last = -1
+            for (i in 0 until hunks.size) {
+                if (hunks.bEnd(i) < bLo) continue
+                if (hunks.bStart(i) > bHi) break
+                first = Math.min(first, i)
+                last = i
+                bLo = Math.min(bLo, hunks.bStart(i))
+                bHi = Math.max(bHi, hunks.bEnd(i))
+            }
+            if (last == -1) {
+                // no hunk touched, the new ones go in after the ones before the edit
+                first = 0
+                while (first < hunks.size && hunks.bEnd(first) < bLo) first++
+                last = first - 1
+            }
+
+            // bToA can't be used at the ends of the touched hunks: at the bStart of a pure deletion it gives the aEnd, which would leave the
+            // deleted lines out of the region
+            val aLo = if (last >= first) hunks.aStart(first) - (hunks.bStart(first) - bLo) else hunks.bToA(bLo)
+            val aHi = if (last >= first) hunks.aEnd(last) + (bHi - hunks.bEnd(last)) else hunks.bToA(bHi)
+            val shift = now.size - old.size
+
+            val r = Hunks(IntArray(Math.max(64, 4 * hunks.size + 64)))
+            for (i in 0 until first) r.add(hunks.aStart(i), hunks.aEnd(i), hunks.bStart(i), hunks.bEnd(i))
+            diff(a.ids, aLo, aHi, now, bLo, bHi + shift, r)
+            for (i in last + 1 until hunks.size) r.add(hunks.aStart(i), hunks.aEnd(i), hunks.bStart(i) + shift, hunks.bEnd(i) + shift)
+            hunks = r
+            return r
+        }
+    }
+
+    enum class Conflicts {
+        /**
+         * write both sides, between git style markers
+         */
+        MARKERS,
+        OURS,
+        THEIRS
+    }
+
+    /**
+     * writes the three way merge of `ours` and `theirs` (both edits of `base`, with diffs `toOurs` and `toTheirs` from it) to `out`, as it goes,
+     * returning the number of conflicts: places where both sides changed the same lines of base (or inserted at the same place) differently
+     */
+    fun merge(base: Lines, ours: Lines, theirs: Lines, toOurs: Hunks, toTheirs: Hunks, out: Appendable, conflicts: Conflicts = Conflicts.MARKERS): Int {
+        var count = 0
+        var at = 0
+        var i = 0
+        var j = 0
+
+        while (i < toOurs.size || j < toTheirs.size) {
+            // the next change, and everything on either side that overlaps it
+            var start: Int
+            var end: Int
+            if (j >= toTheirs.size || (i < toOurs.size && toOurs.aStart(i) <= toTheirs.aStart(j))) {
+                start = toOurs.aStart(i)
+                end = toOurs.aEnd(i)
+            } else {
+                start = toTheirs.aStart(j)
+                end = toTheirs.aEnd(j)
+            }
+            val i0 = i
+            val j0 = j
+            while (true) {
+                if (i < toOurs.size && overlaps(toOurs.aStart(i), toOurs.aEnd(i), start, end)) {
+                    end = Math.max(end, toOurs.aEnd(i))
+                    i++
+                } else if (j < toTheirs.size && overlaps(toTheirs.aStart(j), toTheirs.aEnd(j), start, end)) {
+                    end = Math.max(end, toTheirs.aEnd(j))
+                    j++
+                } else break
+            }
+
+            base.write(at, start, out)
+            at = end
+
+            // lines of base around the hunks of a side are unchanged on that side
+            val oursFrom = if (i > i0) toOurs.bStart(i0) - (toOurs.aStart(i0) - start) else toOurs.aToB(start)
+            val oursTo = if (i > i0) toOurs.bEnd(i - 1) + (end - toOurs.aEnd(i - 1)) else oursFrom + end - start
+            val theirsFrom = if (j > j0) toTheirs.bStart(j0) - (toTheirs.aStart(j0) - start) else toTheirs.aToB(start)
+            val theirsTo = if (j > j0) toTheirs.bEnd(j - 1) + (end - toTheirs.aEnd(j - 1)) else theirsFrom + end - start
+
+            if (j == j0) ours.write(oursFrom, oursTo, out)
+            else if (i == i0) theirs.write(theirsFrom, theirsTo, out)
+            else if (same(ours, oursFrom, oursTo, theirs, theirsFrom, theirsTo)) ours.write(oursFrom, oursTo, out)
+            else {
+                count++
+                when (conflicts) {
+                    Conflicts.OURS -> ours.write(oursFrom, oursTo, out)
+                    Conflicts.THEIRS -> theirs.write(theirsFrom, theirsTo, out)
+                    Conflicts.MARKERS -> {
+                        out.append("<<<<<<< ours\n")
+                        ours.write(oursFrom, oursTo, out)
+                        endLine(ours, oursTo, out)
+                        out.append("=======\n")
+                        theirs.write(theirsFrom, theirsTo, out)
+                        endLine(theirs, theirsTo, out)
+                        out.append(">>>>>>> theirs\n")
+                    }
+                }
+            }
+        }
+        base.write(at, base.size, out)
+        return count
+    }
+
+    /**
+     * merges `ours` and `theirs`, both edits of `base`, returning the merged text and the number of conflicts
+     */
+    fun merge(base: String, ours: String, theirs: String, conflicts: Conflicts = Conflicts.MARKERS): kotlin.Pair<String, Int> {
+        val interner = Interner()
+        val b = Lines(base, interner)
+        val o = Lines(ours, interner)
+        val t = Lines(theirs, interner)
+        val out = StringBuilder(Math.max(ours.length, theirs.length) + 64)
+        val n = merge(b, o, t, diff(b, o), diff(b, t), out, conflicts)
+        return out.toString() to n
+    }
+
+    private fun overlaps(s: Int, e: Int, start: Int, end: Int) = s < end || s == start || (s == end && (s == e || start == end))
+
+    private fun same(x: Lines, xFrom: Int, xTo: Int, y: Lines, yFrom: Int, yTo: Int): Boolean {
+        if (xTo - xFrom != yTo - yFrom) return false
+        for (k in 0 until xTo - xFrom) if (x.ids[xFrom + k] != y.ids[yFrom + k]) return false
+        return true
+    }
+
+    private fun endLine(l: Lines, to: Int, out: Appendable) {
+        if (to > 0 && to == l.size && !l.text.endsWith("\n")) out.append("\n")
+    }
+
+    companion object {
+
+        /**
+         * the ids of `b`, from those of `a` and the diff between them (`b` stands in for the lines that were inserted)
+         */
+        fun apply(a: IntArray, h: Hunks, b: IntArray? = null): IntArray {
+            val out = IntArray(a.size + (0 until h.size).sumOf { (h.bEnd(it) - h.bStart(it)) - (h.aEnd(it) - h.aStart(it)) })
+            var at = 0
+            var o = 0
+            for (i in 0 until h.size) {
+                while (at < h.aStart(i)) out[o++] = a[at++]
+                for (k in h.bStart(i) until h.bEnd(i)) out[o++] = if (b == null) -1 else b[k]
+                at = h.aEnd(i)
+            }
+            while (at < a.size) out[o++] = a[at++]
+            return out
+        }
+
+        /**
+         * checks that Incremental follows random insertions, deletions and replacements of runs of lines from a small alphabet (which makes
+         * plenty of pure insertion and deletion hunks), then compares LineDiff with MergeThreeWays on generated "code" of 10k and 100k lines,
+         * with scattered edits on both sides of a merge, and measures how long Incremental takes to follow a one line edit
+         */
+        @JvmStatic
+        fun main(args: Array<String>) {
+            run {
+                val r = Random(1)
+                val d = LineDiff()
+                val interner = Interner()
+                var failed = 0
+                fun edit(l: MutableList<String>) {
+                    val at = r.nextInt(l.size + 1)
+                    val n = Math.min(r.nextInt(3), l.size - at)
+                    when (r.nextInt(3)) {
+                        0 -> for (k in 0..r.nextInt(3)) l.add(at, "${(r.nextInt(6) + 'A'.code).toChar()}\n")
+                        1 -> for (k in 0 until n) l.removeAt(at)
+                        else -> for (k in 0 until n) l[at + k] = "${(r.nextInt(6) + 'A'.code).toChar()}\n"
+                    }
+                }
+                for (trial in 0 until 20000) {
+                    val a = MutableList(r.nextInt(10)) { "${(r.nextInt(6) + 'A'.code).toChar()}\n" }
+                    val b = a.toMutableList()
+                    edit(b)
+                    val al = Lines(a.joinToString(""), interner)
+                    val inc = d.Incremental(al, Lines(b.joinToString(""), interner))
+                    for (e in 0..r.nextInt(5)) {
+                        edit(b)
+                        val next = Lines(b.joinToString(""), interner)
+                        val h = inc.update(next)
+                        if (!Arrays.equals(apply(al.ids, h, next.ids), next.ids)) {
+                            if (failed++ < 5) println(" incremental diff from $a to $b doesn't reproduce it ($h)")
+                            break
+                        }
+                    }
+                }
+                println("20000 random edit sequences, Incremental.update wrong in $failed")
+            }
+
+            for (lines in intArrayOf(10000, 100000)) {
+                val r = Random(lines.toLong())
+                val base = List(lines) { "    var x$it = foo(${r.nextInt(1000)}, \"${Integer.toHexString(r.nextInt())}\") // line $it\n" }
+                val ours = base.toMutableList()
+                val theirs = base.toMutableList()
+                for (k in 0 until lines / 100) {
+                    ours[r.nextInt(lines / 2)] = "    // ours ${r.nextInt()}\n"
+                    theirs[lines / 2 + r.nextInt(lines / 2)] = "    // theirs ${r.nextInt()}\n"
+                }
+                val b = base.joinToString("")
+                val o = ours.joinToString("")
+                val t = theirs.joinToString("")
+
+                val d = LineDiff()
+                var merged = ""
+                var conflicts = 0
+                var t0 = System.nanoTime()
+                for (i in 0 until 5) {
+                    val m = d.merge(b, o, t)
+                    merged = m.first
+                    conflicts = m.second
+                }
+                val lineTime = (System.nanoTime() - t0) / 5e6
+
+                val expected = base.indices.joinToString("") { if (ours[it] != base[it]) ours[it] else theirs[it] }
+                println("$lines lines, LineDiff merge: ${"%.2f".format(lineTime)} ms, $conflicts conflicts, correct: ${merged == expected}")
+
+                t0 = System.nanoTime()
+                val patches = MergeThreeWays().patch_make(b, t)
+                val applied = MergeThreeWays().patch_apply(patches, o)
+                val patchTime = (System.nanoTime() - t0) / 1e6
+                println("$lines lines, MergeThreeWays patch_make + patch_apply: ${"%.2f".format(patchTime)} ms, ${applied.second.count { !it }} failed patches, correct: ${applied.first == expected}")
+
+                val interner = Interner()
+                val bl = Lines(b, interner)
+                val inc = d.Incremental(bl, Lines(o, interner))
+                val edited = ours.toMutableList()
+                var incremental = 0L
+                var full = 0L
+                for (i in 0 until 20) {
+                    edited[r.nextInt(lines)] = "    // edit $i\n"
+                    val next = Lines(edited.joinToString(""), interner)
+                    t0 = System.nanoTime()
+                    val h = inc.update(next)
+                    incremental += System.nanoTime() - t0
+                    t0 = System.nanoTime()
+                    val f = d.diff(bl, next)
+                    full += System.nanoTime() - t0
+                    if (!Arrays.equals(apply(bl.ids, h, next.ids), next.ids)) println(" incremental diff doesn't reproduce the edit ($h)")
+                }
+                println("$lines lines, one line edits: Incremental.update ${"%.3f".format(incremental / 20e6)} ms, full diff ${"%.3f".format(full / 20e6)} ms")
+            }
+        }
+    }
+}
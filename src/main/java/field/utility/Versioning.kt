@@ -73,6 +73,10 @@ class Versioning {
 
         when (a) {
             is String -> {
+                // whole lines first, which is fast even for whole documents, falling back to MergeThreeWays' fuzzier patching where they conflict
+                val (lines, conflicts) = LineDiff().merge("" + a, "" + b, "" + c, LineDiff.Conflicts.OURS)
+                if (conflicts == 0) return (lines as T) to false
+
                 val patches = MergeThreeWays().patch_make("" + a, "" + c);
                 val applied = MergeThreeWays().patch_apply(patches, "" + b)
 
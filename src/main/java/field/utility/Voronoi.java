@@ -0,0 +1,630 @@
+package field.utility;
+
+import field.graphics.FLine;
+import field.linalg.Vec2;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A Delaunay triangulation, and the Voronoi diagram dual to it, for large numbers of sites; the replacement for SimpleVoronoi.
+ * <p>
+ * Everything is kept in primitive arrays: sites as x and y, and triangles as half-edges, three per triangle, each recording the site it leaves from and
+ * its twin in the neighbouring triangle. Sites are inserted one at a time (locate by walking, split, then flip to restore the Delaunay property), starting
+ * the walk from the most recent site in the same cell of a coarse grid, and addAll inserts in Hilbert curve order so that every walk is short. Sites can
+ * be removed again (the hole is re-triangulated by Delaunay ear clipping), so the diagram can follow interactive edits.
+ * <p>
+ * Voronoi cells, as polygons through the circumcenters of the triangles around a site, are available one at a time (getContourForSite) or, computed in
+ * parallel, all at once (cells, makeFLines). As with SimpleVoronoi, everything lives inside a large triangle around the bounds given to the constructor,
+ * and the cells of sites on the convex hull reach out towards its corners.
+ */
+public class Voronoi {
+
+	static public final int NONE = -1;
+
+	// sites. 0, 1 and 2 are the corners of the enclosing triangle
+	private int count = 0;
+	private int alive = 0;
+	private double[] x = new double[64];
+	private double[] y = new double[64];
+	private int[] edgeOf = new int[64]; // a half-edge leaving each site, NONE if it has been removed
+
+	// half-edges, three per triangle (NONE in `from` marks a free triangle)
+	private int triangles = 0;
+	private int[] from = new int[192];
+	private int[] twin = new int[192];
+	private int[] freeList = new int[16];
+	private int free = 0;
+	private int hint = 0;
+
+	private int[] stack = new int[64];
+
+	// the most recently added site in each cell of a grid over the bounds
+	private final double minX, minY, maxX, maxY;
+	private int gridSize = 0;
+	private int[] grid = new int[0];
+
+	// circumcenters, recomputed when the triangulation has changed
+	private int version = 0;
+	private int centersVersion = -1;
+	private double[] cx = new double[0];
+	private double[] cy = new double[0];
+
+	public Voronoi() {
+		this(-10000, -10000, 10000, 10000);
+	}
+
+	/**
+	 * a diagram for sites inside (minX, minY) - (maxX, maxY)
+	 */
+	public Voronoi(double minX, double minY, double maxX, double maxY) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+
+		double w = Math.max(1, Math.max(maxX - minX, maxY - minY));
+		double mx = (minX + maxX) / 2;
+		double my = (minY + maxY) / 2;
+		site(mx - 50 * w, my - 50 * w);
+		site(mx + 50 * w, my - 50 * w);
+		site(mx, my + 50 * w);
+		setTriangle(allocateTriangle(), 0, 1, 2, NONE, NONE, NONE);
+		resizeGrid(16);
+	}
+
+	/**
+	 * adds a site, returning its index (or the index of a site that is already exactly there)
+	 */
+	public int add(double px, double py) {
+		int t = locate(px, py);
+		int e = 3 * t;
+		for (int i = 0; i < 3; i++)
+			if (x[from[e + i]] == px && y[from[e + i]] == py) return from[e + i];
+
+		int on = NONE;
+		for (int i = 0; i < 3; i++) {
+			int a = from[e + i];
+			int b = from[next(e + i)];
+			if (orient(x[a], y[a], x[b], y[b], px, py) == 0) on = e + i;
+		}
+
+		int p = site(px, py);
+		if (on == NONE) splitTriangle(t, p);
+		else splitEdge(on, p);
+
+		alive++;
+		version++;
+		int c = cell(px, py);
+		if (c >= 0) grid[c] = p;
+		if (alive > 2 * gridSize * gridSize) resizeGrid(2 * gridSize);
+		return p;
+	}
+
+	public int add(Vec2 v) {
+		return add(v.x, v.y);
+	}
+
+	/**
+	 * adds the sites xy[0], xy[1], xy[2], xy[3] ... in Hilbert curve order, returning their indices (in the order they were given)
+	 */
+	public int[] addAll(double[] xy) {
+		int n = xy.length / 2;
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			x0 = Math.min(x0, xy[2 * i]);
+			y0 = Math.min(y0, xy[2 * i + 1]);
+			x1 = Math.max(x1, xy[2 * i]);
+			y1 = Math.max(y1, xy[2 * i + 1]);
+		}
+		double sx = 32767 / Math.max(1e-30, x1 - x0);
+		double sy = 32767 / Math.max(1e-30, y1 - y0);
+
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++)
+			order[i] = (hilbert((int) ((xy[2 * i] - x0) * sx), (int) ((xy[2 * i + 1] - y0) * sy)) << 32) | i;
+		Arrays.parallelSort(order);
+
+		reserve(count + n);
+		int[] r = new int[n];
+		for (long o : order) {
+			int i = (int) o;
+			r[i] = add(xy[2 * i], xy[2 * i + 1]);
+		}
+		return r;
+	}
+
+	/**
+	 * removes site `s`, returning false if there is no such site
+	 */
+	public boolean remove(int s) {
+		if (s < 3 || s >= count || edgeOf[s] == NONE) return false;
+
+		// the ring of sites around s, counterclockwise, and the half-edges on the far side of the ring
+		int k = 0;
+		int[] ring = new int[16];
+		int[] outer = new int[16];
+		int e0 = edgeOf[s];
+		int e = e0;
+		do {
+			if (k == ring.length) {
+				ring = Arrays.copyOf(ring, k * 2);
+				outer = Arrays.copyOf(outer, k * 2);
+			}
+			int n = next(e);
+			ring[k] = from[n];
+			outer[k] = twin[n];
+			k++;
+			freeTriangle(e / 3);
+			e = twin[prev(e)];
+		} while (e != e0 && e != NONE);
+
+		edgeOf[s] = NONE;
+		alive--;
+		version++;
+
+		// Delaunay ear clipping: an ear whose circumcircle holds no other site of the ring is a Delaunay triangle
+		while (k > 3) {
+			int ear = NONE;
+			int convex = NONE;
+			for (int i = 0; i < k && ear == NONE; i++) {
+				int a = ring[(i + k - 1) % k], b = ring[i], c = ring[(i + 1) % k];
+				if (orient(x[a], y[a], x[b], y[b], x[c], y[c]) <= 0) continue;
+				if (convex == NONE) convex = i;
+				boolean empty = true;
+				for (int j = 0; j < k && empty; j++) {
+					int d = ring[j];
+					if (d == a || d == b || d == c) continue;
+					if (inCircle(a, b, c, d)) empty = false;
+				}
+				if (empty) ear = i;
+			}
+			if (ear == NONE) ear = convex == NONE ? 0 : convex;
+
+			int ip = (ear + k - 1) % k;
+			int t = allocateTriangle();
+			setTriangle(t, ring[ip], ring[ear], ring[(ear + 1) % k], outer[ip], outer[ear], NONE);
+			outer[ip] = 3 * t + 2;
+			System.arraycopy(ring, ear + 1, ring, ear, k - ear - 1);
+			System.arraycopy(outer, ear + 1, outer, ear, k - ear - 1);
+			k--;
+		}
+		int t = allocateTriangle();
+		setTriangle(t, ring[0], ring[1], ring[2], outer[0], outer[1], outer[2]);
+		for (int i = 0; i < 3; i++)
+			legalize(3 * t + i);
+		hint = 3 * t;
+		return true;
+	}
+
+	public int size() {
+		return alive;
+	}
+
+	public boolean contains(int s) {
+		return s >= 3 && s < count && edgeOf[s] != NONE;
+	}
+
+	public double x(int s) {
+		return x[s];
+	}
+
+	public double y(int s) {
+		return y[s];
+	}
+
+	/**
+	 * the sites that share an edge with `s` (including the corners of the enclosing triangle, 0, 1 and 2, for sites on the hull)
+	 */
+	public int[] neighbours(int s) {
+		if (!contains(s)) return new int[0];
+		int[] r = new int[8];
+		int k = 0;
+		int e0 = edgeOf[s];
+		int e = e0;
+		do {
+			if (k == r.length) r = Arrays.copyOf(r, k * 2);
+			r[k++] = from[next(e)];
+			e = twin[prev(e)];
+		} while (e != e0 && e != NONE);
+		return Arrays.copyOf(r, k);
+	}
+
+	/**
+	 * the Voronoi cell of site `s` as x, y pairs (counterclockwise), or null if there is no such site
+	 */
+	public double[] getContourForSite(int s) {
+		if (!contains(s)) return null;
+		updateCenters();
+		return contour(s, 0, 0);
+	}
+
+	/**
+	 * the Voronoi cell of site `s`, offset by `center`
+	 */
+	public double[] getContourForSite(Vec2 center, int s) {
+		if (!contains(s)) return null;
+		updateCenters();
+		return contour(s, center.x, center.y);
+	}
+
+	/**
+	 * every cell, computed in parallel, indexed by site (null for 0, 1, 2 and removed sites)
+	 */
+	public double[][] cells() {
+		updateCenters();
+		double[][] r = new double[count][];
+		IntStream.range(3, count)
+			 .parallel()
+			 .forEach(s -> {
+				 if (edgeOf[s] != NONE) r[s] = contour(s, 0, 0);
+			 });
+		return r;
+	}
+
+	/**
+	 * every cell as an FLine, built in parallel, indexed by site (null for 0, 1, 2 and removed sites)
+	 */
+	public FLine[] makeFLines() {
+		double[][] c = cells();
+		FLine[] r = new FLine[c.length];
+		IntStream.range(0, c.length)
+			 .parallel()
+			 .forEach(s -> {
+				 if (c[s] != null) r[s] = makeFLine(c[s]);
+			 });
+		return r;
+	}
+
+	public FLine makeFLine(double[] p) {
+		FLine f = new FLine();
+		if (p == null || p.length < 2) return f;
+		f.moveTo(p[0], p[1]);
+		for (int i = 2; i < p.length; i += 2)
+			f.lineTo(p[i], p[i + 1]);
+		f.lineTo(p[0], p[1]);
+		return f;
+	}
+
+	/**
+	 * the triangles of the triangulation as triples of site indices, leaving out those that touch the enclosing triangle
+	 */
+	public int[] triangles() {
+		int[] r = new int[3 * triangles];
+		int k = 0;
+		for (int t = 0; t < triangles; t++) {
+			int e = 3 * t;
+			if (from[e] == NONE || from[e] < 3 || from[e + 1] < 3 || from[e + 2] < 3) continue;
+			r[k++] = from[e];
+			r[k++] = from[e + 1];
+			r[k++] = from[e + 2];
+		}
+		return Arrays.copyOf(r, k);
+	}
+
+	/**
+	 * checks that no site is inside the circumcircle of a triangle that it's next to, returning the number of edges that aren't Delaunay
+	 */
+	public int check() {
+		int bad = 0;
+		for (int e = 0; e < 3 * triangles; e++) {
+			if (from[e - e % 3] == NONE || twin[e] == NONE) continue;
+			int a = from[e], b = from[next(e)], c = from[prev(e)];
+			if (inCircle(a, b, c, from[prev(twin[e])])) bad++;
+		}
+		return bad;
+	}
+
+	private double[] contour(int s, double ox, double oy) {
+		double[] r = new double[16];
+		int k = 0;
+		int e0 = edgeOf[s];
+		int e = e0;
+		do {
+			if (k == r.length) r = Arrays.copyOf(r, k * 2);
+			r[k++] = cx[e / 3] + ox;
+			r[k++] = cy[e / 3] + oy;
+			e = twin[prev(e)];
+		} while (e != e0 && e != NONE);
+		return k == r.length ? r : Arrays.copyOf(r, k);
+	}
+
+	private void updateCenters() {
+		if (centersVersion == version && cx.length >= triangles) return;
+		if (cx.length < triangles) {
+			cx = new double[from.length / 3];
+			cy = new double[from.length / 3];
+		}
+		IntStream.range(0, triangles)
+			 .parallel()
+			 .forEach(t -> {
+				 int e = 3 * t;
+				 if (from[e] == NONE) return;
+				 double ax = x[from[e]], ay = y[from[e]];
+				 double bx = x[from[e + 1]] - ax, by = y[from[e + 1]] - ay;
+				 double qx = x[from[e + 2]] - ax, qy = y[from[e + 2]] - ay;
+				 double d = 2 * (bx * qy - by * qx);
+				 double b2 = bx * bx + by * by;
+				 double c2 = qx * qx + qy * qy;
+				 cx[t] = ax + (qy * b2 - by * c2) / d;
+				 cy[t] = ay + (bx * c2 - qx * b2) / d;
+			 });
+		centersVersion = version;
+	}
+
+	private int locate(double px, double py) {
+		int start = NONE;
+		int c = cell(px, py);
+		if (c >= 0 && grid[c] != NONE && edgeOf[grid[c]] != NONE) start = edgeOf[grid[c]];
+		if (start == NONE || from[start] == NONE) start = hint;
+		int t = start / 3;
+
+		int limit = 4 * triangles + 16;
+		for (int step = 0; step < limit; step++) {
+			boolean moved = false;
+			// starting from a different edge each step stops the walk going round in circles
+			for (int k = 0; k < 3 && !moved; k++) {
+				int e = 3 * t + (step + k) % 3;
+				int a = from[e];
+				int b = from[next(e)];
+				if (orient(x[a], y[a], x[b], y[b], px, py) < 0) {
+					if (twin[e] == NONE) throw new IllegalArgumentException(" site " + px + ", " + py + " is outside of the bounds of this Voronoi diagram");
+					t = twin[e] / 3;
+					moved = true;
+				}
+			}
+			if (!moved) return t;
+		}
+		throw new IllegalStateException(" couldn't locate " + px + ", " + py + " in the triangulation");
+	}
+
+	private void splitTriangle(int t, int p) {
+		int e = 3 * t;
+		int v0 = from[e], v1 = from[e + 1], v2 = from[e + 2];
+		int t0 = twin[e], t1 = twin[e + 1], t2 = twin[e + 2];
+
+		int a = allocateTriangle();
+		int b = allocateTriangle();
+		setTriangle(t, v0, v1, p, t0, NONE, NONE);
+		setTriangle(a, v1, v2, p, t1, NONE, 3 * t + 1);
+		setTriangle(b, v2, v0, p, t2, 3 * t + 2, 3 * a + 1);
+
+		legalize(3 * t);
+		legalize(3 * a);
+		legalize(3 * b);
+		hint = 3 * t;
+	}
+
+	private void splitEdge(int e, int p) {
+		int t = e / 3;
+		int v0 = from[e], v1 = from[next(e)], w = from[prev(e)];
+		int tn = twin[next(e)], tp = twin[prev(e)];
+
+		int o = twin[e];
+		if (o == NONE) throw new IllegalArgumentException(" site " + x[p] + ", " + y[p] + " is on the edge of the bounds of this Voronoi diagram");
+		int u = o / 3;
+		int z = from[prev(o)];
+		int un = twin[next(o)], up = twin[prev(o)];
+
+		int t2 = allocateTriangle();
+		int t4 = allocateTriangle();
+		setTriangle(t, v0, p, w, NONE, NONE, tp);
+		setTriangle(t2, p, v1, w, NONE, tn, 3 * t + 1);
+		setTriangle(u, v1, p, z, 3 * t2, NONE, up);
+		setTriangle(t4, p, v0, z, 3 * t, un, 3 * u + 1);
+
+		legalize(3 * t + 2);
+		legalize(3 * t2 + 1);
+		legalize(3 * u + 2);
+		legalize(3 * t4 + 1);
+		hint = 3 * t;
+	}
+
+	/**
+	 * flips edge `a` (and then the edges that that exposes) until they are Delaunay; the site opposite `a` is the one that has just been added
+	 */
+	private void legalize(int a) {
+		int i = 0;
+		while (true) {
+			int b = twin[a];
+			int a0 = a - a % 3;
+			int ar = a0 + (a + 2) % 3;
+
+			if (b == NONE) {
+				if (i == 0) break;
+				a = stack[--i];
+				continue;
+			}
+
+			int b0 = b - b % 3;
+			int al = a0 + (a + 1) % 3;
+			int bl = b0 + (b + 2) % 3;
+			int br = b0 + (b + 1) % 3;
+
+			int p0 = from[ar], pr = from[a], pl = from[al], p1 = from[bl];
+
+			if (inCircle(p0, pr, pl, p1)) {
+				from[a] = p1;
+				from[b] = p0;
+				link(a, twin[bl]);
+				link(b, twin[ar]);
+				link(ar, bl);
+				edgeOf[pr] = br;
+				edgeOf[pl] = al;
+
+				if (i == stack.length) stack = Arrays.copyOf(stack, i * 2);
+				stack[i++] = br;
+			} else {
+				if (i == 0) break;
+				a = stack[--i];
+			}
+		}
+	}
+
+	private boolean inCircle(int a, int b, int c, int d) {
+		double dx = x[d], dy = y[d];
+		double adx = x[a] - dx, ady = y[a] - dy;
+		double bdx = x[b] - dx, bdy = y[b] - dy;
+		double cdx = x[c] - dx, cdy = y[c] - dy;
+		double det = (adx * adx + ady * ady) * (bdx * cdy - cdx * bdy) + (bdx * bdx + bdy * bdy) * (cdx * ady - adx * cdy) + (cdx * cdx + cdy * cdy) * (adx * bdy - bdx * ady);
+		return det > 0;
+	}
+
+	static private double orient(double ax, double ay, double bx, double by, double px, double py) {
+		return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+	}
+
+	static private int next(int e) {
+		return e % 3 == 2 ? e - 2 : e + 1;
+	}
+
+	static private int prev(int e) {
+		return e % 3 == 0 ? e + 2 : e - 1;
+	}
+
+	private void link(int a, int b) {
+		twin[a] = b;
+		if (b != NONE) twin[b] = a;
+	}
+
+	private void setTriangle(int t, int a, int b, int c, int ta, int tb, int tc) {
+		int e = 3 * t;
+		from[e] = a;
+		from[e + 1] = b;
+		from[e + 2] = c;
+		link(e, ta);
+		link(e + 1, tb);
+		link(e + 2, tc);
+		edgeOf[a] = e;
+		edgeOf[b] = e + 1;
+		edgeOf[c] = e + 2;
+	}
+
+	private int allocateTriangle() {
+		if (free > 0) return freeList[--free];
+		if (3 * triangles + 3 > from.length) {
+			from = Arrays.copyOf(from, from.length * 2);
+			twin = Arrays.copyOf(twin, twin.length * 2);
+		}
+		return triangles++;
+	}
+
+	private void freeTriangle(int t) {
+		from[3 * t] = NONE;
+		if (free == freeList.length) freeList = Arrays.copyOf(freeList, free * 2);
+		freeList[free++] = t;
+	}
+
+	private int site(double px, double py) {
+		if (count == x.length) reserve(count * 2);
+		x[count] = px;
+		y[count] = py;
+		edgeOf[count] = NONE;
+		return count++;
+	}
+
+	private void reserve(int sites) {
+		if (sites > x.length) {
+			x = Arrays.copyOf(x, sites);
+			y = Arrays.copyOf(y, sites);
+			edgeOf = Arrays.copyOf(edgeOf, sites);
+		}
+		// about two triangles per site
+		int h = 6 * sites + 12;
+		if (h > from.length) {
+			from = Arrays.copyOf(from, h);
+			twin = Arrays.copyOf(twin, h);
+		}
+	}
+
+	private int cell(double px, double py) {
+		int i = (int) ((px - minX) / (maxX - minX) * gridSize);
+		int j = (int) ((py - minY) / (maxY - minY) * gridSize);
+		if (i < 0 || j < 0 || i >= gridSize || j >= gridSize) return NONE;
+		return i + j * gridSize;
+	}
+
+	private void resizeGrid(int size) {
+		gridSize = size;
+		grid = new int[size * size];
+		Arrays.fill(grid, NONE);
+		for (int s = 3; s < count; s++) {
+			if (edgeOf[s] == NONE) continue;
+			int c = cell(x[s], y[s]);
+			if (c >= 0) grid[c] = s;
+		}
+	}
+
+	/**
+	 * the distance along a Hilbert curve through a 32768 x 32768 grid of (x, y)
+	 */
+	static private long hilbert(int x, int y) {
+		long d = 0;
+		int n = 1 << 15;
+		for (int s = n / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	@Override
+	public String toString() {
+		return "Voronoi(" + alive + " sites, " + (triangles - free) + " triangles)";
+	}
+
+	/**
+	 * times building the diagram, and all of its cells, for 10k, 100k and 1M random sites, then removing and re-adding sites one at a time; and
+	 * SimpleVoronoi on 10k sites for comparison
+	 */
+	public static void main(String[] args) {
+		for (int n : new int[]{10000, 100000, 1000000}) {
+			Random r = new Random(n);
+			double[] xy = new double[2 * n];
+			for (int i = 0; i < xy.length; i++)
+				xy[i] = r.nextDouble() * 1000;
+
+			for (int rep = 0; rep < 3; rep++) {
+				long t0 = System.nanoTime();
+				Voronoi v = new Voronoi(0, 0, 1000, 1000);
+				int[] ids = v.addAll(xy);
+				long t1 = System.nanoTime();
+				double[][] cells = v.cells();
+				long t2 = System.nanoTime();
+
+				int edits = 10000;
+				for (int i = 0; i < edits; i++) {
+					int k = r.nextInt(n);
+					v.remove(ids[k]);
+					ids[k] = v.add(xy[2 * k], xy[2 * k + 1]);
+				}
+				long t3 = System.nanoTime();
+
+				if (rep == 2) {
+					int vertices = 0;
+					for (double[] c : cells)
+						if (c != null) vertices += c.length / 2;
+					System.out.println(n + " sites: triangulate " + (t1 - t0) / 1e6 + " ms, " + (cells.length - 3) + " cells (" + vertices + " vertices) in parallel " + (t2 - t1) / 1e6 + " ms, " + edits + " remove + add " + (t3 - t2) / 1e6 + " ms (" + (t3 - t2) / 1e3 / edits + " us each), " + (n <= 100000 ? v.check() + " non-Delaunay edges" : ""));
+				}
+			}
+		}
+
+		Random r = new Random(10000);
+		long t0 = System.nanoTime();
+		SimpleVoronoi s = new SimpleVoronoi();
+		for (int i = 0; i < 10000; i++)
+			s.add(new Vec2(r.nextDouble() * 1000, r.nextDouble() * 1000));
+		System.out.println("SimpleVoronoi, 10000 sites: " + (System.nanoTime() - t0) / 1e6 + " ms");
+	}
+}
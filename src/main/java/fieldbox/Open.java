@@ -4,6 +4,7 @@ import field.app.RunLoop;
 import field.app.ThreadSync;
 import field.app.ThreadSync2;
 import field.graphics.*;
+import field.graphics.gdxtext.TextLayoutCache;
 import field.graphics.util.onsheetui.Label;
 import field.utility.Dict;
 import field.utility.Log;
@@ -386,6 +387,9 @@ public class Open {
                         Log.println("graphics.stats", " uploaded " + SimpleArrayBuffer.uploadBytes + " bytes to OpenGL");
                         SimpleArrayBuffer.uploadBytes = 0;
                     }
+                    if (TextLayoutCache.hitsLastFrame + TextLayoutCache.missesLastFrame > 0) {
+                        Log.println("graphics.stats", " " + TextLayoutCache.stats());
+                    }
                 }, 600));
 
         //initializes window mgmt for linux
@@ -230,6 +230,8 @@ public class Drawing extends Box implements DrawingInterface {
 		cachedWindow = window;
 		cachedRoot = root;
 
+		AsyncTessellation.onReady = l -> dirty(root, l == null ? "__main__" : l);
+
 		GraphicsContext graphicsContext = window.getGraphicsContext();
 
 		PerLayer layer = layerLocal.computeIfAbsent(layerName, (k) -> new PerLayer());
@@ -286,6 +286,8 @@ public class FLineDrawing extends Box implements Drawing.Drawer {
 					.iterator();
 				while (it2.hasNext()) {
 					Supplier<FLine> f = it2.next();
+					// packed lines are drawn straight from their arrays, below, never as FLines
+					if (f instanceof PackedFLine) continue;
 					FLine fl = f.get();
 					if (fl == null) it2.remove();
 					else if (fl.nodes.size() > 0) all.add(fl);
@@ -295,6 +297,12 @@ public class FLineDrawing extends Box implements Drawing.Drawer {
 
 				ll.values()
 					.stream()
+					.filter(c -> c instanceof PackedFLine)
+					.forEach(c -> dispatchLine((PackedFLine) c, context, defaultLayer, ON));
+
+				ll.values()
+					.stream()
+					.filter(c -> !(c instanceof PackedFLine))
 					.map(c -> c.get())
 					.filter(fline -> fline != null)
 					.forEach(fline -> {
@@ -358,6 +366,12 @@ public class FLineDrawing extends Box implements Drawing.Drawer {
 		StandardFLineDrawing.dispatchLine(fline, mesh, line, points, text, layerName, opacityMul);
 	}
 
+	protected void dispatchLine(PackedFLine p, DrawingInterface context, String defaultLayer, float opacityMul) {
+		String layerName = p.attributes.getOr(layer, () -> defaultLayer);
+
+		StandardFLineDrawing.dispatchLine(p, context.getMesh(layerName), context.getLine(layerName), context.getPoints(layerName), opacityMul);
+	}
+
 	protected Map<String, Function<Box, FLine>> defaultdrawsLines(Dict.Prop<Map<String, Function<Box, FLine>>> k) {
 		Map<String, Function<Box, FLine>> r = new IdempotencyMap<>(Function.class);
 
@@ -2,8 +2,10 @@ package fieldbox.boxes;
 
 import field.graphics.*;
 import field.graphics.gdxtext.DrawBitmapFont;
+import field.graphics.gdxtext.GlyphBatch;
 import field.linalg.Vec2;
 import field.utility.Dict;
+import field.utility.Options;
 import fieldbox.ui.FieldBoxWindow;
 
 import java.util.LinkedHashMap;
@@ -22,6 +24,9 @@ import java.util.Map;
  * this is very fast, smooth, stably anti-aliased and comes with no runtime native dependencies (either on native libraries directly or indirectly
  * via Java windowing toolkits).
  * <p>
+ * With the option `instancedText` set, text on layers installed with install(root, layerName) is drawn as one instance per glyph (see GlyphBatch) by
+ * `instancedShader`, rather than as quads in the font's MeshBuilder; labels that don't change between frames aren't rewritten at all.
+ * <p>
  * Todo: more fonts, sub-pixel hinting?
  * Todo: if we were really good, we'd autogenerate .fnt files on demand
  */
@@ -32,6 +37,7 @@ public class TextDrawing extends Box {
 
 	public class PerLayer {
 		protected Shader mainShader;
+		protected Shader instancedShader;
 		private FontSupport defaultFont;
 		protected Map<String, FontSupport> fontsLoaded = new LinkedHashMap<String, FontSupport>();
 	}
@@ -41,6 +47,7 @@ public class TextDrawing extends Box {
 	public class FontSupport {
 		public final MeshBuilder mesh;
 		public final DrawBitmapFont font;
+		public final GlyphBatch batch;
 
 		public FontSupport(String name, String layer) {
 			BaseMesh mesh = BaseMesh.triangleList(4, 4);
@@ -57,12 +64,46 @@ public class TextDrawing extends Box {
 			else
 				first(Drawing.drawing, both()).map(drawing ->
 					drawing.addBracketable(this.mesh));
+
+			Shader instancedShader = layerLocal.get(layer).instancedShader;
+			if (instancedShader != null) {
+				GlyphBatch batch = new GlyphBatch();
+				this.batch = batch;
+				batch.attach(font.getTexture());
+				instancedShader.attach(new Guard(batch, (p) -> batch.size() > 0));
+				font.setBatch(batch);
+
+				first(Drawing.drawing, both()).map(drawing ->
+					drawing.addBracketable(batch));
+			} else {
+				this.batch = null;
+			}
 		}
 	}
 
 	static public final Dict.Prop<TextDrawing> textDrawing = new Dict.Prop<>("textDrawing").toCanon();
 
 
+	static private final String fragment = "#version 410\n" +
+		"layout(location=0) out vec4 _output;\n" +
+		"in vec4 vertexColor;\n" +
+		"in vec4 vtc;\n" +
+		"uniform sampler2D te;\n" +
+		"\n" +
+		"uniform float gamma;\n" +
+		"uniform float opacity;\n" +
+		"\n" +
+		"void main()\n" +
+		"{\n" +
+		"\tfloat w = min(0.4, 0.1/vtc.z);\n" +
+		"\n" +
+		"\tvec4 current = texture(te, vtc.xy*(1/1024.0),0);\n" +
+		"\tfloat currenta = smoothstep(0.5-w, 0.5+w, current.r);\n" +
+		"\tcurrenta = pow(currenta, 1/gamma);\n" +
+		"\t_output  = vec4(1,1,1,currenta*opacity)*vertexColor;\n" +
+		"\n" +
+		"}";
+
 	public float smoothing = 0.02f;
 	public float gamma = 1.9f;
 
@@ -114,40 +155,65 @@ public class TextDrawing extends Box {
 
 		// smoothing needs to be around 1 for font scales of 4 and 0.02 for font scales of 0.2
 
-		layer.mainShader.addSource(Shader.Type.fragment, "#version 410\n" +
-			"layout(location=0) out vec4 _output;\n" +
-			"in vec4 vertexColor;\n" +
-			"in vec4 vtc;\n" +
-			"uniform sampler2D te;\n" +
-			"\n" +
-			"uniform float gamma;\n" +
-			"uniform float opacity;\n" +
-			"\n" +
-			"void main()\n" +
-			"{\n" +
-			"\tfloat w = min(0.4, 0.1/vtc.z);\n" +
-			"\n" +
-			"\tvec4 current = texture(te, vtc.xy*(1/1024.0),0);\n" +
-			"\tfloat currenta = smoothstep(0.5-w, 0.5+w, current.r);\n" +
-			"\tcurrenta = pow(currenta, 1/gamma);\n" +
-			"\t_output  = vec4(1,1,1,currenta*opacity)*vertexColor;\n" +
-			"\n" +
-			"}");
+		layer.mainShader.addSource(Shader.Type.fragment, fragment);
 
-		layer.mainShader.attach(new Uniform<Vec2>("translation", () -> drawing.getTranslationRounded()));
-		layer.mainShader.attach(new Uniform<Vec2>("scale", () -> drawing.getScale()));
-		layer.mainShader.attach(new Uniform<Double>("downAmount", () -> 1/drawing.getScale().x));
-		layer.mainShader.attach(new Uniform<Vec2>("bounds", () -> new Vec2(Window.getCurrentWidth(), Window.getCurrentHeight())));
-		layer.mainShader.attach(new Uniform<Float>("smoothing", () -> smoothing));
-		layer.mainShader.attach(new Uniform<Float>("gamma", () -> gamma));
-		layer.mainShader.attach(new Uniform<Float>("opacity", () -> 1.0f));
-		layer.mainShader.attach(new Uniform<Float>("displayZ", () -> drawing.displayZ));
+		attachUniforms(layer.mainShader, drawing);
 
 		window.getCompositor().getLayer(layerName).getScene().attach(layer.mainShader);
 
+		if (Options.dict().isTrue(new Dict.Prop("instancedText"), false)) {
+			layer.instancedShader = new Shader();
+
+			// one instance per glyph, the corners of the quad come from gl_VertexID (drawn as a 4 vertex triangle strip)
+			layer.instancedShader.addSource(Shader.Type.vertex, "#version 410\n" +
+				"layout(location=1) in vec4 color;\n" +
+				"layout(location=2) in vec4 quad;\n" +
+				"layout(location=3) in vec4 uv;\n" +
+				"layout(location=4) in vec4 zso;\n" +
+				"out vec4 vertexColor;\n" +
+				"out vec4 vtc;\n" +
+
+				"uniform vec2 translation;\n" +
+				"uniform vec2 scale;\n" +
+				"uniform vec2 bounds;\n" +
+				"uniform float smoothing;\n" +
+				"uniform float displayZ;\n" +
+				"uniform float downAmount;\n" +
+
+				"void main()\n" +
+				"{\n" +
+				"	bool right = (gl_VertexID & 1) != 0;\n" +
+				"	bool bottom = (gl_VertexID & 2) != 0;\n" +
+				"	vec2 position = vec2(right ? quad.z : quad.x, bottom ? quad.w : quad.y);\n" +
+				"	vec2 atO = (scale.xy*zso.zw+translation.xy)/bounds.xy;\n" +
+				"	vec2 at = (scale.xy*position.xy+translation.xy)/bounds.xy;\n" +
+				"	at = at*(downAmount)+ (1-downAmount)*atO;\n"+
+				"   gl_Position =  vec4(-1+at.x*2+displayZ*zso.x, 1-at.y*2, 0.5, 1.0);\n" +
+				"   vertexColor = color;\n" +
+				"   vtc = vec4(right ? uv.z : uv.x, bottom ? uv.w : uv.y, zso.y, 0);\n" +
+				"}");
+
+			layer.instancedShader.addSource(Shader.Type.fragment, fragment);
+
+			attachUniforms(layer.instancedShader, drawing);
+
+			window.getCompositor().getLayer(layerName).getScene().attach(layer.instancedShader);
+		}
+
 		return this;
 	}
 
+	private void attachUniforms(Shader shader, Drawing drawing) {
+		shader.attach(new Uniform<Vec2>("translation", () -> drawing.getTranslationRounded()));
+		shader.attach(new Uniform<Vec2>("scale", () -> drawing.getScale()));
+		shader.attach(new Uniform<Double>("downAmount", () -> 1/drawing.getScale().x));
+		shader.attach(new Uniform<Vec2>("bounds", () -> new Vec2(Window.getCurrentWidth(), Window.getCurrentHeight())));
+		shader.attach(new Uniform<Float>("smoothing", () -> smoothing));
+		shader.attach(new Uniform<Float>("gamma", () -> gamma));
+		shader.attach(new Uniform<Float>("opacity", () -> 1.0f));
+		shader.attach(new Uniform<Float>("displayZ", () -> drawing.displayZ));
+	}
+
 	public Box install(String layerName, Shader customShader, DrawingInterface fixedInterface) {
 		this.fixedInterface = fixedInterface;
 
@@ -1,6 +1,5 @@
 package fieldbox.boxes.plugins;
 
-import field.app.RunLoop;
 import field.graphics.*;
 import field.linalg.Vec2;
 import field.linalg.Vec4;
@@ -115,21 +114,15 @@ public class Image2 extends Box {
 
         public Consumer<TextureLoader> updator = null;
 
+        long modified;
+
         public TextureLoader(String filename) {
             this.filename = filename;
-            int[] d = j.dimensions(filename);
-            w = d[0];
-            h = d[1];
-            data = ByteBuffer.allocateDirect(w * h * 3);
-            target = new Texture(Texture.TextureSpecification.byte3(0, w, h, data, true));
-            target.setIsDoubleBuffered(false);
-            RunLoop.workerPool.submit(() -> {
-                j.decompress(filename, data, w, h);
-                target.upload(data, false);
-                loaded = true;
-                Drawing.dirty(Image2.this);
-                return null;
-            });
+            target = TextureCache.shared.acquire(filename, true);
+            w = target.specification.width;
+            h = target.specification.height;
+            modified = new File(filename).lastModified();
+            whenLoaded(target);
             mesh = BaseMesh.triangleList(4, 2);
             mesh.attach(target);
 
@@ -166,31 +159,59 @@ public class Image2 extends Box {
             });
         }
 
+        /**
+         * reads `s` again, even when it's the file that's already showing and it hasn't changed on disk
+         */
         public void reload(String s)
         {
-            if (filename!=null && filename.equals(s)) return; //todo check timestamp
+            reload(s, true);
+        }
+
+        /**
+         * like reload, but does nothing if `s` is already showing and hasn't been modified since it was read
+         */
+        public void reloadIfChanged(String s)
+        {
+            if (filename!=null && filename.equals(s) && new File(s).lastModified()==modified) return;
+            reload(s, false);
+        }
+
+        private void reload(String s, boolean fresh)
+        {
             this.filename = s;
             if (!new File(filename).exists())
             {
-                RunLoop.workerPool.submit(() -> {
-                    for(int i=0;i<data.capacity();i++)
-                        data.put(i, (byte)0);
-                    target.upload(data, false);
-                    loaded = true;
-                    Drawing.dirty(Image2.this);
-                    return null;
-                });
+                // a blank texture of the same size, adopted by the cache so that releasing it deletes it
+                data = ByteBuffer.allocateDirect(w * h * 3);
+                replace(TextureCache.shared.adopt(new Texture(Texture.TextureSpecification.byte3(0, w, h, data, true))));
+                modified = 0;
+                loaded = true;
+                Drawing.dirty(Image2.this);
                 return;
             }
 
             int[] d = j.dimensions(filename);
             if (d[0]!=w || d[1]!=h) throw new IllegalArgumentException(" dimensions mismatch :"+d[0]+"!="+w+" || "+d[1]+"!="+h);
-            RunLoop.workerPool.submit(() -> {
-                j.decompress(filename, data, w, h);
-                target.upload(data, false);
+            modified = new File(filename).lastModified();
+            replace(fresh ? TextureCache.shared.acquireFresh(filename, true) : TextureCache.shared.acquire(filename, true));
+            whenLoaded(target);
+        }
+
+        private void replace(Texture t)
+        {
+            mesh.detach(target);
+            TextureCache.shared.release(target);
+            target = t;
+            mesh.attach(target);
+        }
+
+        private void whenLoaded(Texture t)
+        {
+            loaded = false;
+            TextureCache.shared.whenReady(t).thenRun(() -> {
+                if (target != t) return;
                 loaded = true;
                 Drawing.dirty(Image2.this);
-                return null;
             });
         }
 
@@ -198,6 +219,7 @@ public class Image2 extends Box {
         {
             PerLayer pl = layerLocal.computeIfAbsent("__main__", (k) -> new PerLayer());
             pl.mainShader.detach(mesh);
+            TextureCache.shared.release(target);
         }
 
         public TextureLoader geometry(Rect r) {
@@ -2,13 +2,45 @@ package fieldbox.boxes.plugins
 
 import field.app.RunLoop
 import field.utility.Dict.Prop
+import field.utility.MergeThreeWays
 import fieldbox.boxes.Box
+import java.io.File
+import java.io.RandomAccessFile
 
+/**
+ * The undo history for properties of boxes.
+ *
+ * The history is bounded by (an estimate of) how much memory it takes up, `maxBytes`, rather than by how many changes it holds. For each property
+ * only the most recent previous value of a String (typically code) is kept in full; each older one is kept as a diff (from MergeThreeWays) from the
+ * one after it. Other values are kept as snapshots, and a snapshot that is equal to the one after it is shared with it. Changes to the same property
+ * within the same second are coalesced as they are recorded, keeping the earliest.
+ *
+ * When `spill` is set, changes that no longer fit in memory are written, oldest first, to that file (up to `maxSpillBytes`) rather than being
+ * forgotten, so that hours of history across hundreds of boxes can be kept. The file is only ever appended to, and is compacted in place once less
+ * than half of it is still in use.
+ */
 class UndoStack {
-    val maxLength = 100
+
+    var maxBytes = 16L * 1024 * 1024
+
+    var spill: File? = null
+    var maxSpillBytes = 512L * 1024 * 1024
+
+    /**
+     * how much the changes on the stack take up, in memory and on disk
+     */
+    var bytes = 0L
+        private set
+    var spilledBytes = 0L
+        private set
 
     open class Undo(val description: String, val action: () -> Unit) {
         val time = System.currentTimeMillis()
+
+        open fun perform() = action()
+
+        open val size: Long
+            get() = 64
     }
 
     class UndoProperty<T>(val box: Box, val prop: Prop<T>, val was: T) : Undo("$box.$prop = $was",
@@ -16,50 +48,260 @@ class UndoStack {
                 box.properties.put(prop, was)
             })
 
+    /**
+     * a change recorded by `change`. Exactly one of `text`, `delta` (from the text of `newer`), `value` or a spilled `text` or `delta` holds what the
+     * property was. perform() puts that back (without taking the change off the stack, which is what undo() does)
+     */
+    inner class Change(val box: Box, val prop: Prop<*>) : Undo("$box.$prop", {}) {
+        var newer: Change? = null
+        var older: Change? = null
+
+        var text: String? = null
+        var delta: String? = null
+        var value: Any? = null
+
+        var spilledAt = -1L
+        var spilledLength = 0
+        var spilledDelta = false
+
+        override val size: Long
+            get() = 64 + 2L * (text?.length ?: 0) + 2L * (delta?.length ?: 0) + (if (value != null && value !== newer?.value) sizeOf(value!!) else 0)
+
+        override fun perform() {
+            val was = value ?: materialise(this)
+            @Suppress("UNCHECKED_CAST")
+            box.properties.put(prop as Prop<Any>, was)
+        }
+    }
+
     var stack = mutableListOf<Undo>()
     var stackChanged = false
 
+    private val newest = HashMap<Pair<Box, Prop<*>>, Change>()
+    private val diff = MergeThreeWays().also { it.Diff_Timeout = 0.1f }
+    private var spillFile: RandomAccessFile? = null
+    private var spillFrom = 0
+
     fun <T> change(box: Box, prop: Prop<T>) {
         val v = box.properties.get(prop)
-        if (v != null) {
-            stack.add(UndoProperty(box, prop, v))
-            stackChanged = true
-        }
+        if (v != null) record(box, prop, v)
     }
 
     fun <T> change(box: Box, prop: Prop<T>, value: T) {
         val v = box.properties.get(prop)
-        if (v != null) {
-            stack.add(UndoProperty(box, prop, v))
-            stackChanged = true
-        }
+        if (v != null) record(box, prop, v)
 
         box.properties.put(prop, value);
     }
 
+    fun add(u: Undo) {
+        stack.add(u)
+        bytes += u.size
+        stackChanged = true
+    }
+
+    /**
+     * undoes the most recent change, returning false if there's nothing to undo
+     */
+    fun undo(): Boolean {
+        if (stack.isEmpty()) return false
+        val u = stack.removeAt(stack.size - 1)
+        if (spillFrom > stack.size) spillFrom = stack.size
+
+        if (u is Change) {
+            val was = if (u.value != null) u.value else materialise(u)
+
+            // the change before this one can no longer be a diff from it
+            val o = u.older
+            if (o != null && (o.delta != null || (o.spilledAt >= 0 && o.spilledDelta))) {
+                unspill(o)
+                bytes -= o.size
+                o.text = patch(was as String, o.delta!!)
+                o.delta = null
+                bytes += o.size
+            }
+            if (o != null) relink(o, null)
+            val k = Pair(u.box, u.prop)
+            if (o != null) newest[k] = o else newest.remove(k)
+
+            bytes -= u.size
+            spilledBytes -= u.spilledLength
+            @Suppress("UNCHECKED_CAST")
+            u.box.properties.put(u.prop as Prop<Any>, was!!)
+        } else {
+            bytes -= u.size
+            u.perform()
+        }
+        stackChanged = true
+        return true
+    }
+
+    private fun record(box: Box, prop: Prop<*>, v: Any) {
+        val k = Pair(box, prop)
+        val n = newest[k]
+
+        // coalesce: keep the earliest change to this property this second
+        if (n != null && quantize(n.time) == quantize(System.currentTimeMillis())) return
+
+        val c = Change(box, prop)
+        if (v is String) {
+            c.text = v
+            if (n != null && n.text != null) {
+                bytes -= n.size
+                n.delta = diff.diff_toDelta(diff.diff_main(v, n.text!!, n.text!!.length > 1000))
+                n.text = null
+                bytes += n.size
+            }
+        } else {
+            val s = snapshot(v)
+            c.value = if (n?.value != null && n.value == s) n.value else s
+        }
+
+        if (n != null) {
+            relink(n, c)
+            c.older = n
+        }
+        newest[k] = c
+
+        add(c)
+    }
+
+    /**
+     * called every frame, keeps the stack within `maxBytes` (and `maxSpillBytes`)
+     */
     fun coallesce() {
         if (!stackChanged) return
+        stackChanged = false
+
+        while (bytes > maxBytes && stack.isNotEmpty()) {
+            val s = spill
+            if (s == null) {
+                remove(0)
+                continue
+            }
+            if (spillFrom >= stack.size) break
+            val u = stack[spillFrom]
+            if (u is Change && u.value == null) {
+                if (u.spilledAt < 0) spillOut(s, u)
+                spillFrom++
+            } else remove(spillFrom)
+        }
+
+        while (spilledBytes > maxSpillBytes && stack.isNotEmpty()) remove(0)
+    }
+
+    private fun remove(i: Int) {
+        val u = stack.removeAt(i)
+        if (i < spillFrom) spillFrom--
+        if (u is Change) {
+            val o = u.older
+            val n = u.newer
+            // a value that's going can't be the base of the diff of the change before it
+            if (o != null && n != null && (o.delta != null || (o.spilledAt >= 0 && o.spilledDelta))) {
+                val t = materialise(o)
+                unspill(o)
+                bytes -= o.size
+                o.text = t
+                o.delta = null
+                bytes += o.size
+            }
+            if (o != null) relink(o, n)
+            if (n != null) n.older = o
+            if (n == null) {
+                val k = Pair(u.box, u.prop)
+                if (o != null) newest[k] = o else newest.remove(k)
+            }
+            spilledBytes -= u.spilledLength
+        }
+        bytes -= u.size
+    }
 
-        val ord = LinkedHashMap<Triple<*, *, *>, Undo>()
+    // whether a value is shared depends on what's newer
+    private fun relink(c: Change, newer: Change?) {
+        bytes -= c.size
+        c.newer = newer
+        bytes += c.size
+    }
+
+    private fun spillOut(file: File, c: Change) {
+        val f = spillFile ?: RandomAccessFile(file, "rw").also {
+            it.setLength(0)
+            spillFile = it
+        }
+        if (f.length() > MIN_COMPACT && spilledBytes < f.length() / 2) compact(f)
 
-        val dest = mutableListOf<Undo>()
+        val b = (c.text ?: c.delta!!).toByteArray(Charsets.UTF_8)
+        bytes -= c.size
+        c.spilledAt = f.length()
+        c.spilledLength = b.size
+        c.spilledDelta = c.text == null
+        f.seek(c.spilledAt)
+        f.write(b)
+        c.text = null
+        c.delta = null
+        bytes += c.size
+        spilledBytes += b.size
+    }
 
-        stack.groupingBy {
-            when (it) {
-                is UndoProperty<*> -> {
-                    Triple(it.box, it.prop, quantize(it.time))
-                }
-                else -> {
-                    Triple(0, 0, it.time)
-                } // not mergeable
+    /**
+     * slides what's still spilled down over what isn't (in the order it's in the file, so nothing is overwritten before it has been moved), and
+     * truncates the file after it
+     */
+    private fun compact(f: RandomAccessFile) {
+        val live = stack.filterIsInstance<Change>().filter { it.spilledAt >= 0 }.sortedBy { it.spilledAt }
+        var at = 0L
+        var b = ByteArray(0)
+        for (c in live) {
+            if (c.spilledAt != at) {
+                if (b.size < c.spilledLength) b = ByteArray(c.spilledLength)
+                f.seek(c.spilledAt)
+                f.readFully(b, 0, c.spilledLength)
+                f.seek(at)
+                f.write(b, 0, c.spilledLength)
+                c.spilledAt = at
             }
-        }.aggregateTo(ord, { key : Any, acc: Undo?, element : Undo, first -> if (first) element else acc!! })
-                .values.toCollection(dest)
+            at += c.spilledLength
+        }
+        f.setLength(at)
+    }
 
-        stack = dest
+    /**
+     * brings a spilled change back into memory (as it was when it was spilled)
+     */
+    private fun unspill(c: Change) {
+        if (c.spilledAt < 0) return
+        val b = ByteArray(c.spilledLength)
+        val f = spillFile!!
+        f.seek(c.spilledAt)
+        f.readFully(b)
+        val s = String(b, Charsets.UTF_8)
+        bytes -= c.size
+        if (c.spilledDelta) c.delta = s else c.text = s
+        spilledBytes -= c.spilledLength
+        c.spilledAt = -1
+        c.spilledLength = 0
+        bytes += c.size
+    }
 
+    /**
+     * the text that `c` records, found by walking forward to the nearest change kept in full and then applying diffs back
+     */
+    private fun materialise(c: Change): String {
+        val chain = mutableListOf<Change>()
+        var at: Change = c
+        while (true) {
+            unspill(at)
+            if (at.text != null) break
+            chain.add(at)
+            at = at.newer ?: throw IllegalStateException(" undo history for ${c.box}.${c.prop} is missing the text that it's a diff from")
+        }
+        var t = at.text!!
+        for (i in chain.indices.reversed()) t = patch(t, chain[i].delta!!)
+        return t
     }
 
+    private fun patch(from: String, delta: String) = diff.diff_text2(diff.diff_fromDelta(from, delta))
+
     private fun quantize(time: Long): Long {
         return time / 1000
     }
@@ -68,10 +310,30 @@ class UndoStack {
         @JvmField
         val u  = UndoStack()
 
+        // spill files smaller than this aren't worth compacting
+        private const val MIN_COMPACT = 1L * 1024 * 1024
+
         init {
             RunLoop.main.mainLoop.attach(0, {
                 u.coallesce()
             })
         }
+
+        /**
+         * copies collections (so that later changes to them don't change the history), leaves everything else as it is
+         */
+        fun snapshot(v: Any): Any = when (v) {
+            is List<*> -> java.util.Collections.unmodifiableList(ArrayList(v))
+            is Set<*> -> java.util.Collections.unmodifiableSet(LinkedHashSet(v))
+            is Map<*, *> -> java.util.Collections.unmodifiableMap(LinkedHashMap(v))
+            else -> v
+        }
+
+        fun sizeOf(v: Any): Long = when (v) {
+            is String -> 40 + 2L * v.length
+            is Collection<*> -> 32 + 16L * v.size
+            is Map<*, *> -> 48 + 32L * v.size
+            else -> 32
+        }
     }
 }
\ No newline at end of file
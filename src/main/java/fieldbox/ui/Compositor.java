@@ -5,6 +5,7 @@ import field.linalg.Vec2;
 import field.utility.Dict;
 import field.utility.Log;
 import field.utility.Options;
+import field.utility.Rect;
 import fieldagent.Main;
 
 import java.util.HashMap;
@@ -55,23 +56,107 @@ public class Compositor {
 			if (resizing)
 			{
 				System.out.println(" drawing (resizing) :"+l);
-				l.fbo.draw();
+				l.damageAll = true;
+				l.redraw();
 			}
-			else if (l.needsRedrawing > -1 || fadeup) {
+			else if (l.needsRedrawing > -1 || (fadeup && !l.isStatic)) {
 				Log.log("drawing", () -> " drawing dependancies of " + l);
 				l.drawDependancies();
 				Log.log("drawing", () -> " drawing because dirty " + l);
 //				System.out.println(" redrawing layer "+l.name+" because "+l.needsRedrawing);
-				l.fbo.draw();
+				l.redraw();
 			}
 		}
 
+		// layers that read a static layer have to be drawn again after it has been, or they show it as it was last frame until something else dirties
+		// them (and that can feed other static layers in turn)
+		for (int pass = 0; pass < layers.size() && redrawStaticLayers(); pass++)
+			redrawStaticConsumers();
+
 		if (fadeup) {
 			window.requestRepaint();
 		}
 		resizing = false;
 	}
 
+	/**
+	 * redraws the static layers that something drawn into them has changed, just where it has changed. Layers are usually made in the order that they draw
+	 * into each other, so this is usually a single pass. Returns true if any were redrawn
+	 */
+	protected boolean redrawStaticLayers() {
+		boolean redrawn = false;
+		for (int pass = 0; pass < layers.size(); pass++) {
+			boolean any = false;
+			for (Layer l : layers.values()) {
+				if (!l.isStatic || !damageFromInputs(l, false)) continue;
+
+				Layer finalL = l;
+				Log.log("drawing", () -> " drawing because an input changed " + finalL);
+				l.redraw();
+				any = true;
+			}
+			if (!any) break;
+			redrawn = true;
+		}
+		return redrawn;
+	}
+
+	/**
+	 * redraws the (non static) layers that read a static layer that has been redrawn since they were, just where it has changed
+	 */
+	protected void redrawStaticConsumers() {
+		for (Layer l : layers.values()) {
+			if (l.isStatic || !damageFromInputs(l, true)) continue;
+
+			Log.log("drawing", () -> " drawing because a static input changed " + l);
+			l.redraw();
+		}
+	}
+
+	// adds the damage that l's changed inputs (just its static ones, if staticOnly) have done to it, returning false if none of them have changed
+	private boolean damageFromInputs(Layer l, boolean staticOnly) {
+		boolean changed = false;
+		Rect d = null;
+		for (Map.Entry<Layer, Input> e : l.inputs.entrySet()) {
+			Layer from = e.getKey();
+			Input i = e.getValue();
+			if (from.generation == i.generation || (staticOnly && !from.isStatic)) continue;
+			changed = true;
+			if (from.drawnDamage == null || i.margin < 0) l.damageAll = true;
+			else {
+				// from the input's pixels to ours, plus however far it can spread
+				float s = from.res / (float) l.res;
+				Rect r = from.drawnDamage;
+				d = Rect.union(d, new Rect(r.x * s - i.margin, r.y * s - i.margin, r.w * s + 2 * i.margin, r.h * s + 2 * i.margin));
+			}
+		}
+		if (changed && !l.damageAll && d != null) l.damage = Rect.union(l.damage, d);
+		return changed;
+	}
+
+	private Layer layerFor(Scene s) {
+		for (Layer l : layers.values())
+			if (l.getScene() == s) return l;
+		return null;
+	}
+
+	/**
+	 * makes a blurred copy of `source` at 1/`res` of the window's resolution (2 for a half resolution glow, 4 for quarter): `source` is downsampled
+	 * from its mip chain and then blurred horizontally and vertically, `taps` pixels each way. The layers are all static, so they are redrawn only when
+	 * (and where) `source` changes. Returns the final, blurred, layer, which is bound to texture unit `unit`
+	 */
+	public Layer newBlurredLayer(String name, Layer source, int res, int taps, int unit) {
+		Layer down = newLayer(name + ".down", 0, res).setStatic(true);
+		Layer x = newLayer(name + ".x", 0, res).setStatic(true);
+		Layer y = newLayer(name, unit, res).setStatic(true);
+
+		source.downsampleInto(down);
+		down.blurXInto(taps, x);
+		x.blurYInto(taps, y);
+
+		return y;
+	}
+
 	private FBO newFBO() {
 		return newFBO(0);
 	}
@@ -154,6 +239,16 @@ public class Compositor {
 		}
 	}
 
+	static class Input {
+		long generation = -1;
+		// how far (in pixels of the layer it's drawn into) a change in this input can spread, or -1 for anywhere
+		int margin;
+
+		Input(int margin) {
+			this.margin = margin;
+		}
+	}
+
 	public class Layer {
 		public Map<Layer, Cache<Layer>> dependsOn = new HashMap<>();
 		protected int needsRedrawing = 100;
@@ -163,6 +258,16 @@ public class Compositor {
 		private FBO fbo;
 		private Guard guard;
 
+		// layers that are drawn into this one, see drawInto, blurXInto etc.
+		Map<Layer, Input> inputs = new LinkedHashMap<>();
+		// bumped every time that this layer is drawn, and what we drew (null for all of it)
+		long generation = 0;
+		Rect drawnDamage = null;
+		// what needs drawing next time, in this layer's pixels
+		Rect damage = null;
+		boolean damageAll = false;
+		boolean isStatic = false;
+
 
 		public Layer(int unit) {
 			fbo = newFBO(unit);
@@ -188,13 +293,13 @@ public class Compositor {
 			dependsOn.put(l, new Cache<Layer>(l, x -> x.mod, x -> {
 				x.drawDependancies();
 				Log.log("drawing", () -> "layer:" + x);
-				x.fbo.draw();
+				x.redraw();
 				x.mod++;
 			}));
 			l.dependsOn.put(this, new Cache<Layer>(this, x -> x.mod, x -> {
 				x.drawDependancies();
 				Log.log("drawing", () -> "layer2:" + x);
-				x.fbo.draw();
+				x.redraw();
 				x.mod++;
 			}));
 		}
@@ -207,6 +312,48 @@ public class Compositor {
 		public void dirty() {
 //			System.out.println(" layer "+name+" needs redrawing <- 1");
 			needsRedrawing = 1;
+			damageAll = true;
+		}
+
+		/**
+		 * marks just `area` (in window framebuffer pixels, origin bottom left) of this layer as needing redrawing. Only that part is redrawn (the rest
+		 * is scissored away), as are the parts of any static layers that this layer is drawn into. Calls before the next frame accumulate.
+		 */
+		public void dirty(Rect area) {
+			needsRedrawing = 1;
+			if (damageAll) return;
+			damage = Rect.union(damage, new Rect(area.x / res - 1, area.y / res - 1, area.w / res + 2, area.h / res + 2));
+		}
+
+		/**
+		 * a static layer is kept from frame to frame, and only redrawn when it is dirtied or when a layer that is drawn into it (see drawInto,
+		 * blurXInto and so on) has been redrawn
+		 */
+		public Layer setStatic(boolean isStatic) {
+			this.isStatic = isStatic;
+			if (isStatic) needsRedrawing = Math.min(needsRedrawing, 1);
+			return this;
+		}
+
+		public boolean isStatic() {
+			return isStatic;
+		}
+
+		protected void redraw() {
+			Rect d = damageAll || damage == null ? null : Rect.intersection(damage, new Rect(0, 0, fbo.specification.width, fbo.specification.height));
+			fbo.setDamage(d);
+			fbo.draw();
+			drawnDamage = d;
+			damage = null;
+			damageAll = false;
+			generation++;
+			for (Map.Entry<Layer, Input> e : inputs.entrySet())
+				e.getValue().generation = e.getKey().generation;
+		}
+
+		private void drawsInto(Scene s, int margin) {
+			Layer into = layerFor(s);
+			if (into != null) into.inputs.put(this, new Input(margin));
 		}
 
 		public Scene getScene() {
@@ -245,6 +392,7 @@ public class Compositor {
 				    "\n" +
 				    "}");
 			s.attach(mesh);
+			drawsInto(s, 1);
 			shader.attach(new Uniform<Float>("mainAlpha", () -> fadeup ? 0.1f : 1f));
 			mesh.attach(shader);
 			guard = new Guard(() -> fbo, (i) -> true);
@@ -289,6 +437,8 @@ public class Compositor {
 			shader.attach(new Uniform<Integer>("blur", () -> underlayer.fbo.specification.unit).setIntOnly(true));
 
 			s.attach(mesh);
+			drawsInto(s, 1);
+			underlayer.drawsInto(s, 1);
 			mesh.attach(shader);
 			guard = new Guard(() -> fbo, (i) -> true);
 			mesh.attach(guard);
@@ -365,10 +515,122 @@ public class Compositor {
 				    "}");
 			shader.attach(new Uniform<Vec2>("bounds", () -> new Vec2(fbo.specification.width - 1, fbo.specification.height - 1)));
 			s.attach(mesh);
+			// these offsets are in texture coordinates, so how far they reach depends on the size of everything
+			drawsInto(s, taps == 0 ? 1 : -1);
+			mesh.attach(shader);
+			guard = new Guard(() -> fbo, (i) -> true);
+			mesh.attach(guard);
+
+		}
+
+		/**
+		 * draws this layer into `into`, which is usually at a lower resolution, by reading the level of this layer's mip chain that matches
+		 * `into`'s resolution --- a proper box filtered downsample, rather than sampling the full resolution texture sparsely
+		 */
+		public void downsampleInto(Layer into) {
+			int lod = lod(into);
+			BaseMesh mesh = quad();
+			Shader shader = quadShader("#version 410\n" +
+				    "layout(location=0) out vec4 _output;\n" +
+				    "uniform sampler2D te;\n" +
+				    "in vec2 tc;\n" +
+				    "void main()\n" +
+				    "{\n" +
+				    "	_output = vec4(textureLod(te, tc, " + lod + ".0).xyz, 1);\n" +
+				    "}");
+			shader.attach(new Uniform<Integer>("te", () -> fbo.specification.unit).setIntOnly(true));
+			into.getScene()
+			    .attach(mesh);
+			into.inputs.put(this, new Input(1));
 			mesh.attach(shader);
 			guard = new Guard(() -> fbo, (i) -> true);
 			mesh.attach(guard);
+		}
+
+		/**
+		 * blurs this layer horizontally into `into`, `taps` of `into`'s pixels each way, reading from the level of this layer's mip chain that matches
+		 * `into`'s resolution
+		 */
+		public void blurXInto(int taps, Layer into) {
+			blurInto(taps, into, "vec2(i,0)");
+		}
+
+		/**
+		 * blurs this layer vertically into `into`, `taps` of `into`'s pixels each way, reading from the level of this layer's mip chain that matches
+		 * `into`'s resolution
+		 */
+		public void blurYInto(int taps, Layer into) {
+			blurInto(taps, into, "vec2(0,i)");
+		}
+
+		protected void blurInto(int taps, Layer into, String access) {
+			int lod = lod(into);
+			BaseMesh mesh = quad();
+
+			String we = "";
+			float[] weight = new float[taps * 2 + 1];
+			float tot = 0;
+			for (int i = -taps; i < taps + 1; i++) {
+				weight[i + taps] = (float) Math.exp(-Math.pow(1.1f * i / (float) (taps + 1), 2));
+				tot += weight[i + taps];
+			}
+			for (int i = -taps; i < taps + 1; i++) {
+				we = we + (weight[i + taps] / tot) + ",";
+			}
+			we = we.substring(0, we.length() - 1);
+
+			Shader shader = quadShader("#version 410\n" +
+				    "layout(location=0) out vec4 _output;\n" +
+				    "uniform sampler2D te;\n" +
+				    "uniform vec2 texel;\n" +
+				    "in vec2 tc;\n" +
+				    "void main()\n" +
+				    "{\n" +
+				    "	vec4 t = vec4(0);\n" +
+				    "	const float[" + (taps * 2 + 1) + "] we = float[" + (taps * 2 + 1) + "](" + we + ");\n" +
+				    "	int n = " + taps + ";\n" +
+				    "	for(int i=-n;i<n+1;i++) t+=we[i+n]*textureLod(te, tc+" + access + "*texel, " + lod + ".0);\n" +
+				    "	_output = vec4(t.xyz,1);\n" +
+				    "}");
+			shader.attach(new Uniform<Integer>("te", () -> fbo.specification.unit).setIntOnly(true));
+			shader.attach(new Uniform<Vec2>("texel", () -> new Vec2(1f / into.fbo.specification.width, 1f / into.fbo.specification.height)));
+			into.getScene()
+			    .attach(mesh);
+			into.inputs.put(this, new Input(taps + 1));
+			mesh.attach(shader);
+			guard = new Guard(() -> fbo, (i) -> true);
+			mesh.attach(guard);
+		}
+
+		private int lod(Layer into) {
+			int lod = 0;
+			while ((res << (lod + 1)) <= into.res) lod++;
+			return lod;
+		}
 
+		private BaseMesh quad() {
+			BaseMesh mesh = BaseMesh.triangleList(4, 2);
+			MeshBuilder mb = new MeshBuilder(mesh);
+			mb.v(-1, -1, 0);
+			mb.v(1, -1, 0);
+			mb.v(1, 1, 0);
+			mb.v(-1, 1, 0);
+			mb.e_quad(0, 1, 2, 3);
+			return mesh;
+		}
+
+		private Shader quadShader(String fragment) {
+			Shader shader = new Shader();
+			shader.addSource(Shader.Type.vertex, "#version 410\n" +
+				    "layout(location=0) in vec3 position;\n" +
+				    "out vec2 tc;\n" +
+				    "void main()\n" +
+				    "{\n" +
+				    "   gl_Position =  vec4(position.xy, 0.5, 1.0);\n" +
+				    "	tc = vec2(position.xy+vec2(1,1))/2;\n" +
+				    "}");
+			shader.addSource(Shader.Type.fragment, fragment);
+			return shader;
 		}
 
 		@Override
@@ -0,0 +1,444 @@
+package marc.math;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * An approximate nearest neighbour index (a hierarchical navigable small world graph, Malkov and Yashunin) for high dimensional points such as 128
+ * dimensional feature descriptors, where a k-d tree degenerates to checking nearly everything.
+ * <p>
+ * Every point is a node in a graph on level 0, and a random, exponentially thinning, subset of them are also on levels 1, 2 ... . A query walks greedily
+ * down from the top level and then does a best first search of level 0 keeping the `ef` best candidates; larger `ef` is slower and more accurate. Points
+ * are added one at a time, so the index can grow while it's in use (but adding isn't safe to do at the same time as querying). Vectors are held in one
+ * flat float array.
+ */
+public class Hnsw {
+
+    public final int dim;
+    public final int m;
+    public final int efConstruction;
+
+    /**
+     * how many candidates a query keeps (at least k)
+     */
+    public int ef = 64;
+
+    private final int m0;
+    private final double levelScale;
+    private final Random random;
+
+    private float[] data = new float[0];
+    private int count = 0;
+
+    // neighbours on level 0, 1 + m0 ints per node (the count, then the neighbours)
+    private int[] links0 = new int[0];
+    // neighbours on the levels above 0, for the nodes that have any: 1 + m ints per level
+    private int[][] links = new int[0][];
+    private int[] level = new int[0];
+
+    private int entry = -1;
+    private int top = -1;
+
+    private final ThreadLocal<Search> search = ThreadLocal.withInitial(Search::new);
+
+    public Hnsw(int dim) {
+        this(dim, 16, 100, 42);
+    }
+
+    /**
+     * an empty index for points of dimension `dim`, where nodes have up to `m` neighbours (2m on level 0) and insertion searches `efConstruction`
+     * candidates
+     */
+    public Hnsw(int dim, int m, int efConstruction, long seed) {
+        this.dim = dim;
+        this.m = m;
+        this.m0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelScale = 1 / Math.log(m);
+        this.random = new Random(seed);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * adds the first `count` points of `points`
+     */
+    public Hnsw addAll(float[] points, int count) {
+        reserve(this.count + count);
+        for (int i = 0; i < count; i++)
+            add(points, i * dim);
+        return this;
+    }
+
+    /**
+     * adds the point points[offset..offset+dim), returning its index
+     */
+    public int add(float[] points, int offset) {
+        reserve(count + 1);
+        int n = count;
+        System.arraycopy(points, offset, data, n * dim, dim);
+        int l = (int) (-Math.log(1 - random.nextDouble()) * levelScale);
+        level[n] = l;
+        links0[n * (1 + m0)] = 0;
+        if (l > 0) links[n] = new int[l * (1 + m)];
+        count++;
+
+        if (entry == -1) {
+            entry = n;
+            top = l;
+            return n;
+        }
+
+        Search s = search.get();
+        int at = entry;
+        for (int lv = top; lv > l; lv--)
+            at = greedy(data, n * dim, at, lv);
+
+        int[] entries = {at};
+        for (int lv = Math.min(l, top); lv >= 0; lv--) {
+            s.layer(this, data, n * dim, entries, efConstruction, lv);
+            int max = lv == 0 ? m0 : m;
+            int[] chosen = s.select(this, Math.min(m, max));
+
+            int[] list = list(n, lv);
+            int base = base(n, lv);
+            list[base] = chosen.length;
+            System.arraycopy(chosen, 0, list, base + 1, chosen.length);
+
+            for (int c : chosen)
+                connect(c, n, lv, max);
+            entries = s.ordered();
+        }
+
+        if (l > top) {
+            top = l;
+            entry = n;
+        }
+        return n;
+    }
+
+    public int add(float... point) {
+        return add(point, 0);
+    }
+
+    private void reserve(int n) {
+        if (n <= level.length) return;
+        int c = Math.max(n, level.length * 2);
+        data = Arrays.copyOf(data, c * dim);
+        links0 = Arrays.copyOf(links0, c * (1 + m0));
+        links = Arrays.copyOf(links, c);
+        level = Arrays.copyOf(level, c);
+    }
+
+    private int[] list(int node, int lv) {
+        return lv == 0 ? links0 : links[node];
+    }
+
+    private int base(int node, int lv) {
+        return lv == 0 ? node * (1 + m0) : (lv - 1) * (1 + m);
+    }
+
+    /**
+     * adds `n` to the neighbours of `c`, pruning them (with the same heuristic as insertion) if there are too many
+     */
+    private void connect(int c, int n, int lv, int max) {
+        int[] list = list(c, lv);
+        int base = base(c, lv);
+        int k = list[base];
+        if (k < max) {
+            list[base + 1 + k] = n;
+            list[base] = k + 1;
+            return;
+        }
+
+        int[] candidates = new int[k + 1];
+        float[] dist = new float[k + 1];
+        for (int i = 0; i < k; i++)
+            candidates[i] = list[base + 1 + i];
+        candidates[k] = n;
+        for (int i = 0; i <= k; i++)
+            dist[i] = distance(data, c * dim, candidates[i]);
+        sort(candidates, dist, k + 1);
+        int kept = heuristic(candidates, dist, k + 1, max);
+        list[base] = kept;
+        System.arraycopy(candidates, 0, list, base + 1, kept);
+    }
+
+    /**
+     * keeps, in order, candidates that are nearer to the query than to any candidate already kept (which spreads the neighbours out in different
+     * directions), up to max; the candidates must be nearest first
+     */
+    private int heuristic(int[] candidates, float[] dist, int n, int max) {
+        int kept = 0;
+        for (int i = 0; i < n && kept < max; i++) {
+            int c = candidates[i];
+            boolean good = true;
+            for (int j = 0; j < kept && good; j++)
+                if (distance(data, c * dim, candidates[j]) < dist[i]) good = false;
+            if (good) {
+                candidates[kept] = c;
+                dist[kept] = dist[i];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    private int greedy(float[] q, int qo, int at, int lv) {
+        float best = distance(q, qo, at);
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            int[] list = list(at, lv);
+            int base = base(at, lv);
+            for (int i = 0; i < list[base]; i++) {
+                int c = list[base + 1 + i];
+                float d = distance(q, qo, c);
+                if (d < best) {
+                    best = d;
+                    at = c;
+                    moved = true;
+                }
+            }
+        }
+        return at;
+    }
+
+    /**
+     * the (approximately) `k` nearest points to q[offset..offset+dim), nearest first, written to out[outOffset..outOffset+k) with their squared
+     * distances in dist[distOffset..) (if dist isn't null). Returns how many were found; the rest of the k slots are set to -1
+     */
+    public int knn(float[] q, int offset, int k, int[] out, int outOffset, float[] dist, int distOffset) {
+        int found = 0;
+        if (entry != -1) {
+            int at = entry;
+            for (int lv = top; lv > 0; lv--)
+                at = greedy(q, offset, at, lv);
+            Search s = search.get();
+            s.layer(this, q, offset, new int[]{at}, Math.max(ef, k), 0);
+            found = s.nearest(out, outOffset, dist, distOffset, k);
+        }
+        for (int i = found; i < k; i++) {
+            out[outOffset + i] = -1;
+            if (dist != null) dist[distOffset + i] = Float.POSITIVE_INFINITY;
+        }
+        return found;
+    }
+
+    /**
+     * `count` knn queries at once, in parallel. Query i is queries[i*dim..) and its answers go to out[i*k..i*k+k) (and dist[i*k..), if dist isn't
+     * null)
+     */
+    public void knn(float[] queries, int count, int k, int[] out, float[] dist) {
+        IntStream.range(0, count)
+                 .parallel()
+                 .forEach(i -> knn(queries, i * dim, k, out, i * k, dist, i * k));
+    }
+
+    private float distance(float[] q, int qo, int node) {
+        float[] d = data;
+        int o = node * dim;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        // four sums, so that the adds don't all wait on each other
+        for (; i + 3 < dim; i += 4) {
+            float a = q[qo + i] - d[o + i];
+            float b = q[qo + i + 1] - d[o + i + 1];
+            float c = q[qo + i + 2] - d[o + i + 2];
+            float e = q[qo + i + 3] - d[o + i + 3];
+            s0 += a * a;
+            s1 += b * b;
+            s2 += c * c;
+            s3 += e * e;
+        }
+        for (; i < dim; i++) {
+            float a = q[qo + i] - d[o + i];
+            s0 += a * a;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static private void sort(int[] ids, float[] dist, int n) {
+        // insertion sort, these are short
+        for (int i = 1; i < n; i++) {
+            int id = ids[i];
+            float d = dist[i];
+            int j = i - 1;
+            while (j >= 0 && dist[j] > d) {
+                ids[j + 1] = ids[j];
+                dist[j + 1] = dist[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            dist[j + 1] = d;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Hnsw(" + dim + "d, " + count + " points, " + (top + 1) + " levels)";
+    }
+
+    /**
+     * the per thread state of a search: a visited mark per node, a min-heap of candidates to expand and a max-heap of the best found so far
+     */
+    static private class Search {
+        int[] visited = new int[0];
+        int mark = 0;
+
+        int[] candidates = new int[64];
+        float[] candidateDist = new float[64];
+        int candidateCount;
+
+        int[] results = new int[64];
+        float[] resultDist = new float[64];
+        int resultCount;
+
+        void layer(Hnsw h, float[] q, int qo, int[] entries, int ef, int lv) {
+            if (visited.length < h.count) visited = Arrays.copyOf(visited, Math.max(h.count, visited.length * 2));
+            if (++mark == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                mark = 1;
+            }
+            candidateCount = 0;
+            resultCount = 0;
+
+            for (int e : entries) {
+                visited[e] = mark;
+                float d = h.distance(q, qo, e);
+                pushCandidate(e, d);
+                pushResult(e, d, ef);
+            }
+
+            while (candidateCount > 0) {
+                int c = candidates[0];
+                float cd = candidateDist[0];
+                popCandidate();
+                if (resultCount >= ef && cd > resultDist[0]) break;
+
+                int[] list = h.list(c, lv);
+                int base = h.base(c, lv);
+                int n = list[base];
+                for (int i = 0; i < n; i++) {
+                    int e = list[base + 1 + i];
+                    if (visited[e] == mark) continue;
+                    visited[e] = mark;
+                    float d = h.distance(q, qo, e);
+                    if (resultCount < ef || d < resultDist[0]) {
+                        pushCandidate(e, d);
+                        pushResult(e, d, ef);
+                    }
+                }
+            }
+        }
+
+        /**
+         * the results, nearest first, as a new array
+         */
+        int[] ordered() {
+            int[] ids = Arrays.copyOf(results, resultCount);
+            float[] d = Arrays.copyOf(resultDist, resultCount);
+            sort(ids, d, resultCount);
+            return ids;
+        }
+
+        /**
+         * up to `max` neighbours for a new node from the results, chosen by the heuristic
+         */
+        int[] select(Hnsw h, int max) {
+            int[] ids = Arrays.copyOf(results, resultCount);
+            float[] d = Arrays.copyOf(resultDist, resultCount);
+            sort(ids, d, resultCount);
+            int kept = h.heuristic(ids, d, resultCount, max);
+            return Arrays.copyOf(ids, kept);
+        }
+
+        int nearest(int[] out, int o, float[] dist, int d, int k) {
+            // pop the max-heap down to k, then out from the back
+            while (resultCount > k) popResult();
+            int n = resultCount;
+            for (int i = n - 1; i >= 0; i--) {
+                out[o + i] = results[0];
+                if (dist != null) dist[d + i] = resultDist[0];
+                popResult();
+            }
+            return n;
+        }
+
+        void pushCandidate(int id, float d) {
+            if (candidateCount == candidates.length) {
+                candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                candidateDist = Arrays.copyOf(candidateDist, candidateCount * 2);
+            }
+            int at = candidateCount++;
+            while (at > 0) {
+                int p = (at - 1) / 2;
+                if (candidateDist[p] <= d) break;
+                candidates[at] = candidates[p];
+                candidateDist[at] = candidateDist[p];
+                at = p;
+            }
+            candidates[at] = id;
+            candidateDist[at] = d;
+        }
+
+        void popCandidate() {
+            int n = --candidateCount;
+            int id = candidates[n];
+            float d = candidateDist[n];
+            int at = 0;
+            while (true) {
+                int l = 2 * at + 1;
+                if (l >= n) break;
+                int r = l + 1;
+                int m = r < n && candidateDist[r] < candidateDist[l] ? r : l;
+                if (candidateDist[m] >= d) break;
+                candidates[at] = candidates[m];
+                candidateDist[at] = candidateDist[m];
+                at = m;
+            }
+            candidates[at] = id;
+            candidateDist[at] = d;
+        }
+
+        void pushResult(int id, float d, int ef) {
+            if (resultCount == results.length) {
+                results = Arrays.copyOf(results, resultCount * 2);
+                resultDist = Arrays.copyOf(resultDist, resultCount * 2);
+            }
+            int at = resultCount++;
+            while (at > 0) {
+                int p = (at - 1) / 2;
+                if (resultDist[p] >= d) break;
+                results[at] = results[p];
+                resultDist[at] = resultDist[p];
+                at = p;
+            }
+            results[at] = id;
+            resultDist[at] = d;
+            if (resultCount > ef) popResult();
+        }
+
+        void popResult() {
+            int n = --resultCount;
+            int id = results[n];
+            float d = resultDist[n];
+            int at = 0;
+            while (true) {
+                int l = 2 * at + 1;
+                if (l >= n) break;
+                int r = l + 1;
+                int m = r < n && resultDist[r] > resultDist[l] ? r : l;
+                if (resultDist[m] <= d) break;
+                results[at] = results[m];
+                resultDist[at] = resultDist[m];
+                at = m;
+            }
+            results[at] = id;
+            resultDist[at] = d;
+        }
+    }
+}
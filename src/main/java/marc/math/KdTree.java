@@ -0,0 +1,397 @@
+package marc.math;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * An exact k-d tree over points of any dimension, held in flat float arrays.
+ * <p>
+ * Trees are bulk loaded: points are copied, reordered so that every node's points are contiguous, and split at the median of their widest
+ * dimension. Nodes are implicit (node i covers a range of the reordered points and has children 2i+1 and 2i+2), so the only other storage is a
+ * split dimension and value per node.
+ * <p>
+ * Points added later with `add` go into a pending list of at most PENDING points, searched by brute force. When that fills it is built into a
+ * tree of its own, together with any of the smaller trees that it would otherwise outgrow (Bentley and Saxe's logarithmic method). The trees grow
+ * like the digits of a binary counter, so there are only ever O(log n) of them to search and each point is rebuilt O(log n) times.
+ * <p>
+ * Queries write into caller provided arrays; the batch versions run queries in parallel. Queries can run concurrently with each other, but not with
+ * `add`.
+ */
+public class KdTree {
+
+    static public final int LEAF = 8;
+    static public final int PENDING = 128;
+
+    public final int dim;
+
+    // largest first
+    private Tree[] trees = new Tree[0];
+
+    private float[] pending = new float[0];
+    private int[] pendingIds = new int[0];
+    private int pendingCount = 0;
+
+    private int count = 0;
+
+    private class Tree {
+        final float[] data;   // points in tree order
+        final int[] ids;      // the index of each point in tree order
+        final int size;
+
+        final short[] splitDim;
+        final float[] splitValue;
+
+        /**
+         * a tree over points[i*dim..) for i in order[0..n), which is reordered. `ids` gives the index of each of `points`
+         */
+        Tree(float[] points, int[] order, int[] ids, int n) {
+            int levels = 0;
+            for (int s = n; s > LEAF; s = (s + 1) / 2)
+                levels++;
+            splitDim = new short[(1 << (levels + 1)) - 1];
+            splitValue = new float[splitDim.length];
+
+            split(points, order, 0, 0, n);
+
+            float[] d = new float[n * dim];
+            int[] id = new int[n];
+            IntStream.range(0, n)
+                     .parallel()
+                     .forEach(i -> {
+                         System.arraycopy(points, order[i] * dim, d, i * dim, dim);
+                         id[i] = ids == null ? order[i] : ids[order[i]];
+                     });
+            data = d;
+            this.ids = id;
+            size = n;
+        }
+
+        private void split(float[] points, int[] order, int node, int lo, int hi) {
+            if (hi - lo <= LEAF) return;
+
+            // the widest dimension
+            int best = 0;
+            float extent = -1;
+            for (int k = 0; k < dim; k++) {
+                float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                for (int i = lo; i < hi; i++) {
+                    float v = points[order[i] * dim + k];
+                    if (v < min) min = v;
+                    if (v > max) max = v;
+                }
+                if (max - min > extent) {
+                    extent = max - min;
+                    best = k;
+                }
+            }
+
+            int mid = (lo + hi) >>> 1;
+            select(points, order, best, lo, hi - 1, mid);
+            splitDim[node] = (short) best;
+            splitValue[node] = points[order[mid] * dim + best];
+
+            if (hi - lo > 1 << 16) {
+                IntStream.of(0, 1)
+                         .parallel()
+                         .forEach(c -> {
+                             if (c == 0) split(points, order, 2 * node + 1, lo, mid);
+                             else split(points, order, 2 * node + 2, mid, hi);
+                         });
+            } else {
+                split(points, order, 2 * node + 1, lo, mid);
+                split(points, order, 2 * node + 2, mid, hi);
+            }
+        }
+
+        int knn(int node, int lo, int hi, float[] q, int qo, int k, int[] out, int o, float[] dist, int d, int c) {
+            if (hi - lo <= LEAF) {
+                for (int i = lo; i < hi; i++)
+                    c = offer(i, ids[i], data, q, qo, k, out, o, dist, d, c);
+                return c;
+            }
+            int mid = (lo + hi) >>> 1;
+            float diff = q[qo + splitDim[node]] - splitValue[node];
+            if (diff < 0) {
+                c = knn(2 * node + 1, lo, mid, q, qo, k, out, o, dist, d, c);
+                if (c < k || diff * diff < dist[d]) c = knn(2 * node + 2, mid, hi, q, qo, k, out, o, dist, d, c);
+            } else {
+                c = knn(2 * node + 2, mid, hi, q, qo, k, out, o, dist, d, c);
+                if (c < k || diff * diff < dist[d]) c = knn(2 * node + 1, lo, mid, q, qo, k, out, o, dist, d, c);
+            }
+            return c;
+        }
+
+        int radius(int node, int lo, int hi, float[] q, int qo, float r2, int[] out, int o, int max, int c) {
+            if (hi - lo <= LEAF) {
+                for (int i = lo; i < hi; i++)
+                    if (distance(data, i * dim, q, qo) <= r2) {
+                        if (c < max) out[o + c] = ids[i];
+                        c++;
+                    }
+                return c;
+            }
+            int mid = (lo + hi) >>> 1;
+            float diff = q[qo + splitDim[node]] - splitValue[node];
+            if (diff <= 0 || diff * diff <= r2) c = radius(2 * node + 1, lo, mid, q, qo, r2, out, o, max, c);
+            if (diff >= 0 || diff * diff <= r2) c = radius(2 * node + 2, mid, hi, q, qo, r2, out, o, max, c);
+            return c;
+        }
+    }
+
+    public KdTree(int dim) {
+        if (dim < 1 || dim > Short.MAX_VALUE) throw new IllegalArgumentException(" dimension must be between 1 and " + Short.MAX_VALUE + ", got " + dim);
+        this.dim = dim;
+    }
+
+    /**
+     * a tree over the first `count` points of `points` (x, y, ... x, y, ...), which are copied. Point i has index i
+     */
+    public KdTree(int dim, float[] points, int count) {
+        this(dim);
+        build(points, count);
+    }
+
+    /**
+     * replaces everything in this tree with the first `count` points of `points`
+     */
+    public KdTree build(float[] points, int count) {
+        if (points.length < count * dim) throw new IllegalArgumentException(" need " + count * dim + " floats for " + count + " points, got " + points.length);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        trees = count == 0 ? new Tree[0] : new Tree[]{new Tree(points, order, null, count)};
+        this.count = count;
+        pendingCount = 0;
+        return this;
+    }
+
+    /**
+     * quickselect: rearranges order[lo..hi] so that order[k] holds the point that would be there if they were sorted along `axis`
+     */
+    private void select(float[] points, int[] order, int axis, int lo, int hi, int k) {
+        while (hi > lo) {
+            int m = (lo + hi) >>> 1;
+            // median of three
+            if (key(points, order, lo, axis) > key(points, order, m, axis)) swap(order, lo, m);
+            if (key(points, order, lo, axis) > key(points, order, hi, axis)) swap(order, lo, hi);
+            if (key(points, order, m, axis) > key(points, order, hi, axis)) swap(order, m, hi);
+            float pivot = key(points, order, m, axis);
+
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (key(points, order, i, axis) < pivot) i++;
+                while (key(points, order, j, axis) > pivot) j--;
+                if (i <= j) swap(order, i++, j--);
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    private float key(float[] points, int[] order, int i, int axis) {
+        return points[order[i] * dim + axis];
+    }
+
+    static private void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * adds the point at points[offset..offset+dim), returning its index
+     */
+    public int add(float[] points, int offset) {
+        if (pendingCount == pendingIds.length) {
+            int c = Math.min(PENDING, Math.max(16, pendingCount * 2));
+            pending = Arrays.copyOf(pending, c * dim);
+            pendingIds = Arrays.copyOf(pendingIds, c);
+        }
+        System.arraycopy(points, offset, pending, pendingCount * dim, dim);
+        pendingIds[pendingCount++] = count;
+
+        if (pendingCount == PENDING) merge();
+        return count++;
+    }
+
+    public int add(float... point) {
+        return add(point, 0);
+    }
+
+    /**
+     * builds the pending points, and the smallest trees for as long as they are no bigger than what's been gathered so far, into one new tree
+     */
+    private void merge() {
+        int n = pendingCount;
+        int keep = trees.length;
+        while (keep > 0 && trees[keep - 1].size <= n)
+            n += trees[--keep].size;
+
+        float[] all = new float[n * dim];
+        int[] ids = new int[n];
+        int at = 0;
+        for (int t = keep; t < trees.length; t++) {
+            Tree tt = trees[t];
+            System.arraycopy(tt.data, 0, all, at * dim, tt.size * dim);
+            System.arraycopy(tt.ids, 0, ids, at, tt.size);
+            at += tt.size;
+        }
+        System.arraycopy(pending, 0, all, at * dim, pendingCount * dim);
+        System.arraycopy(pendingIds, 0, ids, at, pendingCount);
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+
+        Tree[] t = Arrays.copyOf(trees, keep + 1);
+        t[keep] = new Tree(all, order, ids, n);
+        trees = t;
+        pendingCount = 0;
+    }
+
+    /**
+     * the number of points in this tree
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * the index of the point nearest q[offset..offset+dim), or -1 if there are no points
+     */
+    public int nearest(float[] q, int offset) {
+        int[] i = {-1};
+        float[] d = {0};
+        knn(q, offset, 1, i, 0, d, 0);
+        return i[0];
+    }
+
+    /**
+     * the `k` nearest points to q[offset..offset+dim), nearest first, written to out[outOffset..outOffset+k) with their squared distances in
+     * dist[distOffset..) (if dist isn't null). Returns how many were found; the rest of the k slots are set to -1
+     */
+    public int knn(float[] q, int offset, int k, int[] out, int outOffset, float[] dist, int distOffset) {
+        if (dist == null) {
+            dist = new float[k];
+            distOffset = 0;
+        }
+        int c = 0;
+        for (Tree t : trees)
+            c = t.knn(0, 0, t.size, q, offset, k, out, outOffset, dist, distOffset, c);
+        for (int i = 0; i < pendingCount; i++)
+            c = offer(i, pendingIds[i], pending, q, offset, k, out, outOffset, dist, distOffset, c);
+
+        // heap to ascending order
+        for (int n = c - 1; n > 0; n--) {
+            swap(out, outOffset, outOffset + n);
+            swap(dist, distOffset, distOffset + n);
+            down(out, outOffset, dist, distOffset, 0, n);
+        }
+        for (int i = c; i < k; i++) {
+            out[outOffset + i] = -1;
+            dist[distOffset + i] = Float.POSITIVE_INFINITY;
+        }
+        return c;
+    }
+
+    /**
+     * offers point `i` of `from` to a max-heap of the best `k` so far, which has `c` entries, returning the new number of entries
+     */
+    private int offer(int i, int id, float[] from, float[] q, int qo, int k, int[] out, int o, float[] dist, int d, int c) {
+        float s = distance(from, i * dim, q, qo);
+        if (c < k) {
+            // sift up
+            int at = c;
+            while (at > 0) {
+                int p = (at - 1) / 2;
+                if (dist[d + p] >= s) break;
+                out[o + at] = out[o + p];
+                dist[d + at] = dist[d + p];
+                at = p;
+            }
+            out[o + at] = id;
+            dist[d + at] = s;
+            return c + 1;
+        }
+        if (s >= dist[d]) return c;
+        out[o] = id;
+        dist[d] = s;
+        down(out, o, dist, d, 0, c);
+        return c;
+    }
+
+    static private void down(int[] out, int o, float[] dist, int d, int at, int n) {
+        int id = out[o + at];
+        float s = dist[d + at];
+        while (true) {
+            int l = 2 * at + 1;
+            if (l >= n) break;
+            int r = l + 1;
+            int m = r < n && dist[d + r] > dist[d + l] ? r : l;
+            if (dist[d + m] <= s) break;
+            out[o + at] = out[o + m];
+            dist[d + at] = dist[d + m];
+            at = m;
+        }
+        out[o + at] = id;
+        dist[d + at] = s;
+    }
+
+    static private void swap(float[] a, int i, int j) {
+        float t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    private float distance(float[] p, int po, float[] q, int qo) {
+        float s = 0;
+        for (int k = 0; k < dim; k++) {
+            float e = p[po + k] - q[qo + k];
+            s += e * e;
+        }
+        return s;
+    }
+
+    /**
+     * the points within `radius` of q[offset..offset+dim), in no particular order, written to out[outOffset..outOffset+max). Returns how many there
+     * are, which can be more than `max`
+     */
+    public int radius(float[] q, int offset, float radius, int[] out, int outOffset, int max) {
+        float r2 = radius * radius;
+        int c = 0;
+        for (Tree t : trees)
+            c = t.radius(0, 0, t.size, q, offset, r2, out, outOffset, max, c);
+        for (int i = 0; i < pendingCount; i++)
+            if (distance(pending, i * dim, q, offset) <= r2) {
+                if (c < max) out[outOffset + c] = pendingIds[i];
+                c++;
+            }
+        return c;
+    }
+
+    /**
+     * `count` knn queries at once, in parallel. Query i is queries[i*dim..) and its answers go to out[i*k..i*k+k) (and dist[i*k..), if dist isn't
+     * null)
+     */
+    public void knn(float[] queries, int count, int k, int[] out, float[] dist) {
+        IntStream.range(0, count)
+                 .parallel()
+                 .forEach(i -> knn(queries, i * dim, k, out, i * k, dist, i * k));
+    }
+
+    /**
+     * `count` radius queries at once, in parallel. The answers to query i go to out[i*max..i*max+max), and how many there are (which can be more
+     * than max) to counts[i]
+     */
+    public void radius(float[] queries, int count, float radius, int[] out, int max, int[] counts) {
+        IntStream.range(0, count)
+                 .parallel()
+                 .forEach(i -> counts[i] = radius(queries, i * dim, radius, out, i * max, max));
+    }
+
+    @Override
+    public String toString() {
+        return "KdTree(" + dim + "d, " + count + " points, in " + trees.length + " trees and " + pendingCount + " pending)";
+    }
+}
@@ -0,0 +1,339 @@
+package marc.math;
+
+import field.linalg.Vec2;
+import field.linalg.Vec3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * A pure Java stand in for Flann, with the same build2d / build3d / build128d and find* methods: 2d and 3d points go into an (exact) KdTree, 128d
+ * descriptors into an (approximate) Hnsw graph. There's no native library to load, and on top of Flann's methods there are `add*` methods that grow
+ * the index, and batch knn and radius queries that run in parallel and write into arrays that the caller provides.
+ */
+public class SpatialIndex {
+
+    private KdTree tree;
+    private Hnsw graph;
+    private int dim = 0;
+
+    private final ThreadLocal<float[]> query = ThreadLocal.withInitial(() -> new float[128]);
+
+    public SpatialIndex() {
+
+    }
+
+    public <T> SpatialIndex build2d(List<T> d, Function<T, Vec2> t) {
+        float[] f = new float[d.size() * 2];
+        int i = 0;
+        for (T dd : d) {
+            Vec2 v = t.apply(dd);
+            f[i++] = (float) v.x;
+            f[i++] = (float) v.y;
+        }
+        return build(f, d.size(), 2);
+    }
+
+    public <T> SpatialIndex build3d(List<T> d, Function<T, Vec3> t) {
+        float[] f = new float[d.size() * 3];
+        int i = 0;
+        for (T dd : d) {
+            Vec3 v = t.apply(dd);
+            f[i++] = (float) v.x;
+            f[i++] = (float) v.y;
+            f[i++] = (float) v.z;
+        }
+        return build(f, d.size(), 3);
+    }
+
+    public <T> SpatialIndex build128d(List<T> d, Function<T, float[]> t) {
+        float[] f = new float[d.size() * 128];
+        int i = 0;
+        for (T dd : d) {
+            float[] v = t.apply(dd);
+            if (v.length != 128)
+                throw new IllegalArgumentException(v.length + "!=128");
+            System.arraycopy(v, 0, f, i, 128);
+            i += 128;
+        }
+        return build(f, d.size(), 128);
+    }
+
+    /**
+     * builds an index over the first `count` points of `points`: a KdTree for up to 16 dimensions, an Hnsw graph above that
+     */
+    public SpatialIndex build(float[] points, int count, int dim) {
+        this.dim = dim;
+        if (dim <= 16) {
+            tree = new KdTree(dim, points, count);
+            graph = null;
+        } else {
+            graph = new Hnsw(dim).addAll(points, count);
+            tree = null;
+        }
+        return this;
+    }
+
+    public int add2(Vec2 p) {
+        check(2);
+        return tree.add((float) p.x, (float) p.y);
+    }
+
+    public int add3(Vec3 p) {
+        check(3);
+        return tree.add((float) p.x, (float) p.y, (float) p.z);
+    }
+
+    public int add128(float[] p) {
+        check(128);
+        return graph.add(p, 0);
+    }
+
+    public int size() {
+        return tree != null ? tree.size() : graph != null ? graph.size() : 0;
+    }
+
+    public KdTree getTree() {
+        return tree;
+    }
+
+    public Hnsw getGraph() {
+        return graph;
+    }
+
+    public int find2(Vec2 p) {
+        check(2);
+        float[] q = query.get();
+        q[0] = (float) p.x;
+        q[1] = (float) p.y;
+        return tree.nearest(q, 0);
+    }
+
+    public int find3(Vec3 p) {
+        check(3);
+        float[] q = query.get();
+        q[0] = (float) p.x;
+        q[1] = (float) p.y;
+        q[2] = (float) p.z;
+        return tree.nearest(q, 0);
+    }
+
+    public List<Integer> find2(Vec2 p, int n) {
+        return asList(find2(p, n, null));
+    }
+
+    public List<Integer> find3(Vec3 p, int n) {
+        return asList(find3(p, n, null));
+    }
+
+    public int[] find2(Vec2 p, int n, int[] r) {
+        check(2);
+        if (r == null || r.length != n) r = new int[n];
+        float[] q = query.get();
+        q[0] = (float) p.x;
+        q[1] = (float) p.y;
+        tree.knn(q, 0, n, r, 0, null, 0);
+        return r;
+    }
+
+    public int[] find3(Vec3 p, int n, int[] r) {
+        check(3);
+        if (r == null || r.length != n) r = new int[n];
+        float[] q = query.get();
+        q[0] = (float) p.x;
+        q[1] = (float) p.y;
+        q[2] = (float) p.z;
+        tree.knn(q, 0, n, r, 0, null, 0);
+        return r;
+    }
+
+    public List<Integer> find128(FloatBuffer point, int n) {
+        float[] q = query.get();
+        point.duplicate().get(q, 0, 128);
+        return asList(find128(q, n, null));
+    }
+
+    public int[] find128(float[] point, int n, int[] r) {
+        check(128);
+        if (r == null || r.length != n) r = new int[n];
+        graph.knn(point, 0, n, r, 0, null, 0);
+        return r;
+    }
+
+    /**
+     * `count` knn queries at once, in parallel. Query i is queries[i*dim..) and its answers go to out[i*k..i*k+k) (and dist[i*k..), squared, if dist
+     * isn't null)
+     */
+    public void knn(float[] queries, int count, int k, int[] out, float[] dist) {
+        if (tree != null) tree.knn(queries, count, k, out, dist);
+        else if (graph != null) graph.knn(queries, count, k, out, dist);
+        else throw new IllegalArgumentException(" nothing has been built");
+    }
+
+    /**
+     * `count` radius queries at once, in parallel (2d and 3d only). The answers to query i go to out[i*max..i*max+max), and how many there are (which
+     * can be more than max) to counts[i]
+     */
+    public void radius(float[] queries, int count, float radius, int[] out, int max, int[] counts) {
+        if (tree == null) throw new IllegalArgumentException(" radius queries need a 2d or 3d index");
+        tree.radius(queries, count, radius, out, max, counts);
+    }
+
+    /**
+     * there's nothing native to free, this is here to match Flann
+     */
+    public void free() {
+        tree = null;
+        graph = null;
+        dim = 0;
+    }
+
+    private void check(int d) {
+        if (dim != d) throw new IllegalArgumentException(" this index is " + (dim == 0 ? "empty" : dim + "d") + ", not " + d + "d");
+    }
+
+    static private List<Integer> asList(int[] r) {
+        List<Integer> l = new ArrayList<>(r.length);
+        for (int i : r)
+            l.add(i);
+        return l;
+    }
+
+    // benchmark against Flann (if its native library is there)
+    static public void main(String[] a) {
+        Random r = new Random(1);
+        int q = 100000;
+
+        for (int dim : new int[]{2, 3}) {
+            int num = 1000000;
+            float[] points = new float[num * dim];
+            for (int i = 0; i < points.length; i++)
+                points[i] = r.nextFloat();
+            float[] queries = new float[q * dim];
+            for (int i = 0; i < queries.length; i++)
+                queries[i] = r.nextFloat();
+
+            for (int rep = 0; rep < 3; rep++) {
+                long t0 = System.nanoTime();
+                KdTree tree = new KdTree(dim, points, num);
+                long t1 = System.nanoTime();
+                int[] one = new int[q * 10];
+                for (int i = 0; i < q; i++)
+                    tree.knn(queries, i * dim, 10, one, i * 10, null, 0);
+                long t2 = System.nanoTime();
+                int[] all = new int[q * 10];
+                tree.knn(queries, q, 10, all, null);
+                long t3 = System.nanoTime();
+                int[] counts = new int[q];
+                tree.radius(queries, q, 0.01f, new int[q * 64], 64, counts);
+                long t4 = System.nanoTime();
+                float[] p = new float[dim];
+                for (int i = 0; i < 100000; i++) {
+                    for (int k = 0; k < dim; k++)
+                        p[k] = r.nextFloat();
+                    tree.add(p, 0);
+                }
+                long t5 = System.nanoTime();
+                // and again, now that the added points are spread over a handful of smaller trees
+                for (int i = 0; i < q; i++)
+                    tree.knn(queries, i * dim, 10, one, i * 10, null, 0);
+                long t6 = System.nanoTime();
+                tree.radius(queries, q, 0.01f, new int[q * 64], 64, counts);
+                long t7 = System.nanoTime();
+                System.out.println(dim + "d, KdTree: build " + num + " " + (t1 - t0) / 1e6 + " ms, " + q + " 10-nn " + (t2 - t1) / 1e6 + " ms, in parallel " + (t3 - t2) / 1e6 + " ms, radius in parallel " + (t4 - t3) / 1e6 + " ms, 100000 adds " + (t5 - t4) / 1e6 + " ms, then " + q + " 10-nn " + (t6 - t5) / 1e6 + " ms, radius in parallel " + (t7 - t6) / 1e6 + " ms (" + tree + ")");
+            }
+
+            try {
+                FloatBuffer f = ByteBuffer.allocateDirect(4 * points.length).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                f.put(points).rewind();
+                Flann flann = new Flann();
+                for (int rep = 0; rep < 3; rep++) {
+                    long t0 = System.nanoTime();
+                    long cloud = dim == 2 ? flann.build2(f, num) : flann.build3(f, num);
+                    long t1 = System.nanoTime();
+                    java.nio.LongBuffer out = ByteBuffer.allocateDirect(8 * 10).order(ByteOrder.nativeOrder()).asLongBuffer();
+                    for (int i = 0; i < q; i++) {
+                        if (dim == 2) flann.closestN2(cloud, queries[2 * i], queries[2 * i + 1], out, 10);
+                        else flann.closestN3(cloud, queries[3 * i], queries[3 * i + 1], queries[3 * i + 2], out, 10);
+                    }
+                    long t2 = System.nanoTime();
+                    if (dim == 2) flann.free2(cloud);
+                    else flann.free3(cloud);
+                    System.out.println(dim + "d, Flann: build " + num + " " + (t1 - t0) / 1e6 + " ms, " + q + " 10-nn " + (t2 - t1) / 1e6 + " ms");
+                }
+            } catch (Throwable t) {
+                System.out.println(" Flann isn't available (" + t + ")");
+            }
+        }
+
+        {
+            int num = 100000;
+            int nq = 1000;
+            float[] points = new float[num * 128];
+            // clustered, as descriptors are
+            float[] centres = new float[256 * 128];
+            for (int i = 0; i < centres.length; i++)
+                centres[i] = r.nextFloat();
+            for (int i = 0; i < num; i++) {
+                int c = r.nextInt(256);
+                for (int k = 0; k < 128; k++)
+                    points[i * 128 + k] = centres[c * 128 + k] + 0.1f * (float) r.nextGaussian();
+            }
+            float[] queries = new float[nq * 128];
+            for (int i = 0; i < nq; i++) {
+                int c = r.nextInt(256);
+                for (int k = 0; k < 128; k++)
+                    queries[i * 128 + k] = centres[c * 128 + k] + 0.1f * (float) r.nextGaussian();
+            }
+
+            long t0 = System.nanoTime();
+            int[] exact = new int[nq * 10];
+            new KdTree(128, points, num).knn(queries, nq, 10, exact, null);
+            long t1 = System.nanoTime();
+            System.out.println("128d, exact (KdTree) " + nq + " 10-nn in parallel " + (t1 - t0) / 1e6 + " ms");
+
+            long t2 = System.nanoTime();
+            Hnsw h = new Hnsw(128).addAll(points, num);
+            long t3 = System.nanoTime();
+            for (int ef : new int[]{16, 64, 256}) {
+                h.ef = ef;
+                int[] found = new int[nq * 10];
+                long t4 = System.nanoTime();
+                h.knn(queries, nq, 10, found, null);
+                long t5 = System.nanoTime();
+                int hits = 0;
+                for (int i = 0; i < nq; i++)
+                    for (int j = 0; j < 10; j++)
+                        for (int k = 0; k < 10; k++)
+                            if (found[i * 10 + j] == exact[i * 10 + k]) hits++;
+                System.out.println("128d, Hnsw: build " + num + " " + (t3 - t2) / 1e6 + " ms, ef " + ef + ", " + nq + " 10-nn in parallel " + (t5 - t4) / 1e6 + " ms, recall " + hits / (10.0 * nq));
+            }
+
+            try {
+                FloatBuffer f = ByteBuffer.allocateDirect(4 * points.length).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                f.put(points).rewind();
+                Flann flann = new Flann();
+                long t4 = System.nanoTime();
+                long cloud = flann.build128(f, num);
+                long t5 = System.nanoTime();
+                java.nio.LongBuffer out = ByteBuffer.allocateDirect(8 * 10).order(ByteOrder.nativeOrder()).asLongBuffer();
+                FloatBuffer p = ByteBuffer.allocateDirect(4 * 128).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                for (int i = 0; i < nq; i++) {
+                    p.rewind();
+                    p.put(queries, i * 128, 128).rewind();
+                    flann.closestN128(cloud, p, out, 10);
+                }
+                long t6 = System.nanoTime();
+                flann.free128(cloud);
+                System.out.println("128d, Flann: build " + num + " " + (t5 - t4) / 1e6 + " ms, " + nq + " 10-nn " + (t6 - t5) / 1e6 + " ms");
+            } catch (Throwable t) {
+                System.out.println(" Flann isn't available (" + t + ")");
+            }
+        }
+    }
+}
@@ -4,7 +4,7 @@ package trace.graphics
 import field.graphics.BaseMesh
 import field.linalg.Quat
 import field.linalg.Vec3
-import marc.math.Flann
+import marc.math.SpatialIndex
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.FloatBuffer
@@ -97,7 +97,7 @@ class FastLoadPly(val fn: String) {
 
 
         if (first) {
-            val f = Flann()
+            val f = SpatialIndex()
             f.build3d(lp.points, { it.at })
 
             v.open()
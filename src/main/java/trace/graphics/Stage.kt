@@ -1479,7 +1479,7 @@ class Stage(val w: Int, val h: Int) : AsMap {
 
         val ic = ImageCache(dim[0], dim[1], 300, 40, map)
 
-        val cache = TwinTextureCache(0, ic)
+        val cache = TwinTextureCache(0, ic, Options.dict().isTrue(Dict.Prop<Boolean>("streamingVideo"), false))
         cache.setPlaying(true)
 
         if (!SimpleOculusTarget.isVR())
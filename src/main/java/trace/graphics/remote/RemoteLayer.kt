@@ -2,12 +2,26 @@ package trace.graphics.remote
 
 import field.graphics.BaseMesh
 import fielded.webserver.NewNanoHTTPD
+import org.json.JSONObject
+import org.nanohttpd.protocols.websockets.WebSocket
+import java.io.ByteArrayOutputStream
 import java.net.SocketException
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.FloatBuffer
 import java.nio.IntBuffer
-
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.Deflater
+
+/**
+ * Sends a BaseMesh to the browsers connected to `websocket`, every frame, as a set of binary messages: vertices ('V'), colors ('C'), texture coordinates
+ * ('T') and elements ('E'), each sent in full whenever it has changed.
+ *
+ * With `streaming` set, the messages ('v', 'c', 't', 'e') carry just the ranges that have changed since the last frame, optionally quantised and/or
+ * deflated, and clients acknowledge them. A client that falls more than `maxInFlight` frames behind stops getting changes until it has caught up,
+ * and is then sent a keyframe (everything), as are clients that have just connected and, when the number of vertices or elements changes, everybody.
+ */
 class RemoteLayer(val websocket: NewNanoHTTPD, val max_vertex: Int, val max_element: Int, val element_dim: Int, var channel_name: String) {
 
     var vertexBufferB: ByteBuffer
@@ -70,6 +84,10 @@ class RemoteLayer(val websocket: NewNanoHTTPD, val max_vertex: Int, val max_elem
     }
 
     fun copy(m: BaseMesh, doTexture: Boolean) {
+        if (streaming) {
+            copyStreaming(m, doTexture)
+            return
+        }
 
         val v = m.vertex(true)
         vertexBufferF.rewind()
@@ -187,6 +205,10 @@ class RemoteLayer(val websocket: NewNanoHTTPD, val max_vertex: Int, val max_elem
 
     fun send() {
 //        println("$vertexChanged $textureChanged $colorChanged $elementChanged")
+        if (streaming) {
+            sendStreaming()
+            return
+        }
 
         send(vertexBufferB, numVertex * 3, vertexChanged)
         send(colorBufferB, numVertex * 4, colorChanged)
@@ -239,5 +261,280 @@ class RemoteLayer(val websocket: NewNanoHTTPD, val max_vertex: Int, val max_elem
         v.clear()
     }
 
+    /**
+     * send only what has changed (see above)
+     */
+    var streaming = false
+
+    /**
+     * when streaming, send positions and texture coordinates as 16 bit fixed point (scaled to the range of what is being sent) and colors as 8 bit RGBA
+     */
+    var quantise = false
+
+    /**
+     * when streaming, deflate everything that is sent
+     */
+    var compress = false
+
+    /**
+     * how many frames a client can have not acknowledged before we stop sending it changes. 0 turns off the tracking of acknowledgements altogether
+     */
+    var maxInFlight = 8
+
+    private val CHUNK = 256
+
+    /**
+     * one buffer, as it will be sent: everything is kept as raw int bits so that a single (vectorised) Arrays.equals can find what has changed
+     */
+    private class Stream(val code: Char, val dim: Int, capacity: Int) {
+        val next = IntArray(capacity * dim)
+        val shadow = IntArray(capacity * dim)
+        val dirty = BitSet()
+        var count = 0
+        var countChanged = false
+
+        fun components() = count * dim
+    }
+
+    private class Client {
+        @Volatile
+        var acked = 0L
+        var sent = 0L
+        var inSync = false
+    }
+
+    private val streams by lazy {
+        arrayOf(Stream('v', 3, max_vertex), Stream('c', 4, max_vertex), Stream('t', 2, max_vertex), Stream('e', Math.max(1, element_dim), max_element))
+    }
+
+    private var scratch = FloatArray(0)
+    private var sequence = 0L
+    private val clients = ConcurrentHashMap<WebSocket, Client>()
+    private var listening = false
+
+    private fun copyStreaming(m: BaseMesh, doTexture: Boolean) {
+        val n = Math.min(m.vertexLimit, max_vertex)
+        numVertex = n
+
+        read(streams[0], m.vertex(true), n) { i, x -> if (i % 3 == 1) -x else x } // left handed!
+        read(streams[1], m.aux(1, 4), n) { i, x -> if (i % 4 == 3) x else x * scratch[i - i % 4 + 3] }
+        if (doTexture) read(streams[2], m.aux(4, 2), n) { i, x -> if (i % 2 == 1) 1 - x else x }
+        else read(streams[2], null, n) { _, x -> x }
+
+        val e = streams[3]
+        if (m.elementDimension > 0) {
+            val next = Math.min(max_element / m.elementDimension, Math.min(0xffff / m.elementDimension, m.elementLimit))
+            val c = next * e.dim
+            if (next != e.count) {
+                e.count = next
+                e.countChanged = true
+            }
+            val b = m.elements(true).duplicate()
+            b.rewind()
+            b.get(e.next, 0, Math.min(c, b.remaining()))
+            diff(e)
+        } else if (e.count != 0) {
+            e.count = 0
+            e.countChanged = true
+        }
+        numElement = e.count
+    }
+
+    private inline fun read(s: Stream, from: FloatBuffer?, n: Int, transform: (Int, Float) -> Float) {
+        if (n != s.count) {
+            s.count = n
+            s.countChanged = true
+        }
+        val c = n * s.dim
+        if (scratch.size < c) scratch = FloatArray(c)
+        if (from == null) Arrays.fill(scratch, 0, c, 0f)
+        else {
+            val b = from.duplicate()
+            b.rewind()
+            b.get(scratch, 0, Math.min(c, b.remaining()))
+        }
+        for (i in 0 until c) s.next[i] = java.lang.Float.floatToRawIntBits(transform(i, scratch[i]))
+        diff(s)
+    }
+
+    private fun diff(s: Stream) {
+        val c = s.components()
+        var from = 0
+        var chunk = 0
+        while (from < c) {
+            val to = Math.min(c, from + CHUNK)
+            if (!Arrays.equals(s.next, from, to, s.shadow, from, to)) {
+                System.arraycopy(s.next, from, s.shadow, from, to - from)
+                s.dirty.set(chunk)
+            }
+            from = to
+            chunk++
+        }
+    }
+
+    private fun sendStreaming() {
+        if (!listening) {
+            listening = true
+            websocket.messageHandlers.add(0) { socket, address, payload ->
+                if (address == "remoteLayer.ack" && payload is JSONObject && payload.optString("channel") == channel_name) {
+                    val c = clients[socket]
+                    if (c != null) c.acked = Math.max(c.acked, payload.getLong("seq"))
+                    true
+                } else false
+            }
+        }
+
+        val changed = streams.any { !it.dirty.isEmpty || it.countChanged }
+        if (streams.any { it.countChanged }) clients.values.forEach { it.inSync = false }
+
+        sequence++
+
+        val open = websocket.openWebsockets.toList()
+        clients.keys.retainAll(open)
+
+        var deltas: List<ByteArray>? = null
+        var keyframe: List<ByteArray>? = null
 
-}
\ No newline at end of file
+        for (socket in open) {
+            val c = clients.computeIfAbsent(socket) { Client() }
+            val behind = maxInFlight > 0 && c.sent - c.acked > maxInFlight
+
+            val messages = if (!c.inSync) {
+                if (behind) continue
+                c.inSync = true
+                if (keyframe == null) keyframe = streams.map { encode(it, true) }
+                keyframe!!
+            } else {
+                if (!changed) continue
+                if (behind) {
+                    c.inSync = false
+                    continue
+                }
+                if (deltas == null) deltas = streams.filter { !it.dirty.isEmpty || it.countChanged }.map { encode(it, false) }
+                deltas!!
+            }
+
+            try {
+                for (i in messages.indices) {
+                    // the last message of the frame asks to be acknowledged
+                    if (i == messages.size - 1 && maxInFlight > 0) {
+                        val ask = messages[i].copyOf()
+                        ask[128 + 4] = (ask[128 + 4].toInt() or 2).toByte()
+                        socket.send(ask)
+                    } else socket.send(messages[i])
+                }
+                c.sent = sequence
+            } catch (e: Exception) {
+                e.printStackTrace()
+                c.inSync = false
+            }
+        }
+
+        streams.forEach {
+            it.dirty.clear()
+            it.countChanged = false
+        }
+    }
+
+    /**
+     * the message for the dirty ranges of `s` (or all of it, for a keyframe): the usual 128 byte header, then the sequence number, flags
+     * (1 = keyframe, 2 = please acknowledge), encoding (0 = float, 1 = 16 bit fixed point, 2 = 8 bit normalized, 3 = int), whether it's deflated and the
+     * dimension; the offset and scale per component for fixed point; the ranges (start, length, in components); the length of the payload and the payload
+     */
+    private fun encode(s: Stream, keyframe: Boolean): ByteArray {
+        val c = s.components()
+        val ranges = ArrayList<IntArray>()
+        if (keyframe) {
+            if (c > 0) ranges.add(intArrayOf(0, c))
+        } else {
+            var i = s.dirty.nextSetBit(0)
+            while (i >= 0 && i * CHUNK < c) {
+                var j = i
+                while (s.dirty.get(j + 1) && (j + 1) * CHUNK < c) j++
+                ranges.add(intArrayOf(i * CHUNK, Math.min(c, (j + 1) * CHUNK) - i * CHUNK))
+                i = s.dirty.nextSetBit(j + 1)
+            }
+        }
+
+        val encoding = when {
+            s.code == 'e' -> 3
+            !quantise -> 0
+            s.code == 'c' -> 2
+            else -> 1
+        }
+
+        val offset = FloatArray(s.dim)
+        val scale = FloatArray(s.dim)
+        if (encoding == 1) {
+            val min = FloatArray(s.dim) { Float.POSITIVE_INFINITY }
+            val max = FloatArray(s.dim) { Float.NEGATIVE_INFINITY }
+            for (r in ranges)
+                for (i in r[0] until r[0] + r[1]) {
+                    val x = java.lang.Float.intBitsToFloat(s.shadow[i])
+                    min[i % s.dim] = Math.min(min[i % s.dim], x)
+                    max[i % s.dim] = Math.max(max[i % s.dim], x)
+                }
+            for (d in 0 until s.dim) {
+                offset[d] = if (min[d].isFinite()) min[d] else 0f
+                scale[d] = if (max[d] > min[d] && (max[d] - min[d]).isFinite()) (max[d] - min[d]) / 65535 else 1f
+            }
+        }
+
+        val length = ranges.sumOf { it[1] }
+        val width = when (encoding) {
+            1 -> 2
+            2 -> 1
+            else -> 4
+        }
+        val payload = ByteBuffer.allocate(length * width).order(ByteOrder.LITTLE_ENDIAN)
+        for (r in ranges)
+            for (i in r[0] until r[0] + r[1]) {
+                when (encoding) {
+                    0, 3 -> payload.putInt(s.shadow[i])
+                    1 -> {
+                        val x = java.lang.Float.intBitsToFloat(s.shadow[i])
+                        val q = Math.round((x - offset[i % s.dim]) / scale[i % s.dim])
+                        payload.putShort(Math.max(0, Math.min(65535, q)).toShort())
+                    }
+                    2 -> {
+                        val x = java.lang.Float.intBitsToFloat(s.shadow[i])
+                        payload.put(Math.max(0, Math.min(255, Math.round(x * 255))).toByte())
+                    }
+                }
+            }
+
+        var body = payload.array()
+        if (compress && body.size > 0) {
+            val d = Deflater(Deflater.BEST_SPEED)
+            d.setInput(body)
+            d.finish()
+            val o = ByteArrayOutputStream(body.size / 2 + 64)
+            val b = ByteArray(64 * 1024)
+            while (!d.finished()) o.write(b, 0, d.deflate(b))
+            d.end()
+            body = o.toByteArray()
+        }
+
+        val m = ByteBuffer.allocate(2 * 64 + 8 + 8 * s.dim + 4 + 8 * ranges.size + 4 + body.size).order(ByteOrder.LITTLE_ENDIAN)
+        writeHeader(s.code, m, s.count, if (s.code == 'e') element_dim else s.dim)
+        m.position(2 * 64)
+        m.putInt(sequence.toInt())
+        m.put((if (keyframe) 1 else 0).toByte())
+        m.put(encoding.toByte())
+        m.put((if (compress && body.size > 0) 1 else 0).toByte())
+        m.put(s.dim.toByte())
+        if (encoding == 1) {
+            for (d in 0 until s.dim) m.putFloat(offset[d])
+            for (d in 0 until s.dim) m.putFloat(scale[d])
+        }
+        m.putInt(ranges.size)
+        for (r in ranges) {
+            m.putInt(r[0])
+            m.putInt(r[1])
+        }
+        m.putInt(length * width)
+        m.put(body)
+
+        return Arrays.copyOf(m.array(), m.position())
+    }
+}
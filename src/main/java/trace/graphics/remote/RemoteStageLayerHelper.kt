@@ -12,22 +12,30 @@ class RemoteStageLayerHelper(val websocket: NewNanoHTTPD, val max_vertex: Int, v
 
     var previousSide = 0
 
+    /**
+     * passed on to the RemoteLayers this makes (see RemoteLayer)
+     */
+    var streaming = false
+    var quantise = false
+    var compress = false
+    var maxInFlight = 8
+
     fun update(s: Stage.ShaderGroup) {
         if (s.line.vertexLimit > 0 || stroke!=null) {
             if (stroke == null)
-                stroke = RemoteLayer(websocket, max_vertex, max_element, 2, channel_name + "_s")
+                stroke = configure(RemoteLayer(websocket, max_vertex, max_element, 2, channel_name + "_s"))
             stroke!!.copy(s.line, s.doTexture)
             stroke!!.send()
         }
         if (s.planes.vertexLimit > 0 || fill!=null) {
             if (fill == null)
-                fill = RemoteLayer(websocket, max_vertex, max_element, 3, channel_name + "_f")
+                fill = configure(RemoteLayer(websocket, max_vertex, max_element, 3, channel_name + "_f"))
             fill!!.copy(s.planes, s.doTexture)
             fill!!.send()
         }
         if (s.points.vertexLimit > 0 || points!=null) {
             if (points == null)
-                points = RemoteLayer(websocket, max_vertex, max_element, 0, channel_name + "_p")
+                points = configure(RemoteLayer(websocket, max_vertex, max_element, 0, channel_name + "_p"))
             points!!.copy(s.points, s.doTexture)
             points!!.send()
         }
@@ -71,6 +79,14 @@ class RemoteStageLayerHelper(val websocket: NewNanoHTTPD, val max_vertex: Int, v
 
     }
 
+    private fun configure(l: RemoteLayer): RemoteLayer {
+        l.streaming = streaming
+        l.quantise = quantise
+        l.compress = compress
+        l.maxInFlight = maxInFlight
+        return l
+    }
+
     private fun setSide(websocket: org.nanohttpd.protocols.websockets.WebSocket, s: String, sides: Int) {
         println(" limiting side of $s to $sides")
         var s2 = mangleName(s)
@@ -0,0 +1,288 @@
+package trace.mocap
+
+import field.linalg.Vec3
+import field.utility.Options
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.stream.IntStream
+
+/**
+ * A motion capture clip packed for sampling lots of markers every frame: positions as `float[frames][markers*3]`, with gaps (frames where a marker
+ * wasn't seen) filled in, and, alongside them, the tangents of the cubic Hermite spline through them (the same spline as CInterp3's, for frames
+ * that are evenly spaced). Sampling every marker at once, with `sampleAll`, is then one pass over two pairs of consecutive rows.
+ *
+ * Marker names resolve to indices once, with `index`. Clips can be saved, and loaded, memory mapped, from those saves; `Clip.load` keeps such a save
+ * of every C3D and TRC file it parses (in ~/.field/mocapCache/, or the option `mocapCache`) and uses it next time, if the file hasn't changed since.
+ */
+class Clip private constructor(val names: List<String>, val frames: Int, val fps: Double, private val positions: Array<FloatArray>?, private val tangents: Array<FloatArray>?, private val mapped: FloatBuffer?) {
+
+    val markers = names.size
+
+    private val indices = names.withIndex().associate { it.value to it.index }
+
+    /**
+     * the index of the marker called `name`, or -1
+     */
+    fun index(name: String) = indices[name] ?: -1
+
+    /**
+     * the position of every marker at time `t` (in frames, clamped to the clip) as x, y, z, x, y, z ... written into `out` (which needs to be at
+     * least 3 * markers long)
+     */
+    fun sampleAll(t: Double, out: FloatArray) {
+        val n = 3 * markers
+        if (frames == 1) {
+            if (positions != null) System.arraycopy(positions[0], 0, out, 0, n)
+            else for (k in 0 until n) out[k] = mapped!!.get(k)
+            return
+        }
+
+        val x = Math.max(0.0, Math.min(frames - 1.0, t))
+        val i = Math.min(frames - 2, x.toInt())
+        val u = (x - i).toFloat()
+
+        // Hermite basis, as in CInterp3.Frame.interpolate with unit spacing
+        val h00 = (1 + 2 * u) * (1 - u) * (1 - u)
+        val h10 = u * (1 - u) * (1 - u)
+        val h01 = (3 - 2 * u) * u * u
+        val h11 = -(1 - u) * u * u
+
+        if (positions != null) {
+            val p0 = positions[i]
+            val p1 = positions[i + 1]
+            val d0 = tangents!![i]
+            val d1 = tangents[i + 1]
+            for (k in 0 until n) out[k] = h00 * p0[k] + h10 * d0[k] + h01 * p1[k] + h11 * d1[k]
+        } else {
+            val m = mapped!!
+            val p0 = i * n
+            val p1 = p0 + n
+            val d0 = frames * n + p0
+            val d1 = d0 + n
+            for (k in 0 until n) out[k] = h00 * m.get(p0 + k) + h10 * m.get(d0 + k) + h01 * m.get(p1 + k) + h11 * m.get(d1 + k)
+        }
+    }
+
+    /**
+     * the position of marker `index` at time `t` (in frames)
+     */
+    fun sample(t: Double, index: Int, out: Vec3 = Vec3()): Vec3 {
+        val x = Math.max(0.0, Math.min(frames - 1.0, t))
+        val i = Math.max(0, Math.min(frames - 2, x.toInt()))
+        val j = Math.min(frames - 1, i + 1)
+        val u = x - i
+
+        val h00 = (1 + 2 * u) * (1 - u) * (1 - u)
+        val h10 = u * (1 - u) * (1 - u)
+        val h01 = (3 - 2 * u) * u * u
+        val h11 = -(1 - u) * u * u
+
+        fun c(k: Int) = h00 * position(i, 3 * index + k) + h10 * tangent(i, 3 * index + k) + h01 * position(j, 3 * index + k) + h11 * tangent(j, 3 * index + k)
+
+        return out.set(c(0), c(1), c(2))
+    }
+
+    fun sample(t: Double, name: String, out: Vec3 = Vec3()): Vec3 {
+        val i = index(name)
+        if (i == -1) throw IllegalArgumentException(" no marker called '$name', markers are $names")
+        return sample(t, i, out)
+    }
+
+    private fun position(frame: Int, k: Int): Double = (if (positions != null) positions[frame][k] else mapped!!.get(frame * 3 * markers + k)).toDouble()
+    private fun tangent(frame: Int, k: Int): Double = (if (tangents != null) tangents[frame][k] else mapped!!.get((frames + frame) * 3 * markers + k)).toDouble()
+
+    fun duration() = frames / fps
+
+    /**
+     * this clip resampled (in parallel) to `displayFps`, so that sampling it at a display frame lands on a frame
+     */
+    fun resample(displayFps: Double): Clip {
+        val n = Math.max(1, Math.ceil((frames - 1) * displayFps / fps).toInt() + 1)
+        val p = Array(n) { FloatArray(3 * markers) }
+        IntStream.range(0, n).parallel().forEach { sampleAll(it * fps / displayFps, p[it]) }
+        return Clip(names, n, displayFps, p, tangentsOf(p, markers), null)
+    }
+
+    /**
+     * writes this clip to `file`, in the form that `open` reads
+     */
+    fun save(file: File) {
+        val n = 3 * markers
+        RandomAccessFile(file, "rw").use { f ->
+            f.setLength(0)
+            f.writeInt(MAGIC)
+            f.writeInt(VERSION)
+            f.writeInt(frames)
+            f.writeDouble(fps)
+            f.writeInt(markers)
+            names.forEach { f.writeUTF(it) }
+            val header = f.filePointer
+
+            val b = ByteBuffer.allocate(4 * n).order(ByteOrder.LITTLE_ENDIAN)
+            val c = f.channel
+            c.position(header)
+            for (which in 0 until 2)
+                for (r in 0 until frames) {
+                    b.clear()
+                    val rows = if (which == 0) positions else tangents
+                    if (rows != null) b.asFloatBuffer().put(rows[r])
+                    else {
+                        val from = mapped!!.duplicate()
+                        from.position((which * frames + r) * n)
+                        from.limit(from.position() + n)
+                        b.asFloatBuffer().put(from)
+                    }
+                    while (b.hasRemaining()) c.write(b)
+                }
+        }
+    }
+
+    override fun toString() = "Clip($markers markers, $frames frames at $fps fps${if (mapped != null) ", mapped" else ""})"
+
+    companion object {
+        private const val MAGIC = 0x434c4950
+        private const val VERSION = 1
+
+        val cacheDirectory = Options.getDirectory("mocapCache") { System.getProperty("user.home") + "/.field/mocapCache/" }
+
+        /**
+         * packs `frames` rows of 3 * names.size floats, where NaN means the marker wasn't seen, filling gaps by interpolating between the frames on
+         * either side (or holding the first or last position seen)
+         */
+        @JvmStatic
+        fun pack(names: List<String>, fps: Double, frames: Array<FloatArray>): Clip {
+            if (frames.isEmpty()) throw IllegalArgumentException(" can't make a clip with no frames")
+            val n = 3 * names.size
+            for (k in 0 until n) {
+                var last = -1
+                for (f in frames.indices) {
+                    if (frames[f][k].isNaN()) continue
+                    val from = if (last == -1) frames[f][k] else frames[last][k]
+                    for (g in last + 1 until f) {
+                        val a = if (last == -1) 1f else (g - last).toFloat() / (f - last)
+                        frames[g][k] = from + (frames[f][k] - from) * a
+                    }
+                    last = f
+                }
+                val hold = if (last == -1) 0f else frames[last][k]
+                for (g in last + 1 until frames.size) frames[g][k] = hold
+            }
+            return Clip(names, frames.size, fps, frames, tangentsOf(frames, names.size), null)
+        }
+
+        private fun tangentsOf(p: Array<FloatArray>, markers: Int): Array<FloatArray> {
+            val n = 3 * markers
+            return Array(p.size) {
+                val a = p[Math.max(0, it - 1)]
+                val b = p[Math.min(p.size - 1, it + 1)]
+                val d = FloatArray(n)
+                for (k in 0 until n) d[k] = (b[k] - a[k]) * 0.5f
+                d
+            }
+        }
+
+        /**
+         * reads a clip written by `save`, memory mapped or into memory
+         */
+        @JvmStatic
+        fun open(file: File, map: Boolean): Clip {
+            RandomAccessFile(file, "r").use { f ->
+                if (f.readInt() != MAGIC || f.readInt() != VERSION) throw IOException(" '$file' isn't a clip (or is from a different version)")
+                val frames = f.readInt()
+                val fps = f.readDouble()
+                val markers = f.readInt()
+                val names = List(markers) { f.readUTF() }
+                val header = f.filePointer
+                val n = 3 * markers
+
+                if (map) {
+                    val m = FileChannel.open(file.toPath(), StandardOpenOption.READ).use {
+                        it.map(FileChannel.MapMode.READ_ONLY, header, 8L * frames * n)
+                    }
+                    return Clip(names, frames, fps, null, null, m.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer())
+                }
+
+                val b = ByteBuffer.allocate(4 * n).order(ByteOrder.LITTLE_ENDIAN)
+                val c = f.channel
+                c.position(header)
+                val rows = Array(2) {
+                    Array(frames) {
+                        b.clear()
+                        while (b.hasRemaining()) if (c.read(b) < 0) throw EOFException(" '$file' is truncated")
+                        b.flip()
+                        val r = FloatArray(n)
+                        b.asFloatBuffer().get(r)
+                        r
+                    }
+                }
+                return Clip(names, frames, fps, rows[0], rows[1], null)
+            }
+        }
+
+        /**
+         * loads a C3D (through Mocap) or TRC (through LoadTRC) file as a clip, using (or making) a cached copy of it
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun load(fn: String, map: Boolean = false): Clip {
+            val source = File(fn)
+            val key = MessageDigest.getInstance("SHA-1").digest((source.absolutePath + "|" + source.length() + "|" + source.lastModified()).toByteArray())
+            val cached = File(cacheDirectory, key.joinToString("") { String.format("%02x", it) } + ".clip")
+
+            if (cached.exists()) {
+                try {
+                    return open(cached, map)
+                } catch (e: IOException) {
+                    println(" couldn't read cached clip for $fn, will parse it again")
+                    e.printStackTrace()
+                }
+            }
+
+            val clip = when {
+                fn.lowercase().endsWith(".c3d") -> Mocap(fn).clip()
+                fn.lowercase().endsWith(".trc") -> LoadTRC(fn).clip()
+                else -> throw IllegalArgumentException(" don't know how to load '$fn' as a clip, expected a .c3d or .trc file")
+            }
+
+            try {
+                cached.parentFile.mkdirs()
+                val tmp = File(cached.path + ".tmp")
+                clip.save(tmp)
+                tmp.renameTo(cached)
+            } catch (e: IOException) {
+                println(" couldn't cache clip for $fn")
+                e.printStackTrace()
+            }
+
+            return if (map) open(cached, true) else clip
+        }
+
+        /**
+         * the pose (body) keypoints of person `person` in an OpenPose sequence as a clip, with points of zero confidence treated as gaps
+         */
+        @JvmStatic
+        fun fromOpenPose(o: OpenPose, person: Int, fps: Double = 30.0): Clip {
+            val count = o.frames.maxOfOrNull { f -> f.people.maxOfOrNull { it.points.size } ?: 0 } ?: 0
+            val rows = Array(o.frames.size) { f ->
+                val r = FloatArray(3 * count) { Float.NaN }
+                val people = o.frames[f].people
+                if (person < people.size) {
+                    val p = people[person].points
+                    for (i in p.indices) {
+                        if (p[i].z <= 0) continue
+                        r[3 * i] = p[i].x.toFloat()
+                        r[3 * i + 1] = p[i].y.toFloat()
+                        r[3 * i + 2] = 0f
+                    }
+                }
+                r
+            }
+            return pack(List(count) { "$it" }, fps, rows)
+        }
+    }
+}
@@ -10,9 +10,12 @@ class LoadTRC(val f: String) {
 
     var interpolators = mapOf<String, CInterp3>()
 
+    var dataRate = 60.0
+
     init {
         val lines = Files.readAllLines(File(f).toPath())
 
+        dataRate = lines[2].trim().split("\t").firstOrNull()?.toDoubleOrNull() ?: dataRate
         names = lines[3].trim().split("\t").subList(2).windowed(1, step = 3).map { it[0] }
         numbers = lines.subList(6).map {
             it.split("\t").subList(2).map {
@@ -36,6 +39,15 @@ class LoadTRC(val f: String) {
         }
     }
 
+    /**
+     * this file packed into a Clip, for sampling lots of markers at once
+     */
+    fun clip(): Clip {
+        return Clip.pack(names, dataRate, Array(numbers.size) { f ->
+            FloatArray(3 * names.size) { numbers[f].getOrElse(it) { Double.NaN }.toFloat() }
+        })
+    }
+
     fun range(): Pair<Vec3, Vec3> {
         val max = Vec3(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY)
         val min = Vec3(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY)
@@ -22,6 +22,9 @@ class Mocap(val fn: String) {
 
     private var actualCenter: Vec3
 
+    private val scale: Double
+    private val offset: Vec3
+
     init {
         reader = C3DReader()
         file = reader.load(fn)
@@ -43,6 +46,9 @@ class Mocap(val fn: String) {
 
         val data2 = mutableListOf<Vec3>()
 
+        scale = 50.0 / distance
+        offset = center
+
         for (p in 0 until file.num3DPoints) {
             val t = TCB3()
             var frameNum = 0
@@ -111,6 +117,23 @@ class Mocap(val fn: String) {
         }
     }
 
+    @Documentation("`_.clip()` packs this file into a Clip, which can sample every point at once (`clip.sampleAll(frame, out)`) far faster than `positionAtTime`")
+    @JvmOverloads
+    fun clip(fps: Double = 120.0): Clip {
+        val names = (0 until numPoints()).map { nameOfPoint(it) }
+        val rows = Array(file.frames.size) { FloatArray(3 * numPoints()) { Float.NaN } }
+        file.frames.forEachIndexed { i, f ->
+            for (p in 0 until numPoints()) {
+                if (!f.isValid(p)) continue
+                val datum = (Vec3(f.x[p].toDouble(), -f.z[p].toDouble(), f.y[p].toDouble()) * 0.17 - offset) * scale + Vec3(50.0, 50.0, 0.0)
+                rows[i][3 * p] = datum.x.toFloat()
+                rows[i][3 * p + 1] = datum.y.toFloat()
+                rows[i][3 * p + 2] = datum.z.toFloat()
+            }
+        }
+        return Clip.pack(names, fps, rows)
+    }
+
     @Documentation("returns the position of point `pointNum` at time `time` where time goes from 0 to 1 over the course of the clip")
     fun positionAtTime(time: Double, pointNum: Int): Vec3 {
         if (pointNum >= splines.size) throw IllegalArgumentException(" no such point $pointNum, there are only ${splines.size} points in this file")
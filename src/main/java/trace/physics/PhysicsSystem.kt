@@ -18,9 +18,20 @@ import org.jbox2d.dynamics.joints.DistanceJointDef
 import org.jbox2d.dynamics.joints.Joint
 import org.jbox2d.dynamics.joints.WeldJointDef
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.LockSupport
 import java.util.function.BiConsumer
 import java.util.function.Consumer
 
+/**
+ * jbox2d physics for FLines.
+ *
+ * By default update() steps the world on the calling thread by however long it has been since the last call. Alternatively start(hz) steps it at a
+ * fixed rate on a thread of its own. Then addPhysics, the joints and the methods of FLineToPhysics become commands, queued up for the physics thread.
+ * Each tick publishes the transforms of all the bodies. update(), called from the main thread, moves the FLines to a blend of the last two ticks and
+ * delivers the contact events that have happened since the last call. Don't touch `world` directly while the thread is running.
+ */
 class PhysicsSystem {
 
     val physics: Dict.Prop<FLineToPhysics> = Dict.Prop<Any>("physics")
@@ -63,16 +74,60 @@ class PhysicsSystem {
 
     val contacts = mutableSetOf<Contact>();
 
+    /**
+     * the transforms (x, y, angle, and linear velocity x, y) of every body, as of the end of physics tick `tick`, published by the physics thread
+     */
+    class Snapshot(val tick: Long, val nanos: Long, val owners: Array<FLineToPhysics>, val state: FloatArray)
+
+    private class Published(val previous: Snapshot?, val current: Snapshot)
+
+    private class ContactEvent(val start: Boolean, val A: FLine, val B: FLine, val points: List<field.linalg.Vec2>?)
+
+    private val commands = ConcurrentLinkedQueue<() -> Unit>()
+    private val contactEvents = ConcurrentLinkedQueue<ContactEvent>()
+
+    @Volatile
+    private var published: Published? = null
+
+    // only touched by the physics thread
+    private val bodies = ArrayList<FLineToPhysics>()
+
+    @Volatile
+    private var thread: Thread? = null
+
+    @Volatile
+    private var tickNanos = 0L
+
+    val isThreaded: Boolean
+        get() = thread != null
+
+    /**
+     * ticks (and the time they took, in ms) of the physics thread, for keeping an eye on whether it is keeping up
+     */
+    @Volatile
+    var ticks = 0L
+        private set
+    @Volatile
+    var lastTickMs = 0.0
+        private set
+
     init {
         world.setContactListener(object : ContactListener {
             override fun beginContact(contact: org.jbox2d.dynamics.contacts.Contact) {
                 val A = fixturesToFLines[contact.fixtureA]
                 val B = fixturesToFLines[contact.fixtureB]
                 if (A != null && B != null) {
-                    val c = Contact(tick = TICK, A = A, B = B)
                     val wm = WorldManifold()
                     contact.getWorldManifold(wm)
-                    c.points = wm.points.map { convert2(it) }
+                    val points = wm.points.map { convert2(it) }
+
+                    if (isThreaded) {
+                        contactEvents.add(ContactEvent(true, A, B, points))
+                        return
+                    }
+
+                    val c = Contact(tick = TICK, A = A, B = B)
+                    c.points = points
 
                     contacts.remove(c)
                     contacts.add(c)
@@ -83,6 +138,11 @@ class PhysicsSystem {
                 val A = fixturesToFLines[contact.fixtureA]
                 val B = fixturesToFLines[contact.fixtureB]
                 if (A != null && B != null) {
+                    if (isThreaded) {
+                        contactEvents.add(ContactEvent(false, A, B, null))
+                        return
+                    }
+
                     val c = contacts.filter { it.equals(Contact(-1, A, B)) }.getOrNull(0)
                     if (c != null) {
                         c.terminated = TICK
@@ -100,6 +160,11 @@ class PhysicsSystem {
     }
 
     fun update(delta: Float) {
+        if (isThreaded) {
+            sync()
+            return
+        }
+
         var timeStep = delta / 1000f
         if (timeStep > 0.2) {
             System.err.println(" warning: large timestep :" + timeStep)
@@ -151,6 +216,167 @@ class PhysicsSystem {
         lastTime = System.currentTimeMillis()
     }
 
+    /**
+     * starts stepping the world `hz` times a second on a thread of its own. Call update() from the main thread to move the FLines and deliver contacts
+     */
+    fun start(hz: Double) {
+        if (thread != null) return
+
+        val dt = (1.0 / hz).toFloat()
+        tickNanos = (1e9 / hz).toLong()
+
+        // bodies made before now
+        bodies.clear()
+        bodies.addAll(allPhysicsLines.filter { !it.removed })
+        contacts.clear()
+
+        val t = Thread({
+            var next = System.nanoTime()
+            while (thread === Thread.currentThread()) {
+                val now = System.nanoTime()
+                if (now < next) {
+                    LockSupport.parkNanos(next - now)
+                    continue
+                }
+
+                // if we fall a long way behind, drop the time rather than trying to catch up
+                if (now - next > 8 * tickNanos) next = now
+
+                tick(dt)
+                next += tickNanos
+            }
+        }, "physics")
+        t.isDaemon = true
+        thread = t
+        t.start()
+    }
+
+    /**
+     * stops the physics thread (after any commands that are already queued). update() goes back to stepping the world itself
+     */
+    fun stop() {
+        val t = thread ?: return
+        thread = null
+        t.join()
+        runCommands()
+        published = null
+    }
+
+    private fun tick(dt: Float) {
+        val t0 = System.nanoTime()
+
+        runCommands()
+
+        world.step(dt, 6, 3)
+        TICK++
+
+        val owners = bodies.toTypedArray()
+        val state = FloatArray(5 * owners.size)
+        for (i in owners.indices) {
+            val b = owners[i].body
+            state[5 * i] = b.position.x
+            state[5 * i + 1] = b.position.y
+            state[5 * i + 2] = b.angle
+            state[5 * i + 3] = b.linearVelocity.x
+            state[5 * i + 4] = b.linearVelocity.y
+        }
+        val p = published
+        published = Published(p?.current, Snapshot(TICK, System.nanoTime(), owners, state))
+
+        ticks++
+        lastTickMs = (System.nanoTime() - t0) / 1e6
+    }
+
+    private fun runCommands() {
+        while (true) {
+            val c = commands.poll() ?: return
+            try {
+                c()
+            } catch (e: Throwable) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    /**
+     * runs `c` on the physics thread, if there is one, otherwise now
+     */
+    private fun command(c: () -> Unit) {
+        if (isThreaded) commands.add(c)
+        else c()
+    }
+
+    /**
+     * runs `c` on the physics thread, if there is one, and waits for the answer
+     */
+    private fun <T> commandAndWait(c: () -> T): T {
+        if (!isThreaded) return c()
+        val f = CompletableFuture<T>()
+        commands.add {
+            try {
+                f.complete(c())
+            } catch (e: Throwable) {
+                f.completeExceptionally(e)
+            }
+        }
+        return f.get()
+    }
+
+    /**
+     * the main thread's half of threaded mode: moves every FLine to where its body was a tick ago (blending between the last two ticks, so that drawing is
+     * smooth whatever the rates involved) then fires the contact callbacks that have queued up
+     */
+    private fun sync() {
+        val p = published
+        if (p != null) {
+            val cur = p.current
+            val prev = p.previous
+            val alpha = if (prev == null || cur.nanos == prev.nanos) 1f
+            else Math.max(0f, Math.min(1f, ((System.nanoTime() - tickNanos - prev.nanos).toDouble() / (cur.nanos - prev.nanos)).toFloat()))
+
+            val s = cur.state
+            for (i in cur.owners.indices) {
+                val o = cur.owners[i]
+                if (o.removed) continue
+                var x = s[5 * i]
+                var y = s[5 * i + 1]
+                var a = s[5 * i + 2]
+                // bodies only move around in the snapshot when something is removed, and then for just a tick
+                if (prev != null && i < prev.owners.size && prev.owners[i] === o) {
+                    val q = prev.state
+                    x = q[5 * i] + (x - q[5 * i]) * alpha
+                    y = q[5 * i + 1] + (y - q[5 * i + 1]) * alpha
+                    var da = a - q[5 * i + 2]
+                    while (da > Math.PI) da -= (2 * Math.PI).toFloat()
+                    while (da < -Math.PI) da += (2 * Math.PI).toFloat()
+                    a = q[5 * i + 2] + da * alpha
+                }
+                o.published(x, y, a, s[5 * i + 3], s[5 * i + 4])
+                o.physicsToFLine(x, y, a)
+            }
+        }
+
+        while (true) {
+            val e = contactEvents.poll() ?: break
+
+            // keep `contacts` as update() would, so that code that looks at it rather than listening for onContactStart / End still works
+            if (e.start) {
+                val c = Contact(tick = TICK, A = e.A, B = e.B)
+                c.points = e.points
+                contacts.remove(c)
+                contacts.add(c)
+
+                fire<List<field.linalg.Vec2>>(e.A, onContactStart, e.points)
+                fire<List<field.linalg.Vec2>>(e.B, onContactStart, e.points)
+            } else {
+                contacts.filter { it.equals(Contact(-1, e.A, e.B)) }.getOrNull(0)?.terminated = TICK
+
+                fire(e.A, onContactEnd)
+                fire(e.B, onContactEnd)
+            }
+        }
+    }
+
     fun addPhysics(f: FLine): FLineToPhysics {
         val pp = f.attributes.computeIfAbsent(physics, { FLineToPhysics(f, f.center(), 1.0) })
         allPhysicsLines.add(pp)
@@ -166,44 +392,42 @@ class PhysicsSystem {
     }
 
     fun setGravity(g: field.linalg.Vec2) {
-        world.gravity = convert(g)
+        command { world.gravity = convert(g) }
     }
 
 
     fun distanceJoint(a: FLine, b: FLine): Joint {
-        val pa = addPhysics(a)
-        val pb = addPhysics(b)
-
-        val d = DistanceJointDef()
-        d.initialize(pa.body, pb.body, convert(field.linalg.Vec2(0.0, 0.0)), convert(field.linalg.Vec2(0.0, 0.0)))
-        d.dampingRatio = 0.2f
-        d.frequencyHz = 1f
-        val w = world.createJoint(d)
-        return w
+        return distanceJoint(a, b, 0.2, 1.0)
     }
 
     fun distanceJoint(a: FLine, b: FLine, dampingRatio: Double, frequencyHz: Double): Joint {
         val pa = addPhysics(a)
         val pb = addPhysics(b)
 
-        val d = DistanceJointDef()
-        d.initialize(pa.body, pb.body, convert(field.linalg.Vec2(0.0, 0.0)), convert(field.linalg.Vec2(0.0, 0.0)))
-        d.dampingRatio = dampingRatio.toFloat()
-        d.frequencyHz = frequencyHz.toFloat()
-        val w = world.createJoint(d)
-        return w
+        return commandAndWait {
+            val d = DistanceJointDef()
+            d.initialize(pa.body, pb.body, convert(field.linalg.Vec2(0.0, 0.0)), convert(field.linalg.Vec2(0.0, 0.0)))
+            d.dampingRatio = dampingRatio.toFloat()
+            d.frequencyHz = frequencyHz.toFloat()
+            world.createJoint(d)
+        }
     }
 
     fun weldJoint(a: FLine, b: FLine, dampingRatio: Double, frequencyHz: Double): Joint {
         val pa = addPhysics(a)
         val pb = addPhysics(b)
 
-        val d = WeldJointDef()
-        d.initialize(pa.body, pb.body, convert(field.linalg.Vec2(0.0, 0.0)));
-        d.dampingRatio = dampingRatio.toFloat()
-        d.frequencyHz = frequencyHz.toFloat()
-        val w = world.createJoint(d)
-        return w
+        return commandAndWait {
+            val d = WeldJointDef()
+            d.initialize(pa.body, pb.body, convert(field.linalg.Vec2(0.0, 0.0)));
+            d.dampingRatio = dampingRatio.toFloat()
+            d.frequencyHz = frequencyHz.toFloat()
+            world.createJoint(d)
+        }
+    }
+
+    fun destroyJoint(j: Joint) {
+        command { world.destroyJoint(j) }
     }
 
 
@@ -212,7 +436,21 @@ class PhysicsSystem {
     inner class FLineToPhysics(val fline: FLine, val center: field.linalg.Vec2? = null, density: Double = 1.0) {
 
         var ff: ArrayList<Fixture>
-        var body: Body
+
+        /**
+         * made by a command, so when the physics is threaded this is only there after the physics thread's next tick (and should only be touched from
+         * inside a command). The readers below (getRotation, getLinearVelocity, physicsToFLine) are safe to call from the main thread at any time
+         */
+        lateinit var body: Body
+
+        // the polygons of the body, in body coordinates and in the order that body.fixtureList has them, for threaded mode
+        private val polygons = ArrayList<Array<org.jbox2d.common.Vec2>>()
+
+        private var publishedX = 0f
+        private var publishedY = 0f
+        private var publishedAngle = 0f
+        private var publishedVX = 0f
+        private var publishedVY = 0f
 
         init {
             ff = ArrayList<Fixture>()
@@ -229,12 +467,8 @@ class PhysicsSystem {
                 middle.add(s)
             middle.mul((1f / shape.size).toDouble())
 
-            val bd = BodyDef()
-            bd.position = convert(center ?: fline.center())
-            bd.angle = 0f;
-            bd.type = BodyType.DYNAMIC
-            body = world.createBody(bd)
-            body.isBullet = true
+            // the shapes are worked out here, the body is made (on the physics thread, if there is one) below
+            val fixtures = ArrayList<FixtureDef>()
 
             val exploded = fline.pieces()
             exploded.forEach {
@@ -251,7 +485,6 @@ class PhysicsSystem {
 
                 val groups = ConcaveSeparator.separate(shape2)
 
-                val fd = FixtureDef()
                 for (g in groups) {
                     val sd = PolygonShape()
 
@@ -263,112 +496,163 @@ class PhysicsSystem {
                     }
 
                     sd.set(vv, vv.size)
+                    val fd = FixtureDef()
                     fd.shape = sd
                     fd.restitution = 1f
                     fd.density = density.toFloat() / 100000
+                    fixtures.add(fd)
+
+                    // fixtureList runs newest first
+                    polygons.add(0, Array(sd.vertexCount) { org.jbox2d.common.Vec2(sd.vertices[it]) })
+                }
+            }
+
+            val position = convert(center ?: fline.center())
+
+            // until the first snapshot comes back from the physics thread the body is where it was made
+            publishedX = position.x
+            publishedY = position.y
+
+            command {
+                val bd = BodyDef()
+                bd.position = position
+                bd.angle = 0f;
+                bd.type = BodyType.DYNAMIC
+                body = world.createBody(bd)
+                body.isBullet = true
+
+                for (fd in fixtures) {
                     val fixture = body.createFixture(fd)
                     fixturesToFLines[fixture] = fline
                     ff.add(fixture)
                 }
+                bodies.add(this)
             }
-
         }
 
         var removed = false
         fun remove() {
             if (removed) return
 
-            world.destroyBody(body)
             removed = true
+            command {
+                world.destroyBody(body)
+                bodies.remove(this)
+            }
         }
 
         fun setFixed() {
-            body.type = BodyType.STATIC
+            command { body.type = BodyType.STATIC }
         }
 
         fun setCenter(v: field.linalg.Vec2, angle: Float) {
-            if (v.distance(convert2(body.position)) > 1e-9 || Math.abs(angle - body.angle) > 1e-9) {
-                body.setAwake(true)
-                body.setTransform(convert(v), angle)
+            command {
+                if (v.distance(convert2(body.position)) > 1e-9 || Math.abs(angle - body.angle) > 1e-9) {
+                    body.setAwake(true)
+                    body.setTransform(convert(v), angle)
+                }
             }
         }
 
         fun setCenter(v: field.linalg.Vec2) {
-            if (v.distance(convert2(body.position)) > 1e-9) {
-                body.setAwake(true)
-                body.setTransform(convert(v), body.angle)
+            command {
+                if (v.distance(convert2(body.position)) > 1e-9) {
+                    body.setAwake(true)
+                    body.setTransform(convert(v), body.angle)
+                }
             }
         }
 
 
 
         fun applyForce(force: field.linalg.Vec2) {
-            body.applyForceToCenter(convert(force))
+            command { body.applyForceToCenter(convert(force)) }
         }
 
         fun setRestitution(r: Double) {
-            ff.forEach { it.restitution = r.toFloat() }
+            command { ff.forEach { it.restitution = r.toFloat() } }
         }
 
         fun setFriction(r: Double) {
-            ff.forEach { it.friction = r.toFloat() }
+            command { ff.forEach { it.friction = r.toFloat() } }
         }
 
         fun limitVelocity(max: Float, forceLength: Float) {
-            val v = convert2(body.linearVelocity)
-            if (v.length() < max) return
-            val excess = (v.length() - max) * forceLength
-            body.applyForceToCenter(convert(field.linalg.Vec2(-v.x, -v.y).normalize().mul(excess)))
+            command {
+                val v = convert2(body.linearVelocity)
+                if (v.length() >= max) {
+                    val excess = (v.length() - max) * forceLength
+                    body.applyForceToCenter(convert(field.linalg.Vec2(-v.x, -v.y).normalize().mul(excess)))
+                }
+            }
         }
 
         fun limitAngularVelocity(max: Float, forceLength: Float) {
-            val v = body.angularVelocity
-            if (Math.abs(v) < max) return
-            val excess = ((Math.abs(v) - max) * forceLength).toDouble()
-            body.applyTorque((-Math.signum(v) * excess).toFloat())
+            command {
+                val v = body.angularVelocity
+                if (Math.abs(v) >= max) {
+                    val excess = ((Math.abs(v) - max) * forceLength).toDouble()
+                    body.applyTorque((-Math.signum(v) * excess).toFloat())
+                }
+            }
         }
 
         fun decayVelocity(by: Double, limit: Double) {
-            val v = convert2(body.linearVelocity)
-            if (v.length() > 0.001)
-                body.applyForceToCenter(convert(field.linalg.Vec2(-v.x, -v.y).mul(by)))
-            else
-                body.linearVelocity = convert(field.linalg.Vec2(0.0, 0.0))
+            command {
+                val v = convert2(body.linearVelocity)
+                if (v.length() > 0.001)
+                    body.applyForceToCenter(convert(field.linalg.Vec2(-v.x, -v.y).mul(by)))
+                else
+                    body.linearVelocity = convert(field.linalg.Vec2(0.0, 0.0))
+            }
         }
 
         fun decayAngularVelocity(forceLength: Float, limit: Double) {
-            val v = body.angularVelocity
-            if (Math.abs(v) > 0.001)
-                body.applyTorque(-v * forceLength)
-            else
-                body.angularVelocity = 0f
+            command {
+                val v = body.angularVelocity
+                if (Math.abs(v) > 0.001)
+                    body.applyTorque(-v * forceLength)
+                else
+                    body.angularVelocity = 0f
+            }
         }
 
-        fun getRotation() = body.transform.q.angle
+        fun getRotation() = if (isThreaded || !::body.isInitialized) publishedAngle else body.transform.q.angle
 
         fun applyTorque(rotation: Float) {
-            body.applyTorque(rotation)
+            command { body.applyTorque(rotation) }
         }
 
         fun setLinearVelocity(v: field.linalg.Vec2) {
-            body.linearVelocity = convert(v)
+            command { body.linearVelocity = convert(v) }
         }
 
         fun setAngularVelocity(d: Double) {
-            body.angularVelocity = d.toFloat()
+            command { body.angularVelocity = d.toFloat() }
         }
 
         fun getLinearVelocity(v: field.linalg.Vec2): field.linalg.Vec2 {
+            if (isThreaded || !::body.isInitialized) return field.linalg.Vec2(publishedVX.toDouble(), publishedVY.toDouble())
             return convert2(body.linearVelocity)
         }
 
         fun setDensity(d: Double) {
-            var f = body.fixtureList
-            while (f != null) {
-                f.density = d.toFloat()
-                f = f.next
+            command {
+                var f = body.fixtureList
+                while (f != null) {
+                    f.density = d.toFloat()
+                    f = f.next
+                }
+                body.resetMassData()
             }
-            body.resetMassData()
+        }
+
+        internal fun published(x: Float, y: Float, angle: Float, vx: Float, vy: Float) {
+            publishedX = x
+            publishedY = y
+            publishedAngle = angle
+            publishedVX = vx
+            publishedVY = vy
         }
 
         var textureRect: Rect? = null
@@ -377,6 +661,12 @@ class PhysicsSystem {
         fun physicsToFLine() {
             if (removed) return
 
+            // the body belongs to the physics thread (and might not have been made yet), the last snapshot doesn't
+            if (isThreaded || !::body.isInitialized) {
+                physicsToFLine(publishedX, publishedY, publishedAngle)
+                return
+            }
+
             var f: Fixture? = body.fixtureList
             val t = body.transform
             val vo = org.jbox2d.common.Vec2()
@@ -433,6 +723,42 @@ class PhysicsSystem {
             }
         }
 
+        /**
+         * rewrites the FLine for the body at (x, y) rotated by angle, from the polygons cached when it was made, so the main thread doesn't need to look at
+         * the body itself
+         */
+        fun physicsToFLine(x: Float, y: Float, angle: Float) {
+            if (removed) return
+
+            val c = Math.cos(angle.toDouble())
+            val s = Math.sin(angle.toDouble())
+
+            fline.clear()
+
+            var r: Rect? = null
+            if (textureRect != null)
+                for (p in polygons)
+                    for (v in p)
+                        r = Rect.union(r, Rect(v.x, v.y, 0f, 0f))
+
+            for (p in polygons) {
+                for (ii in 0..p.size) {
+                    val v = p[ii % p.size]
+                    val at = field.linalg.Vec2(c * v.x - s * v.y + x, s * v.x + c * v.y + y)
+                    if (ii == 0)
+                        fline.moveTo(at)
+                    else
+                        fline.lineTo(at)
+
+                    if (textureRect != null) {
+                        val tx = textureRect!!.x + textureRect!!.w * (v.x - r!!.x) / r!!.w;
+                        val ty = textureRect!!.y + textureRect!!.h * (v.y - r!!.y) / r!!.h;
+                        fline.node().attributes.put(texCoord, field.linalg.Vec2(tx.toDouble(), ty.toDouble()))
+                    }
+                }
+            }
+        }
+
     }
 
     private fun convert(center: field.linalg.Vec2): org.jbox2d.common.Vec2 =
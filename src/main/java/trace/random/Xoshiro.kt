@@ -0,0 +1,322 @@
+package trace.random
+
+import java.nio.FloatBuffer
+import java.util.stream.IntStream
+
+/**
+ * xoshiro256++ (Blackman and Vigna), a small, fast generator that, unlike MersenneTwisterFast, can be split into independent streams: `jump()` moves
+ * it on by 2^128 numbers and `substream(i)` is a copy that has been jumped i times, so each worker of a parallel job can have its own, reproducible,
+ * stream. Seeds are expanded with SplitMix64.
+ *
+ * The `fill` family writes whole arrays (or FloatBuffers) of uniform, gaussian or exponential numbers at once, keeping the state in locals and
+ * taking two floats from each 64 bit output; `fillParallel` does the same across threads, splitting the array into fixed size chunks each with its
+ * own stream, so the result doesn't depend on how many threads there are.
+ */
+class Xoshiro private constructor(private var s0: Long, private var s1: Long, private var s2: Long, private var s3: Long) {
+
+    constructor(seed: Long) : this(0, 0, 0, 0) {
+        setSeed(seed)
+    }
+
+    constructor() : this(System.nanoTime() xor 0x5DEECE66DL)
+
+    constructor(seed: String) : this(seed.hashCode().toLong())
+
+    fun setSeed(seed: Long) {
+        var x = seed
+        x += GOLDEN
+        s0 = mix(x)
+        x += GOLDEN
+        s1 = mix(x)
+        x += GOLDEN
+        s2 = mix(x)
+        x += GOLDEN
+        s3 = mix(x)
+    }
+
+    fun copy() = Xoshiro(s0, s1, s2, s3)
+
+    fun nextLong(): Long {
+        val r = java.lang.Long.rotateLeft(s0 + s3, 23) + s0
+        val t = s1 shl 17
+        s2 = s2 xor s0
+        s3 = s3 xor s1
+        s1 = s1 xor s2
+        s0 = s0 xor s3
+        s2 = s2 xor t
+        s3 = java.lang.Long.rotateLeft(s3, 45)
+        return r
+    }
+
+    fun nextInt() = (nextLong() ushr 32).toInt()
+
+    /**
+     * uniformly in [0, n)
+     */
+    fun nextInt(n: Int): Int {
+        if (n <= 0) throw IllegalArgumentException(" n must be positive, got $n")
+        // Lemire's multiply and reject
+        var m = (nextLong() ushr 32) * n
+        if ((m and 0xffffffffL) < n) {
+            val threshold = (0x100000000L - n) % n
+            while ((m and 0xffffffffL) < threshold) m = (nextLong() ushr 32) * n
+        }
+        return (m ushr 32).toInt()
+    }
+
+    /**
+     * uniformly in [0, 1)
+     */
+    fun nextDouble() = (nextLong() ushr 11) * 0x1.0p-53
+
+    fun nextFloat() = (nextLong() ushr 40) * 0x1.0p-24f
+
+    fun nextBoolean() = nextLong() < 0
+
+    private var haveGaussian = false
+    private var nextGaussian = 0.0
+
+    fun nextGaussian(): Double {
+        if (haveGaussian) {
+            haveGaussian = false
+            return nextGaussian
+        }
+        val u = 1 - nextDouble()
+        val v = nextDouble()
+        val r = Math.sqrt(-2 * Math.log(u))
+        nextGaussian = r * Math.sin(TAU * v)
+        haveGaussian = true
+        return r * Math.cos(TAU * v)
+    }
+
+    /**
+     * advances this generator by 2^128 numbers
+     */
+    fun jump() = jump(JUMP)
+
+    /**
+     * advances this generator by 2^192 numbers
+     */
+    fun longJump() = jump(LONG_JUMP)
+
+    private fun jump(table: LongArray) {
+        var t0 = 0L
+        var t1 = 0L
+        var t2 = 0L
+        var t3 = 0L
+        for (j in table) {
+            for (b in 0 until 64) {
+                if ((j and (1L shl b)) != 0L) {
+                    t0 = t0 xor s0
+                    t1 = t1 xor s1
+                    t2 = t2 xor s2
+                    t3 = t3 xor s3
+                }
+                nextLong()
+            }
+        }
+        s0 = t0
+        s1 = t1
+        s2 = t2
+        s3 = t3
+        haveGaussian = false
+    }
+
+    /**
+     * a copy of this generator jumped on `index` times. Substream i of a generator never overlaps substream j (for 2^128 numbers)
+     */
+    fun substream(index: Int): Xoshiro {
+        val r = copy()
+        for (i in 0 until index) r.jump()
+        return r
+    }
+
+    /**
+     * `count` consecutive substreams (0 until count), more cheaply than asking for each one
+     */
+    fun substreams(count: Int): Array<Xoshiro> {
+        val at = copy()
+        return Array(count) {
+            val r = at.copy()
+            at.jump()
+            r
+        }
+    }
+
+    /**
+     * a new generator seeded from this one (which moves on by one number)
+     */
+    fun split() = Xoshiro(mix(nextLong()))
+
+    /**
+     * fills out[from, to) uniformly with numbers in [lo, hi)
+     */
+    @JvmOverloads
+    fun fill(out: FloatArray, from: Int = 0, to: Int = out.size, lo: Float = 0f, hi: Float = 1f) {
+        var a = s0
+        var b = s1
+        var c = s2
+        var d = s3
+        val scale = (hi - lo) * 0x1.0p-24f
+
+        var i = from
+        while (i < to) {
+            val r = java.lang.Long.rotateLeft(a + d, 23) + a
+            val t = b shl 17
+            c = c xor a
+            d = d xor b
+            b = b xor c
+            a = a xor d
+            c = c xor t
+            d = java.lang.Long.rotateLeft(d, 45)
+
+            out[i] = lo + (r ushr 40) * scale
+            if (i + 1 < to) out[i + 1] = lo + ((r ushr 8) and 0xffffff) * scale
+            i += 2
+        }
+
+        s0 = a
+        s1 = b
+        s2 = c
+        s3 = d
+    }
+
+    /**
+     * fills out[from, to) with gaussian numbers (Box-Muller, two at a time)
+     */
+    @JvmOverloads
+    fun fillGaussian(out: FloatArray, from: Int = 0, to: Int = out.size, mean: Float = 0f, sd: Float = 1f) {
+        fill(out, from, to)
+        var i = from
+        while (i + 1 < to) {
+            val r = sd * Math.sqrt(-2 * Math.log(1.0 - out[i])).toFloat()
+            val theta = TAU * out[i + 1]
+            out[i] = mean + r * Math.cos(theta).toFloat()
+            out[i + 1] = mean + r * Math.sin(theta).toFloat()
+            i += 2
+        }
+        if (i < to) out[i] = mean + sd * nextGaussian().toFloat()
+    }
+
+    /**
+     * fills out[from, to) with exponentially distributed numbers with rate `rate`
+     */
+    @JvmOverloads
+    fun fillExponential(out: FloatArray, from: Int = 0, to: Int = out.size, rate: Float = 1f) {
+        fill(out, from, to)
+        for (i in from until to) out[i] = (-Math.log(1.0 - out[i]) / rate).toFloat()
+    }
+
+    @JvmOverloads
+    fun fill(out: FloatBuffer, lo: Float = 0f, hi: Float = 1f) = fillBuffer(out) { a, f, t -> fill(a, f, t, lo, hi) }
+
+    @JvmOverloads
+    fun fillGaussian(out: FloatBuffer, mean: Float = 0f, sd: Float = 1f) = fillBuffer(out) { a, f, t -> fillGaussian(a, f, t, mean, sd) }
+
+    @JvmOverloads
+    fun fillExponential(out: FloatBuffer, rate: Float = 1f) = fillBuffer(out) { a, f, t -> fillExponential(a, f, t, rate) }
+
+    /**
+     * fills the remaining part of a buffer (leaving its position where it was), through its array if it has one, otherwise in chunks
+     */
+    private inline fun fillBuffer(out: FloatBuffer, fill: (FloatArray, Int, Int) -> Unit) {
+        if (out.hasArray()) {
+            val o = out.arrayOffset() + out.position()
+            fill(out.array(), o, o + out.remaining())
+            return
+        }
+        val chunk = FloatArray(Math.min(out.remaining(), CHUNK))
+        val d = out.duplicate()
+        while (d.hasRemaining()) {
+            val n = Math.min(chunk.size, d.remaining())
+            fill(chunk, 0, n)
+            d.put(chunk, 0, n)
+        }
+    }
+
+    /**
+     * fills `out` in parallel, with uniform numbers in [lo, hi). Each chunk of CHUNK numbers gets its own substream of a generator seeded from this
+     * one, so chunks never overlap and the result depends only on the state of this generator (which moves on by one number)
+     */
+    @JvmOverloads
+    fun fillParallel(out: FloatArray, lo: Float = 0f, hi: Float = 1f) = parallel(out.size) { g, f, t -> g.fill(out, f, t, lo, hi) }
+
+    @JvmOverloads
+    fun fillGaussianParallel(out: FloatArray, mean: Float = 0f, sd: Float = 1f) = parallel(out.size) { g, f, t -> g.fillGaussian(out, f, t, mean, sd) }
+
+    private fun parallel(size: Int, fill: (Xoshiro, Int, Int) -> Unit) {
+        val chunks = (size + CHUNK - 1) / CHUNK
+        // jumped here, one after the other, rather than with substream(c) inside the loop, which would cost O(chunks^2) jumps
+        val root = Xoshiro(nextLong())
+        val streams = Array(chunks) {
+            val g = root.copy()
+            root.jump()
+            g
+        }
+        IntStream.range(0, chunks).parallel().forEach { c ->
+            fill(streams[c], c * CHUNK, Math.min(size, (c + 1) * CHUNK))
+        }
+    }
+
+    override fun toString() = "Xoshiro(${java.lang.Long.toHexString(s0)}, ${java.lang.Long.toHexString(s1)}, ${java.lang.Long.toHexString(s2)}, ${java.lang.Long.toHexString(s3)})"
+
+    companion object {
+        const val CHUNK = 1 shl 16
+
+        private const val GOLDEN = -0x61c8864680b583ebL
+        private const val TAU = Math.PI * 2
+
+        private val JUMP = longArrayOf(0x180ec6d33cfd0abaL, -0x2a59ed990f36c6d4L, -0x56a7d9e71fc03656L, 0x39abdc4529b1661cL)
+        private val LONG_JUMP = longArrayOf(0x76e15d3efefdcbbfL, -0x3affb1bbe3add04dL, 0x77710069854ee241L, 0x39109bb02acbe635L)
+
+        /**
+         * SplitMix64's finaliser
+         */
+        @JvmStatic
+        fun mix(x: Long): Long {
+            var z = x
+            z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+            z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+            return z xor (z ushr 31)
+        }
+
+        /**
+         * times filling arrays with MersenneTwisterFast (one number at a time, the way everything uses it now) against Xoshiro's bulk and parallel
+         * fills
+         */
+        @JvmStatic
+        fun main(args: Array<String>) {
+            val out = FloatArray(1 shl 22)
+            val mt = MersenneTwisterFast(4357)
+            val x = Xoshiro(4357)
+
+            fun time(name: String, f: () -> Unit) {
+                for (i in 0 until 5) f()
+                val t0 = System.nanoTime()
+                for (i in 0 until 20) f()
+                val ns = (System.nanoTime() - t0) / 20.0
+                println("$name: ${"%.2f".format(ns / out.size)} ns/number, ${"%.0f".format(out.size * 1e3 / ns)}M numbers/s")
+            }
+
+            time("MersenneTwisterFast.nextFloat") { for (i in out.indices) out[i] = mt.nextFloat() }
+            time("Xoshiro.nextFloat") { for (i in out.indices) out[i] = x.nextFloat() }
+            time("Xoshiro.fill") { x.fill(out) }
+            time("Xoshiro.fillParallel") { x.fillParallel(out) }
+            time("MersenneTwisterFast.nextGaussian") { for (i in out.indices) out[i] = mt.nextGaussian().toFloat() }
+            time("Xoshiro.fillGaussian") { x.fillGaussian(out) }
+            time("Xoshiro.fillGaussianParallel") { x.fillGaussianParallel(out) }
+
+            var sum = 0.0
+            var sq = 0.0
+            x.fillGaussian(out)
+            for (v in out) {
+                sum += v
+                sq += v * v
+            }
+            println("gaussian mean ${sum / out.size}, variance ${sq / out.size - (sum / out.size) * (sum / out.size)}")
+
+            val s = Xoshiro(1).substreams(4)
+            println("substreams start ${s.map { java.lang.Long.toHexString(it.nextLong()) }}")
+        }
+    }
+}
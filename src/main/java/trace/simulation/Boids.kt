@@ -13,7 +13,39 @@ class Boids {
     var all = mutableListOf<Boid>()
     var important = mutableSetOf<Boid>()
 
+    private val flock = Flock()
+
+    /**
+     * moves every boid one step, in place. The boids are copied into a Flock (which finds neighbours with a spatial hash and updates in parallel)
+     * and back out again
+     */
     fun update(scale: Double) {
+        flock.tooClose = tooClose.toFloat()
+        flock.tooFar = tooFar.toFloat()
+        flock.W = W.toFloat()
+
+        flock.clear()
+        all.forEach { flock.add(it.at, it.heading, it.speed) }
+        important.forEach {
+            val i = all.indexOf(it)
+            if (i != -1) flock.important(i)
+        }
+
+        flock.step(scale.toFloat())
+
+        all.forEachIndexed { i, it ->
+            it.at.x = flock.x(i).toDouble()
+            it.at.y = flock.y(i).toDouble()
+            it.heading.x = flock.headingX(i).toDouble()
+            it.heading.y = flock.headingY(i).toDouble()
+        }
+        important.clear()
+    }
+
+    /**
+     * the original update: sorts the whole flock by distance for every boid. Kept for comparison (see Flock.main)
+     */
+    internal fun updateBySorting(scale: Double) {
         val next = mutableListOf<Boid>()
 
         ArrayList(all).forEach {
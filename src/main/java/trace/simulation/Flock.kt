@@ -0,0 +1,428 @@
+package trace.simulation
+
+import field.graphics.MeshBuilder
+import field.linalg.Vec2
+import java.util.concurrent.ThreadLocalRandom
+import java.util.stream.IntStream
+
+/**
+ * The flocking behaviour of Boids, for large flocks.
+ *
+ * Positions, headings and speeds are stored as a struct of float arrays, double buffered so that step() reads one set and writes the other. Each boid
+ * finds its nearest neighbours through a spatial hash rebuilt every step (rather than by sorting the whole flock by distance, per boid), and boids
+ * are updated in parallel across cores. The rules themselves (the averaging with the nearest `neighbours`, `tooClose`, `tooFar` and `W`, and the
+ * pull of the important boids) are those of Boids.propagate.
+ */
+class Flock(capacity: Int = 1024) {
+
+    var tooClose = 5.0f
+    var tooFar = 20.0f
+    var W = 1.0f
+
+    /** how many nearest boids each boid averages its position and heading with */
+    var neighbours = 6
+
+    /** step boids in parallel (with a flock bigger than `parallelThreshold`) */
+    var parallel = true
+    var parallelThreshold = 2000
+
+    var size = 0
+        private set
+
+    private var x = FloatArray(capacity)
+    private var y = FloatArray(capacity)
+    private var hx = FloatArray(capacity)
+    private var hy = FloatArray(capacity)
+    private var speed = FloatArray(capacity)
+
+    private var bx = FloatArray(capacity)
+    private var by = FloatArray(capacity)
+    private var bhx = FloatArray(capacity)
+    private var bhy = FloatArray(capacity)
+
+    private var important = IntArray(4)
+    private var importantCount = 0
+
+    private val hash = SpatialHash()
+
+    fun add(x: Float, y: Float, hx: Float, hy: Float, speed: Float = 1f): Int {
+        if (size == this.x.size) grow(Math.max(16, size * 2))
+        val i = size++
+        this.x[i] = x
+        this.y[i] = y
+        this.speed[i] = speed
+        setHeading(i, hx, hy)
+        return i
+    }
+
+    fun add(at: Vec2, heading: Vec2, speed: Double = 1.0) = add(at.x.toFloat(), at.y.toFloat(), heading.x.toFloat(), heading.y.toFloat(), speed.toFloat())
+
+    fun set(i: Int, x: Float, y: Float, hx: Float, hy: Float) {
+        this.x[i] = x
+        this.y[i] = y
+        setHeading(i, hx, hy)
+    }
+
+    /**
+     * marks boid `i` as important for the next step: every boid is pulled towards it. Cleared by step()
+     */
+    fun important(i: Int) {
+        for (q in 0 until importantCount) if (important[q] == i) return
+        if (importantCount == important.size) important = important.copyOf(importantCount * 2)
+        important[importantCount++] = i
+    }
+
+    fun clear() {
+        size = 0
+        importantCount = 0
+    }
+
+    fun x(i: Int) = x[i]
+    fun y(i: Int) = y[i]
+    fun headingX(i: Int) = hx[i]
+    fun headingY(i: Int) = hy[i]
+    fun speed(i: Int) = speed[i]
+
+    fun center(): Vec2 {
+        var cx = 0.0
+        var cy = 0.0
+        for (i in 0 until size) {
+            cx += x[i]
+            cy += y[i]
+        }
+        return Vec2(cx / size, cy / size)
+    }
+
+    fun step(scale: Float) {
+        if (size == 0) return
+
+        hash.build(x, y, size)
+
+        val chunk = 512
+        val chunks = (size + chunk - 1) / chunk
+        val s = IntStream.range(0, chunks)
+        (if (parallel && size > parallelThreshold) s.parallel() else s).forEach { c ->
+            val scratch = Scratch(neighbours)
+            for (i in c * chunk until Math.min(size, (c + 1) * chunk)) propagate(i, scale, scratch)
+        }
+
+        var t = x; x = bx; bx = t
+        t = y; y = by; by = t
+        t = hx; hx = bhx; bhx = t
+        t = hy; hy = bhy; bhy = t
+
+        importantCount = 0
+    }
+
+    private class Scratch(k: Int) {
+        val index = IntArray(Math.max(1, k))
+        val distance = FloatArray(Math.max(1, k))
+        var hx = 0f
+        var hy = 0f
+    }
+
+    private fun propagate(a: Int, scale: Float, s: Scratch) {
+        val ax = x[a]
+        val ay = y[a]
+
+        // exactly as Boids.propagate, quirks included: it averages over the list (important boids, then every boid sorted by distance, this one
+        // first) from its second entry up to 'n', so with important boids the first of them is left out and this boid is counted again, and the
+        // averages are taken over one more than 'n'. That list has size + m entries, and Boids clamps 'n' to one less than that
+        val m = importantCount
+        val n = Math.min(neighbours + 1 + m, size + m - 1)
+        val k = Math.max(0, Math.min(neighbours, n - 1 - m))
+        val found = hash.nearest(a, x, y, Math.max(1, Math.min(k, s.index.size)), s.index, s.distance)
+
+        var cx = ax
+        var cy = ay
+        s.hx = hx[a] * W
+        s.hy = hy[a] * W
+
+        for (q in 1 until n) {
+            val b = when {
+                q < m -> important[q]
+                q == m -> a
+                q - m - 1 < found -> s.index[q - m - 1]
+                else -> break
+            }
+            cx += x[b]
+            cy += y[b]
+            s.hx += hx[b]
+            s.hy += hy[b]
+        }
+
+        cx /= (1 + n)
+        cy /= (1 + n)
+        s.hx /= (W + n)
+        s.hy /= (W + n)
+
+        normalize(s)
+
+        if (size > 1 && found > 0) {
+            tweakHeading(s, ax, ay, s.index[0], cx, cy, tooFar)
+            for (q in m - 1 downTo 0) {
+                val b = important[q]
+                tweakHeading(s, ax, ay, b, x[b], y[b], tooFar * 5)
+            }
+        }
+
+        val d = speed[a] * scale
+        bx[a] = ax + s.hx * d
+        by[a] = ay + s.hy * d
+        bhx[a] = s.hx
+        bhy[a] = s.hy
+    }
+
+    private fun tweakHeading(s: Scratch, ax: Float, ay: Float, b: Int, cx: Float, cy: Float, tooFar: Float) {
+        val dx = ax - x[b]
+        val dy = ay - y[b]
+        val Z = Math.sqrt((dx * dx + dy * dy).toDouble()).toFloat()
+        if (Z > 0) {
+            if (Z < tooClose) {
+                val w = (tooClose - Z) / tooClose / Z
+                s.hx += dx * w
+                s.hy += dy * w
+                normalize(s)
+            }
+
+            val ex = cx - ax
+            val ey = cy - ay
+            val Z2 = Math.sqrt((ex * ex + ey * ey).toDouble()).toFloat()
+            if (Z2 > tooFar) {
+                val w = (Z2 - tooFar) / tooFar / Z2
+                s.hx += ex * w
+                s.hy += ey * w
+                normalize(s)
+            }
+        }
+    }
+
+    private fun normalize(s: Scratch) {
+        var l = Math.sqrt((s.hx * s.hx + s.hy * s.hy).toDouble()).toFloat()
+        while (l == 0f) {
+            val r = ThreadLocalRandom.current()
+            s.hx = (r.nextFloat() - 0.5f)
+            s.hy = (r.nextFloat() - 0.5f)
+            l = Math.sqrt((s.hx * s.hx + s.hy * s.hy).toDouble()).toFloat()
+        }
+        s.hx /= l
+        s.hy /= l
+    }
+
+    private fun setHeading(i: Int, hx: Float, hy: Float) {
+        var l = Math.sqrt((hx * hx + hy * hy).toDouble()).toFloat()
+        if (l == 0f) {
+            val s = Scratch(0)
+            normalize(s)
+            this.hx[i] = s.hx
+            this.hy[i] = s.hy
+        } else {
+            this.hx[i] = hx / l
+            this.hy[i] = hy / l
+        }
+    }
+
+    private fun grow(to: Int) {
+        x = x.copyOf(to)
+        y = y.copyOf(to)
+        hx = hx.copyOf(to)
+        hy = hy.copyOf(to)
+        speed = speed.copyOf(to)
+        bx = bx.copyOf(to)
+        by = by.copyOf(to)
+        bhx = bhx.copyOf(to)
+        bhy = bhy.copyOf(to)
+    }
+
+    /**
+     * writes a point per boid into `target` (which should be a pointList), replacing what was there
+     */
+    fun points(target: MeshBuilder, z: Float = 0f) {
+        val f = FloatArray(3 * size)
+        for (i in 0 until size) {
+            f[3 * i] = x[i]
+            f[3 * i + 1] = y[i]
+            f[3 * i + 2] = z
+        }
+        target.open()
+        try {
+            target.raw_v(f)
+        } finally {
+            target.close()
+        }
+    }
+
+    /**
+     * writes a line per boid, from where it is along its heading for `length`, into `target` (which should be a lineList), replacing what was there
+     */
+    fun lines(target: MeshBuilder, length: Float, z: Float = 0f) {
+        val f = FloatArray(6 * size)
+        val e = IntArray(2 * size)
+        for (i in 0 until size) {
+            f[6 * i] = x[i]
+            f[6 * i + 1] = y[i]
+            f[6 * i + 2] = z
+            f[6 * i + 3] = x[i] + hx[i] * length
+            f[6 * i + 4] = y[i] + hy[i] * length
+            f[6 * i + 5] = z
+            e[2 * i] = 2 * i
+            e[2 * i + 1] = 2 * i + 1
+        }
+        target.open()
+        try {
+            target.raw_v(f)
+            target.raw_e_line(e)
+        } finally {
+            target.close()
+        }
+    }
+
+    /**
+     * Boids bucketed into square cells, by a hash of the cell. The cell size is picked from the extent of the flock so that there are a handful of
+     * boids per cell however spread out it is
+     */
+    private class SpatialHash {
+        var cell = 1f
+        var minX = 0f
+        var minY = 0f
+        var maxCx = 0
+        var maxCy = 0
+        var mask = 0
+
+        var cx = IntArray(0)
+        var cy = IntArray(0)
+        var start = IntArray(0)
+        var order = IntArray(0)
+
+        fun build(x: FloatArray, y: FloatArray, n: Int) {
+            minX = Float.POSITIVE_INFINITY
+            minY = Float.POSITIVE_INFINITY
+            var maxX = Float.NEGATIVE_INFINITY
+            var maxY = Float.NEGATIVE_INFINITY
+            for (i in 0 until n) {
+                minX = Math.min(minX, x[i])
+                minY = Math.min(minY, y[i])
+                maxX = Math.max(maxX, x[i])
+                maxY = Math.max(maxY, y[i])
+            }
+            val w = maxX - minX
+            val h = maxY - minY
+            cell = Math.max(Math.max(Math.sqrt((w.toDouble() * h * 8 / n)).toFloat(), Math.max(w, h) * 8 / n), 1e-3f)
+
+            var buckets = 16
+            while (buckets < n) buckets *= 2
+            mask = buckets - 1
+
+            if (cx.size < n) {
+                cx = IntArray(n)
+                cy = IntArray(n)
+                order = IntArray(n)
+            }
+            if (start.size < buckets + 1) start = IntArray(buckets + 1)
+            else java.util.Arrays.fill(start, 0, buckets + 1, 0)
+
+            maxCx = 0
+            maxCy = 0
+            for (i in 0 until n) {
+                cx[i] = ((x[i] - minX) / cell).toInt()
+                cy[i] = ((y[i] - minY) / cell).toInt()
+                maxCx = Math.max(maxCx, cx[i])
+                maxCy = Math.max(maxCy, cy[i])
+                start[bucket(cx[i], cy[i]) + 1]++
+            }
+            for (b in 0 until buckets) start[b + 1] += start[b]
+            val fill = start.copyOf(buckets)
+            for (i in 0 until n) order[fill[bucket(cx[i], cy[i])]++] = i
+        }
+
+        fun bucket(ix: Int, iy: Int) = ((ix * 73856093) xor (iy * 19349663)) and mask
+
+        /**
+         * the `k` boids nearest to boid `a` (not including `a`), nearest first, into `index` (and their squared distances into `distance`). Returns
+         * how many were found
+         */
+        fun nearest(a: Int, x: FloatArray, y: FloatArray, k: Int, index: IntArray, distance: FloatArray): Int {
+            val ax = x[a]
+            val ay = y[a]
+            val acx = cx[a]
+            val acy = cy[a]
+            val maxR = Math.max(Math.max(acx, maxCx - acx), Math.max(acy, maxCy - acy))
+
+            var found = 0
+            for (r in 0..maxR) {
+                if (r == 0) found = visit(acx, acy, a, ax, ay, x, y, k, index, distance, found)
+                else {
+                    for (dx in -r..r) {
+                        found = visit(acx + dx, acy - r, a, ax, ay, x, y, k, index, distance, found)
+                        found = visit(acx + dx, acy + r, a, ax, ay, x, y, k, index, distance, found)
+                    }
+                    for (dy in -r + 1 until r) {
+                        found = visit(acx - r, acy + dy, a, ax, ay, x, y, k, index, distance, found)
+                        found = visit(acx + r, acy + dy, a, ax, ay, x, y, k, index, distance, found)
+                    }
+                }
+                // anything in the next ring out is at least r cells away
+                val bound = r * cell
+                if (found == k && distance[k - 1] <= bound * bound) break
+            }
+            return found
+        }
+
+        private fun visit(ix: Int, iy: Int, a: Int, ax: Float, ay: Float, x: FloatArray, y: FloatArray, k: Int, index: IntArray, distance: FloatArray, found: Int): Int {
+            if (ix < 0 || iy < 0 || ix > maxCx || iy > maxCy) return found
+            var f = found
+            val b = bucket(ix, iy)
+            for (o in start[b] until start[b + 1]) {
+                val i = order[o]
+                // different cells can share a bucket
+                if (i == a || cx[i] != ix || cy[i] != iy) continue
+                val dx = x[i] - ax
+                val dy = y[i] - ay
+                val d = dx * dx + dy * dy
+                if (f == k && d >= distance[k - 1]) continue
+
+                var p = if (f < k) f++ else k - 1
+                while (p > 0 && distance[p - 1] > d) {
+                    distance[p] = distance[p - 1]
+                    index[p] = index[p - 1]
+                    p--
+                }
+                distance[p] = d
+                index[p] = i
+            }
+            return f
+        }
+    }
+
+    companion object {
+
+        // benchmark: steps of flocks of 1k, 10k and 100k boids, serial and parallel, and (at 1k) the sort-per-boid Boids it replaces
+        @JvmStatic
+        fun main(args: Array<String>) {
+            for (n in intArrayOf(1000, 10000, 100000)) {
+                val r = java.util.Random(1)
+                val side = Math.sqrt(n.toDouble()).toFloat() * 10
+                for (parallel in booleanArrayOf(false, true)) {
+                    val f = Flock(n)
+                    f.parallel = parallel
+                    for (i in 0 until n) f.add(r.nextFloat() * side, r.nextFloat() * side, r.nextFloat() - 0.5f, r.nextFloat() - 0.5f)
+                    for (rep in 0 until 5) {
+                        val t0 = System.nanoTime()
+                        f.step(1f)
+                        val t1 = System.nanoTime()
+                        println(" flock of $n, ${if (parallel) "parallel" else "serial"} : ${(t1 - t0) / 1e6}ms per step, center ${f.center()}")
+                    }
+                }
+            }
+
+            val n = 1000
+            val r = java.util.Random(1)
+            val b = Boids()
+            for (i in 0 until n) b.all.add(b.Boid(Vec2(r.nextDouble() * 316, r.nextDouble() * 316), Vec2(r.nextDouble() - 0.5, r.nextDouble() - 0.5).normalize()))
+            val t0 = System.nanoTime()
+            b.updateBySorting(1.0)
+            val t1 = System.nanoTime()
+            println(" boids of $n, sorting per boid : ${(t1 - t0) / 1e6}ms per step, center ${b.center()}")
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.lang.Math.min
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.FloatBuffer
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.IntStream
 
 class GrayScott(val width: Int, val height: Int, val isTiling: Boolean) {
 
@@ -312,6 +314,10 @@ class GrayScott(val width: Int, val height: Int, val isTiling: Boolean) {
             }
         }
 
+        swap()
+    }
+
+    private fun swap() {
         u.clear()
         uu.clear()
         uu.put(u)
@@ -327,6 +333,107 @@ class GrayScott(val width: Int, val height: Int, val isTiling: Boolean) {
 //        System.arraycopy(v, 0, vv, 0, v.capacity())
     }
 
+    private class Band {
+        var u = FloatArray(0)
+        var v = FloatArray(0)
+        var nu = FloatArray(0)
+        var nv = FloatArray(0)
+
+        fun ensure(n: Int) {
+            if (u.size >= n) return
+            u = FloatArray(n)
+            v = FloatArray(n)
+            nu = FloatArray(n)
+            nv = FloatArray(n)
+        }
+    }
+
+    private val bands = ThreadLocal.withInitial { Band() }
+
+    /**
+     * `steps` sub-steps of update(t), across all cores.
+     *
+     * The field is cut into bands of rows and each band is copied out with `steps` rows of halo either side, so it can be stepped `steps` times
+     * without hearing from its neighbours. Unlike update(t), f and k are used everywhere (rather than getFCoeffAt / getKCoeffAt) and the edges of a
+     * non-tiling field are held where they are
+     */
+    fun update(t: Float, steps: Int) {
+        if (steps < 1) return
+        val band = Math.max(16, height / (4 * ForkJoinPool.getCommonPoolParallelism()))
+        val count = (height + band - 1) / band
+        IntStream.range(0, count).parallel().forEach { b -> stepBand(t, steps, b * band, Math.min(height, (b + 1) * band)) }
+        swap()
+    }
+
+    private fun stepBand(t: Float, steps: Int, y0: Int, y1: Int) {
+        val top = if (isTiling) y0 - steps else Math.max(0, y0 - steps)
+        val bottom = if (isTiling) y1 + steps else Math.min(height, y1 + steps)
+        val rows = bottom - top
+
+        val s = bands.get()
+        s.ensure(rows * width)
+
+        val su = uu.duplicate()
+        val sv = vv.duplicate()
+        for (r in 0 until rows) {
+            val gy = Math.floorMod(top + r, height)
+            su.position(gy * width)
+            su.get(s.u, r * width, width)
+            sv.position(gy * width)
+            sv.get(s.v, r * width, width)
+        }
+
+        var cu = s.u
+        var cv = s.v
+        var nu = s.nu
+        var nv = s.nv
+        val w1 = width - 1
+
+        for (step in 0 until steps) {
+            // the rows we can still compute shrink by one at each end that has halo
+            val lo = if (!isTiling && top == 0) 0 else step + 1
+            val hi = if (!isTiling && bottom == height) rows else rows - step - 1
+
+            for (r in lo until hi) {
+                val gy = top + r
+                val o = r * width
+                if (!isTiling && (gy == 0 || gy == height - 1)) {
+                    System.arraycopy(cu, o, nu, o, width)
+                    System.arraycopy(cv, o, nv, o, width)
+                    continue
+                }
+                for (x in 0 until width) {
+                    val idx = o + x
+                    if (!isTiling && (x == 0 || x == w1)) {
+                        nu[idx] = cu[idx]
+                        nv[idx] = cv[idx]
+                        continue
+                    }
+                    val left = if (x == 0) o + w1 else idx - 1
+                    val right = if (x == w1) o else idx + 1
+                    val currU = cu[idx]
+                    val currV = cv[idx]
+                    val d2 = currU * currV * currV
+                    nu[idx] = Math.max(0f, currU + t * (dU * (cu[right] + cu[left] + cu[idx + width] + cu[idx - width] - 4 * currU) - d2 + f * (1.0f - currU)))
+                    nv[idx] = Math.max(0f, currV + t * (dV * (cv[right] + cv[left] + cv[idx + width] + cv[idx - width] - 4 * currV) + d2 - k * currV))
+                }
+            }
+
+            var q = cu; cu = nu; nu = q
+            q = cv; cv = nv; nv = q
+        }
+
+        val du = u.duplicate()
+        val dv = v.duplicate()
+        for (y in y0 until y1) {
+            val r = y - top
+            du.position(y * width)
+            du.put(cu, r * width, width)
+            dv.position(y * width)
+            dv.put(cv, r * width, width)
+        }
+    }
+
     private fun clip(t: Float, low: Float, high: Float): Float {
         if (t < low) return low;
         if (t > high) return high;
@@ -338,6 +445,37 @@ class GrayScott(val width: Int, val height: Int, val isTiling: Boolean) {
         if (t > high) return high;
         return t;
     }
+
+    companion object {
+
+        // benchmark: cells per second at 1024² and 4096², for update(t) and for the parallel update(t, steps)
+        @JvmStatic
+        fun main(args: Array<String>) {
+            for (n in intArrayOf(1024, 4096)) {
+                val g = GrayScott(n, n, true)
+                g.setRect(n / 2, n / 2, n / 8, n / 8)
+
+                for (rep in 0 until 3) {
+                    val t0 = System.nanoTime()
+                    g.update(1f)
+                    val t1 = System.nanoTime()
+                    println(" $n x $n, update(t) : ${cellsPerSecond(n, 1, t1 - t0)} cells/sec")
+                }
+
+                for (steps in intArrayOf(1, 4, 8)) {
+                    for (rep in 0 until 3) {
+                        val t0 = System.nanoTime()
+                        g.update(1f, steps)
+                        val t1 = System.nanoTime()
+                        println(" $n x $n, update(t, $steps) : ${cellsPerSecond(n, steps, t1 - t0)} cells/sec")
+                    }
+                }
+                println(" center u = ${g.getCurrentUAt(n / 2, n / 2)}")
+            }
+        }
+
+        private fun cellsPerSecond(n: Int, steps: Int, nanos: Long) = String.format("%.3g", n.toDouble() * n * steps / (nanos / 1e9))
+    }
 }
 
 private inline operator fun FloatBuffer.set(x: Int, value: Float) {
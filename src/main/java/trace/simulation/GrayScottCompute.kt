@@ -0,0 +1,371 @@
+package trace.simulation
+
+import field.graphics.GraphicsContext
+import field.graphics.Scene
+import field.graphics.Shader
+import field.graphics.Texture
+import field.utility.Rect
+import org.lwjgl.opengl.GL15.*
+import org.lwjgl.opengl.GL20.*
+import org.lwjgl.opengl.GL30.GL_R32F
+import org.lwjgl.opengl.GL30.glBindBufferBase
+import org.lwjgl.opengl.GL33.GL_TIME_ELAPSED
+import org.lwjgl.opengl.GL33.glGetQueryObjecti64
+import org.lwjgl.opengl.GL42.*
+import org.lwjgl.opengl.GL43.*
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * GrayScott, on the GPU.
+ *
+ * U and V live in a pair of shader storage buffers that a compute shader ping-pongs between, `steps` times for every call to update(). They never
+ * come back to the CPU: the last pass writes them straight into the textures made by attachTextureSources. setRect, seedImage and reset are queued
+ * up as edits and applied by the GPU before the next step.
+ *
+ * Everything happens when this is performed (it attaches itself to the shader passed to attachTextureSources), and the edits are applied by the
+ * first context that draws it.
+ */
+class GrayScottCompute(val width: Int, val height: Int, val isTiling: Boolean) : Scene.Perform {
+
+    @JvmField
+    var f: Float = 0.toFloat()
+    @JvmField
+    var k: Float = 0.toFloat()
+
+    @JvmField
+    var dU: Float = 0.toFloat()
+    @JvmField
+    var dV: Float = 0.toFloat()
+
+    /**
+     * how many sub-steps, each of `t`, are taken for every call to update(t)
+     */
+    @JvmField
+    var steps = 1
+
+    /**
+     * how fast the compute shader is stepping, measured on the GPU a frame or so late
+     */
+    @JvmField
+    var cellsPerSecond = 0.0
+
+    private var texture_u: Texture? = null
+    private var texture_v: Texture? = null
+
+    private var pendingUpdates = 0
+    private var pendingT = 0f
+
+    private var resetRequested = true
+    private var editIndex = IntArray(0)
+    private var editValue = FloatArray(0)
+    private var editCount = 0
+
+    init {
+        // default config
+        setCoefficients(0.023f, 0.077f, 0.16f, 0.08f)
+    }
+
+    private class State {
+        var program = 0
+        var buffers = IntArray(3)
+        var editCapacity = 0
+        var front = 0
+        var query = 0
+        var queryCells = 0L
+        var queryPending = false
+
+        var modeAt = 0
+        var frontAt = 0
+        var sizeAt = 0
+        var tilingAt = 0
+        var coefficientsAt = 0
+        var tAt = 0
+        var countAt = 0
+    }
+
+    fun attachTextureSources(s: Shader, a: Int, b: Int, nameA: String, nameB: String): Runnable {
+        val texture_u = Texture(Texture.TextureSpecification.float1(a, width, height, null))
+        val texture_v = Texture(Texture.TextureSpecification.float1(b, width, height, null))
+        this.texture_u = texture_u
+        this.texture_v = texture_v
+
+        s.asMap_set(nameA, texture_u)
+        s.asMap_set(nameB, texture_v)
+        s.attach(this)
+
+        // nothing to upload, the textures are written on the GPU
+        return Runnable { }
+    }
+
+    fun setCoefficients(f: Float, k: Float, dU: Float, dV: Float) {
+        this.f = f
+        this.k = k
+        this.dU = dU
+        this.dV = dV
+    }
+
+    /**
+     * queues up `steps` sub-steps of `t`, taken the next time that this is drawn
+     */
+    @Synchronized
+    fun update(t: Float) {
+        pendingT = t
+        // don't let a stalled display build up a backlog
+        pendingUpdates = Math.min(pendingUpdates + 1, 4)
+    }
+
+    /**
+     * Resets the simulation to an initial, clean state.
+     */
+    @Synchronized
+    fun reset() {
+        resetRequested = true
+        editCount = 0
+    }
+
+    fun seedImage(pixels: IntArray, imgWidth: Int, imgHeight: Int) {
+        val xo = clip((width - imgWidth) / 2, 0, width - 1)
+        val yo = clip((height - imgHeight) / 2, 0, height - 1)
+        val w = Math.min(imgWidth, width)
+        val h = Math.min(imgHeight, height)
+        for (y in 0 until h) {
+            val i = y * imgWidth
+            for (x in 0 until w) {
+                if (0 < pixels[i + x] and 0xff) {
+                    edit((yo + y) * width + xo + x, 0.5f, 0.25f)
+                }
+            }
+        }
+    }
+
+    fun setRect(x: Int, y: Int, w: Int, h: Int) {
+        setRect(x, y, w, h, 0.5f, 0.25f)
+    }
+
+    fun setRect(x: Int, y: Int, w: Int, h: Int, u: Float, v: Float) {
+        val mix = clip(x - w / 2, 0, width)
+        val max = clip(x + w / 2, 0, width)
+        val miy = clip(y - h / 2, 0, height)
+        val may = clip(y + h / 2, 0, height)
+        for (yy in miy until may) {
+            for (xx in mix until max) {
+                edit(yy * width + xx, u, v)
+            }
+        }
+    }
+
+    fun setRect(r: Rect) {
+        setRect(r.x.toInt(), r.y.toInt(), r.w.toInt(), r.h.toInt())
+    }
+
+    @Synchronized
+    private fun edit(index: Int, u: Float, v: Float) {
+        if (editCount == editIndex.size) {
+            editIndex = editIndex.copyOf(Math.max(1024, editCount * 2))
+            editValue = editValue.copyOf(2 * editIndex.size)
+        }
+        editIndex[editCount] = index
+        editValue[2 * editCount] = u
+        editValue[2 * editCount + 1] = v
+        editCount++
+    }
+
+    override fun perform(pass: Int): Boolean {
+        val texture_u = texture_u ?: return true
+        val texture_v = texture_v ?: return true
+
+        val s = GraphicsContext.get(this, { setup() })
+
+        var reset = false
+        var edits: ByteBuffer? = null
+        var count = 0
+        var updates = 0
+        var t = 0f
+        synchronized(this) {
+            reset = resetRequested
+            resetRequested = false
+            count = editCount
+            if (count > 0) {
+                edits = ByteBuffer.allocateDirect(16 * count).order(ByteOrder.nativeOrder())
+                for (i in 0 until count) {
+                    edits!!.putInt(editIndex[i])
+                    edits!!.putFloat(editValue[2 * i])
+                    edits!!.putFloat(editValue[2 * i + 1])
+                    edits!!.putFloat(0f)
+                }
+                edits!!.flip()
+            }
+            editCount = 0
+            updates = pendingUpdates
+            pendingUpdates = 0
+            t = pendingT
+        }
+
+        if (s.queryPending && glGetQueryObjecti(s.query, GL_QUERY_RESULT_AVAILABLE) != 0) {
+            val nanos = glGetQueryObjecti64(s.query, GL_QUERY_RESULT)
+            if (nanos > 0) cellsPerSecond = s.queryCells / (nanos / 1e9)
+            s.queryPending = false
+        }
+
+        if (!reset && count == 0 && updates == 0) return true
+
+        GraphicsContext.checkError { "before gray scott compute" }
+
+        glUseProgram(s.program)
+        glUniform2i(s.sizeAt, width, height)
+        glUniform1i(s.tilingAt, if (isTiling) 1 else 0)
+        glUniform4f(s.coefficientsAt, f, k, dU, dV)
+        glUniform1f(s.tAt, t)
+
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, s.buffers[0])
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 1, s.buffers[1])
+
+        val gx = (width + 15) / 16
+        val gy = (height + 15) / 16
+
+        if (reset) dispatch(s, 3, gx, gy)
+
+        if (count > 0) {
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, s.buffers[2])
+            if (s.editCapacity < count) {
+                glBufferData(GL_SHADER_STORAGE_BUFFER, 16L * count, GL_STREAM_DRAW)
+                s.editCapacity = count
+            }
+            glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, edits!!)
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0)
+            glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 2, s.buffers[2])
+            glUniform1i(s.countAt, count)
+            dispatch(s, 2, (count + 255) / 256, 1)
+        }
+
+        val n = updates * steps
+        if (n > 0) {
+            val timing = !s.queryPending
+            if (timing) glBeginQuery(GL_TIME_ELAPSED, s.query)
+            for (i in 0 until n) {
+                dispatch(s, 0, gx, gy)
+                s.front = 1 - s.front
+            }
+            if (timing) {
+                glEndQuery(GL_TIME_ELAPSED)
+                s.queryCells = width.toLong() * height * n
+                s.queryPending = true
+            }
+        }
+
+        texture_u.perform(-1)
+        texture_v.perform(-1)
+        glBindImageTexture(0, texture_u.openGLNameInCurrentContext, 0, false, 0, GL_WRITE_ONLY, GL_R32F)
+        glBindImageTexture(1, texture_v.openGLNameInCurrentContext, 0, false, 0, GL_WRITE_ONLY, GL_R32F)
+        dispatch(s, 4, gx, gy)
+        glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT or GL_SHADER_IMAGE_ACCESS_BARRIER_BIT)
+
+        val was = GraphicsContext.getContext().stateTracker.shader.get()
+        glUseProgram(was ?: 0)
+
+        GraphicsContext.checkError { "after gray scott compute" }
+        return true
+    }
+
+    private fun dispatch(s: State, mode: Int, gx: Int, gy: Int) {
+        glUniform1i(s.modeAt, mode)
+        glUniform1i(s.frontAt, s.front)
+        glDispatchCompute(gx, gy, 1)
+        glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT)
+    }
+
+    private fun setup(): State {
+        val s = State()
+
+        val cs = glCreateShader(GL_COMPUTE_SHADER)
+        glShaderSource(cs, "#version 430\n" +
+                "layout(local_size_x = 16, local_size_y = 16) in;\n" +
+                "layout(std430, binding = 0) buffer A { vec2 a[]; };\n" +
+                "layout(std430, binding = 1) buffer B { vec2 b[]; };\n" +
+                "struct Edit { int index; float u; float v; float pad; };\n" +
+                "layout(std430, binding = 2) buffer E { Edit edits[]; };\n" +
+                "layout(r32f, binding = 0) uniform writeonly image2D uImage;\n" +
+                "layout(r32f, binding = 1) uniform writeonly image2D vImage;\n" +
+                "uniform int mode;\n" +
+                "uniform int front;\n" +
+                "uniform ivec2 size;\n" +
+                "uniform int tiling;\n" +
+                "uniform vec4 coefficients;\n" +
+                "uniform float t;\n" +
+                "uniform int count;\n" +
+                "vec2 get(int i) { return front == 0 ? a[i] : b[i]; }\n" +
+                "void put(int i, vec2 x) { if (front == 0) b[i] = x; else a[i] = x; }\n" +
+                "void putFront(int i, vec2 x) { if (front == 0) a[i] = x; else b[i] = x; }\n" +
+                "int at(int x, int y) { return ((y + size.y) % size.y) * size.x + (x + size.x) % size.x; }\n" +
+                "void main()\n" +
+                "{\n" +
+                "	if (mode == 2) {\n" +
+                "		int e = int(gl_WorkGroupID.x) * 256 + int(gl_LocalInvocationIndex);\n" +
+                "		if (e < count) putFront(edits[e].index, vec2(edits[e].u, edits[e].v));\n" +
+                "		return;\n" +
+                "	}\n" +
+                "	ivec2 p = ivec2(gl_GlobalInvocationID.xy);\n" +
+                "	if (p.x >= size.x || p.y >= size.y) return;\n" +
+                "	int i = p.y * size.x + p.x;\n" +
+                "	if (mode == 3) { putFront(i, vec2(1, 0)); return; }\n" +
+                "	if (mode == 4) {\n" +
+                "		vec2 c = get(i);\n" +
+                "		imageStore(uImage, p, vec4(c.x));\n" +
+                "		imageStore(vImage, p, vec4(c.y));\n" +
+                "		return;\n" +
+                "	}\n" +
+                "	vec2 c = get(i);\n" +
+                "	if (tiling == 0 && (p.x == 0 || p.y == 0 || p.x == size.x - 1 || p.y == size.y - 1)) { put(i, c); return; }\n" +
+                "	vec2 lap = get(at(p.x - 1, p.y)) + get(at(p.x + 1, p.y)) + get(at(p.x, p.y - 1)) + get(at(p.x, p.y + 1)) - 4 * c;\n" +
+                "	float d2 = c.x * c.y * c.y;\n" +
+                "	float u = max(0, c.x + t * (coefficients.z * lap.x - d2 + coefficients.x * (1 - c.x)));\n" +
+                "	float v = max(0, c.y + t * (coefficients.w * lap.y + d2 - coefficients.y * c.y));\n" +
+                "	put(i, vec2(u, v));\n" +
+                "}")
+        glCompileShader(cs)
+        if (glGetShaderi(cs, GL_COMPILE_STATUS) == 0)
+            System.err.println(" gray scott compute shader didn't compile: " + glGetShaderInfoLog(cs, 10000))
+        s.program = glCreateProgram()
+        glAttachShader(s.program, cs)
+        glLinkProgram(s.program)
+        glDeleteShader(cs)
+        if (glGetProgrami(s.program, GL_LINK_STATUS) == 0)
+            System.err.println(" gray scott compute shader didn't link: " + glGetProgramInfoLog(s.program, 10000))
+
+        s.modeAt = glGetUniformLocation(s.program, "mode")
+        s.frontAt = glGetUniformLocation(s.program, "front")
+        s.sizeAt = glGetUniformLocation(s.program, "size")
+        s.tilingAt = glGetUniformLocation(s.program, "tiling")
+        s.coefficientsAt = glGetUniformLocation(s.program, "coefficients")
+        s.tAt = glGetUniformLocation(s.program, "t")
+        s.countAt = glGetUniformLocation(s.program, "count")
+
+        s.buffers[0] = glGenBuffers()
+        s.buffers[1] = glGenBuffers()
+        s.buffers[2] = glGenBuffers()
+        for (i in 0..1) {
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, s.buffers[i])
+            glBufferData(GL_SHADER_STORAGE_BUFFER, 8L * width * height, GL_DYNAMIC_COPY)
+        }
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0)
+
+        s.query = glGenQueries()
+
+        // every context starts from a clean field
+        resetRequested = true
+
+        return s
+    }
+
+    private fun clip(t: Int, low: Int, high: Int): Int {
+        if (t < low) return low
+        if (t > high) return high
+        return t
+    }
+
+    override fun getPasses(): IntArray {
+        // before the shader that we are attached to binds itself
+        return intArrayOf(-3)
+    }
+}
@@ -1,12 +1,12 @@
 package trace.util
 
-import marc.math.Flann
+import marc.math.SpatialIndex
 
 class PointCloudFlann(val pc: trace.graphics.PointCloud) {
-    private var f: Flann
+    private var f: SpatialIndex
 
     init {
-        f = Flann()
+        f = SpatialIndex()
         f.build3d((0 until pc.points.size).toList(), { pc.points[it].first })
     }
 
@@ -0,0 +1,296 @@
+package trace.video
+
+import field.utility.Dict
+import field.utility.Options
+import java.nio.ByteBuffer
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A ring of decode slots indexed by frame number (slot = frame mod slots). Each slot's (frame, state) pair lives in a single AtomicLong so that
+ * scheduling, decoding and reading are all lock-free compare-and-set transitions; consumers that need a frame that isn't ready yet block on the slot's future
+ * rather than polling, and consumers waiting for another copy to finish reading a slot block on that slot's monitor. A slot is RESERVED while its new future
+ * is installed, so nobody sees DECODING paired with the previous occupant's future.
+ *
+ * Prefetch is direction aware: playing forward keeps `lookahead` frames ahead of the playhead, playing in reverse keeps them behind, and scrubbing splits the
+ * window either side. Work that has been queued but falls out of the window by the time a worker reaches it is cancelled without being decoded.
+ */
+class FramePipe(val width: Int, val height: Int, val slots: Int, val lookahead: Int, private val decoder: (Int, ByteBuffer) -> Unit) {
+
+    enum class Direction {
+        forward, reverse, scrub
+    }
+
+    internal var threads = Options.dict().getOr(Dict.Prop<Number>("decompressThreads")) { 12 }.toInt()
+
+    private val pool: ExecutorService = Executors.newFixedThreadPool(threads) { r ->
+        val t = Thread(r, "decompression thread")
+        t.isDaemon = true
+        t
+    }
+
+    // allocated on first use, so a large ring at 4k doesn't cost anything until it's actually filled
+    private val buffers = AtomicReferenceArray<ByteBuffer>(slots)
+    private val state = AtomicLongArray(slots)
+    private val futures = AtomicReferenceArray<CompletableFuture<ByteBuffer>>(slots)
+    // notified when a slot stops being READING
+    private val readLocks = Array(slots) { java.lang.Object() }
+
+    private val fixed = ConcurrentHashMap<Int, ByteBuffer>()
+
+    @Volatile
+    var head = 0
+        private set
+
+    @Volatile
+    var direction = Direction.forward
+
+    val decodeTime = RollingTimer("framePipe.decode", 100, 5f)
+    val stallTime = RollingTimer("framePipe.stall", 100, 5f)
+
+    val hits = AtomicLong()
+    val misses = AtomicLong()
+    val cancelled = AtomicLong()
+    val decoded = AtomicLong()
+
+    init {
+        if (slots < lookahead + 2) throw IllegalArgumentException(" ring of $slots slots is too small for a lookahead of $lookahead")
+        for (i in 0 until slots) state.set(i, pack(-1, FREE))
+    }
+
+    private fun slotFor(frame: Int) = Math.floorMod(frame, slots)
+
+    private fun storage(s: Int): ByteBuffer {
+        var b = buffers.get(s)
+        if (b == null) {
+            buffers.compareAndSet(s, null, ByteBuffer.allocateDirect(3 * width * height))
+            b = buffers.get(s)
+        }
+        return b!!
+    }
+
+    /**
+     * is `frame` still inside the prefetch window around the playhead?
+     */
+    fun wanted(frame: Int): Boolean {
+        val h = head
+        return when (direction) {
+            Direction.forward -> frame >= h - 1 && frame <= h + lookahead
+            Direction.reverse -> frame <= h + 1 && frame >= h - lookahead
+            Direction.scrub -> Math.abs(frame - h) <= lookahead / 2 + 1
+        }
+    }
+
+    /**
+     * schedules a decode of `frame` unless it's already decoding or decoded. Returns the future that completes when the frame is ready, or null if the slot is
+     * currently busy with some other frame (either being decoded or being read)
+     */
+    fun schedule(frame: Int): CompletableFuture<ByteBuffer>? {
+        if (frame < 0) return null
+        if (fixed.containsKey(frame)) return CompletableFuture.completedFuture(fixed[frame])
+
+        val s = slotFor(frame)
+        while (true) {
+            val v = state.get(s)
+            val st = stateOf(v)
+            if (st == RESERVED) {
+                // another schedule is a couple of instructions away from publishing this slot's future
+                Thread.onSpinWait()
+                continue
+            }
+            if (frameOf(v) == frame && st != FREE) return futures.get(s)
+            if (st == DECODING || st == READING) return null
+
+            val f = CompletableFuture<ByteBuffer>()
+            if (state.compareAndSet(s, v, pack(frame, RESERVED))) {
+                futures.set(s, f)
+                state.set(s, pack(frame, DECODING))
+                pool.execute { decode(s, frame, f) }
+                return f
+            }
+        }
+    }
+
+    private fun decode(s: Int, frame: Int, f: CompletableFuture<ByteBuffer>) {
+        if (!wanted(frame)) {
+            if (state.compareAndSet(s, pack(frame, DECODING), pack(-1, FREE))) {
+                cancelled.incrementAndGet()
+                f.cancel(false)
+            }
+            return
+        }
+
+        val b = storage(s)
+        val t0 = System.nanoTime()
+        try {
+            b.rewind()
+            decoder(frame, b)
+            b.rewind()
+        } catch (e: Throwable) {
+            state.set(s, pack(-1, FREE))
+            f.completeExceptionally(e)
+            return
+        }
+        decodeTime.add((System.nanoTime() - t0) / 1e9f)
+        decoded.incrementAndGet()
+
+        state.set(s, pack(frame, READY))
+        f.complete(b)
+    }
+
+    /**
+     * moves the playhead to `frame` and schedules the window around it, nearest frames first
+     */
+    fun prefetch(frame: Int) {
+        head = frame
+        when (direction) {
+            Direction.forward -> for (i in 0..lookahead) schedule(frame + i)
+            Direction.reverse -> for (i in 0..lookahead) schedule(frame - i)
+            Direction.scrub -> {
+                schedule(frame)
+                for (i in 1..lookahead / 2) {
+                    schedule(frame + i)
+                    schedule(frame - i)
+                }
+            }
+        }
+    }
+
+    fun isReady(frame: Int): Boolean {
+        if (fixed.containsKey(frame)) return true
+        val v = state.get(slotFor(frame))
+        return frameOf(v) == frame && (stateOf(v) == READY || stateOf(v) == READING)
+    }
+
+    /**
+     * copies `frame` into `out`. If it isn't ready and `wait` is false this returns false immediately (having made sure it's on its way), otherwise this blocks
+     * until it has been decoded
+     */
+    fun copy(frame: Int, out: ByteBuffer, wait: Boolean): Boolean {
+        if (frame < 0) return false
+
+        val fx = fixed[frame]
+        if (fx != null) {
+            hits.incrementAndGet()
+            val b = fx.duplicate()
+            b.rewind()
+            out.put(b)
+            prefetch(frame)
+            return true
+        }
+
+        val s = slotFor(frame)
+
+        if (isReady(frame)) hits.incrementAndGet()
+        else {
+            misses.incrementAndGet()
+            if (!wait) {
+                prefetch(frame)
+                return false
+            }
+        }
+
+        val t0 = System.nanoTime()
+        var stalled = false
+        // the slot can be reclaimed (by a prefetch or schedule on another thread) between it being ready and us claiming it, so a caller that
+        // asked to wait goes back to waiting rather than getting nothing
+        while (!state.compareAndSet(s, pack(frame, READY), pack(frame, READING))) {
+            if (!wait) return false
+            stalled = true
+            head = frame
+            if (stateOf(state.get(s)) == READING) {
+                // another copy is reading this slot (this frame or the one before it)
+                awaitRead(s)
+                continue
+            }
+            // if the slot is busy decoding a frame that we no longer want we wait for that to finish, then try again
+            val f = schedule(frame) ?: futures.get(s) ?: continue
+            try {
+                f.get()
+            } catch (e: CancellationException) {
+            } catch (e: ExecutionException) {
+                e.printStackTrace()
+                return false
+            }
+        }
+        if (stalled) stallTime.add((System.nanoTime() - t0) / 1e9f)
+
+        try {
+            val b = storage(s).duplicate()
+            b.rewind()
+            out.put(b)
+        } finally {
+            state.set(s, pack(frame, READY))
+            val l = readLocks[s]
+            synchronized(l) { l.notifyAll() }
+        }
+
+        prefetch(frame)
+        return true
+    }
+
+    // blocks until no copy is reading slot `s`
+    private fun awaitRead(s: Int) {
+        val l = readLocks[s]
+        synchronized(l) {
+            while (stateOf(state.get(s)) == READING) l.wait()
+        }
+    }
+
+    /**
+     * decodes the window starting at `frame` and waits for all of it
+     */
+    fun preroll(frame: Int) {
+        prefetch(frame)
+        for (i in 0..lookahead) {
+            val f = futures.get(slotFor(frame + i)) ?: continue
+            try {
+                f.get()
+            } catch (e: CancellationException) {
+            } catch (e: ExecutionException) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    /**
+     * decodes `frames` into their own storage, outside of the ring, where they stay for the lifetime of this pipe
+     */
+    fun fix(frames: IntRange) {
+        for (frame in frames) {
+            if (fixed.containsKey(frame)) continue
+            val b = ByteBuffer.allocateDirect(3 * width * height)
+            decoder(frame, b)
+            b.rewind()
+            fixed[frame] = b
+        }
+    }
+
+    fun hitRate(): Double {
+        val h = hits.get()
+        val t = h + misses.get()
+        return if (t == 0L) 1.0 else h / t.toDouble()
+    }
+
+    fun printStatus() {
+        println(" framePipe head:$head direction:$direction hitRate:${hitRate()} decoded:${decoded.get()} cancelled:${cancelled.get()}")
+    }
+
+    fun shutdown() {
+        pool.shutdownNow()
+    }
+
+    companion object {
+        const val FREE = 0
+        const val DECODING = 1
+        const val READY = 2
+        const val READING = 3
+        const val RESERVED = 4
+
+        private fun pack(frame: Int, state: Int) = (frame.toLong() shl 3) or state.toLong()
+        private fun frameOf(v: Long) = (v shr 3).toInt()
+        private fun stateOf(v: Long) = (v and 7L).toInt()
+    }
+}
@@ -6,9 +6,10 @@ import field.utility.Options
 import java.io.File
 import java.lang.IllegalArgumentException
 import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
 import java.util.*
 import java.util.function.Function
-import kotlin.collections.Map.Entry
 
 class ImageCache(
     val width: Int,
@@ -18,51 +19,26 @@ class ImageCache(
     private var files: Function<Int, String>?
 ) {
 
-    private val p: Pipe
-//    var jp = FastJPEG()
-
-    internal var forwards = true
-
-    init {
-
-        p = object : Pipe(width, height) {
-            internal var num = 0
-
-            override fun createStorage(): ByteBuffer? {
-                //				System.out.println(" creating storage <" + num + ">");
-                if (num < maxBuffer) {
-                    num++
-                    return super.createStorage()
-                } else
-                    return null
-            }
-
-            override fun decompress(n: Entry<String, ByteBuffer>) {
-                if (n.key == "--black--") {
-                    synchronized(black) {
-                        black.rewind()
-                        n.value.put(black)
-                        black.rewind()
-                        n.value.rewind()
-                    }
-                } else {
-                    Thread.currentThread().name = "decompression thread"
-                    System.err.println(n.key + " " + n.value)
-//                    jp.decompress(n.key, n.value, width, height)
-                    FastJPEG.j.decompress(n.key, n.value, width, height)
-                }
-            }
+    /**
+     * the decode ring behind this cache, exposed for its latency and hit-rate metrics
+     */
+    val pipe: FramePipe by lazy {
+        // the ring only has to cover the prefetch window (plus the pair of frames currently on screen), buffers are allocated as slots are first used
+        FramePipe(width, height, Math.max(lookahead + 4, Math.min(maxBuffer, 2 * lookahead + 4)), lookahead) { frame, into -> decodeInto(frame, into) }
+    }
 
-            override fun check(): Int {
-                val z = super.check()
-                if (z != num) {
-                    // throw new
-                    // IllegalArgumentException(" failed check");
-                    //					System.out.println(z + " != " + num);
-                }
-                return z
+    /**
+     * decodes `frame` straight into `into`. Files ending in .bptc are taken to be pre-transcoded, compressed blocks and are copied as they are
+     */
+    fun decodeInto(frame: Int, into: ByteBuffer) {
+        val name = files!!.apply(frame)
+        if (name.endsWith(".bptc")) {
+            FileChannel.open(File(name).toPath(), StandardOpenOption.READ).use {
+                while (into.hasRemaining() && it.read(into) >= 0);
             }
-        }
+            into.rewind()
+        } else
+            FastJPEG.j.decompress(name, into, width, height)
     }
 
     fun setFileMap(f: Function<Int, String>): ImageCache {
@@ -71,115 +47,29 @@ class ImageCache(
     }
 
     fun prerollAndWait(frame: Int) {
-        println(" prerolling ... ")
-        val f = ArrayList<String>()
-        for (i in 0 until lookahead - 2) {
-            val n = files!!.apply(i + frame)
-            if (n != null)
-                f.add(n)
-        }
-        if (f.size > 0)
-            p.preroll(*f.toTypedArray())
-
-        try {
-            Thread.sleep(250)
-        } catch (e: InterruptedException) {
-            e.printStackTrace()
-        }
-
+        pipe.preroll(frame)
     }
 
     fun fix(start: Int, end: Int) {
-        val f = ArrayList<String>()
-        for (i in start until end) {
-            val n = files!!.apply(i)
-            if (n != null)
-                f.add(n)
-        }
-        if (f.size > 0)
-            p.fix(*f.toTypedArray())
+        pipe.fix(start until end)
     }
 
     fun setPlaybackDirection(frame: Int, forwards: Boolean) {
-        if (this.forwards && !forwards) {
-            for (i in 0 until lookahead) {
-                val fn = files!!.apply(frame - i - 1)
-                if (fn != null)
-                    p.schedule(fn)
-            }
-        } else {
-            for (i in 0 until lookahead) {
-                val fn = files!!.apply(frame + i + 1)
-                if (fn != null)
-                    p.schedule(fn)
-            }
-        }
+        setPlaybackDirection(frame, if (forwards) FramePipe.Direction.forward else FramePipe.Direction.reverse)
+    }
 
-        this.forwards = forwards
+    fun setPlaybackDirection(frame: Int, direction: FramePipe.Direction) {
+        pipe.direction = direction
+        pipe.prefetch(frame)
     }
 
     fun copy(frame: Int, out: ByteBuffer): Boolean {
-        val o = files!!.apply(frame)
-        if (o == null) {
+        if (files!!.apply(frame) == null) {
             println(" NO FILE :" + frame)
             return false
         }
 
-        //		synchronous = true;
-
-        val oo = if (synchronous) p.getOrWait(o) else p.get(o)
-
-        try {
-            if (oo == null) {
-                println(" did not load in time:$frame / $o")
-                //                p.printStatus();
-
-                if (synchronous)
-                    System.err.println(" THIS CAN NEVER HAPPEN ")
-
-                for (i in 0 until lookahead * 2) {
-                    val fn = files!!.apply(frame - i - 1)
-                    if (fn != null)
-                        p.unschedule(fn)
-                }
-
-                for (i in 0 until lookahead) {
-                    val fn = files!!.apply(frame + i)
-                    if (fn != null)
-                        p.schedule(fn)
-                }
-
-
-                return false
-            }
-
-            println(" loaded in time :$frame / $o")
-
-            oo.rewind()
-            out.put(oo)
-            oo.rewind()
-
-            val upcoming = LinkedHashSet<String>()
-            for (i in 0 until lookahead) {
-                val fn = files!!.apply(frame + i + 1)
-                upcoming.add(fn)
-            }
-            for (i in 0 until lookahead * 2) {
-                val fn = files!!.apply(frame - i - 2)
-                if (fn != null && !upcoming.contains(fn))
-                    p.unschedule(fn)
-            }
-
-            for (i in 0 until lookahead) {
-                val fn = files!!.apply(frame + i + 1)
-                if (fn != null)
-                    p.schedule(fn)
-            }
-
-            return true
-        } finally {
-            p.free(o)
-        }
+        return pipe.copy(frame, out, synchronous)
     }
 
     class FileMap(var ff: Array<File>) : Function<Int, String> {
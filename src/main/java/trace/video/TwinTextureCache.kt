@@ -1,15 +1,24 @@
 package trace.video
 
 import field.graphics.FastJPEG
+import field.graphics.StreamingTexture
 import field.graphics.Texture
 import java.nio.ByteBuffer
+import java.util.function.BiConsumer
 
-class TwinTextureCache(unit: Int, private val source: ImageCache) {
+/**
+ * Two textures, holding the frames either side of the current time, for cross-fading through an image sequence.
+ *
+ * With `streaming` set the textures are StreamingTextures: decode workers write straight into persistently mapped pixel-unpack buffers owned by the
+ * textures, and nothing passes through the main thread. Even frames are shown from textureA and odd frames from textureB, so playing forward only ever needs
+ * one new frame per frame. Set `compressed` if the sequence has been pre-transcoded into BPTC blocks (.bptc files).
+ */
+class TwinTextureCache(unit: Int, private val source: ImageCache, val streaming: Boolean = false, compressed: Boolean = false, ringSize: Int = 3) {
 
 
-    private val a: ByteBuffer
+    private val a: ByteBuffer by lazy { ByteBuffer.allocateDirect(source.width * source.height * 3) }
     val textureA: Texture
-    private val b: ByteBuffer
+    private val b: ByteBuffer by lazy { ByteBuffer.allocateDirect(source.width * source.height * 3) }
     val textureB: Texture
 
     internal var q = FastJPEG()
@@ -30,16 +39,24 @@ class TwinTextureCache(unit: Int, private val source: ImageCache) {
     internal var LEFT = 0
     internal var RIGHT = 0
 
-    init {
+    private val decode = BiConsumer<Int, ByteBuffer> { frame, into -> source.decodeInto(frame, into) }
 
-        a = ByteBuffer.allocateDirect(source.width * source.height * 3)
-        b = ByteBuffer.allocateDirect(source.width * source.height * 3)
+    init {
 
-        textureA = Texture(Texture.TextureSpecification.byte3(unit, source.width, source.height, a, true, false))
-        textureB = Texture(Texture.TextureSpecification.byte3(unit + 1, source.width, source.height, b, true, false))
+        if (streaming) {
+            val spec = { u: Int ->
+                if (compressed) Texture.TextureSpecification.bptc(u, source.width, source.height, null)
+                else Texture.TextureSpecification.byte3(u, source.width, source.height, null, false, true)
+            }
+            textureA = StreamingTexture(spec(unit), ringSize)
+            textureB = StreamingTexture(spec(unit + 1), ringSize)
+        } else {
+            textureA = Texture(Texture.TextureSpecification.byte3(unit, source.width, source.height, a, true, false))
+            textureB = Texture(Texture.TextureSpecification.byte3(unit + 1, source.width, source.height, b, true, false))
 
-        textureA.setIsDoubleBuffered(false)
-        textureB.setIsDoubleBuffered(false)
+            textureA.setIsDoubleBuffered(false)
+            textureB.setIsDoubleBuffered(false)
+        }
     }
 
     fun getAlpha(): Float {
@@ -47,7 +64,7 @@ class TwinTextureCache(unit: Int, private val source: ImageCache) {
     }
 
     fun setPlaying(p: Boolean) {
-        if (p && !playing) {
+        if (p && !playing && !streaming) {
             source.prerollAndWait(time.toInt())
         }
         this.playing = p
@@ -64,8 +81,11 @@ class TwinTextureCache(unit: Int, private val source: ImageCache) {
             time = t
             return
         }
-        if (autoDirectionSet) {
-            if (t < lastTime)
+        if (autoDirectionSet && !streaming) {
+            // jumps of more than a couple of frames are someone scrubbing, so prefetch both sides
+            if (Math.abs(t - lastTime) > 2)
+                source.setPlaybackDirection(t.toInt(), FramePipe.Direction.scrub)
+            else if (t < lastTime)
                 source.setPlaybackDirection(t.toInt(), false)
             else if (t > lastTime)
                 source.setPlaybackDirection(t.toInt(), true)
@@ -75,7 +95,9 @@ class TwinTextureCache(unit: Int, private val source: ImageCache) {
     }
 
     fun update() {
-        if (isDirty) {
+        if (streaming) {
+            if (isDirty) updateStreaming()
+        } else if (isDirty) {
             lastTime = time
             var left = time.toInt()
             var right = left + 1
@@ -222,6 +244,29 @@ class TwinTextureCache(unit: Int, private val source: ImageCache) {
 
     }
 
+    private fun updateStreaming() {
+        val sa = textureA as StreamingTexture
+        val sb = textureB as StreamingTexture
+
+        val left = time.toInt()
+        val right = left + 1
+        val even = if (left % 2 == 0) left else right
+        val odd = if (left % 2 == 0) right else left
+
+        // a frame that isn't resident yet leaves the previous one on screen, and we'll try again next update
+        val okA = sa.show(even, decode)
+        val okB = sb.show(odd, decode)
+        if (okA) cA = even
+        if (okB) cB = odd
+
+        val step = if (time >= lastTime) 2 else -2
+        sa.request(even + step, decode)
+        sb.request(odd + step, decode)
+
+        lastTime = time
+        isDirty = !(okA && okB)
+    }
+
     companion object {
 
         fun pad(i: Int): String {